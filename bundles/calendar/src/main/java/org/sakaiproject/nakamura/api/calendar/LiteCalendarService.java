@@ -63,6 +63,31 @@ public interface LiteCalendarService {
    */
   Calendar export(Session session, Content node, String[] types) throws CalendarException;
 
+  /**
+   * Builds a {@link Calendar calendar} from a {@link Content node} in the same way as
+   * {@link #export(Session, Content, String[])}, but only includes the components that
+   * fall within a window of time. A component is in the window if it starts before the
+   * end of the window and ends at or after its start. Components that repeat and
+   * components without a start are always included.
+   *
+   * @param session
+   * @param node
+   *          The content that is a parent of all the underlying event nodes.
+   * @param types
+   *          An array of Strings that should be used to match the subnodes. eg: valarm,
+   *          vavailability, vevent, .. {@see Component Component}
+   * @param start
+   *          The start of the window, or null for no lower bound.
+   * @param end
+   *          The end of the window, or null for no upper bound.
+   *
+   * @return A {@link Calendar calendar} that represents the Sparse nodes.
+   * @throws CalendarException
+   *           Failed to export a Sparse representation to a valid Calendar representation.
+   */
+  Calendar export(Session session, Content node, String[] types, java.util.Date start,
+      java.util.Date end) throws CalendarException;
+
   /**
    * Creates a Sparse based representation of a {@link Calendar calendar}.
    *
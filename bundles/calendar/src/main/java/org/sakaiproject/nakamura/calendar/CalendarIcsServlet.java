@@ -38,13 +38,18 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
 
 import javax.jcr.Node;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 @ServiceDocumentation(
     bindings = {
@@ -63,10 +68,17 @@ import javax.servlet.ServletException;
                 "This servlet will generate the underlying JCR node structure into a valid ical format.",
                 "If no selector is specified it will output components of type VEvent.",
                 "More components can be looked for by adding in the type as a selecter.",
-                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics"
+                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics",
+                "The feed is cached until the calendar changes and carries an ETag and Last-Modified date, so polling clients that send If-None-Match or If-Modified-Since get a 304."
+            },
+            parameters = {
+                @ServiceParameter(name = "start", description = "Optional, only export components that end at or after this ical date, eg 20110101 or 20110101T000000Z."),
+                @ServiceParameter(name = "end", description = "Optional, only export components that start before this ical date.")
             },
             response = {
                 @ServiceResponse(code = 200, description = "Generates a calendar feed of the underlying JCR node structure."),
+                @ServiceResponse(code = 304, description = "The client already has the current feed."),
+                @ServiceResponse(code = 400, description = "The start or end is not a date."),
                 @ServiceResponse(code = 500, description = "Something went wrong trying the serialize the underlying node structure, the failure is placed in the HTML.")
             }
         ) 
@@ -83,12 +95,25 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = -3279889579407055346L;
 
+  /**
+   * The start of the window of time to export, an ical date or date-time.
+   */
+  static final String PARAM_START = "start";
+
+  /**
+   * The end of the window of time to export, an ical date or date-time.
+   */
+  static final String PARAM_END = "end";
+
   @Reference
   protected transient CalendarService calendarService;
 
   @Reference
   protected transient LiteCalendarService liteCalendarService;
 
+  @Reference
+  protected transient IcsFeedCache icsFeedCache;
+
   /**
    * {@inheritDoc}
    * 
@@ -103,31 +128,93 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
     response.setCharacterEncoding("UTF-8");
 
     String[] types = getSelectors(request);
-    Calendar iCal = null;
     Resource resource = request.getResource();
     try {
       Content content = resource.adaptTo(Content.class);
       if (content != null) {
-        // Construct the Calendar from the content tree.
-        iCal = liteCalendarService.export(null, content, types);
+        IcsFeed feed = getFeed(request, content, types);
+        if (notModified(request, feed)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+        response.setHeader("ETag", feed.getETag());
+        response.setDateHeader("Last-Modified", feed.getLastModified());
+        response.setContentLength(feed.getBody().length);
+        response.getOutputStream().write(feed.getBody());
       } else {
         Node node = resource.adaptTo(Node.class);
         // Construct the Calendar from the node structure.
-        iCal = calendarService.export(node, types);
+        Calendar iCal = calendarService.export(node, types);
+        // Output the calendar, we don't do any validation.
+        CalendarOutputter outputter = new CalendarOutputter(false);
+        outputter.output(iCal, response.getOutputStream());
       }
-      // Output the calendar, we don't do any validation.
-      CalendarOutputter outputter = new CalendarOutputter(false);
-      outputter.output(iCal, response.getOutputStream());
     } catch (CalendarException e) {
       e.printStackTrace();
       response.sendError(e.getCode(), e.getMessage());
     } catch (ValidationException e) {
       e.printStackTrace();
       response.sendError(500, "Failed to output proper ical.");
+    } catch (ParseException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "The start and end of the window must be ical dates: " + e.getMessage());
     }
 
   }
 
+  /**
+   * Get the rendered feed from the cache, or construct the Calendar from the content tree
+   * and render it.
+   */
+  private IcsFeed getFeed(SlingHttpServletRequest request, Content content, String[] types)
+      throws CalendarException, ValidationException, IOException, ParseException {
+    String start = request.getParameter(PARAM_START);
+    String end = request.getParameter(PARAM_END);
+    java.util.Date startDate = LiteCalendarServiceImpl.toDate(start);
+    java.util.Date endDate = LiteCalendarServiceImpl.toDate(end);
+
+    // the feed depends on what the user can read as well as what they asked for.
+    String[] sortedTypes = types.clone();
+    Arrays.sort(sortedTypes);
+    StringBuilder variant = new StringBuilder(String.valueOf(request.getRemoteUser()));
+    for (String type : sortedTypes) {
+      variant.append('.').append(type.toLowerCase());
+    }
+    variant.append(':').append(start).append(':').append(end);
+
+    IcsFeedCache.Feeds feeds = icsFeedCache.getFeeds(content.getPath());
+    IcsFeed feed = feeds.get(variant.toString());
+    if (feed == null) {
+      long rendered = System.currentTimeMillis();
+      Calendar iCal = liteCalendarService.export(null, content, types, startDate, endDate);
+      // Output the calendar, we don't do any validation.
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      CalendarOutputter outputter = new CalendarOutputter(false);
+      outputter.output(iCal, out);
+      feed = new IcsFeed(out.toByteArray(), rendered);
+      feeds.put(variant.toString(), feed);
+    }
+    return feed;
+  }
+
+  /**
+   * @return true if the client already has the feed, by its tag or by its date.
+   */
+  private boolean notModified(SlingHttpServletRequest request, IcsFeed feed) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if ("*".equals(tag) || feed.getETag().equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ims = request.getDateHeader("If-Modified-Since");
+    return ims > 0 && feed.getLastModified() / 1000 <= ims / 1000;
+  }
+
   /**
    * @param request
    * @return
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A rendered ics feed.
+ */
+public class IcsFeed {
+
+  private final byte[] body;
+  private final String etag;
+  private final long lastModified;
+
+  /**
+   * @param body
+   *          the serialized calendar.
+   * @param lastModified
+   *          when the feed was rendered.
+   */
+  public IcsFeed(byte[] body, long lastModified) {
+    this.body = body;
+    this.lastModified = lastModified;
+    // the tag depends only on the bytes, so a feed rendered again with nothing changed,
+    // or on another server, keeps its tag.
+    this.etag = "\"" + digest(body) + "\"";
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public String getETag() {
+    return etag;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  private static String digest(byte[] body) {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-1").digest(body)) {
+        sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every jvm has SHA-1.
+      throw new IllegalStateException(e);
+    }
+  }
+}
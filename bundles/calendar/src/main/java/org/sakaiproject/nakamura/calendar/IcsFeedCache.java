@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds rendered ics feeds, so that clients polling a calendar every few minutes are
+ * served the bytes from the last render rather than an export of the whole content tree.
+ * <p>
+ * The feeds of a calendar are held together, one for each user, selector set and window.
+ * All of them are dropped when the calendar or anything below it is updated or deleted. A
+ * feed rendered while the calendar changes is stored in the set that was current when the
+ * render started, which the change has already dropped, so it is never served stale.
+ * Changes made on another server in a cluster are only seen when a feed reaches its
+ * maximum age.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { IcsFeedCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches rendered ics calendar feeds."),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        StoreListener.TOPIC_BASE + "content/" + StoreListener.UPDATED_TOPIC,
+        StoreListener.TOPIC_BASE + "content/" + StoreListener.DELETE_TOPIC }) })
+public class IcsFeedCache implements EventHandler {
+
+  static final String CACHE_NAME = "calendar.ics.feeds";
+
+  @Property(intValue = 300, label = "Maximum age", description = "The number of seconds a rendered feed is served for.")
+  static final String MAX_AGE = "ics.feed.max.age";
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  private Cache<Feeds> cache;
+
+  private long maxAge;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    maxAge = OsgiUtil.toInteger(properties.get(MAX_AGE), 300) * 1000L;
+    cache = cacheManagerService.getCache(CACHE_NAME, CacheScope.INSTANCE);
+  }
+
+  /**
+   * @param calendarPath
+   *          the path of the calendar content.
+   * @return the feeds of the calendar, to look up a feed in and to store a feed rendered
+   *         from the calendar as it is now.
+   */
+  public Feeds getFeeds(String calendarPath) {
+    Feeds feeds = cache.get(calendarPath);
+    if (feeds == null) {
+      feeds = new Feeds(maxAge);
+      cache.put(calendarPath, feeds);
+    }
+    return feeds;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the feeds of the changed content and of every parent of it, one of which may be
+   * the calendar.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    while (path != null && path.length() > 0) {
+      cache.remove(path);
+      int i = path.lastIndexOf('/');
+      path = i > 0 ? path.substring(0, i) : null;
+    }
+  }
+
+  /**
+   * The rendered feeds of one calendar.
+   */
+  public static class Feeds {
+    private final Map<String, IcsFeed> feeds = new ConcurrentHashMap<String, IcsFeed>();
+    private final long maxAge;
+
+    Feeds(long maxAge) {
+      this.maxAge = maxAge;
+    }
+
+    /**
+     * @param variant
+     *          identifies the user, selectors and window the feed was rendered for.
+     * @return the feed, or null if there is none young enough.
+     */
+    public IcsFeed get(String variant) {
+      IcsFeed feed = feeds.get(variant);
+      if (feed != null && System.currentTimeMillis() - feed.getLastModified() > maxAge) {
+        feeds.remove(variant);
+        return null;
+      }
+      return feed;
+    }
+
+    public void put(String variant, IcsFeed feed) {
+      feeds.put(variant, feed);
+    }
+  }
+}
@@ -30,6 +30,7 @@ import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Date;
+import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyFactory;
 import net.fortuna.ical4j.model.PropertyFactoryImpl;
@@ -94,6 +95,15 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[])
    */
   public Calendar export(Session session, Content node, String[] types) throws CalendarException {
+    return export(session, node, types, null, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[], java.util.Date, java.util.Date)
+   */
+  public Calendar export(Session session, Content node, String[] types,
+      java.util.Date start, java.util.Date end) throws CalendarException {
     // Translate input type strings (e.g., "VEVENT") into Sling resource types
     // (e.g., "sakai/calendar-vevent").
     Set<String> wantedResourceTypes = Sets.newHashSetWithExpectedSize(types.length);
@@ -111,7 +121,8 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
       // Traverse the tree.
       Iterable<Content> children = node.listChildren();
       for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes,
+            start, end);
       }
     } catch (IOException e) {
       LOGGER.error("Caught an IOException when trying to export a calendar", e);
@@ -271,9 +282,13 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
   }
 
   private void recurseForEvents(Content node, Calendar calendar, PropertyFactory propFactory,
-      Set<String> wantedResourceTypes) throws IOException, URISyntaxException, ParseException {
+      Set<String> wantedResourceTypes, java.util.Date start, java.util.Date end)
+      throws IOException, URISyntaxException, ParseException {
     final String resourceType = (String) node.getProperty(SLING_RESOURCE_TYPE_PROPERTY);
     if (resourceType != null && wantedResourceTypes.contains(resourceType)) {
+      if (!inWindow(node, start, end)) {
+        return;
+      }
       // Treat the content as event storage.
       PropertyList eventProperties = new PropertyList();
       addNodePropertiesToCal(node, eventProperties, propFactory);
@@ -284,9 +299,56 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     } else {
       Iterable<Content> children = node.listChildren();
       for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes,
+            start, end);
+      }
+    }
+  }
+
+  /**
+   * @return true if the event stored in the node overlaps the window. Events that repeat
+   *         or have no start are always in the window, working out their occurrences is
+   *         left to the client.
+   */
+  private boolean inWindow(Content node, java.util.Date start, java.util.Date end)
+      throws ParseException {
+    if (start == null && end == null) {
+      return true;
+    }
+    if (node.hasProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + Property.RRULE)
+        || node.hasProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + Property.RDATE)) {
+      return true;
+    }
+    java.util.Date eventStart = toDate(node
+        .getProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + Property.DTSTART));
+    if (eventStart == null) {
+      return true;
+    }
+    java.util.Date eventEnd = toDate(node
+        .getProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + Property.DTEND));
+    if (eventEnd == null) {
+      eventEnd = eventStart;
+    }
+    return (end == null || eventStart.before(end))
+        && (start == null || !eventEnd.before(start));
+  }
+
+  /**
+   * Read a date as {@link #addCalPropertiesToNode} stores it, or as ical text.
+   */
+  static java.util.Date toDate(Object value) throws ParseException {
+    if (value instanceof java.util.Calendar) {
+      return ((java.util.Calendar) value).getTime();
+    } else if (value instanceof java.util.Date) {
+      return (java.util.Date) value;
+    } else if (value != null) {
+      String s = String.valueOf(value);
+      if (s.indexOf('T') > 0) {
+        return new DateTime(s);
       }
+      return new Date(s);
     }
+    return null;
   }
 
   private void addCalPropertiesToNode(PropertyList propertyList, Content node) {
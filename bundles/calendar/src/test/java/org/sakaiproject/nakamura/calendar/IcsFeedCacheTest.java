@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+
+public class IcsFeedCacheTest {
+
+  private IcsFeedCache icsFeedCache;
+
+  @Before
+  public void setUp() {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(
+        cacheManagerService.getCache(IcsFeedCache.CACHE_NAME, CacheScope.INSTANCE))
+        .thenReturn(new MapCacheImpl<IcsFeedCache.Feeds>());
+    icsFeedCache = new IcsFeedCache();
+    icsFeedCache.cacheManagerService = cacheManagerService;
+    icsFeedCache.activate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testChangeBelowCalendarDropsFeeds() {
+    IcsFeed feed = new IcsFeed("BEGIN:VCALENDAR".getBytes(), System.currentTimeMillis());
+    IcsFeedCache.Feeds feeds = icsFeedCache.getFeeds("/a/calendar");
+    feeds.put("ieb.vevent", feed);
+    assertSame(feed, icsFeedCache.getFeeds("/a/calendar").get("ieb.vevent"));
+
+    // an unrelated change leaves the feed.
+    icsFeedCache.handleEvent(event("/a/other/event"));
+    assertSame(feed, icsFeedCache.getFeeds("/a/calendar").get("ieb.vevent"));
+
+    icsFeedCache.handleEvent(event("/a/calendar/2011/01/event"));
+    assertNull(icsFeedCache.getFeeds("/a/calendar").get("ieb.vevent"));
+
+    // a render that started before the change cannot put back a stale feed.
+    feeds.put("ieb.vevent", feed);
+    assertNull(icsFeedCache.getFeeds("/a/calendar").get("ieb.vevent"));
+  }
+
+  @Test
+  public void testOldFeedsExpire() {
+    IcsFeed feed = new IcsFeed("BEGIN:VCALENDAR".getBytes(), System.currentTimeMillis()
+        - 3600000L);
+    icsFeedCache.getFeeds("/a/calendar").put("ieb.vevent", feed);
+    assertNull(icsFeedCache.getFeeds("/a/calendar").get("ieb.vevent"));
+  }
+
+  @Test
+  public void testETagDependsOnBody() {
+    IcsFeed a = new IcsFeed("BEGIN:VCALENDAR".getBytes(), 1000L);
+    IcsFeed b = new IcsFeed("BEGIN:VCALENDAR".getBytes(), 2000L);
+    assertEquals(a.getETag(), b.getETag());
+  }
+
+  private Event event(String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event(StoreListener.TOPIC_BASE + "content/" + StoreListener.UPDATED_TOPIC,
+        properties);
+  }
+}
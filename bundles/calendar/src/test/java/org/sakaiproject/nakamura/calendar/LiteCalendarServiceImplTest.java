@@ -51,6 +51,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.text.ParseException;
 import java.util.List;
 
 public class LiteCalendarServiceImplTest {
@@ -119,6 +120,45 @@ public class LiteCalendarServiceImplTest {
     assertEquals(veventUid, prop.getValue());
   }
 
+  @Test
+  public void testExportWindow() throws AccessDeniedException, StorageClientException,
+      CalendarException, ParseException {
+    ContentManager contentManager = session.getContentManager();
+    String calendarPath = testKey + "/window-calendar";
+    contentManager.update(new Content(calendarPath, ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar"
+    )));
+    contentManager.update(new Content(calendarPath + "/january", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110107T172000Z",
+        "sakai:vcal-DTEND", "20110107T180000Z",
+        "sakai:vcal-UID", testKey + "-january"
+    )));
+    contentManager.update(new Content(calendarPath + "/march", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110307T172000Z",
+        "sakai:vcal-DTEND", "20110307T180000Z",
+        "sakai:vcal-UID", testKey + "-march"
+    )));
+    Content calendarContent = contentManager.get(calendarPath);
+
+    Calendar calendar = liteCalendarService.export(session, calendarContent,
+        new String[] { "vevent" }, LiteCalendarServiceImpl.toDate("20110201"), null);
+    assertEquals(1, calendar.getComponents().size());
+    assertEquals(testKey + "-march", ((Component) calendar.getComponents().get(0))
+        .getProperty(Property.UID).getValue());
+
+    calendar = liteCalendarService.export(session, calendarContent,
+        new String[] { "vevent" }, null, LiteCalendarServiceImpl.toDate("20110201"));
+    assertEquals(1, calendar.getComponents().size());
+    assertEquals(testKey + "-january", ((Component) calendar.getComponents().get(0))
+        .getProperty(Property.UID).getValue());
+
+    calendar = liteCalendarService.export(session, calendarContent,
+        new String[] { "vevent" }, null, null);
+    assertEquals(2, calendar.getComponents().size());
+  }
+
   @Test
   public void testStoreAsCalendar() throws CalendarException, IOException, ParserException {
     Calendar inputCalendar = loadTestCalendar();
@@ -4,16 +4,29 @@ import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.math.BigInteger;
 import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UniqueIdGenerator {
 
-  private Object lockObject = new Object();
-  private long next = 0;
-  private long epoch;
-  private long last = 0;
-  private long micro = 0;
-  private int serverId;
-  private int rollover;
+  /**
+   * The state is packed into a single long, the ms since the epoch in the high bits and
+   * the count within that ms in the low bits, so that it can be advanced with a single
+   * CAS rather than a lock.
+   */
+  private static final int MICRO_BITS = 10;
+  private static final long MICRO_MASK = (1L << MICRO_BITS) - 1;
+  private static final long MAX_MICRO = 999;
+  private static final long SERVER_RANGE = 10000L;
+  /**
+   * Largest time part that still gives an id that fits in a long.
+   */
+  private static final long MAX_LONG_TIME = Long.MAX_VALUE / SERVER_RANGE;
+
+  private final AtomicLong state = new AtomicLong();
+  private final AtomicInteger rollover = new AtomicInteger();
+  private final long epoch;
+  private final int serverId;
 
   public UniqueIdGenerator(int serverId) {
     this.serverId = serverId;
@@ -22,30 +35,66 @@ public class UniqueIdGenerator {
   }
 
   public String nextId() {
-    return StringUtils.encode(nextIdNum().toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    long time = nextTime();
+    if (time > MAX_LONG_TIME) {
+      return StringUtils.encode(toIdNum(time).toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    }
+    return StringUtils.encode(toByteArray(time * SERVER_RANGE + serverId),
+        StringUtils.URL_SAFE_ENCODING);
   }
-  
+
   public BigInteger nextIdNum() {
-    // single threaded this benchmarks at 0.5 ns per invocation, so rollover is possible
-    synchronized (lockObject) {
-      next = System.currentTimeMillis() - epoch;
-      if (next == last) { // 2 in the same ms
-        micro++;
-      } else if (next < last) { // roll over happend in this ms
+    return toIdNum(nextTime());
+  }
+
+  /**
+   * The same id as {@link #nextIdNum()}, without creating a BigInteger. The id number
+   * grows with time and only fits in a long until about 2039, after that this throws an
+   * {@link IllegalStateException} and {@link #nextIdNum()} has to be used.
+   *
+   * @return the next id number.
+   */
+  public long nextIdLong() {
+    long time = nextTime();
+    if (time > MAX_LONG_TIME) {
+      throw new IllegalStateException("Id number no longer fits in a long");
+    }
+    return time * SERVER_RANGE + serverId;
+  }
+
+  /**
+   * @return the time part of the next id, which is the ms since the epoch * 1000 plus the
+   *         count of ids already issued in that ms.
+   */
+  private long nextTime() {
+    for (;;) {
+      long current = state.get();
+      long last = current >>> MICRO_BITS;
+      long micro = current & MICRO_MASK;
+      long next = System.currentTimeMillis() - epoch;
+      boolean rolledOver = false;
+      if (next > last) { // new ms
+        micro = 0;
+      } else { // 2 in the same ms, or the clock is behind a ms we borrowed
         next = last;
         micro++;
-      } else { // new ms
-        micro = 0;
-        last = next;
+        // catch any rollover in micro.
+        if (micro > MAX_MICRO) {
+          rolledOver = true;
+          next++;
+          micro = 0;
+        }
       }
-      // catch any rollover in micro.
-      if (micro > 999) {
-        rollover++;
-        next++;
-        micro = 0;
-        last = next;
+      if (state.compareAndSet(current, (next << MICRO_BITS) | micro)) {
+        if (rolledOver) {
+          rollover.incrementAndGet();
+        }
+        return next * 1000 + micro;
       }
     }
+  }
+
+  private BigInteger toIdNum(long time) {
     // Collision analysis
     // The server number is unique in the cluster so no 2 servers with the same number can
     // exist at the same time
@@ -55,14 +104,27 @@ public class UniqueIdGenerator {
     // the server part of the number is prefixed
     // by 1 as in 1SSSS therefore this ID can never collide in the cluster or by rollover
     // provided we have < 9001 servers in the cluster.
-    BigInteger idNum = BigInteger.valueOf(next*1000+micro);
-    idNum = idNum.multiply(BigInteger.valueOf(10000));
+    BigInteger idNum = BigInteger.valueOf(time);
+    idNum = idNum.multiply(BigInteger.valueOf(SERVER_RANGE));
     idNum = idNum.add(BigInteger.valueOf(serverId));
     return idNum;
   }
-  
+
+  /**
+   * @return the same bytes as BigInteger.valueOf(value).toByteArray() for a positive value.
+   */
+  static byte[] toByteArray(long value) {
+    int length = (64 - Long.numberOfLeadingZeros(value)) / 8 + 1;
+    byte[] bytes = new byte[length];
+    for (int i = length - 1; i >= 0; i--) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
   public int getRollover() {
-    return rollover;
+    return rollover.get();
   }
 
 }
@@ -30,6 +30,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  *
@@ -125,4 +126,54 @@ public class IDTest {
         + uniqueIdGenerator.getRollover());
   }
 
+  @Test
+  public void testLongForm() {
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(7);
+    long previous = 0;
+    for (int i = 0; i < 100000; i++) {
+      long id = uniqueIdGenerator.nextIdLong();
+      Assert.assertTrue(id > previous);
+      Assert.assertEquals(7, id % 10000);
+      // the string form must be the same as it was when it was built from a BigInteger.
+      Assert.assertEquals(StringUtils.encode(BigInteger.valueOf(id).toByteArray(),
+          StringUtils.URL_SAFE_ENCODING), StringUtils.encode(
+          UniqueIdGenerator.toByteArray(id), StringUtils.URL_SAFE_ENCODING));
+      previous = id;
+    }
+  }
+
+  @Test
+  public void testConcurrentRate() throws InterruptedException {
+    final UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(1);
+    final int nthreads = 8;
+    final int testSize = 100000;
+    final Map<Long, Long> ids = new ConcurrentHashMap<Long, Long>();
+    final CountDownLatch done = new CountDownLatch(nthreads);
+    long s = System.currentTimeMillis();
+    for (int i = 0; i < nthreads; i++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            long[] local = new long[testSize];
+            for (int j = 0; j < testSize; j++) {
+              local[j] = uniqueIdGenerator.nextIdLong();
+            }
+            for (long id : local) {
+              ids.put(id, id);
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    done.await();
+    double t = System.currentTimeMillis() - s;
+    t = (t * 1000000) / (nthreads * testSize);
+    LOGGER.info("Time per Id with " + nthreads + " threads " + t
+        + " ns (including collision check), rollover happend "
+        + uniqueIdGenerator.getRollover());
+    Assert.assertEquals(nthreads * testSize, ids.size());
+  }
+
 }
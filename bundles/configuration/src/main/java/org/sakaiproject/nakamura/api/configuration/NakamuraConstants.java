@@ -142,6 +142,53 @@ public class NakamuraConstants implements ConfigurationService, ManagedService {
   public static final String JDBC_DEFAULT_AUTO_COMMIT = "jdbc.defaultAutoCommit";
   @Property(value = "false")
   public static final String JDBC_DEFAULT_PREPARED_STATEMENTS = "jdbc.defaultPreparedStatement";
+  /**
+   * The most connections the JDBC pool will open.
+   */
+  @Property(value = "20")
+  public static final String JDBC_POOL_MAX_ACTIVE = "jdbc.pool.maxActive";
+  /**
+   * The most idle connections the JDBC pool will keep.
+   */
+  @Property(value = "8")
+  public static final String JDBC_POOL_MAX_IDLE = "jdbc.pool.maxIdle";
+  /**
+   * The idle connections the JDBC pool keeps open when it is quiet.
+   */
+  @Property(value = "0")
+  public static final String JDBC_POOL_MIN_IDLE = "jdbc.pool.minIdle";
+  /**
+   * How long in ms to wait for a connection when the pool is exhausted, before failing.
+   */
+  @Property(value = "10000")
+  public static final String JDBC_POOL_MAX_WAIT = "jdbc.pool.maxWait";
+  /**
+   * Validate connections with the validation query as they are taken from the pool.
+   */
+  @Property(value = "false")
+  public static final String JDBC_POOL_TEST_ON_BORROW = "jdbc.pool.testOnBorrow";
+  /**
+   * Validate idle connections with the validation query each eviction run.
+   */
+  @Property(value = "true")
+  public static final String JDBC_POOL_TEST_WHILE_IDLE = "jdbc.pool.testWhileIdle";
+  /**
+   * How often in ms to check idle connections, 0 or less to never check.
+   */
+  @Property(value = "60000")
+  public static final String JDBC_POOL_EVICTION_INTERVAL = "jdbc.pool.evictionInterval";
+  /**
+   * How long in ms a connection may be idle before it is closed.
+   */
+  @Property(value = "300000")
+  public static final String JDBC_POOL_MIN_EVICTABLE_IDLE = "jdbc.pool.minEvictableIdle";
+  /**
+   * How long in ms a connection may be out of the pool before it is reported as leaked,
+   * with where it was taken from. 0, the default, does not track connections, since
+   * tracking captures a stack on every borrow.
+   */
+  @Property(value = "0")
+  public static final String JDBC_POOL_LEAK_THRESHOLD = "jdbc.pool.leakThreshold";
   @Property(value = "600")
   public static final String TRANSACTION_TIMEOUT_SECONDS = "transaction.timeoutSeconds";
   @Property(value = "1")
@@ -25,8 +25,6 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
@@ -38,7 +36,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 
@@ -133,6 +136,26 @@ public class Post {
       PresenceService presenceService, ProfileService profileService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
+    Set<String> userIds = new LinkedHashSet<String>();
+    collectUserIds(userIds);
+    outputPostAsJSON(writer, profileService.getCompactProfileMaps(userIds, session),
+        getPresence(userIds, presenceService));
+  }
+
+  /**
+   * Output this post and its replies, with the profiles and presence of the authors and
+   * editors already looked up for the whole thread.
+   *
+   * @param writer
+   * @param profiles
+   *          compact profiles keyed by user id, see {@link #collectUserIds(Set)}.
+   * @param presence
+   *          the status and location keyed by user id, see
+   *          {@link #getPresence(Collection, PresenceService)}.
+   * @throws JSONException
+   */
+  public void outputPostAsJSON(ExtendedJSONWriter writer, Map<String, ValueMap> profiles,
+      Map<String, String[]> presence) throws JSONException {
     boolean canEdit = checkEdit();
     boolean canDelete = checkDelete();
 
@@ -146,7 +169,7 @@ public class Post {
     if (isDeleted && !canDelete) {
       // This post has been deleted and we dont have sufficient rights to edit, so we just
       // show the replies.
-      outputChildrenAsJSON(writer, presenceService, profileService, session);
+      outputChildrenAsJSON(writer, profiles, presence);
     } else {
       writer.object();
 
@@ -161,7 +184,6 @@ public class Post {
       writer.key("canDelete");
       writer.value(canDelete);
 
-      AuthorizableManager authMgr = session.getAuthorizableManager();
       // Show profile of editters.
       if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
 
@@ -172,12 +194,7 @@ public class Post {
         writer.key(DiscussionConstants.PROP_EDITEDBYPROFILES);
         writer.array();
         for (int i = 0; i < edittedBy.length; i++) {
-          writer.object();
-          Authorizable au = authMgr.findAuthorizable(edittedBy[i]);
-          ValueMap profile = profileService.getCompactProfileMap(au, null);
-          writer.valueMapInternals(profile);
-          PresenceUtils.makePresenceJSON(writer, edittedBy[i], presenceService, true);
-          writer.endObject();
+          writeUser(writer, edittedBy[i], profiles, presence);
         }
         writer.endArray();
       }
@@ -188,12 +205,7 @@ public class Post {
       String[] senders = StringUtils.split(fromVal, ',');
       writer.array();
       for (String sender : senders) {
-        writer.object();
-        Authorizable au = authMgr.findAuthorizable(sender);
-        ValueMap profile = profileService.getCompactProfileMap(au, null);
-        writer.valueMapInternals(profile);
-        PresenceUtils.makePresenceJSON(writer, sender, presenceService, true);
-        writer.endObject();
+        writeUser(writer, sender, profiles, presence);
       }
       writer.endArray();
       writer.endObject();
@@ -201,7 +213,7 @@ public class Post {
       // All the replies on this post.
       writer.key("replies");
       writer.array();
-      outputChildrenAsJSON(writer, presenceService, profileService, session);
+      outputChildrenAsJSON(writer, profiles, presence);
       writer.endArray();
 
       writer.endObject();
@@ -212,10 +224,76 @@ public class Post {
       PresenceService presenceService, ProfileService profileService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
-    LOG.info("this post {} has {} children", getPostId(), getChildren().size());
+    Set<String> userIds = new LinkedHashSet<String>();
+    for (Post p : children) {
+      p.collectUserIds(userIds);
+    }
+    outputChildrenAsJSON(writer, profileService.getCompactProfileMaps(userIds, session),
+        getPresence(userIds, presenceService));
+  }
+
+  public void outputChildrenAsJSON(ExtendedJSONWriter writer,
+      Map<String, ValueMap> profiles, Map<String, String[]> presence)
+      throws JSONException {
+    LOG.debug("this post {} has {} children", getPostId(), getChildren().size());
     for (Post p : children) {
-      p.outputPostAsJSON(writer, presenceService, profileService, session);
+      p.outputPostAsJSON(writer, profiles, presence);
+    }
+  }
+
+  /**
+   * Add the ids of everyone who wrote or edited this post or any of its replies.
+   *
+   * @param userIds
+   */
+  public void collectUserIds(Set<String> userIds) {
+    if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
+      for (String editor : StringUtils.split(
+          (String) content.getProperty(DiscussionConstants.PROP_EDITEDBY), ',')) {
+        userIds.add(editor);
+      }
+    }
+    if (content.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
+      for (String sender : StringUtils.split(
+          (String) content.getProperty(MessageConstants.PROP_SAKAI_FROM), ',')) {
+        userIds.add(sender);
+      }
+    }
+    for (Post p : children) {
+      p.collectUserIds(userIds);
+    }
+  }
+
+  /**
+   * Look up the presence of each user once.
+   *
+   * @param userIds
+   * @param presenceService
+   * @return the status and location of each user.
+   */
+  public static Map<String, String[]> getPresence(Collection<String> userIds,
+      PresenceService presenceService) {
+    Map<String, String[]> presence = new HashMap<String, String[]>();
+    for (String userId : userIds) {
+      presence.put(userId, new String[] { presenceService.getStatus(userId),
+          presenceService.getLocation(userId) });
+    }
+    return presence;
+  }
+
+  private void writeUser(ExtendedJSONWriter writer, String userId,
+      Map<String, ValueMap> profiles, Map<String, String[]> presence)
+      throws JSONException {
+    writer.object();
+    ValueMap profile = profiles.get(userId);
+    if (profile != null) {
+      writer.valueMapInternals(profile);
+    }
+    String[] status = presence.get(userId);
+    if (status != null) {
+      PresenceUtils.makePresenceJSON(writer, userId, status[0], status[1], true);
     }
+    writer.endObject();
   }
 
   public boolean addPost(Content c, String postid, String replyon) {
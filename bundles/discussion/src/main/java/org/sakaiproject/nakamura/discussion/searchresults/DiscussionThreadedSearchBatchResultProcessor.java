@@ -17,21 +17,32 @@
  */
 package org.sakaiproject.nakamura.discussion.searchresults;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.Post;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
@@ -46,20 +57,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
-import javax.jcr.RepositoryException;
+import java.util.Set;
 
 /**
  * Formats message node search results
+ * <p>
+ * The posts of a thread are cached by thread, so a popular thread does not have to be
+ * read back from storage post by post on every view. A cached thread is used while the
+ * search still returns exactly the same posts, and it is dropped when any of its posts is
+ * updated or deleted. Both the threads and the index of which thread each post belongs
+ * to are cluster invalidated: an update on another node drops the post from the index
+ * here, and a cached thread is only used while every one of its posts is still indexed
+ * to it. The profiles and presence of everyone in the thread are looked up
+ * once per view.
  */
 @Component(label = "%discussion.threadedSearchBatch.label", description = "%discussion.threadedSearchBatch.desc")
-@Service
+@Service(value = { SolrSearchBatchResultProcessor.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        StoreListener.TOPIC_BASE + "content/" + StoreListener.UPDATED_TOPIC,
+        StoreListener.TOPIC_BASE + "content/" + StoreListener.DELETE_TOPIC }) })
 public class DiscussionThreadedSearchBatchResultProcessor implements
-    SolrSearchBatchResultProcessor {
+    SolrSearchBatchResultProcessor, EventHandler {
 
   public static final Logger LOG = LoggerFactory
       .getLogger(DiscussionThreadedSearchBatchResultProcessor.class);
@@ -70,6 +95,10 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   @Property(value = "DiscussionThreaded")
   static final String SEARCH_BATCHPROCESSOR = "sakai.search.batchprocessor";
 
+  static final String THREAD_CACHE = "discussion.threads";
+
+  static final String POST_THREAD_CACHE = "discussion.posts";
+
   @Reference
   PresenceService presenceService;
 
@@ -79,6 +108,27 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   @Reference
   SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  CacheManagerService cacheManagerService;
+
+  /**
+   * The posts of each thread, keyed by thread.
+   */
+  private Cache<ThreadSnapshot> threadCache;
+
+  /**
+   * The thread each cached post belongs to, keyed by post path. A thread is only valid
+   * while all of its posts are in here.
+   */
+  private Cache<String> postThreadCache;
+
+  @Activate
+  protected void activate(Map<?, ?> properties) {
+    threadCache = cacheManagerService.getCache(THREAD_CACHE, CacheScope.CLUSTERINVALIDATED);
+    postThreadCache = cacheManagerService.getCache(POST_THREAD_CACHE,
+        CacheScope.CLUSTERINVALIDATED);
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor#writeResults(org.apache.sling.api.SlingHttpServletRequest, org.apache.sling.commons.json.io.JSONWriter, java.util.Iterator)
@@ -89,14 +139,15 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
     try {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
           .adaptTo(javax.jcr.Session.class));
-      ContentManager cm = session.getContentManager();
+      List<String> paths = new ArrayList<String>();
+      while (iterator.hasNext()) {
+        paths.add(iterator.next().getPath());
+      }
+
       List<String> basePosts = new ArrayList<String>();
       Map<String,List<Post>> postChildren = new HashMap<String, List<Post>>();
       Map<String,Post> allPosts = new HashMap<String, Post>();
-      while (iterator.hasNext()) {
-        Result result = iterator.next();
-        Content content = cm.get(result.getPath());
-
+      for (Content content : getThread(request, session, paths)) {
         Post p = new Post(content, session);
         allPosts.put((String) content
             .getProperty(MessageConstants.PROP_SAKAI_ID), p);
@@ -127,17 +178,96 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
         }
       }
 
+      // Everyone in the thread is looked up in one go.
+      Set<String> userIds = new LinkedHashSet<String>();
+      for (Post p : allPosts.values()) {
+        p.collectUserIds(userIds);
+      }
+      Map<String, ValueMap> profiles = profileService.getCompactProfileMaps(userIds,
+          session);
+      Map<String, String[]> presence = Post.getPresence(userIds, presenceService);
+
       // The posts are sorted, now return them as json.
       for (String basePostId : basePosts) {
         allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer,
-            presenceService, profileService, session);
+            profiles, presence);
       }
     } catch (StorageClientException e) {
       throw new RuntimeException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
       throw new RuntimeException(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      throw new RuntimeException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Get the posts at the paths the search found, from the thread cache if the cached
+   * thread has exactly the same posts.
+   */
+  private List<Content> getThread(SlingHttpServletRequest request, Session session,
+      List<String> paths) throws StorageClientException, AccessDeniedException {
+    String threadKey = null;
+    String marker = request.getParameter("marker");
+    if (threadCache != null && marker != null) {
+      threadKey = request.getParameter("path") + ":" + marker;
+      ThreadSnapshot cached = threadCache.get(threadKey);
+      if (cached != null && cached.paths.equals(paths) && isIndexed(threadKey, paths)) {
+        List<Content> posts = new ArrayList<Content>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+          posts.add(new Content(paths.get(i), cached.properties.get(i)));
+        }
+        return posts;
+      }
+    }
+
+    ContentManager cm = session.getContentManager();
+    List<Content> posts = new ArrayList<Content>(paths.size());
+    List<Map<String, Object>> properties = new ArrayList<Map<String, Object>>(
+        paths.size());
+    for (String path : paths) {
+      Content content = cm.get(path);
+      posts.add(content);
+      properties.add(Collections.unmodifiableMap(new HashMap<String, Object>(content
+          .getProperties())));
+    }
+    if (threadKey != null) {
+      threadCache.put(threadKey, new ThreadSnapshot(paths, properties));
+      for (String path : paths) {
+        postThreadCache.put(path, threadKey);
+      }
+    }
+    return posts;
+  }
+
+  /**
+   * @return true if none of the posts has been changed since the thread was cached, here
+   *         or on another node.
+   */
+  private boolean isIndexed(String threadKey, List<String> paths) {
+    for (String path : paths) {
+      if (!threadKey.equals(postThreadCache.get(path))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the cached thread of a post that has been updated or deleted.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && postThreadCache != null) {
+      String threadKey = postThreadCache.get(path);
+      if (threadKey != null) {
+        threadCache.remove(threadKey);
+      }
+      // removed even if this node has not cached the post, so that the removal reaches
+      // the other nodes.
+      postThreadCache.remove(path);
     }
   }
 
@@ -152,4 +282,17 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
       // Return the result set.
       return searchServiceFactory.getSearchResultSet(request, query);
   }
+
+  /**
+   * The posts of a thread as they were read from storage.
+   */
+  static class ThreadSnapshot {
+    final List<String> paths;
+    final List<Map<String, Object>> properties;
+
+    ThreadSnapshot(List<String> paths, List<Map<String, Object>> properties) {
+      this.paths = paths;
+      this.properties = properties;
+    }
+  }
 }
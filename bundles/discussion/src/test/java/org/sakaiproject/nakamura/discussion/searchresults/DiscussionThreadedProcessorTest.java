@@ -18,8 +18,11 @@
 package org.sakaiproject.nakamura.discussion.searchresults;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
@@ -35,25 +38,30 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.Hashtable;
 import java.util.List;
 
 /**
@@ -64,6 +72,10 @@ public class DiscussionThreadedProcessorTest {
 
   private DiscussionThreadedSearchBatchResultProcessor processor;
   private PresenceService presenceService;
+  private ProfileService profileService;
+  private SlingHttpServletRequest request;
+  private ContentManager cm;
+  private List<Result> results;
 
   /**
    * {@inheritDoc}
@@ -76,23 +88,16 @@ public class DiscussionThreadedProcessorTest {
     processor.searchServiceFactory = mock(SolrSearchServiceFactory.class);
     presenceService = mock(PresenceService.class);
     processor.presenceService = presenceService;
-  }
 
-  @Test
-  public void testProcess() throws Exception {
-    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    request = mock(SlingHttpServletRequest.class);
 
     Session session = mock(Session.class);
 
-    ProfileService profileService = mock(ProfileService.class);
+    profileService = mock(ProfileService.class);
     processor.profileService = profileService;
 
     AccessControlManager accessControlManager = mock(AccessControlManager.class);
     when(session.getAccessControlManager()).thenReturn(accessControlManager);
-    @SuppressWarnings("unused")
-    User adminUser = new User(ImmutableMap.of(User.ID_FIELD, (Object) "admin"));
-    @SuppressWarnings("unused")
-    User anonUser = new User(ImmutableMap.of(User.ID_FIELD, (Object) "anonymous"));
     when(profileService.getCompactProfileMap(isA(Authorizable.class),
         isA(javax.jcr.Session.class))).thenReturn(ValueMap.EMPTY);
     
@@ -107,13 +112,9 @@ public class DiscussionThreadedProcessorTest {
         (javax.jcr.Session) hybridSession);
     when(((SessionAdaptable) hybridSession).getSession()).thenReturn(session);
     
-    ContentManager cm = mock(ContentManager.class);
+    cm = mock(ContentManager.class);
     when(session.getContentManager()).thenReturn(cm);
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Writer w = new PrintWriter(baos);
-    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
-
     // 4 nodes
     // a
     // - b
@@ -140,7 +141,7 @@ public class DiscussionThreadedProcessorTest {
     contentD.setProperty(DiscussionConstants.PROP_REPLY_ON, "b");
     contentD.setProperty(MessageConstants.PROP_SAKAI_FROM, "admin");
 
-    List<Result> results = Lists.newArrayList();
+    results = Lists.newArrayList();
     results.add(mockResult(contentA));
     results.add(mockResult(contentB));
     results.add(mockResult(contentC));
@@ -150,19 +151,79 @@ public class DiscussionThreadedProcessorTest {
     when(cm.get("/msg/b")).thenReturn(contentB);
     when(cm.get("/msg/c")).thenReturn(contentC);
     when(cm.get("/msg/d")).thenReturn(contentD);
+  }
 
-    processor.writeResults(request, writer, results.iterator());
-    w.flush();
-
-    String s = baos.toString("UTF-8");
-
-    JSONObject json = new JSONObject(s);
+  @Test
+  public void testProcess() throws Exception {
+    JSONObject json = write();
     assertEquals(json.getJSONArray("replies").length(), 2);
     assertEquals(json.getJSONArray("replies").getJSONObject(0).getJSONArray("replies")
         .length(), 1);
     assertEquals("a", json.getJSONObject("post").get("sakai:id"));
     assertEquals("b", json.getJSONArray("replies").getJSONObject(0).getJSONObject("post")
         .get("sakai:id"));
+    // the profiles of everyone in the thread are fetched together.
+    verify(profileService).getCompactProfileMaps(anyCollectionOf(String.class),
+        isA(Session.class));
+  }
+
+  @Test
+  public void testThreadIsCached() throws Exception {
+    cacheThreads(new MapCacheImpl<String>());
+    when(request.getParameter("marker")).thenReturn("a");
+    when(request.getParameter("path")).thenReturn("/msg");
+
+    write();
+    JSONObject json = write();
+    assertEquals("a", json.getJSONObject("post").get("sakai:id"));
+    verify(cm, times(1)).get("/msg/d");
+
+    // an edit to any post drops the thread.
+    processor.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+        + StoreListener.UPDATED_TOPIC, new Hashtable<String, Object>(ImmutableMap.of(
+        "path", "/msg/b"))));
+    write();
+    verify(cm, times(2)).get("/msg/d");
+  }
+
+  @Test
+  public void testThreadIsDroppedByAnotherNode() throws Exception {
+    MapCacheImpl<String> postThreadCache = new MapCacheImpl<String>();
+    cacheThreads(postThreadCache);
+    when(request.getParameter("marker")).thenReturn("a");
+    when(request.getParameter("path")).thenReturn("/msg");
+
+    write();
+    // another node updated a post and the removal of its index entry reached us.
+    postThreadCache.remove("/msg/c");
+    write();
+    verify(cm, times(2)).get("/msg/d");
+  }
+
+  private void cacheThreads(MapCacheImpl<String> postThreadCache) {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(
+        cacheManagerService.getCache(
+            DiscussionThreadedSearchBatchResultProcessor.THREAD_CACHE,
+            CacheScope.CLUSTERINVALIDATED)).thenReturn(
+        new MapCacheImpl<DiscussionThreadedSearchBatchResultProcessor.ThreadSnapshot>());
+    when(
+        cacheManagerService.getCache(
+            DiscussionThreadedSearchBatchResultProcessor.POST_THREAD_CACHE,
+            CacheScope.CLUSTERINVALIDATED)).thenReturn(postThreadCache);
+    processor.cacheManagerService = cacheManagerService;
+    processor.activate(null);
+  }
+
+  private JSONObject write() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+
+    processor.writeResults(request, writer, results.iterator());
+    w.flush();
+
+    return new JSONObject(baos.toString("UTF-8"));
   }
 
   private Result mockResult(Content content) {
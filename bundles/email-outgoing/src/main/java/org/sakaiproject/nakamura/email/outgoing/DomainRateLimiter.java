@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spaces out the messages sent to each destination domain so that no domain gets more
+ * than a set number a minute, since receiving servers defer or reject senders that send
+ * too fast.
+ */
+class DomainRateLimiter {
+
+  private static final int MAX_DOMAINS = 10000;
+
+  private final long spacing;
+
+  /**
+   * The time each domain may next be sent to.
+   */
+  private final Map<String, Long> next = new HashMap<String, Long>();
+
+  /**
+   * @param perMinute
+   *          the most messages a minute to send to a domain, 0 for no limit.
+   */
+  DomainRateLimiter(int perMinute) {
+    spacing = perMinute > 0 ? 60000L / perMinute : 0;
+  }
+
+  /**
+   * Take a turn to send to each of the domains of some addresses.
+   *
+   * @param addresses
+   * @return the ms to wait before sending.
+   */
+  long reserve(Collection<String> addresses) {
+    if (spacing == 0 || addresses.isEmpty()) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    long wait = 0;
+    synchronized (next) {
+      if (next.size() > MAX_DOMAINS) {
+        for (Iterator<Long> i = next.values().iterator(); i.hasNext();) {
+          if (i.next() < now) {
+            i.remove();
+          }
+        }
+      }
+      for (String domain : getDomains(addresses)) {
+        Long at = next.get(domain);
+        long turn = at == null ? now : Math.max(now, at);
+        next.put(domain, turn + spacing);
+        wait = Math.max(wait, turn - now);
+      }
+    }
+    return wait;
+  }
+
+  /**
+   * Wait for a turn to send to each of the domains of some addresses.
+   *
+   * @param addresses
+   * @throws InterruptedException
+   */
+  void acquire(Collection<String> addresses) throws InterruptedException {
+    long wait = reserve(addresses);
+    if (wait > 0) {
+      Thread.sleep(wait);
+    }
+  }
+
+  private static Collection<String> getDomains(Collection<String> addresses) {
+    Set<String> domains = new HashSet<String>();
+    for (String address : addresses) {
+      int at = address.lastIndexOf('@');
+      String domain = at < 0 ? "" : address.substring(at + 1).trim().toLowerCase();
+      if (domain.endsWith(">")) {
+        domain = domain.substring(0, domain.length() - 1);
+      }
+      domains.add(domain);
+    }
+    return domains;
+  }
+}
@@ -31,6 +31,9 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -44,7 +47,10 @@ import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
@@ -52,8 +58,10 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -65,9 +73,17 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Queue;
 import javax.jms.Session;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 @Component(immediate = true, metatype = true)
-public class LiteOutgoingEmailMessageListener implements MessageListener {
+public class LiteOutgoingEmailMessageListener implements MessageListener,
+    OutgoingEmailMBean {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(LiteOutgoingEmailMessageListener.class);
 
@@ -79,6 +95,22 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(intValue = 720)
+  private static final String MAX_RETRY_INTERVAL = "sakai.email.maxRetryIntervalMinutes";
+  @Property(intValue = 4)
+  private static final String SMTP_CONNECTIONS = "sakai.smtp.connections";
+  @Property(intValue = 60)
+  private static final String SMTP_MAX_IDLE = "sakai.smtp.maxIdleSeconds";
+  @Property(intValue = 0)
+  private static final String DOMAIN_RATE = "sakai.email.domainRatePerMinute";
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura:type=OutgoingEmail";
+
+  /**
+   * The scheduler job that closes SMTP connections left idle between messages.
+   */
+  private static final String IDLE_JOB = LiteOutgoingEmailMessageListener.class.getName()
+      + ".closeIdle";
 
   protected static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -110,6 +142,13 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private String smtpServer;
 
   private Integer retryInterval;
+  private int maxRetryInterval;
+
+  private volatile SmtpConnectionPool smtpPool;
+  private DomainRateLimiter rateLimiter;
+  private final AtomicLong retries = new AtomicLong();
+  private long started = System.currentTimeMillis();
+  private ObjectName objectName;
 
   public LiteOutgoingEmailMessageListener() {
   }
@@ -123,7 +162,6 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     try {
       LOGGER.debug("Started handling email jms message.");
 
-      String nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
       String contentPath = message.getStringProperty(CONTENT_PATH_PROPERTY);
       Object objRcpt = message.getObjectProperty(RECIPIENTS);
       List<String> recipients = null;
@@ -166,44 +204,21 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                     email = constructMessage(messageContent, recipients, adminSession,
                         sparseSession);
 
-                    email.setSmtpPort(smtpPort);
-                    email.setHostName(smtpServer);
-
-                    email.send();
+                    send(email);
                   } catch (EmailException e) {
                     String exMessage = e.getMessage();
-                    Throwable cause = e.getCause();
 
                     setError(messageContent, exMessage);
                     LOGGER.warn("Unable to send email: " + exMessage);
 
-                    // Get the SMTP error code
-                    // There has to be a better way to do this
                     boolean rescheduled = false;
-                    if (cause != null && cause.getMessage() != null) {
-                      String smtpError = cause.getMessage().trim();
-                      try {
-                        int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                        // All retry-able SMTP errors should have codes starting
-                        // with 4
-                        scheduleRetry(errorCode, messageContent);
-                        rescheduled = true;
-                      } catch (NumberFormatException nfe) {
-                        // smtpError didn't start with an error code, let's dig for
-                        // it
-                        String searchFor = "response:";
-                        int rindex = smtpError.indexOf(searchFor);
-                        if (rindex > -1
-                            && (rindex + searchFor.length()) < smtpError.length()) {
-                          int errorCode = Integer.parseInt(smtpError.substring(
-                              searchFor.length(), searchFor.length() + 3));
-                          scheduleRetry(errorCode, messageContent);
-                          rescheduled = true;
-                        }
-                      }
+                    int errorCode = getSmtpErrorCode(e.getCause());
+                    if (errorCode > 0) {
+                      scheduleRetry(errorCode, messageContent, recipients);
+                      rescheduled = true;
                     }
                     if (rescheduled) {
-                      LOGGER.info("Email {} rescheduled for redelivery. ", nodePath);
+                      LOGGER.info("Email {} rescheduled for redelivery. ", contentPath);
                     } else {
                       LOGGER
                           .error(
@@ -221,6 +236,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                 messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
                     MessageConstants.BOX_SENT);
               }
+              contentManager.update(messageContent);
             }
           } else {
             String retval = "null";
@@ -250,6 +266,80 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  /**
+   * Send an email over a pooled SMTP connection, once each of its destination domains is
+   * due another email.
+   *
+   * @param email
+   * @throws EmailException
+   *           if the email could not be built or sent.
+   */
+  private void send(MultiPartEmail email) throws EmailException {
+    email.setMailSession(smtpPool.getSession());
+    email.buildMimeMessage();
+    MimeMessage message = email.getMimeMessage();
+    try {
+      List<String> addresses = new ArrayList<String>();
+      for (Address address : message.getAllRecipients()) {
+        addresses.add(address.toString());
+      }
+      rateLimiter.acquire(addresses);
+      smtpPool.send(message);
+    } catch (MessagingException e) {
+      throw new EmailException("Sending the email failed", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EmailException("Interrupted before the email was sent",
+          new MessagingException("421 interrupted"));
+    }
+  }
+
+  /**
+   * @param cause
+   *          why an email was not sent.
+   * @return the SMTP reply code of the failure, 421 if the server could not be reached, or
+   *         -1 if the failure is not an SMTP one.
+   */
+  static int getSmtpErrorCode(Throwable cause) {
+    if (cause == null || cause.getMessage() == null) {
+      return -1;
+    }
+    // There has to be a better way to do this
+    String smtpError = cause.getMessage().trim();
+    try {
+      return Integer.parseInt(smtpError.substring(0, 3));
+    } catch (NumberFormatException nfe) {
+      // smtpError didn't start with an error code, let's dig for it
+    } catch (IndexOutOfBoundsException e) {
+      // too short to hold an error code
+    }
+    String searchFor = "response:";
+    int rindex = smtpError.indexOf(searchFor);
+    if (rindex > -1) {
+      String response = smtpError.substring(rindex + searchFor.length()).trim();
+      if (response.length() >= 3) {
+        try {
+          return Integer.parseInt(response.substring(0, 3));
+        } catch (NumberFormatException nfe) {
+          // no error code to be found
+        }
+      }
+    }
+    for (Throwable t = cause; t != null; t = t.getCause()) {
+      if (t instanceof IOException) {
+        // the server could not be reached, which is worth trying again.
+        return 421;
+      }
+      if (t instanceof MessagingException) {
+        Exception next = ((MessagingException) t).getNextException();
+        if (next instanceof IOException) {
+          return 421;
+        }
+      }
+    }
+    return -1;
+  }
+
   private MultiPartEmail constructMessage(Content contentNode, List<String> recipients,
       javax.jcr.Session session, org.sakaiproject.nakamura.api.lite.Session sparseSession)
       throws EmailDeliveryException, StorageClientException, AccessDeniedException,
@@ -399,7 +489,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     return address;
   }
 
-  private void scheduleRetry(int errorCode, Content contentNode) {
+  private void scheduleRetry(int errorCode, Content contentNode, List<String> recipients) {
     // All retry-able SMTP errors should have codes starting with 4
     if ((errorCode / 100) == 4) {
       long retryCount = 0;
@@ -414,7 +504,11 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
           public void execute(JobContext jc) {
             Map<String, Serializable> config = jc.getConfiguration();
             Properties eventProps = new Properties();
-            eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
+            eventProps.put(CONTENT_PATH_PROPERTY, config.get(CONTENT_PATH_PROPERTY));
+            eventProps.put(RECIPIENTS, config.get(RECIPIENTS));
+            eventProps.put(EventDeliveryConstants.DELIVERY_MODE, EventDeliveryMode.P2P);
+            eventProps.put(EventDeliveryConstants.MESSAGE_MODE,
+                EventMessageMode.PERSISTENT);
 
             Event retryEvent = new Event(QUEUE_NAME, eventProps);
             eventAdmin.postEvent(retryEvent);
@@ -423,13 +517,17 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
         };
 
         HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
-        jobConfig.put(NODE_PATH_PROPERTY, contentNode.getPath());
+        jobConfig.put(CONTENT_PATH_PROPERTY, contentNode.getPath());
+        jobConfig.put(RECIPIENTS, new ArrayList<String>(recipients));
 
-        int retryIntervalMillis = retryInterval * 60000;
+        contentNode.setProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount + 1);
+        long retryIntervalMillis = getRetryDelay(retryCount, retryInterval,
+            maxRetryInterval) * 60000L;
         Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
 
         try {
           scheduler.fireJobAt(null, job, jobConfig, nextTry);
+          retries.incrementAndGet();
         } catch (Exception e) {
           LOGGER.error(e.getMessage(), e);
         }
@@ -441,6 +539,23 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  /**
+   * @param retryCount
+   *          the number of times the message has been retried.
+   * @param interval
+   *          the minutes to wait before the first retry.
+   * @param maxInterval
+   *          the most minutes to wait.
+   * @return the minutes to wait before the next retry, doubling after each retry.
+   */
+  static long getRetryDelay(long retryCount, long interval, long maxInterval) {
+    long delay = interval;
+    for (long i = 0; i < retryCount && delay < maxInterval; i++) {
+      delay *= 2;
+    }
+    return Math.max(interval, Math.min(delay, maxInterval));
+  }
+
   protected void activate(ComponentContext ctx) {
     @SuppressWarnings("rawtypes")
     Dictionary props = ctx.getProperties();
@@ -463,6 +578,9 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("SMTP retry interval not set.");
     }
 
+    Integer _maxRetryInterval = (Integer) props.get(MAX_RETRY_INTERVAL);
+    maxRetryInterval = _maxRetryInterval != null ? _maxRetryInterval : 720;
+
     if (maxRetries * retryInterval < 4320 /* minutes in 3 days */) {
       LOGGER.warn("SMTP retry window is very short.");
     }
@@ -487,12 +605,31 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No SMTP server set");
     }
 
+    Integer _connections = (Integer) props.get(SMTP_CONNECTIONS);
+    int connections = _connections != null && _connections > 0 ? _connections : 4;
+    Integer _maxIdle = (Integer) props.get(SMTP_MAX_IDLE);
+    int maxIdle = _maxIdle != null ? _maxIdle : 60;
+    Integer _domainRate = (Integer) props.get(DOMAIN_RATE);
+    rateLimiter = new DomainRateLimiter(_domainRate != null ? _domainRate : 0);
+    if (smtpPool != null) {
+      smtpPool.close();
+    }
+    smtpPool = new SmtpConnectionPool(smtpServer == null ? "localhost" : smtpServer,
+        smtpPort == null ? 25 : smtpPort, connections, maxIdle * 1000L);
+    scheduleCloseIdle(maxIdle);
+    started = System.currentTimeMillis();
+    registerMBean();
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
+      // each session delivers its messages one at a time, so there is a session for
+      // each SMTP connection.
+      for (int i = 0; i < connections; i++) {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Queue dest = session.createQueue(QUEUE_NAME);
+        MessageConsumer consumer = session.createConsumer(dest);
+        consumer.setMessageListener(this);
+      }
       connection.start();
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
@@ -512,6 +649,93 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       } catch (JMSException e) {
       }
     }
+    removeCloseIdle();
+    if (smtpPool != null) {
+      smtpPool.close();
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.warn("Unable to unregister the outgoing email MBean {} ", e.getMessage());
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * Close connections that go idle between messages every maxIdle seconds, rather than
+   * when the next message is sent.
+   */
+  private void scheduleCloseIdle(int maxIdle) {
+    removeCloseIdle();
+    try {
+      scheduler.addPeriodicJob(IDLE_JOB, new Runnable() {
+        public void run() {
+          SmtpConnectionPool pool = smtpPool;
+          if (pool != null) {
+            pool.closeIdle();
+          }
+        }
+      }, null, Math.max(1, maxIdle), false);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to schedule closing idle SMTP connections {} ", e.getMessage());
+    }
+  }
+
+  private void removeCloseIdle() {
+    try {
+      scheduler.removeJob(IDLE_JOB);
+    } catch (NoSuchElementException e) {
+      // not scheduled.
+    }
+  }
+
+  /**
+   * Make the delivery statistics visible over JMX.
+   */
+  private void registerMBean() {
+    try {
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(new StandardMBean(this, OutgoingEmailMBean.class), name);
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register the outgoing email MBean {} ", e.getMessage());
+    }
+  }
+
+  public long getSentCount() {
+    return smtpPool == null ? 0 : smtpPool.getSentCount();
+  }
+
+  public long getFailedCount() {
+    return smtpPool == null ? 0 : smtpPool.getFailedCount();
+  }
+
+  public long getRetryCount() {
+    return retries.get();
+  }
+
+  public long getConnectionCount() {
+    return smtpPool == null ? 0 : smtpPool.getOpenedCount();
+  }
+
+  public int getIdleConnections() {
+    return smtpPool == null ? 0 : smtpPool.getIdleCount();
+  }
+
+  public long getMeanSendMicros() {
+    long sent = getSentCount();
+    return sent == 0 ? 0 : smtpPool.getSendNanos() / sent / 1000;
+  }
+
+  public double getSentPerSecond() {
+    long millis = Math.max(1000L, System.currentTimeMillis() - started);
+    return getSentCount() * 1000.0 / millis;
   }
 
   private void setError(Content node, String error) {
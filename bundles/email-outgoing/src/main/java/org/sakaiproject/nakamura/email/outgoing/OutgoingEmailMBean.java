@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+public interface OutgoingEmailMBean {
+
+  /**
+   * @return the number of emails sent.
+   */
+  long getSentCount();
+
+  /**
+   * @return the number of emails the SMTP server did not accept.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the number of emails scheduled to be sent again.
+   */
+  long getRetryCount();
+
+  /**
+   * @return the number of SMTP connections opened.
+   */
+  long getConnectionCount();
+
+  /**
+   * @return the number of open SMTP connections not in use.
+   */
+  int getIdleConnections();
+
+  /**
+   * @return the mean time in microseconds taken to send an email.
+   */
+  long getMeanSendMicros();
+
+  /**
+   * @return the mean number of emails sent a second since the listener started.
+   */
+  double getSentPerSecond();
+}
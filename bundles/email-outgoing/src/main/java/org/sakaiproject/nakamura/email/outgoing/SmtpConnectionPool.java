@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A pool of open connections to an SMTP server, so that many messages can be sent over
+ * one connection rather than connecting for each message. A connection that fails is
+ * closed, and a connection that has been idle too long is closed, since servers drop idle
+ * clients. Idle connections are closed as others are released and by {@link #closeIdle()},
+ * which the owner of the pool calls periodically, so they do not wait for the next message.
+ */
+class SmtpConnectionPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpConnectionPool.class);
+
+  private final Session session;
+  private final long maxIdle;
+  private final Semaphore permits;
+  private final LinkedList<Connection> idle = new LinkedList<Connection>();
+  private volatile boolean closed;
+
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong sendNanos = new AtomicLong();
+
+  /**
+   * @param host
+   *          the SMTP server.
+   * @param port
+   * @param size
+   *          the most connections to open at once.
+   * @param maxIdle
+   *          the ms a connection may be idle before it is closed.
+   */
+  SmtpConnectionPool(String host, int port, int size, long maxIdle) {
+    Properties properties = new Properties();
+    properties.put("mail.smtp.host", host);
+    properties.put("mail.smtp.port", String.valueOf(port));
+    this.session = Session.getInstance(properties);
+    this.maxIdle = maxIdle;
+    this.permits = new Semaphore(Math.max(1, size), true);
+  }
+
+  /**
+   * @return the mail session that messages sent through the pool should be built with.
+   */
+  Session getSession() {
+    return session;
+  }
+
+  /**
+   * Send a message to all its recipients, waiting for a connection if all are in use.
+   *
+   * @param message
+   * @throws MessagingException
+   *           if the message could not be sent, the connection it was sent on is closed.
+   * @throws InterruptedException
+   */
+  void send(MimeMessage message) throws MessagingException, InterruptedException {
+    permits.acquire();
+    try {
+      Connection connection = borrow();
+      long start = System.nanoTime();
+      boolean ok = false;
+      try {
+        message.saveChanges();
+        connection.transport.sendMessage(message, message.getAllRecipients());
+        ok = true;
+      } finally {
+        if (ok) {
+          sent.incrementAndGet();
+          sendNanos.addAndGet(System.nanoTime() - start);
+          release(connection);
+        } else {
+          failed.incrementAndGet();
+          close(connection);
+        }
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private Connection borrow() throws MessagingException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      Connection connection;
+      synchronized (idle) {
+        connection = idle.poll();
+      }
+      if (connection == null) {
+        break;
+      }
+      if (now - connection.lastUsed < maxIdle && connection.transport.isConnected()) {
+        return connection;
+      }
+      close(connection);
+    }
+    Transport transport = session.getTransport("smtp");
+    transport.connect();
+    opened.incrementAndGet();
+    LOGGER.debug("Opened an SMTP connection, {} opened so far ", opened);
+    return new Connection(transport);
+  }
+
+  private void release(Connection connection) {
+    connection.lastUsed = System.currentTimeMillis();
+    if (closed) {
+      close(connection);
+      return;
+    }
+    synchronized (idle) {
+      // most recently used first, so that the rest can go idle and be closed.
+      idle.addFirst(connection);
+    }
+    closeIdle();
+  }
+
+  /**
+   * Close the connections that have been idle for longer than the maximum. The least
+   * recently used are at the tail, so only the tail is looked at.
+   *
+   * @return the number of connections closed.
+   */
+  int closeIdle() {
+    long now = System.currentTimeMillis();
+    List<Connection> expired = new ArrayList<Connection>();
+    synchronized (idle) {
+      while (!idle.isEmpty() && now - idle.getLast().lastUsed >= maxIdle) {
+        expired.add(idle.removeLast());
+      }
+    }
+    // close outside the lock, a close may wait on the server.
+    for (Connection connection : expired) {
+      close(connection);
+    }
+    if (expired.size() > 0) {
+      LOGGER.debug("Closed {} idle SMTP connections ", expired.size());
+    }
+    return expired.size();
+  }
+
+  private void close(Connection connection) {
+    try {
+      connection.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close an SMTP connection {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * Close the idle connections, connections in use are closed when they are released.
+   */
+  void close() {
+    closed = true;
+    synchronized (idle) {
+      for (Connection connection : idle) {
+        close(connection);
+      }
+      idle.clear();
+    }
+  }
+
+  long getOpenedCount() {
+    return opened.get();
+  }
+
+  long getSentCount() {
+    return sent.get();
+  }
+
+  long getFailedCount() {
+    return failed.get();
+  }
+
+  long getSendNanos() {
+    return sendNanos.get();
+  }
+
+  int getIdleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  private static final class Connection {
+    private final Transport transport;
+    private long lastUsed = System.currentTimeMillis();
+
+    Connection(Transport transport) {
+      this.transport = transport;
+    }
+  }
+}
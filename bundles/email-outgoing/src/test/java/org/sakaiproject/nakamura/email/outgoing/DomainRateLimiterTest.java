@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class DomainRateLimiterTest {
+
+  @Test
+  public void testNoLimit() {
+    DomainRateLimiter limiter = new DomainRateLimiter(0);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(0, limiter.reserve(Arrays.asList("a@example.com")));
+    }
+  }
+
+  @Test
+  public void testSpacing() {
+    // one a second to each domain.
+    DomainRateLimiter limiter = new DomainRateLimiter(60);
+    assertEquals(0, limiter.reserve(Arrays.asList("a@example.com")));
+    long wait = limiter.reserve(Arrays.asList("b@Example.com"));
+    assertTrue(wait > 900 && wait <= 1000);
+    wait = limiter.reserve(Arrays.asList("c@example.com", "d@example.com"));
+    assertTrue(wait > 1900 && wait <= 2000);
+    // other domains are not held up.
+    assertEquals(0, limiter.reserve(Arrays.asList("a@example.org")));
+    wait = limiter.reserve(Arrays.asList("a@example.org", "<e@example.net>"));
+    assertTrue(wait > 900 && wait <= 1000);
+    assertEquals(0, limiter.reserve(Arrays.asList("f@example.edu")));
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.net.ConnectException;
+
+import javax.mail.MessagingException;
+
+public class LiteOutgoingEmailMessageListenerTest {
+
+  @Test
+  public void testRetryDelay() {
+    assertEquals(30, LiteOutgoingEmailMessageListener.getRetryDelay(0, 30, 720));
+    assertEquals(60, LiteOutgoingEmailMessageListener.getRetryDelay(1, 30, 720));
+    assertEquals(480, LiteOutgoingEmailMessageListener.getRetryDelay(4, 30, 720));
+    assertEquals(720, LiteOutgoingEmailMessageListener.getRetryDelay(5, 30, 720));
+    assertEquals(720, LiteOutgoingEmailMessageListener.getRetryDelay(239, 30, 720));
+  }
+
+  @Test
+  public void testSmtpErrorCode() {
+    assertEquals(451, LiteOutgoingEmailMessageListener.getSmtpErrorCode(new Exception(
+        "451 4.3.0 try again later")));
+    assertEquals(550, LiteOutgoingEmailMessageListener.getSmtpErrorCode(new Exception(
+        "Invalid Addresses; response: 550 no such user")));
+    assertEquals(-1, LiteOutgoingEmailMessageListener.getSmtpErrorCode(new Exception(
+        "no")));
+    assertEquals(-1, LiteOutgoingEmailMessageListener.getSmtpErrorCode(null));
+    // the server could not be reached.
+    assertEquals(421, LiteOutgoingEmailMessageListener.getSmtpErrorCode(
+        new MessagingException("Could not connect to SMTP host", new ConnectException())));
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+import java.net.BindException;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpConnectionPoolTest {
+
+  private Wiser wiser;
+  private int smtpPort;
+  private SmtpConnectionPool pool;
+
+  @Before
+  public void startWiser() {
+    wiser = new Wiser();
+    smtpPort = 8025;
+    boolean started = false;
+    while (!started) {
+      wiser.setPort(smtpPort);
+      try {
+        wiser.start();
+        started = true;
+      } catch (RuntimeException re) {
+        if (re.getCause() instanceof BindException) {
+          smtpPort++;
+        } else {
+          throw re;
+        }
+      }
+    }
+    pool = new SmtpConnectionPool("localhost", smtpPort, 2, 60000L);
+  }
+
+  @After
+  public void stopWiser() {
+    pool.close();
+    wiser.stop();
+  }
+
+  private MimeMessage message(String to) throws MessagingException {
+    MimeMessage message = new MimeMessage(pool.getSession());
+    message.setFrom(new InternetAddress("sender@example.com"));
+    message.setRecipient(RecipientType.TO, new InternetAddress(to));
+    message.setSubject("test");
+    message.setText("body");
+    return message;
+  }
+
+  @Test
+  public void testConnectionReused() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      pool.send(message("user" + i + "@example.com"));
+    }
+    assertEquals(5, wiser.getMessages().size());
+    assertEquals(5, pool.getSentCount());
+    assertEquals(1, pool.getOpenedCount());
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  @Test
+  public void testReconnectAfterServerStops() throws Exception {
+    pool.send(message("user@example.com"));
+    wiser.stop();
+    try {
+      pool.send(message("user@example.com"));
+      fail("The server is down");
+    } catch (MessagingException e) {
+      assertTrue(LiteOutgoingEmailMessageListener.getSmtpErrorCode(e) / 100 == 4);
+    }
+    assertEquals(0, pool.getIdleCount());
+    wiser = new Wiser();
+    wiser.setPort(smtpPort);
+    wiser.start();
+    pool.send(message("user@example.com"));
+    assertEquals(1, wiser.getMessages().size());
+    assertEquals(2, pool.getOpenedCount());
+  }
+
+  @Test
+  public void testIdleConnectionsReaped() throws Exception {
+    pool.close();
+    pool = new SmtpConnectionPool("localhost", smtpPort, 2, 500L);
+    pool.send(message("user@example.com"));
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(0, pool.closeIdle());
+
+    // closed without another message being sent.
+    Thread.sleep(700);
+    assertEquals(1, pool.closeIdle());
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void testIdleConnectionsClosed() throws Exception {
+    pool.close();
+    pool = new SmtpConnectionPool("localhost", smtpPort, 2, 0L);
+    pool.send(message("user@example.com"));
+    pool.send(message("user@example.com"));
+    assertEquals(2, wiser.getMessages().size());
+    assertEquals(2, pool.getOpenedCount());
+  }
+}
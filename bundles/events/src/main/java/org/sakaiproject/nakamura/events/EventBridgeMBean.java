@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * How the OSGi to JMS event bridge is keeping up, as seen over JMX.
+ */
+public interface EventBridgeMBean {
+
+  /**
+   * @return the number of events sent to JMS.
+   */
+  long getPublishedCount();
+
+  /**
+   * @return the number of events that could not be sent.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the number of transacted batches sent, 0 if not batching.
+   */
+  long getBatchCount();
+
+  /**
+   * @return the number of events waiting to be sent, 0 if not batching.
+   */
+  int getBacklog();
+
+  /**
+   * @return the number of idle sessions kept for sending.
+   */
+  int getIdlePublishers();
+
+  /**
+   * @return the mean time in microseconds taken to send an event.
+   */
+  long getMeanPublishMicros();
+
+  /**
+   * @return the longest time in microseconds taken to send an event, or a batch.
+   */
+  long getMaxPublishMicros();
+}
@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
@@ -34,11 +35,20 @@ import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageM
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
@@ -47,13 +57,22 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Bridge to send OSGi events onto a JMS topic.
+ *
+ * JMS sessions are not thread safe, so each sending thread borrows a {@link Publisher}
+ * from a small pool. A publisher keeps its connection, its sessions and a producer for
+ * each destination, so sending an event does not create and destroy them all. If a batch
+ * size is set, events are queued and sent by one thread in transacted batches instead.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
-public class OsgiJmsBridge implements EventHandler {
+public class OsgiJmsBridge implements EventHandler, EventBridgeMBean {
   private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridge.class);
 
   @Property(value = "*", propertyPrivate = true)
@@ -71,6 +90,22 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  @Property(intValue = 8)
+  static final String POOL_SIZE = "bridge.pool.size";
+
+  @Property(intValue = 0)
+  static final String BATCH_SIZE = "bridge.batch.size";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_CAPACITY = "bridge.queue.capacity";
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura:type=EventBridge";
+
+  /**
+   * The most producers a publisher keeps open, the least recently used is closed.
+   */
+  private static final int MAX_PRODUCERS = 256;
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -84,11 +119,24 @@ public class OsgiJmsBridge implements EventHandler {
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private int poolSize;
 
   private long lastMessage = System.currentTimeMillis();
 
   private String serverId;
 
+  private final BlockingQueue<Publisher> idle = new LinkedBlockingQueue<Publisher>();
+  private BlockingQueue<Event> backlog;
+  private Thread batchSender;
+  private volatile boolean active;
+  private ObjectName objectName;
+
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong publishNanos = new AtomicLong();
+  private final AtomicLong maxPublishNanos = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+
   /**
    * Default constructor.
    */
@@ -118,9 +166,13 @@ public class OsgiJmsBridge implements EventHandler {
   protected void activate(ComponentContext ctx) {
     Dictionary props = ctx.getProperties();
 
-    transacted = (Boolean) props.get(SESSION_TRANSACTED);
-    acknowledgeMode = (Integer) props.get(ACKNOWLEDGE_MODE);
+    transacted = OsgiUtil.toBoolean(props.get(SESSION_TRANSACTED), false);
+    acknowledgeMode = OsgiUtil.toInteger(props.get(ACKNOWLEDGE_MODE),
+        Session.AUTO_ACKNOWLEDGE);
     connectionClientId = (String) props.get(CONNECTION_CLIENT_ID);
+    poolSize = OsgiUtil.toInteger(props.get(POOL_SIZE), 8);
+    int batchSize = OsgiUtil.toInteger(props.get(BATCH_SIZE), 0);
+    int queueCapacity = OsgiUtil.toInteger(props.get(QUEUE_CAPACITY), 10000);
     serverId = clusterTrackingService.getCurrentServerId();
 
     String[] ignoreEventTopicsValues = (String[]) props.get(IGNORE_EVENT_TOPICS);
@@ -132,8 +184,18 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    active = true;
+    if (batchSize > 0) {
+      backlog = new LinkedBlockingQueue<Event>(queueCapacity);
+      batchSender = new Thread(new BatchSender(batchSize), "Sakai Event Bridge");
+      batchSender.setDaemon(true);
+      batchSender.start();
+    }
+    registerMBean();
+
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, "
+        + "Pool Size: {}, Batch Size: {}", new Object[] { transacted, acknowledgeMode,
+        connectionClientId, poolSize, batchSize });
   }
 
   /**
@@ -142,6 +204,27 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    active = false;
+    if (batchSender != null) {
+      batchSender.interrupt();
+      try {
+        batchSender.join(10000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      batchSender = null;
+    }
+    for (Publisher publisher = idle.poll(); publisher != null; publisher = idle.poll()) {
+      publisher.close();
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.warn("Unable to unregister the event bridge MBean {} ", e.getMessage());
+      }
+      objectName = null;
+    }
   }
 
   /**
@@ -155,17 +238,202 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
-
     LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
+    BlockingQueue<Event> queue = backlog;
+    if (queue != null && active && queue.offer(event)) {
+      return;
+    }
+    // not batching, or the backlog is full, send it now.
+    long start = System.nanoTime();
+    Publisher publisher = null;
+    try {
+      publisher = borrow();
+      publisher.send(event);
+      publisher.commit();
+      record(1, start);
+      release(publisher);
+    } catch (JMSException e) {
+      failed.incrementAndGet();
+      logFailure(e);
+      if (publisher != null) {
+        // the connection or session may be broken, don't reuse it.
+        publisher.close();
+      }
+    }
+  }
+
+  private Publisher borrow() throws JMSException {
+    Publisher publisher = idle.poll();
+    return publisher != null ? publisher : new Publisher(transacted);
+  }
+
+  private void release(Publisher publisher) {
+    if (!active || idle.size() >= poolSize || !idle.offer(publisher)) {
+      publisher.close();
+    }
+  }
+
+  private void record(int count, long start) {
+    long nanos = System.nanoTime() - start;
+    published.addAndGet(count);
+    publishNanos.addAndGet(nanos);
+    long max = maxPublishNanos.get();
+    while (nanos > max && !maxPublishNanos.compareAndSet(max, nanos)) {
+      max = maxPublishNanos.get();
+    }
+  }
+
+  private void logFailure(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Make the publishing statistics visible over JMX.
+   */
+  private void registerMBean() {
     try {
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(new StandardMBean(this, EventBridgeMBean.class), name);
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register the event bridge MBean {} ", e.getMessage());
+    }
+  }
+
+  public long getPublishedCount() {
+    return published.get();
+  }
 
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  public int getBacklog() {
+    BlockingQueue<Event> queue = backlog;
+    return queue == null ? 0 : queue.size();
+  }
+
+  public int getIdlePublishers() {
+    return idle.size();
+  }
+
+  public long getMeanPublishMicros() {
+    long count = published.get();
+    return count == 0 ? 0 : publishNanos.get() / count / 1000L;
+  }
+
+  public long getMaxPublishMicros() {
+    return maxPublishNanos.get() / 1000L;
+  }
+
+  /**
+   * Sends the queued events, as many as are waiting up to the batch size in each
+   * transaction.
+   */
+  private class BatchSender implements Runnable {
+    private final int batchSize;
+
+    BatchSender(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    public void run() {
+      List<Event> batch = new ArrayList<Event>(batchSize);
+      Publisher publisher = null;
+      while (active || !backlog.isEmpty()) {
+        try {
+          Event first = backlog.poll(1, TimeUnit.SECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+        } catch (InterruptedException e) {
+          // deactivated, send what is left.
+          if (backlog.isEmpty()) {
+            break;
+          }
+        }
+        backlog.drainTo(batch, batchSize - batch.size());
+        if (batch.isEmpty()) {
+          continue;
+        }
+        long start = System.nanoTime();
+        try {
+          if (publisher == null) {
+            publisher = new Publisher(true);
+          }
+          for (Event event : batch) {
+            publisher.send(event);
+          }
+          publisher.commit();
+          batches.incrementAndGet();
+          record(batch.size(), start);
+        } catch (JMSException e) {
+          failed.addAndGet(batch.size());
+          logFailure(e);
+          if (publisher != null) {
+            publisher.close();
+            publisher = null;
+          }
+        }
+        batch.clear();
+      }
+      if (publisher != null) {
+        publisher.close();
+      }
+    }
+  }
+
+  /**
+   * A connection with a session for each acknowledge mode and a producer for each
+   * destination. Only one thread uses a publisher at a time.
+   */
+  private class Publisher {
+    private final boolean sessionTransacted;
+    private final Connection conn;
+    private final Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+    private final Map<String, MessageProducer> producers = new LinkedHashMap<String, MessageProducer>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, MessageProducer> eldest) {
+        if (size() > MAX_PRODUCERS) {
+          try {
+            eldest.getValue().close();
+          } catch (JMSException e) {
+            LOGGER.debug(e.getMessage(), e);
+          }
+          return true;
+        }
+        return false;
+      }
+    };
+
+    Publisher(boolean sessionTransacted) throws JMSException {
+      this.sessionTransacted = sessionTransacted;
       conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
       // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
+    }
+
+    void send(Event event) throws JMSException {
       EventDeliveryMode deliveryMode = (EventDeliveryMode) event
           .getProperty(EventDeliveryConstants.DELIVERY_MODE);
       EventMessageMode messageMode = (EventMessageMode) event
@@ -189,7 +457,11 @@ public class OsgiJmsBridge implements EventHandler {
         }
       }
 
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
+      Session clientSession = sessions.get(clientAcknowledgeMode);
+      if (clientSession == null) {
+        clientSession = conn.createSession(sessionTransacted, clientAcknowledgeMode);
+        sessions.put(clientAcknowledgeMode, clientSession);
+      }
 
       Message msg = clientSession.createMessage();
 
@@ -209,21 +481,16 @@ public class OsgiJmsBridge implements EventHandler {
         msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
       }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
+      boolean queue = deliveryMode == EventDeliveryMode.P2P;
+      String key = clientAcknowledgeMode + (queue ? ":queue:" : ":topic:")
+          + event.getTopic();
+      MessageProducer producer = producers.get(key);
+      if (producer == null) {
+        Destination destination = queue ? clientSession.createQueue(event.getTopic())
+            : clientSession.createTopic(event.getTopic());
+        producer = clientSession.createProducer(destination);
+        producers.put(key, producer);
       }
-      MessageProducer producer = clientSession.createProducer(destination);
       msg.setJMSType(event.getTopic());
 
       for (String name : event.getPropertyNames()) {
@@ -242,35 +509,40 @@ public class OsgiJmsBridge implements EventHandler {
 
       // add the current user
 
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
+      LOGGER.debug("Sending Message {} to {}  ", msg, key);
       producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+    }
+
+    void commit() throws JMSException {
+      if (sessionTransacted) {
+        for (Session session : sessions.values()) {
+          session.commit();
         }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
       }
-    } finally {
-      try {
-        if (conn != null) {
-          conn.close();
+    }
+
+    void close() {
+      for (MessageProducer producer : producers.values()) {
+        try {
+          producer.close();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
         }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
       }
-      try {
-        if (clientSession != null) {
-          clientSession.close();
+      producers.clear();
+      for (Session session : sessions.values()) {
+        try {
+          session.close();
+        } catch (Exception e) {
+          LOGGER.error(e.getMessage(), e);
         }
+      }
+      sessions.clear();
+      try {
+        conn.close();
       } catch (Exception e) {
         LOGGER.error(e.getMessage(), e);
       }
     }
   }
-
 }
@@ -223,6 +223,73 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  @Test
+  public void testSessionIsReused() throws Exception {
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prod.send((Message) anyObject());
+    expectLastCall().times(3);
+    prod.close();
+    sess.close();
+    conn.close();
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod,
+        clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(event);
+    bridge.handleEvent(event);
+    assertEquals(3, bridge.getPublishedCount());
+    assertEquals(1, bridge.getIdlePublishers());
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+  }
+
+  @Test
+  public void testBatching() throws Exception {
+    compProps.put(OsgiJmsBridge.BATCH_SIZE, 10);
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(5);
+    prod.send((Message) anyObject());
+    expectLastCall().times(5);
+    sess.commit();
+    expectLastCall().atLeastOnce();
+    prod.close();
+    sess.close();
+    conn.close();
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod,
+        clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    for (int i = 0; i < 4; i++) {
+      bridge.handleEvent(event);
+    }
+    // deactivating sends whatever is still queued.
+    bridge.deactivate(ctx);
+    assertEquals(5, bridge.getPublishedCount());
+    assertEquals(0, bridge.getBacklog());
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -323,6 +390,8 @@ public class OsgiJmsBridgeTest {
       prod.send(message);
       
 
+      // the publisher is kept until the bridge is deactivated.
+      prod.close();
       sess.close();
     } catch (JMSException e) {
       // this should never happen because the calls are on mock objects
@@ -56,12 +56,14 @@ import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.AccessDeniedException;
+import javax.jcr.GuestCredentials;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 
 /**
  * Some utility function regarding file management.
@@ -464,6 +466,9 @@ public class FileUtils {
     }
     if (JcrUtils.addUniqueValue(adminSession, fileNode, SAKAI_TAG_UUIDS, tags[0],
         PropertyType.STRING)) {
+      if (isPublic(adminSession, fileNode)) {
+        TagCounts.added(tags[0]);
+      }
       added = true;
     }
     if (JcrUtils.addUniqueValue(adminSession, fileNode, SAKAI_TAGS, tags[1],
@@ -567,6 +572,14 @@ public class FileUtils {
 
   private static void deleteTag(Session adminSession, Node fileNode, String[] tags)
       throws RepositoryException {
+    for (Value value : JcrUtils.getValues(fileNode, SAKAI_TAG_UUIDS)) {
+      if (tags[0].equals(value.getString())) {
+        if (isPublic(adminSession, fileNode)) {
+          TagCounts.removed(tags[0]);
+        }
+        break;
+      }
+    }
     JcrUtils.deleteValue(adminSession, fileNode, SAKAI_TAG_UUIDS, tags[0]);
     JcrUtils.deleteValue(adminSession, fileNode, SAKAI_TAGS, tags[1]);
   }
@@ -600,6 +613,27 @@ public class FileUtils {
     return false;
   }
 
+  /**
+   * @return true if the tag counts are kept and the anonymous user can read the node, so
+   *         that its tags are in the counts.
+   */
+  private static boolean isPublic(Session session, Node node) {
+    if (!TagCounts.isSeeded()) {
+      return false;
+    }
+    try {
+      Session anonSession = session.getRepository().login(new GuestCredentials());
+      try {
+        return anonSession.nodeExists(node.getPath());
+      } finally {
+        anonSession.logout();
+      }
+    } catch (RepositoryException e) {
+      log.debug("Unable to check whether {} is public: {}", node, e.getMessage());
+      return false;
+    }
+  }
+
   /**
    * Resolves a Node given one of three possible passed parameters: 1) A fully qualified
    * path to a Node (e.g. "/foo/bar/baz"), 2) a Node's UUID, or 3) the PoolId from a
@@ -76,10 +76,21 @@ public interface FilesConstants {
    */
   public static final String TOPIC_FILES_LINK = "org/sakaiproject/nakamura/files/link";
 
+  /**
+   * The OSGi topic for a new file in the content pool. The pool id is in the path
+   * property of the event, the mime type in the mimeType property.
+   */
+  public static final String TOPIC_FILES_POOLED_CONTENT_CREATED = "org/sakaiproject/nakamura/files/pool/created";
+
   /**
    * The sling:resourceType for pooled content.
    */
   public static final String POOLED_CONTENT_RT = "sakai/pooled-content";
+  /**
+   * The sling:resourceType for a pool item while a chunked upload to it is still open, so
+   * that it is not indexed or found as pooled content until it is committed.
+   */
+  public static final String POOLED_CONTENT_UPLOAD_RT = "sakai/pooled-content-upload";
   /**
    * The jcr:primaryType for pooled content.
    */
@@ -135,6 +146,16 @@ public interface FilesConstants {
 
   public static final String POOLED_NEEDS_PROCESSING = "sakai:needsprocessing";
 
+  /**
+   * Property set to true on a pool item while a chunked upload to it is still open.
+   */
+  public static final String POOLED_CONTENT_UPLOAD_PENDING = "sakai:pooled-content-upload-pending";
+
+  /**
+   * The total length of an open chunked upload, if the client declared one.
+   */
+  public static final String POOLED_CONTENT_UPLOAD_LENGTH = "sakai:pooled-content-upload-length";
+
   /** Property of when the content was last modified */
   String LAST_MODIFIED = "lastModified";
 
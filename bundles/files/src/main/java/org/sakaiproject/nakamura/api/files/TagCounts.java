@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.files;
+
+import org.apache.sling.jcr.jackrabbit.server.index.TermCounter;
+
+/**
+ * How many public items carry each tag, kept up to date as items are tagged and untagged
+ * through {@link FileUtils}, so that the tag cloud can be listed without reading every
+ * tagged item.
+ * <p>
+ * Only items the anonymous user can read are counted, so the counts can be shown to
+ * anyone. There are no counts until they have been seeded from a full count, after which
+ * tagging adds to and untagging takes from them. Items that are deleted or stop being
+ * public are not taken away, so callers should seed the counts again from time to time.
+ * The counts are held in memory on this server only.
+ */
+public final class TagCounts {
+
+  private static volatile Counts counts;
+
+  private TagCounts() {
+  }
+
+  /**
+   * @param maxAge
+   *          the age in ms after which the counts are not used.
+   * @return the counts of public tagged items, keyed by tag uuid, or null if they have
+   *         not been seeded since maxAge ago.
+   */
+  public static TermCounter get(long maxAge) {
+    Counts c = counts;
+    if (c == null || System.currentTimeMillis() - c.seeded > maxAge) {
+      return null;
+    }
+    return c.counts;
+  }
+
+  /**
+   * Replace the counts with a full count.
+   *
+   * @param publicCounts
+   *          the counts of tags on public items, keyed by tag uuid.
+   */
+  public static void seed(TermCounter publicCounts) {
+    counts = new Counts(publicCounts);
+  }
+
+  /**
+   * @return true if there are counts to keep up to date.
+   */
+  static boolean isSeeded() {
+    return counts != null;
+  }
+
+  /**
+   * A public item was tagged.
+   *
+   * @param uuid
+   *          the uuid of the tag.
+   */
+  static void added(String uuid) {
+    Counts c = counts;
+    if (c != null && uuid != null) {
+      c.counts.add(uuid, 1);
+    }
+  }
+
+  /**
+   * A tag was taken off a public item.
+   *
+   * @param uuid
+   *          the uuid of the tag.
+   */
+  static void removed(String uuid) {
+    Counts c = counts;
+    if (c != null && uuid != null) {
+      c.counts.remove(uuid, 1);
+    }
+  }
+
+  private static final class Counts {
+    private final TermCounter counts;
+    private final long seeded = System.currentTimeMillis();
+
+    Counts(TermCounter counts) {
+      this.counts = counts;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One range of bytes, inclusive at both ends, from an HTTP <code>Range</code> header.
+ */
+final class ByteRange {
+
+  /**
+   * More ranges than this in one request are not worth the parts, the whole body is
+   * sent instead.
+   */
+  static final int MAX_RANGES = 32;
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  final long start;
+  final long end;
+
+  ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * @param length
+   *          the length of the whole body.
+   * @return the value of a <code>Content-Range</code> header for this range.
+   */
+  String toContentRange(long length) {
+    return "bytes " + start + "-" + end + "/" + length;
+  }
+
+  /**
+   * Parse a <code>Range</code> header. Ranges that overlap or touch are merged and the
+   * result is in order, so the body can be read once from start to end.
+   *
+   * @param header
+   *          the value of the header.
+   * @param length
+   *          the length of the body.
+   * @return the ranges to send, an empty list if none of the ranges can be satisfied, or
+   *         null if the header should be ignored and the whole body sent.
+   */
+  static List<ByteRange> parse(String header, long length) {
+    if (header == null || length <= 0) {
+      return null;
+    }
+    header = header.trim();
+    if (!header.startsWith(BYTES_UNIT)) {
+      return null;
+    }
+    String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<ByteRange>();
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long start;
+      long end;
+      try {
+        if (dash == 0) {
+          // the last n bytes.
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec
+              .substring(dash + 1));
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (start < 0 || end < start) {
+        return null;
+      }
+      if (start >= length) {
+        continue;
+      }
+      ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+    }
+    return merge(ranges);
+  }
+
+  private static List<ByteRange> merge(List<ByteRange> ranges) {
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    Collections.sort(ranges, new Comparator<ByteRange>() {
+      public int compare(ByteRange o1, ByteRange o2) {
+        return o1.start < o2.start ? -1 : (o1.start == o2.start ? 0 : 1);
+      }
+    });
+    List<ByteRange> merged = new ArrayList<ByteRange>();
+    ByteRange last = ranges.get(0);
+    for (ByteRange range : ranges.subList(1, ranges.size())) {
+      if (range.start <= last.end + 1) {
+        last = new ByteRange(last.start, Math.max(last.end, range.end));
+      } else {
+        merged.add(last);
+        last = range;
+      }
+    }
+    merged.add(last);
+    return merged;
+  }
+}
@@ -0,0 +1,722 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_FILENAME;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_RT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_UPLOAD_LENGTH;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_UPLOAD_PENDING;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_UPLOAD_RT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_NEEDS_PROCESSING;
+
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceExtension;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.lite.jackrabbit.JackrabbitSparseUtils;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Uploads large files to the pool in chunks, so that a dropped connection only loses the
+ * chunk that was in flight. Each chunk is streamed straight into the content store as a
+ * child of the pool item, and the chunks are joined into the body of the item when the
+ * upload is committed. Chunks are independent of each other, so they may be sent in
+ * parallel, in any order, and may overlap.
+ * <p>
+ * Until it is committed the pool item has the resource type
+ * {@link org.sakaiproject.nakamura.api.files.FilesConstants#POOLED_CONTENT_UPLOAD_RT}, so
+ * it is neither indexed nor found as pooled content. Uploads that are never committed are
+ * removed by {@link PendingUploadCleaner}.
+ */
+@SlingServlet(methods = { "GET", "POST", "PUT" }, paths = "/system/pool/upload")
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Allows for uploading large files to the pool in chunks.") })
+@ServiceDocumentation(name="Chunked Upload Content Pool Servlet",
+    description="Uploads large files to the pool in chunks that can be resumed",
+    shortDescription="Uploads large files to the pool in chunks",
+    bindings=@ServiceBinding(type=BindingType.PATH,bindings={"/system/pool/upload"},
+    extensions=@ServiceExtension(name="*", description="The PoolID of an open upload.")),
+    methods={
+      @ServiceMethod(name="POST",
+        description={"Without a PoolID, starts an upload and creates the pool item. With a PoolID, commits the upload, joining the chunks into the file.",
+            "Example<br>" +
+            "<pre>curl -d filename=lecture.mp4 -d length=524288000 http://localhost:8080/system/pool/upload</pre>" +
+            "<pre>curl -d digest=2fd4e1c67a2d28fced849ee1bb76e7391b93eb12 http://localhost:8080/system/pool/upload.3sd23a4QW4WD</pre>",
+            "Response is of the form " +
+            "<pre>" +
+            "   { \"lecture.mp4\" : \"3sd23a4QW4WD\" } " +
+            "</pre>"
+        },
+        parameters={
+          @ServiceParameter(name="filename", description="The name of the file, when starting an upload."),
+          @ServiceParameter(name="mimeType", description="Optional, the mime type of the file, when starting an upload."),
+          @ServiceParameter(name="length", description="Optional, the total length of the file, when starting an upload. If given the commit is refused until all of it has arrived."),
+          @ServiceParameter(name="digest", description="Optional, the hex digest of the whole file, when committing."),
+          @ServiceParameter(name="algorithm", description="Optional, the digest algorithm, defaults to SHA-1.")
+        },
+        response={
+          @ServiceResponse(code=201,description="The upload was started or committed."),
+          @ServiceResponse(code=400,description="The request is invalid, the chunks do not cover the file or the digest does not match. The upload stays open, and the file is only published once the digest matches."),
+          @ServiceResponse(code=403,description="Anonymous users cannot upload."),
+          @ServiceResponse(code=404,description="There is no open upload with that PoolID."),
+          @ServiceResponse(code=500,description="Failure with HTML explanation.")}),
+      @ServiceMethod(name="PUT",
+        description={"Stores one chunk of an open upload. The position of the chunk is taken from the Content-Range header, or from the offset parameter. Chunks may overlap, and a chunk that is sent again at the same offset is used in place of the earlier copy.",
+            "Example<br>" +
+            "<pre>curl -T part1 -H 'Content-Range: bytes 0-1048575/524288000' http://localhost:8080/system/pool/upload.3sd23a4QW4WD</pre>"
+        },
+        parameters={
+          @ServiceParameter(name="offset", description="The position of the chunk in the file, if there is no Content-Range header.")
+        },
+        response={
+          @ServiceResponse(code=201,description="The chunk was stored."),
+          @ServiceResponse(code=400,description="The chunk position is missing, the body does not match the Content-Range, or the chunk does not fit in the file."),
+          @ServiceResponse(code=404,description="There is no open upload with that PoolID.")}),
+      @ServiceMethod(name="GET",
+        description={"Lists the chunks that have arrived, so that an interrupted upload can be resumed.",
+            "Response is of the form " +
+            "<pre>" +
+            "   { \"poolId\" : \"3sd23a4QW4WD\", \"length\" : 524288000, \"received\" : 2097152, \"chunks\" : [ { \"offset\" : 0, \"length\" : 1048576 }, { \"offset\" : 1048576, \"length\" : 1048576 } ] } " +
+            "</pre>",
+            "received counts the bytes covered by the chunks, bytes sent in more than one chunk are counted once."
+        },
+        response={
+          @ServiceResponse(code=200,description="The state of the upload."),
+          @ServiceResponse(code=404,description="There is no open upload with that PoolID.")})
+    })
+public class ChunkedUploadContentPoolServlet extends SlingAllMethodsServlet {
+
+  private static final long serialVersionUID = 3529711373870545376L;
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ChunkedUploadContentPoolServlet.class);
+
+  /**
+   * The child of the pool item that holds the chunks of an open upload.
+   */
+  static final String CHUNKS = "upload";
+
+  private static final String DEFAULT_ALGORITHM = "SHA-1";
+
+  private static final Pattern CONTENT_RANGE = Pattern
+      .compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  /**
+   * Start an upload, or commit one if a pool id is given.
+   */
+  @Override
+  protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (UserConstants.ANON_USERID.equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Anonymous users cannot upload files to the pool.");
+      return;
+    }
+    String poolId = request.getRequestPathInfo().getExtension();
+    try {
+      if (poolId == null) {
+        initiate(request, response);
+      } else {
+        commit(poolId, getSession(request), request, response);
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage());
+    } catch (JSONException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Store one chunk.
+   */
+  @Override
+  protected void doPut(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    String poolId = request.getRequestPathInfo().getExtension();
+    if (poolId == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No PoolID");
+      return;
+    }
+    long offset;
+    long expectedLength = -1;
+    long total = -1;
+    String range = request.getHeader("Content-Range");
+    if (range != null) {
+      Matcher m = CONTENT_RANGE.matcher(range.trim());
+      if (!m.matches()) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid Content-Range "
+            + range);
+        return;
+      }
+      offset = Long.parseLong(m.group(1));
+      expectedLength = Long.parseLong(m.group(2)) - offset + 1;
+      if (!"*".equals(m.group(3))) {
+        total = Long.parseLong(m.group(3));
+      }
+    } else {
+      try {
+        offset = Long.parseLong(request.getParameter("offset"));
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "A Content-Range header or an offset is required");
+        return;
+      }
+    }
+    if (offset < 0 || (range != null && expectedLength <= 0)
+        || (total >= 0 && offset + expectedLength > total)) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid chunk position");
+      return;
+    }
+
+    try {
+      ContentManager contentManager = getSession(request).getContentManager();
+      Content content = contentManager.get(poolId);
+      String chunksPath = StorageClientUtils.newPath(poolId, CHUNKS);
+      if (!isPending(content) || !contentManager.exists(chunksPath)) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "No open upload " + poolId);
+        return;
+      }
+      long length = getUploadLength(content);
+      if (total >= 0 && length >= 0 && total != length) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The Content-Range is for "
+            + total + " bytes but the upload is " + length + " bytes");
+        return;
+      }
+      if (length < 0) {
+        length = total;
+      }
+
+      // every chunk goes to a new node, so no two requests ever create or write the same
+      // one. The time in the name lets a chunk that is sent again win over the earlier copy.
+      String chunkPath = StorageClientUtils.newPath(chunksPath, offset + "-"
+          + System.currentTimeMillis() + "-" + clusterTrackingService.getClusterUniqueId());
+      contentManager.update(new Content(chunkPath, new HashMap<String, Object>()));
+      // stream the request body straight into the store, nothing is buffered here.
+      contentManager.writeBody(chunkPath, request.getInputStream());
+      long received = getLength(contentManager.get(chunkPath));
+      if (expectedLength >= 0 && received != expectedLength) {
+        contentManager.delete(chunkPath);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected "
+            + expectedLength + " bytes but got " + received);
+        return;
+      }
+      if (length >= 0 && offset + received > length) {
+        contentManager.delete(chunkPath);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The chunk ends at "
+            + (offset + received) + " but the upload is " + length + " bytes");
+        return;
+      }
+      response.setStatus(HttpServletResponse.SC_CREATED);
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage());
+    }
+  }
+
+  /**
+   * Report the chunks that have arrived.
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    String poolId = request.getRequestPathInfo().getExtension();
+    if (poolId == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No PoolID");
+      return;
+    }
+    try {
+      ContentManager contentManager = getSession(request).getContentManager();
+      Content content = contentManager.get(poolId);
+      if (!isPending(content)) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "No open upload " + poolId);
+        return;
+      }
+      List<Chunk> chunks = getChunks(contentManager, poolId);
+      // bytes that arrived in more than one chunk are only counted once.
+      long received = 0;
+      long reached = 0;
+      for (Chunk chunk : chunks) {
+        if (chunk.end() > reached) {
+          received += chunk.end() - Math.max(chunk.offset, reached);
+          reached = chunk.end();
+        }
+      }
+
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter write = new JSONWriter(response.getWriter());
+      write.object();
+      write.key("poolId").value(poolId);
+      if (content.hasProperty(POOLED_CONTENT_UPLOAD_LENGTH)) {
+        write.key("length").value(getUploadLength(content));
+      }
+      write.key("received").value(received);
+      write.key("chunks").array();
+      for (Chunk chunk : chunks) {
+        write.object();
+        write.key("offset").value(chunk.offset);
+        write.key("length").value(chunk.length);
+        write.endObject();
+      }
+      write.endArray();
+      write.endObject();
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No open upload " + poolId);
+    } catch (JSONException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Create the pool item for a new upload, with the same properties and permissions as a
+   * file created through {@link CreateContentPoolServlet}, and the node for its chunks.
+   */
+  private void initiate(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws IOException, StorageClientException, AccessDeniedException, JSONException {
+    String fileName = request.getParameter("filename");
+    if (fileName == null || fileName.length() == 0) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "A filename is required");
+      return;
+    }
+    Map<String, Object> uploadProperties = new HashMap<String, Object>();
+    uploadProperties.put(POOLED_CONTENT_UPLOAD_PENDING, "true");
+    // not pooled content, and nothing to process, until the upload is committed.
+    uploadProperties.put(SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_UPLOAD_RT);
+    uploadProperties.put(POOLED_NEEDS_PROCESSING, "false");
+    String length = request.getParameter("length");
+    if (length != null) {
+      try {
+        uploadProperties.put(POOLED_CONTENT_UPLOAD_LENGTH, Long.parseLong(length));
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid length " + length);
+        return;
+      }
+    }
+
+    String poolId = clusterTrackingService.getClusterUniqueId();
+    Session adminSession = sparseRepository.loginAdministrative();
+    try {
+      CreateContentPoolServlet.createPoolContent(adminSession, poolId, fileName,
+          getContentType(fileName, request.getParameter("mimeType")),
+          request.getRemoteUser(), uploadProperties);
+      adminSession.getContentManager().update(
+          new Content(StorageClientUtils.newPath(poolId, CHUNKS),
+              new HashMap<String, Object>()));
+    } finally {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+    writeResult(response, HttpServletResponse.SC_CREATED, fileName, poolId);
+  }
+
+  /**
+   * Join the chunks into the body of the pool item, checking they cover the whole file
+   * and that the digest matches. The body is written and digested in a single pass; until
+   * the item is switched to pooled content its body is not visible to anyone but the
+   * uploader, so a body that fails the digest is never published.
+   */
+  private void commit(String poolId, Session session, SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws IOException, StorageClientException,
+      AccessDeniedException, JSONException {
+    ContentManager contentManager = session.getContentManager();
+    Content content = contentManager.get(poolId);
+    if (!isPending(content)) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No open upload " + poolId);
+      return;
+    }
+
+    List<Chunk> chunks = getChunks(contentManager, poolId);
+    SortedMap<Long, Chunk> cover = cover(chunks);
+    long total = cover.isEmpty() ? 0 : cover.get(cover.lastKey()).end();
+    for (Chunk chunk : chunks) {
+      if (chunk.offset > total) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a chunk at "
+            + total + " but the next chunk is at " + chunk.offset);
+        return;
+      }
+    }
+    long length = getUploadLength(content);
+    if (length >= 0 && length != total) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Only " + total + " of "
+          + length + " bytes have arrived");
+      return;
+    }
+
+    String expected = request.getParameter("digest");
+    MessageDigest digest = null;
+    if (expected != null) {
+      String algorithm = request.getParameter("algorithm");
+      try {
+        digest = MessageDigest.getInstance(algorithm == null ? DEFAULT_ALGORITHM
+            : algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "Unknown digest algorithm " + algorithm);
+        return;
+      }
+    }
+
+    // the chunks are streamed one after the other from the store into the body, and
+    // digested on the way.
+    InputStream in = new ChunkInputStream(contentManager, cover);
+    if (digest != null) {
+      in = new DigestInputStream(in, digest);
+    }
+    try {
+      contentManager.writeBody(poolId, in);
+    } finally {
+      in.close();
+    }
+    if (digest != null) {
+      String actual = toHex(digest.digest());
+      if (!expected.equalsIgnoreCase(actual)) {
+        // still an open upload, and the chunks are kept so that bad ones can be sent
+        // again. The next commit writes the body afresh.
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "Digest mismatch, expected " + expected + " but the upload is " + actual);
+        return;
+      }
+    }
+
+    for (Chunk chunk : chunks) {
+      contentManager.delete(chunk.path);
+    }
+    contentManager.delete(StorageClientUtils.newPath(poolId, CHUNKS));
+    content = contentManager.get(poolId);
+    content.setProperty(SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_RT);
+    content.setProperty(POOLED_CONTENT_UPLOAD_PENDING, "false");
+    content.setProperty(POOLED_NEEDS_PROCESSING, "true");
+    contentManager.update(content);
+    CreateContentPoolServlet.postCreatedEvent(eventAdmin, poolId,
+        (String) content.getProperty(Content.MIMETYPE_FIELD));
+
+    writeResult(response, HttpServletResponse.SC_CREATED,
+        (String) content.getProperty(POOLED_CONTENT_FILENAME), poolId);
+  }
+
+  /**
+   * @return the chunks of an upload, by offset and then newest first.
+   */
+  static List<Chunk> getChunks(ContentManager contentManager, String poolId)
+      throws StorageClientException, AccessDeniedException {
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    String chunksPath = StorageClientUtils.newPath(poolId, CHUNKS);
+    if (contentManager.exists(chunksPath)) {
+      for (Iterator<String> i = contentManager.listChildPaths(chunksPath); i.hasNext();) {
+        String path = i.next();
+        String[] name = StorageClientUtils.getObjectName(path).split("-");
+        try {
+          long offset = Long.parseLong(name[0]);
+          long written = name.length > 1 ? Long.parseLong(name[1]) : 0L;
+          chunks.add(new Chunk(path, offset, getLength(contentManager.get(path)), written));
+        } catch (NumberFormatException e) {
+          LOGGER.debug("Ignoring {} in upload {} ", path, poolId);
+        }
+      }
+    }
+    Collections.sort(chunks, new Comparator<Chunk>() {
+      public int compare(Chunk a, Chunk b) {
+        if (a.offset != b.offset) {
+          return a.offset < b.offset ? -1 : 1;
+        }
+        return a.written == b.written ? 0 : (a.written > b.written ? -1 : 1);
+      }
+    });
+    return chunks;
+  }
+
+  /**
+   * Choose the chunks that make up the file, from the start up to the first gap. Of the
+   * chunks sent at the same offset only the newest is used, so a chunk sent again
+   * replaces the earlier copy even if it is shorter. Where chunks at different offsets
+   * overlap, the one that reaches furthest is used.
+   *
+   * @param chunks
+   *          sorted as {@link #getChunks(ContentManager, String)} sorts them.
+   * @return the chosen chunks, keyed by the position in the file that each is read from.
+   */
+  static SortedMap<Long, Chunk> cover(List<Chunk> chunks) {
+    SortedMap<Long, Chunk> cover = new TreeMap<Long, Chunk>();
+    long position = 0;
+    int i = 0;
+    while (i < chunks.size()) {
+      Chunk best = null;
+      for (; i < chunks.size() && chunks.get(i).offset <= position; i++) {
+        Chunk chunk = chunks.get(i);
+        if (i > 0 && chunks.get(i - 1).offset == chunk.offset) {
+          // an older copy of the chunk before it.
+          continue;
+        }
+        if (best == null || chunk.end() > best.end()) {
+          best = chunk;
+        }
+      }
+      if (best == null) {
+        break;
+      }
+      if (best.end() > position) {
+        cover.put(position, best);
+        position = best.end();
+      }
+    }
+    return cover;
+  }
+
+  private Session getSession(SlingHttpServletRequest request) throws ServletException {
+    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(
+        javax.jcr.Session.class);
+    try {
+      return JackrabbitSparseUtils.getSparseSession(jcrSession);
+    } catch (RepositoryException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  static boolean isPending(Content content) {
+    return content != null
+        && "true".equals(content.getProperty(POOLED_CONTENT_UPLOAD_PENDING));
+  }
+
+  /**
+   * @return the length the client declared for the upload, or -1.
+   */
+  private long getUploadLength(Content content) {
+    if (!content.hasProperty(POOLED_CONTENT_UPLOAD_LENGTH)) {
+      return -1;
+    }
+    return StorageClientUtils.toLong(content.getProperty(POOLED_CONTENT_UPLOAD_LENGTH));
+  }
+
+  private static long getLength(Content chunk) {
+    if (chunk == null || !chunk.hasProperty(Content.LENGTH_FIELD)) {
+      return 0;
+    }
+    return StorageClientUtils.toLong(chunk.getProperty(Content.LENGTH_FIELD));
+  }
+
+  private String getContentType(String fileName, String contentType) {
+    if (contentType == null || contentType.equals("application/octet-stream")) {
+      // try to find a better content type
+      contentType = getServletContext().getMimeType(fileName);
+      if (contentType == null) {
+        contentType = "application/octet-stream";
+      }
+    }
+    return contentType;
+  }
+
+  private void writeResult(SlingHttpServletResponse response, int status,
+      String fileName, String poolId) throws IOException, JSONException {
+    response.setStatus(status);
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key(fileName).value(poolId);
+    write.endObject();
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * One chunk that has arrived.
+   */
+  static final class Chunk {
+
+    final String path;
+    final long offset;
+    final long length;
+    /**
+     * When the chunk was sent, 0 if that is not known.
+     */
+    final long written;
+
+    Chunk(String path, long offset, long length, long written) {
+      this.path = path;
+      this.offset = offset;
+      this.length = length;
+      this.written = written;
+    }
+
+    long end() {
+      return offset + length;
+    }
+  }
+
+  /**
+   * Reads the chosen chunks of an upload one after another, only one chunk stream is
+   * open at a time.
+   */
+  private static class ChunkInputStream extends InputStream {
+
+    private final ContentManager contentManager;
+    private final Iterator<Entry<Long, Chunk>> chunks;
+    private InputStream current;
+
+    ChunkInputStream(ContentManager contentManager, SortedMap<Long, Chunk> cover) {
+      this.contentManager = contentManager;
+      this.chunks = cover.entrySet().iterator();
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        if (current == null) {
+          if (!chunks.hasNext()) {
+            return -1;
+          }
+          Entry<Long, Chunk> chunk = chunks.next();
+          current = open(chunk.getValue(), chunk.getKey() - chunk.getValue().offset);
+        }
+        int n = current.read(b, off, len);
+        if (n != -1) {
+          return n;
+        }
+        current.close();
+        current = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+    }
+
+    /**
+     * @param skip
+     *          the number of bytes at the start of the chunk that an earlier chunk has
+     *          already covered.
+     */
+    private InputStream open(Chunk chunk, long skip) throws IOException {
+      InputStream in;
+      try {
+        in = contentManager.getInputStream(chunk.path);
+      } catch (StorageClientException e) {
+        IOException ioe = new IOException("Unable to read chunk " + chunk.path);
+        ioe.initCause(e);
+        throw ioe;
+      } catch (AccessDeniedException e) {
+        IOException ioe = new IOException("Unable to read chunk " + chunk.path);
+        ioe.initCause(e);
+        throw ioe;
+      }
+      if (in == null) {
+        throw new IOException("Chunk " + chunk.path + " has no body");
+      }
+      while (skip > 0) {
+        long n = in.skip(skip);
+        if (n <= 0) {
+          if (in.read() == -1) {
+            in.close();
+            throw new IOException("Chunk " + chunk.path + " is shorter than its length");
+          }
+          n = 1;
+        }
+        skip -= n;
+      }
+      return in;
+    }
+  }
+}
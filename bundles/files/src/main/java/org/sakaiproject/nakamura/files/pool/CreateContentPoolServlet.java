@@ -23,6 +23,7 @@ import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_RT;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_MANAGER;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_NEEDS_PROCESSING;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.TOPIC_FILES_POOLED_CONTENT_CREATED;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -34,6 +35,8 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONObject;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -66,7 +69,9 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -111,6 +116,9 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   @Reference
   protected Repository sparseRepository;
 
+  @Reference
+  protected EventAdmin eventAdmin;
+
   private static final long serialVersionUID = -5099697955361286370L;
 
   public static final char[] ENCODING = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890"
@@ -231,34 +239,11 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
     // Get the content type.
     String contentType = getContentType(value);
     ContentManager contentManager = session.getContentManager();
-    AccessControlManager accessControlManager = session.getAccessControlManager();
     if ( create ) {
-      // Create a proper nt:file node in jcr with some properties on it to make it possible
-      // to locate this pool file without having to use the path.
-      Map<String, Object> contentProperties = new HashMap<String, Object>();
-      contentProperties.put(POOLED_CONTENT_FILENAME, value.getFileName());
-      contentProperties.put(SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_RT);
-      contentProperties.put(POOLED_CONTENT_CREATED_FOR, au.getId());
-      contentProperties.put(POOLED_NEEDS_PROCESSING, "true");
-      contentProperties.put(Content.MIMETYPE_FIELD, contentType);
-      contentProperties.put(POOLED_CONTENT_USER_MANAGER, new String[]{au.getId()});
-      
-      Content content = new Content(poolId,contentProperties);
-      
-      contentManager.update(content);
-      
+      createPoolContent(session, poolId, value.getFileName(), contentType, au.getId(),
+          null);
       contentManager.writeBody(poolId, value.getInputStream());
-      
-      
-      // deny anon everyting
-      // deny everyone everything
-      // grant the user everything.
-      List<AclModification> modifications = new ArrayList<AclModification>();
-      AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
-      AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
-      AclModification.addAcl(true, Permissions.CAN_MANAGE, au.getId(), modifications);
-      accessControlManager.setAcl(Security.ZONE_CONTENT, poolId, modifications.toArray(new AclModification[modifications.size()]));
-
+      postCreatedEvent(eventAdmin, poolId, contentType);
 
     } else {
       Content content = contentManager.get(poolId);
@@ -268,6 +253,71 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
     }
   }
 
+  /**
+   * Create the pool content item for a new file and set up its permissions, anon and
+   * everyone are denied everything and the creator is made the manager.
+   *
+   * @param session
+   *          a session that can create items in the pool.
+   * @param poolId
+   *          the new pool id.
+   * @param fileName
+   *          the name of the file.
+   * @param contentType
+   *          the mime type of the file.
+   * @param userId
+   *          the user the file is created for.
+   * @param extraProperties
+   *          any further properties for the item, may be null.
+   * @throws AccessDeniedException
+   * @throws StorageClientException
+   */
+  static void createPoolContent(Session session, String poolId, String fileName,
+      String contentType, String userId, Map<String, Object> extraProperties)
+      throws AccessDeniedException, StorageClientException {
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    // Create a proper nt:file node in jcr with some properties on it to make it possible
+    // to locate this pool file without having to use the path.
+    Map<String, Object> contentProperties = new HashMap<String, Object>();
+    contentProperties.put(POOLED_CONTENT_FILENAME, fileName);
+    contentProperties.put(SLING_RESOURCE_TYPE_PROPERTY, POOLED_CONTENT_RT);
+    contentProperties.put(POOLED_CONTENT_CREATED_FOR, userId);
+    contentProperties.put(POOLED_NEEDS_PROCESSING, "true");
+    contentProperties.put(Content.MIMETYPE_FIELD, contentType);
+    contentProperties.put(POOLED_CONTENT_USER_MANAGER, new String[]{userId});
+    if (extraProperties != null) {
+      contentProperties.putAll(extraProperties);
+    }
+
+    Content content = new Content(poolId,contentProperties);
+
+    contentManager.update(content);
+
+    // deny anon everyting
+    // deny everyone everything
+    // grant the user everything.
+    List<AclModification> modifications = new ArrayList<AclModification>();
+    AclModification.addAcl(false, Permissions.ALL, User.ANON_USER, modifications);
+    AclModification.addAcl(false, Permissions.ALL, Group.EVERYONE, modifications);
+    AclModification.addAcl(true, Permissions.CAN_MANAGE, userId, modifications);
+    accessControlManager.setAcl(Security.ZONE_CONTENT, poolId, modifications.toArray(new AclModification[modifications.size()]));
+  }
+
+  /**
+   * Let anything that processes new content (eg previews) know about a new pool item.
+   *
+   * @param eventAdmin
+   * @param poolId
+   * @param contentType
+   */
+  static void postCreatedEvent(EventAdmin eventAdmin, String poolId, String contentType) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", poolId);
+    properties.put(Content.MIMETYPE_FIELD, contentType);
+    eventAdmin.postEvent(new Event(TOPIC_FILES_POOLED_CONTENT_CREATED, properties));
+  }
+
   /**
    * Get the content type of a file that's in a {@link RequestParameter}.
    *
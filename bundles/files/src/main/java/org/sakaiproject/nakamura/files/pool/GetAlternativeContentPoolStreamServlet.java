@@ -38,9 +38,14 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -61,6 +66,12 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
   private static final Logger LOGGER = LoggerFactory.getLogger(GetAlternativeContentPoolStreamServlet.class);
   private static final long serialVersionUID = 6605017133790005483L;
   private static final Set<String> RESERVED_SELECTORS = new HashSet<String>();
+  private static final String HEADER_RANGE = "Range";
+  private static final String HEADER_IF_RANGE = "If-Range";
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
+  private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  private static final String MULTIPART_HEADER_ENCODING = "ISO-8859-1";
+  private static final int BUFFER_SIZE = 8192;
   static {
     RESERVED_SELECTORS.add("selector-used-elsewhere");
   }
@@ -73,24 +84,52 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
       Content node = resource.adaptTo(Content.class);
       ContentManager contentManager = resource.adaptTo(ContentManager.class);
       String alternativeStream = getAlternativeStream(request);
-      InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+      InputStream dataStream = alternativeStream == null ? contentManager
+          .getInputStream(node.getPath()) : contentManager.getInputStream(node.getPath(),
+          alternativeStream);
 
       if ( dataStream == null ) {
         response.sendError(HttpServletResponse.SC_NOT_FOUND);
         return;
       }
-      
-      Map<String, Object> properties = node.getProperties();
-      long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-      if (unmodified(request, modifTime)) {
-        response.setStatus(SC_NOT_MODIFIED);
-        return;
-      }
+      try {
+        Map<String, Object> properties = node.getProperties();
+        long modifTime = StorageClientUtils.toLong(properties.get(getField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+        if (unmodified(request, modifTime)) {
+          response.setStatus(SC_NOT_MODIFIED);
+          return;
+        }
 
-      setHeaders(properties, resource, response, alternativeStream);
-      setContentLength(properties, response, alternativeStream);
-      IOUtils.copyLarge(dataStream, response.getOutputStream());
-      dataStream.close();
+        setHeaders(properties, resource, response, alternativeStream);
+        long length = StorageClientUtils.toLong(properties.get(getField(Content.LENGTH_FIELD, alternativeStream)));
+        List<ByteRange> ranges = null;
+        if (length > 0) {
+          response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+          if (rangeApplies(request, modifTime)) {
+            ranges = ByteRange.parse(request.getHeader(HEADER_RANGE), length);
+          }
+        }
+        if (ranges != null && ranges.isEmpty()) {
+          response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+          response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+        BodyWriter body = new BodyWriter(dataStream, response.getOutputStream());
+        if (ranges == null) {
+          setContentLength(response, length);
+          body.writeAll();
+        } else if (ranges.size() == 1) {
+          ByteRange range = ranges.get(0);
+          response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          response.setHeader(HEADER_CONTENT_RANGE, range.toContentRange(length));
+          setContentLength(response, range.getLength());
+          body.write(range);
+        } else {
+          writeMultipart(ranges, length, body, response);
+        }
+      } finally {
+        dataStream.close();
+      }
     } catch (ClientPoolException e) {
       LOGGER.warn(e.getMessage(),e);
       throw new ServletException(e.getMessage(), e);
@@ -103,7 +142,62 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
     }
   }
 
-  private String getAlternativeStream(SlingHttpServletRequest request) {
+  /**
+   * Send several ranges as a <code>multipart/byteranges</code> body.
+   */
+  private void writeMultipart(List<ByteRange> ranges, long length, BodyWriter body,
+      SlingHttpServletResponse response) throws IOException {
+    String partType = response.getContentType();
+    String boundary = Long.toHexString(System.currentTimeMillis())
+        + Long.toHexString(System.nanoTime());
+    byte[][] partHeaders = new byte[ranges.size()][];
+    long contentLength = 0;
+    for (int i = 0; i < partHeaders.length; i++) {
+      StringBuilder header = new StringBuilder();
+      header.append("\r\n--").append(boundary).append("\r\n");
+      if (partType != null) {
+        header.append("Content-Type: ").append(partType).append("\r\n");
+      }
+      header.append(HEADER_CONTENT_RANGE).append(": ").append(
+          ranges.get(i).toContentRange(length)).append("\r\n\r\n");
+      partHeaders[i] = header.toString().getBytes(MULTIPART_HEADER_ENCODING);
+      contentLength += partHeaders[i].length + ranges.get(i).getLength();
+    }
+    byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(MULTIPART_HEADER_ENCODING);
+    contentLength += end.length;
+
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + boundary);
+    setContentLength(response, contentLength);
+    OutputStream out = response.getOutputStream();
+    for (int i = 0; i < partHeaders.length; i++) {
+      out.write(partHeaders[i]);
+      body.write(ranges.get(i));
+    }
+    out.write(end);
+  }
+
+  /**
+   * A <code>Range</code> header is only honoured if there is no <code>If-Range</code>
+   * header, or if the body has not changed since the date it gives. No entity tags are
+   * given out for bodies, so an <code>If-Range</code> with an entity tag never matches.
+   */
+  private boolean rangeApplies(HttpServletRequest request, long modifTime) {
+    if (request.getHeader(HEADER_IF_RANGE) == null) {
+      return true;
+    }
+    try {
+      long ifRange = request.getDateHeader(HEADER_IF_RANGE);
+      return modifTime > 0 && modifTime / 1000 <= ifRange / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the name of the stream to send, or null for the main body.
+   */
+  protected String getAlternativeStream(SlingHttpServletRequest request) {
     RequestPathInfo rpi = request.getRequestPathInfo();
     String alternativeStream = rpi.getExtension();
     String[] selectors = rpi.getSelectors();
@@ -113,6 +207,11 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
     return alternativeStream;
   }
 
+  private static String getField(String field, String alternativeStream) {
+    return alternativeStream == null ? field : StorageClientUtils.getAltField(field,
+        alternativeStream);
+  }
+
   /**
    * Do not interfere with the default servlet's handling of streaming data, which kicks
    * in if no extension has been specified was specified in the request. (Sling servlet
@@ -164,12 +263,12 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
    */
   private void setHeaders(Map<String, Object> properties, Resource resource, SlingHttpServletResponse response, String alternativeStream) {
 
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    long modifTime = StorageClientUtils.toLong(properties.get(getField(Content.LASTMODIFIED_FIELD, alternativeStream)));
     if (modifTime > 0) {
       response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
     }
 
-    String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
+    String contentType = (String) properties.get(getField(Content.MIMETYPE_FIELD, alternativeStream));
     if (contentType == null) {
       final String ct = getServletContext().getMimeType(resource.getPath());
       if (ct != null) {
@@ -180,7 +279,7 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
       response.setContentType(contentType);
     }
 
-    String encoding = (String) properties.get(StorageClientUtils.getAltField(Content.ENCODING_FIELD, alternativeStream));
+    String encoding = (String) properties.get(getField(Content.ENCODING_FIELD, alternativeStream));
     if (encoding != null) {
       response.setCharacterEncoding(encoding);
     }
@@ -198,8 +297,7 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
@@ -208,4 +306,67 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
       }
     }
   }
+
+  /**
+   * Writes a body, or ranges of it, to the response, copying through a heap buffer. When
+   * the body is held in a file the file is positioned at each range, so nothing before a
+   * range is read and ranges may come in any order. Otherwise the stream is read forward,
+   * and ranges must come in order, as they do once parsed.
+   */
+  static final class BodyWriter {
+    private final InputStream in;
+    private final OutputStream out;
+    private final FileChannel file;
+    private final long base;
+    private long position;
+
+    BodyWriter(InputStream in, OutputStream out) throws IOException {
+      this.in = in;
+      this.out = out;
+      if (in instanceof FileInputStream) {
+        file = ((FileInputStream) in).getChannel();
+        base = file.position();
+      } else {
+        file = null;
+        base = 0;
+      }
+    }
+
+    void writeAll() throws IOException {
+      if (file != null) {
+        file.position(base);
+      }
+      IOUtils.copyLarge(in, out);
+    }
+
+    void write(ByteRange range) throws IOException {
+      if (file != null) {
+        // the stream reads from the position of its channel.
+        file.position(base + range.start);
+      } else {
+        long skip = range.start - position;
+        while (skip > 0) {
+          long skipped = in.skip(skip);
+          if (skipped <= 0) {
+            if (in.read() < 0) {
+              throw new EOFException("Body ended before " + range.start);
+            }
+            skipped = 1;
+          }
+          skip -= skipped;
+        }
+      }
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long remaining = range.getLength();
+      while (remaining > 0) {
+        int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (n < 0) {
+          throw new EOFException("Body ended before " + range.end);
+        }
+        out.write(buffer, 0, n);
+        remaining -= n;
+      }
+      position = range.end + 1;
+    }
+  }
 }
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestPathInfo;
+
+/**
+ * Streams the main body of a pooled content item, <code>/p/&lt;PoolID&gt;</code>, in
+ * place of the default servlet, so that the body can be fetched in byte ranges in the
+ * same way as the alternative streams.
+ */
+@SlingServlet(methods = { "GET" }, resourceTypes = { "sakai/pooled-content" })
+public class GetContentPoolStreamServlet extends GetAlternativeContentPoolStreamServlet {
+
+  private static final long serialVersionUID = -2470716326306950542L;
+
+  @Override
+  protected String getAlternativeStream(SlingHttpServletRequest request) {
+    return null;
+  }
+
+  /**
+   * Only the plain body is sent, anything with a selector or an extension is left to the
+   * servlets registered for it.
+   *
+   * @see org.apache.sling.api.servlets.OptingServlet#accepts(org.apache.sling.api.SlingHttpServletRequest)
+   */
+  @Override
+  public boolean accepts(SlingHttpServletRequest request) {
+    RequestPathInfo rpi = request.getRequestPathInfo();
+    String[] selectors = rpi.getSelectors();
+    return rpi.getExtension() == null && (selectors == null || selectors.length == 0);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_UPLOAD_RT;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.files.pool.ChunkedUploadContentPoolServlet.Chunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes chunked uploads to the pool that have not been committed, and have had no
+ * chunks sent to them for longer than the maximum age. Run by the Sling Scheduler.
+ */
+@Component(immediate = true, metatype = true, label = "PendingUploadCleaner", description = "Removes chunked uploads to the pool that were never committed")
+@Service(value = Runnable.class)
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 3600L) })
+public class PendingUploadCleaner implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PendingUploadCleaner.class);
+
+  @Property(intValue = 24, label = "Maximum age", description = "The number of hours an upload may go without a chunk before it is removed.")
+  static final String MAX_AGE = "sakai.pool.upload.maxAgeHours";
+
+  @Reference
+  protected Repository sparseRepository;
+
+  private long maxAge = 24 * 3600000L;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    maxAge = OsgiUtil.toInteger(properties.get(MAX_AGE), 24) * 3600000L;
+  }
+
+  public void run() {
+    Session adminSession = null;
+    try {
+      adminSession = sparseRepository.loginAdministrative();
+      clean(adminSession.getContentManager(), System.currentTimeMillis() - maxAge);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to remove old uploads: " + e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to remove old uploads: " + e.getMessage(), e);
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param before
+   *          remove uploads that were started, and last had a chunk, before this time.
+   */
+  void clean(ContentManager contentManager, long before) throws StorageClientException,
+      AccessDeniedException {
+    // collect them first, so nothing is deleted from under the search.
+    List<String> stale = new ArrayList<String>();
+    for (Content content : contentManager.find(ImmutableMap.of(
+        SLING_RESOURCE_TYPE_PROPERTY, (Object) POOLED_CONTENT_UPLOAD_RT))) {
+      if (ChunkedUploadContentPoolServlet.isPending(content)
+          && getLastUsed(contentManager, content) < before) {
+        stale.add(content.getPath());
+      }
+    }
+    for (String poolId : stale) {
+      LOGGER.info("Removing upload {} that was never committed ", poolId);
+      StorageClientUtils.deleteTree(contentManager, poolId);
+    }
+  }
+
+  private long getLastUsed(ContentManager contentManager, Content content)
+      throws StorageClientException, AccessDeniedException {
+    long lastUsed = 0;
+    if (content.hasProperty(Content.CREATED_FIELD)) {
+      lastUsed = StorageClientUtils.toLong(content.getProperty(Content.CREATED_FIELD));
+    }
+    for (Chunk chunk : ChunkedUploadContentPoolServlet.getChunks(contentManager,
+        content.getPath())) {
+      lastUsed = Math.max(lastUsed, chunk.written);
+    }
+    return lastUsed;
+  }
+}
@@ -0,0 +1,401 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the text of content bodies for indexing, and keeps it in a cache on disk so
+ * that a body is only extracted again when it changes, and not when only the properties
+ * of its content do.
+ * <p>
+ * A body is known by its path, its length and the time it was last written, so a cached
+ * text is never used for a different body. Extraction runs on a bounded pool, and when
+ * the pool is busy it runs on the indexing thread. Text beyond a maximum length is not
+ * extracted.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = BodyTextExtractor.class)
+public class BodyTextExtractor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BodyTextExtractor.class);
+
+  /**
+   * The property sparse sets when a body is written.
+   */
+  static final String BODY_LAST_MODIFIED = "_bodyLastModified";
+
+  private static final String SUFFIX = ".txt";
+
+  private static final SAXException STOP = new SAXException("max length reached");
+
+  @Property(value = "bodytext", label = "Cache directory", description = "Where extracted text is kept, relative to sling.home.")
+  static final String CACHE_DIR = "body.text.cache.dir";
+
+  @Property(intValue = 1024, label = "Cache size", description = "The most MB of extracted text to keep.")
+  static final String CACHE_SIZE = "body.text.cache.size";
+
+  @Property(intValue = 1048576, label = "Maximum length", description = "The most characters to extract from a body.")
+  static final String MAX_LENGTH = "body.text.max.length";
+
+  @Property(intValue = 2, label = "Threads", description = "The number of threads extracting text.")
+  static final String THREADS = "body.text.threads";
+
+  @Property(intValue = 120, label = "Timeout", description = "The seconds to wait for the text of a body before indexing without it.")
+  static final String TIMEOUT = "body.text.timeout";
+
+  private final Parser parser = new AutoDetectParser();
+
+  /**
+   * The size of each cached text, least recently used first.
+   */
+  private final LinkedHashMap<String, Long> cached = new LinkedHashMap<String, Long>(16,
+      0.75f, true);
+
+  private File cacheDir;
+  private long cacheSize;
+  private long cachedSize;
+  private int maxLength;
+  private long timeout;
+  private ThreadPoolExecutor executor;
+
+  @Activate
+  protected void activate(ComponentContext context) {
+    @SuppressWarnings("unchecked")
+    Dictionary<String, Object> properties = context.getProperties();
+    File dir = new File(OsgiUtil.toString(properties.get(CACHE_DIR), "bodytext"));
+    if (!dir.isAbsolute()) {
+      String slingHome = context.getBundleContext().getProperty("sling.home");
+      if (slingHome != null) {
+        dir = new File(slingHome, dir.getPath());
+      }
+    }
+    activate(dir, OsgiUtil.toInteger(properties.get(CACHE_SIZE), 1024) * 1024L * 1024L,
+        OsgiUtil.toInteger(properties.get(MAX_LENGTH), 1048576),
+        OsgiUtil.toInteger(properties.get(THREADS), 2),
+        OsgiUtil.toInteger(properties.get(TIMEOUT), 120));
+  }
+
+  void activate(File dir, long cacheSize, int maxLength, int threads, int timeout) {
+    this.cacheSize = cacheSize;
+    this.maxLength = maxLength;
+    this.timeout = timeout * 1000L;
+    cacheDir = dir;
+    if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+      LOGGER.warn("Unable to create the body text cache at {} ", cacheDir);
+    }
+    loadCache();
+    final AtomicInteger count = new AtomicInteger();
+    threads = Math.max(1, threads);
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Body text extractor " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    LOGGER.info("Body text cache at {} holds {} texts, {} bytes ", new Object[] {
+        cacheDir, cached.size(), cachedSize });
+  }
+
+  @Deactivate
+  protected void deactivate(ComponentContext context) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * @param contentManager
+   * @param content
+   * @return the text of the body of the content, null if it has none or the text could
+   *         not be extracted.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   */
+  public String getText(ContentManager contentManager, Content content)
+      throws StorageClientException, AccessDeniedException, IOException {
+    if (!content.hasProperty(Content.LENGTH_FIELD)) {
+      return null;
+    }
+    String key = getKey(content);
+    if (key != null) {
+      String text = getCached(key);
+      if (text != null) {
+        LOGGER.debug("Using the cached text of {} ", content.getPath());
+        return text;
+      }
+    }
+    final InputStream in = contentManager.getInputStream(content.getPath());
+    if (in == null) {
+      return null;
+    }
+    final Metadata metadata = new Metadata();
+    if (content.hasProperty(Content.MIMETYPE_FIELD)) {
+      metadata.set(Metadata.CONTENT_TYPE, (String) content.getProperty(Content.MIMETYPE_FIELD));
+    }
+    if (content.hasProperty(FilesConstants.POOLED_CONTENT_FILENAME)) {
+      metadata.set(Metadata.RESOURCE_NAME_KEY, (String) content
+          .getProperty(FilesConstants.POOLED_CONTENT_FILENAME));
+    }
+    TextHandler extracted;
+    Future<TextHandler> future = executor.submit(new Callable<TextHandler>() {
+      public TextHandler call() {
+        return extract(in, metadata);
+      }
+    });
+    try {
+      extracted = future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      LOGGER.warn("Gave up extracting the text of {} after {} ms ", content.getPath(),
+          timeout);
+      future.cancel(true);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      return null;
+    } catch (ExecutionException e) {
+      LOGGER.warn("Unable to extract the text of " + content.getPath(), e.getCause());
+      return null;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    String text = extracted.text.toString();
+    // a body that failed part way is extracted again next time.
+    if (key != null && !extracted.failed) {
+      putCached(key, text);
+    }
+    return text;
+  }
+
+  private TextHandler extract(InputStream in, Metadata metadata) {
+    TextHandler handler = new TextHandler();
+    try {
+      parser.parse(in, handler, metadata, new ParseContext());
+    } catch (Throwable t) {
+      if (t != STOP && t.getCause() != STOP) {
+        LOGGER.debug("Text extraction stopped early {} ", t.getMessage());
+        handler.failed = true;
+      }
+    }
+    return handler;
+  }
+
+  /**
+   * @param content
+   * @return a name for the body of the content that changes when the body does, null if
+   *         the body can not be told apart from earlier bodies at the same path.
+   */
+  static String getKey(Content content) {
+    if (!content.hasProperty(BODY_LAST_MODIFIED)) {
+      return null;
+    }
+    String body = content.getPath() + "\n"
+        + StorageClientUtils.toLong(content.getProperty(Content.LENGTH_FIELD)) + "\n"
+        + StorageClientUtils.toLong(content.getProperty(BODY_LAST_MODIFIED));
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(body.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+            Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  private void loadCache() {
+    File[] files = cacheDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File o1, File o2) {
+        long m1 = o1.lastModified();
+        long m2 = o2.lastModified();
+        return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+      }
+    });
+    synchronized (cached) {
+      cached.clear();
+      cachedSize = 0;
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(SUFFIX)) {
+          cached.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+          cachedSize += file.length();
+        } else {
+          // a text that was not finished being written.
+          file.delete();
+        }
+      }
+      evict();
+    }
+  }
+
+  private String getCached(String key) {
+    synchronized (cached) {
+      if (cached.get(key) == null) {
+        return null;
+      }
+    }
+    File file = new File(cacheDir, key + SUFFIX);
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      String text = IOUtils.toString(in, "UTF-8");
+      file.setLastModified(System.currentTimeMillis());
+      return text;
+    } catch (IOException e) {
+      LOGGER.debug("Unable to read the cached text {} ", e.getMessage());
+      synchronized (cached) {
+        Long size = cached.remove(key);
+        if (size != null) {
+          cachedSize -= size;
+        }
+      }
+      return null;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private void putCached(String key, String text) {
+    File tmp = new File(cacheDir, key + ".tmp" + Thread.currentThread().getId());
+    File file = new File(cacheDir, key + SUFFIX);
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tmp);
+      IOUtils.write(text, out, "UTF-8");
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file)) {
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          tmp.delete();
+          return;
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Unable to cache the text of a body {} ", e.getMessage());
+      IOUtils.closeQuietly(out);
+      tmp.delete();
+      return;
+    }
+    synchronized (cached) {
+      Long old = cached.put(key, file.length());
+      cachedSize += file.length() - (old == null ? 0 : old);
+      evict();
+    }
+  }
+
+  /**
+   * Delete the least recently used texts until the cache fits its size.
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> i = cached.entrySet().iterator();
+    while (cachedSize > cacheSize && i.hasNext()) {
+      Map.Entry<String, Long> e = i.next();
+      new File(cacheDir, e.getKey() + SUFFIX).delete();
+      cachedSize -= e.getValue();
+      i.remove();
+    }
+  }
+
+  int getCachedCount() {
+    synchronized (cached) {
+      return cached.size();
+    }
+  }
+
+  /**
+   * Gathers the text of a body, up to the maximum length.
+   */
+  private class TextHandler extends DefaultHandler {
+    private final StringBuilder text = new StringBuilder();
+    private boolean failed;
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      text.append(ch, start, Math.min(length, maxLength - text.length()));
+      if (text.length() >= maxLength) {
+        throw STOP;
+      }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length)
+        throws SAXException {
+      characters(ch, start, length);
+    }
+  }
+}
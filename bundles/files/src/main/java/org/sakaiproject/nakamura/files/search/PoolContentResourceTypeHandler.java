@@ -42,6 +42,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.util.Iterables;
+import org.sakaiproject.nakamura.api.search.solr.IndexingMonitor;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
@@ -49,7 +50,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -76,6 +76,14 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
   @Reference(target="(type=sparse)")
   protected ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  protected IndexingMonitor indexingMonitor;
+
+  @Reference
+  protected BodyTextExtractor bodyTextExtractor;
+
+  private IndexingHandler handler = this;
+
   private static Map<String, String> getFieldMap() {
     Builder<String, String> builder = ImmutableMap.builder();
     builder.put(FilesConstants.POOLED_CONTENT_USER_MANAGER, "manager");
@@ -98,15 +106,18 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
   // ---------- SCR integration-------------------------------------------------
   @Activate
   public void activate(Map<String, Object> properties) {
+    if (indexingMonitor != null) {
+      handler = indexingMonitor.monitor("pooled-content", this);
+    }
     for (String type : CONTENT_TYPES) {
-      resourceIndexingService.addHandler(type, this);
+      resourceIndexingService.addHandler(type, handler);
     }
   }
 
   @Deactivate
   public void deactivate(Map<String, Object> properties) {
     for (String type : CONTENT_TYPES) {
-      resourceIndexingService.removeHandler(type, this);
+      resourceIndexingService.removeHandler(type, handler);
     }
   }
 
@@ -144,12 +155,11 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
             }
           }
 
-          InputStream contentStream = contentManager.getInputStream(path);
-          if (contentStream != null) {
-            doc.addField("content", contentStream);
+          String text = bodyTextExtractor.getText(contentManager, content);
+          if (text != null) {
+            doc.addField("content", text);
           }
 
-
           doc.addField(_DOC_SOURCE_OBJECT, content);
           documents.add(doc);
         }
@@ -17,7 +17,12 @@
  */
 package org.sakaiproject.nakamura.files.search;
 
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_UUIDS;
+
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -25,19 +30,24 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
+import org.apache.sling.jcr.jackrabbit.server.index.TermCounter;
+import org.sakaiproject.nakamura.api.files.TagCounts;
 import org.sakaiproject.nakamura.api.search.Aggregator;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.RowUtils;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Map;
 
+import javax.jcr.GuestCredentials;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -47,62 +57,81 @@ import javax.jcr.query.QueryResult;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
-@Component(immediate = true, label = "TagCloudResultProcessor", description = "Formatter for tag cloud")
+/**
+ * Lists the most used tags, counted from the rows of the search. A user who is logged in
+ * sees the tags of everything they can read. The anonymous user is served the counts of
+ * public items in {@link TagCounts}, which are kept up to date as items are tagged, until
+ * they reach their maximum age and are counted again from the rows of a search.
+ */
+@Component(immediate = true, metatype = true, label = "TagCloudResultProcessor", description = "Formatter for tag cloud")
 @Service(value = SearchBatchResultProcessor.class)
 @Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "sakai.search.batchprocessor", value = "TagCloud") })
 public class TagCloudSearchBatchResultProcessor implements SearchBatchResultProcessor {
 
+  @Property(intValue = 1000, label = "Maximum tags", description = "The number of tags to count, beyond this the least used tags are dropped.")
+  static final String MAX_TAGS = "tagcloud.max.tags";
+
+  @Property(intValue = 3600, label = "Maximum age", description = "The number of seconds the public tag counts are kept up to date for before they are counted again.")
+  static final String MAX_AGE = "tagcloud.max.age";
+
   @Reference
   private SearchServiceFactory searchServiceFactory;
 
   @Reference
   protected SlingRepository slingRepository;
 
+  private int maxTags = 1000;
+
+  private long maxAge = 3600000L;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    maxTags = OsgiUtil.toInteger(properties.get(MAX_TAGS), 1000);
+    maxAge = OsgiUtil.toInteger(properties.get(MAX_AGE), 3600) * 1000L;
+  }
+
   public void writeNodes(SlingHttpServletRequest request, JSONWriter write,
       Aggregator aggregator, RowIterator iterator) throws JSONException,
       RepositoryException {
-    List<Tag> tags = new ArrayList<Tag>();
     Session session = request.getResourceResolver().adaptTo(Session.class);
 
-    // count all the tags
-    while (iterator.hasNext()) {
-      Row row = iterator.nextRow();
-      Node node = RowUtils.getNode(row, session);
-      if (node
-          .hasProperty(org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_UUIDS)) {
-        // each node that has been tagged has one or more tag UUIDs riding with it
-        Value[] tagUuids = JcrUtils.getValues(node,
-            org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_UUIDS);
-        for (Value uuidValue : tagUuids) {
-          String uuid = uuidValue.getString();
-          if (!tags.contains(new Tag(uuid))) {
-            tags.add(new Tag(uuid, 0));
-          }
-          // increment the count for this particular tag UUID.
-          tags.get(tags.indexOf(new Tag(uuid))).frequency++;
-        }
+    TermCounter tags;
+    TermCounter publicTags = TagCounts.get(maxAge);
+    if (UserConstants.ANON_USERID.equals(session.getUserID())) {
+      // everything the anonymous user finds is public.
+      tags = publicTags;
+      if (tags == null) {
+        tags = countTags(session, iterator, null, null);
+        TagCounts.seed(tags);
+      }
+    } else if (publicTags != null) {
+      tags = countTags(session, iterator, null, null);
+    } else {
+      // count the public items among the rows as well, to seed the public counts.
+      publicTags = new TermCounter(maxTags);
+      Session anonSession = slingRepository.login(new GuestCredentials());
+      try {
+        tags = countTags(session, iterator, anonSession, publicTags);
+      } finally {
+        anonSession.logout();
       }
+      TagCounts.seed(publicTags);
     }
 
     // write the most-used tags to the JSONWriter
-    Collections.sort(tags, Collections.reverseOrder());
     write.object();
     write.key("tags");
     write.array();
-    for (Tag tag : tags) {
-      Node tagNode = session.getNodeByIdentifier(tag.id);
-      if (tagNode != null
-          && tagNode
-              .hasProperty(org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME)) {
-        tag.name = tagNode.getProperty(
-            org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME)
-            .getString();
+    for (CloudTerm tag : tags.getTop(maxTags, 1)) {
+      String name = getTagName(session, tag.getName());
+      if (name != null) {
         write.object();
         write.key("name");
-        write.value(tag.name);
+        write.value(name);
         write.key("count");
-        write.value(Long.valueOf(tag.frequency));
+        write.value(Long.valueOf(tag.getCount()));
         write.endObject();
       }
     }
@@ -110,6 +139,48 @@ public class TagCloudSearchBatchResultProcessor implements SearchBatchResultProc
     write.endObject();
   }
 
+  /**
+   * Count the tags of every row.
+   *
+   * @param anonSession
+   *          if not null, the tags of rows the anonymous user can read are also counted in
+   *          publicTags.
+   */
+  TermCounter countTags(Session session, RowIterator iterator, Session anonSession,
+      TermCounter publicTags) throws RepositoryException {
+    TermCounter tags = new TermCounter(maxTags);
+    while (iterator.hasNext()) {
+      Row row = iterator.nextRow();
+      Node node = RowUtils.getNode(row, session);
+      if (node.hasProperty(SAKAI_TAG_UUIDS)) {
+        boolean isPublic = anonSession != null && anonSession.nodeExists(node.getPath());
+        // each node that has been tagged has one or more tag UUIDs riding with it
+        for (Value uuidValue : JcrUtils.getValues(node, SAKAI_TAG_UUIDS)) {
+          tags.add(uuidValue.getString(), 1);
+          if (isPublic) {
+            publicTags.add(uuidValue.getString(), 1);
+          }
+        }
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * @return the name of the tag, or null if it has none or the user cannot read it.
+   */
+  private String getTagName(Session session, String uuid) throws RepositoryException {
+    try {
+      Node tagNode = session.getNodeByIdentifier(uuid);
+      if (tagNode.hasProperty(SAKAI_TAG_NAME)) {
+        return tagNode.getProperty(SAKAI_TAG_NAME).getString();
+      }
+    } catch (ItemNotFoundException e) {
+      // the tag has gone, or cannot be read.
+    }
+    return null;
+  }
+
   public SearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query)
       throws SearchException {
     try {
@@ -123,54 +194,4 @@ public class TagCloudSearchBatchResultProcessor implements SearchBatchResultProc
       throw new SearchException(500, "Unable to execute query.");
     }
   }
-
-}
-
-class Tag implements Comparable<Tag> {
-  public String id;
-  public String name;
-  public int frequency;
-
-  public Tag(String id) {
-    this.id = id;
-  }
-
-  public Tag(String id, int frequency) {
-    this.id = id;
-    this.frequency = frequency;
-  }
-
-  public int compareTo(Tag other) {
-    return Integer.valueOf(this.frequency).compareTo(Integer.valueOf(other.frequency));
-  }
-
-  @Override
-  public int hashCode() {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ((id == null) ? 0 : id.hashCode());
-    return result;
-  }
-
-  @Override
-  public boolean equals(Object obj) {
-    if (this == obj)
-      return true;
-    if (obj == null)
-      return false;
-    if (!(obj instanceof Tag))
-      return false;
-    Tag other = (Tag) obj;
-    if (id == null) {
-      if (other.id != null)
-        return false;
-    } else if (!id.equals(other.id))
-      return false;
-    return true;
-  }
-
-  @Override
-  public String toString() {
-    return name + " (" + id + "):" + frequency;
-  }
 }
@@ -20,7 +20,9 @@ package org.sakaiproject.nakamura.api.files;
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.isA;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -37,6 +39,7 @@ import org.apache.sling.commons.testing.jcr.MockNode;
 import org.apache.sling.commons.testing.jcr.MockProperty;
 import org.apache.sling.commons.testing.jcr.MockPropertyIterator;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.jackrabbit.server.index.TermCounter;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -51,14 +54,19 @@ import java.util.Calendar;
 import java.util.List;
 
 import javax.jcr.AccessDeniedException;
+import javax.jcr.GuestCredentials;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
+import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
 
 /**
  *
@@ -203,6 +211,49 @@ public class FilesUtilsTest {
     verify(adminSession).logout();
   }
 
+  @Test
+  public void testPublicTagCounts() throws Exception {
+    TermCounter counts = new TermCounter(10);
+    TagCounts.seed(counts);
+    Session anonSession = mock(Session.class);
+    when(anonSession.nodeExists("/public/file")).thenReturn(true);
+    Repository repository = mock(Repository.class);
+    when(repository.login(isA(GuestCredentials.class))).thenReturn(anonSession);
+    Session adminSession = mock(Session.class);
+    when(adminSession.getRepository()).thenReturn(repository);
+    when(adminSession.getValueFactory()).thenReturn(mock(ValueFactory.class));
+    Node tagNode = mock(Node.class);
+    when(tagNode.getIdentifier()).thenReturn("tag1");
+    when(tagNode.getName()).thenReturn("foo");
+
+    Node publicFile = createTaggableNode(adminSession, "/public/file");
+    Node privateFile = createTaggableNode(adminSession, "/private/file");
+    assertTrue(FileUtils.addTag(adminSession, publicFile, tagNode));
+    // the tags of items the anonymous user cannot read are not counted.
+    assertTrue(FileUtils.addTag(adminSession, privateFile, tagNode));
+    assertEquals(1, counts.getCount("tag1"));
+
+    Value tagValue = mock(Value.class);
+    when(tagValue.getString()).thenReturn("tag1");
+    Property tags = mock(Property.class);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    when(definition.isMultiple()).thenReturn(true);
+    when(tags.getDefinition()).thenReturn(definition);
+    when(tags.getValues()).thenReturn(new Value[] { tagValue });
+    when(publicFile.hasProperty(FilesConstants.SAKAI_TAG_UUIDS)).thenReturn(true);
+    when(publicFile.getProperty(FilesConstants.SAKAI_TAG_UUIDS)).thenReturn(tags);
+    FileUtils.deleteTag(adminSession, publicFile, tagNode);
+    assertEquals(0, counts.getCount("tag1"));
+  }
+
+  private Node createTaggableNode(Session adminSession, String path) throws Exception {
+    Node node = mock(Node.class);
+    when(node.getPath()).thenReturn(path);
+    when(node.getMixinNodeTypes()).thenReturn(new NodeType[0]);
+    when(adminSession.getItem(path)).thenReturn(node);
+    return node;
+  }
+
   @Test
   public void testResolveNode() throws RepositoryException {
     ResourceResolver resourceResolver = mock(ResourceResolver.class);
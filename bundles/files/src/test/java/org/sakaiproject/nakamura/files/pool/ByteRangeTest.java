@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.files.pool.GetAlternativeContentPoolStreamServlet.BodyWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.List;
+
+public class ByteRangeTest {
+
+  private static final byte[] BODY = "0123456789".getBytes();
+
+  @Test
+  public void testParse() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=2-4", 10);
+    assertEquals(1, ranges.size());
+    assertEquals("bytes 2-4/10", ranges.get(0).toContentRange(10));
+
+    assertEquals("bytes 7-9/10", ByteRange.parse("bytes=-3", 10).get(0).toContentRange(10));
+    assertEquals("bytes 5-9/10", ByteRange.parse("bytes=5-", 10).get(0).toContentRange(10));
+    assertEquals("bytes 5-9/10", ByteRange.parse("bytes=5-100", 10).get(0)
+        .toContentRange(10));
+  }
+
+  @Test
+  public void testMerge() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=6-7, 0-1, 1-3", 10);
+    assertEquals(2, ranges.size());
+    assertEquals("bytes 0-3/10", ranges.get(0).toContentRange(10));
+    assertEquals("bytes 6-7/10", ranges.get(1).toContentRange(10));
+  }
+
+  @Test
+  public void testIgnoredAndUnsatisfiable() {
+    assertNull(ByteRange.parse(null, 10));
+    assertNull(ByteRange.parse("bytes=1-2", 0));
+    assertNull(ByteRange.parse("items=1-2", 10));
+    assertNull(ByteRange.parse("bytes=4-2", 10));
+    assertNull(ByteRange.parse("bytes=a-b", 10));
+    assertTrue(ByteRange.parse("bytes=10-20", 10).isEmpty());
+  }
+
+  @Test
+  public void testWriteStream() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BodyWriter writer = new BodyWriter(new ByteArrayInputStream(BODY), out);
+    for (ByteRange range : ByteRange.parse("bytes=1-2,5-6", 10)) {
+      writer.write(range);
+    }
+    assertEquals("1256", out.toString());
+  }
+
+  @Test
+  public void testWriteFile() throws Exception {
+    File file = File.createTempFile("body", ".bin");
+    file.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(BODY);
+    fos.close();
+
+    FileInputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BodyWriter writer = new BodyWriter(in, out);
+      writer.write(ByteRange.parse("bytes=-2", 10).get(0));
+      writer.write(ByteRange.parse("bytes=0-0", 10).get(0));
+      assertEquals("890", out.toString());
+
+      out.reset();
+      new BodyWriter(in, out).writeAll();
+      assertEquals("0123456789", out.toString());
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
+
+public class ChunkedUploadContentPoolServletTest {
+
+  @Mock
+  private JackrabbitSession jcrSession;
+  @Mock
+  private SparseMapUserManager sparseMapUserManager;
+  @Mock
+  private ResourceResolver resourceResolver;
+  @Mock
+  private ClusterTrackingService clusterTrackingService;
+  @Mock
+  private EventAdmin eventAdmin;
+
+  private RepositoryImpl repository;
+  private Session session;
+  private ChunkedUploadContentPoolServlet servlet;
+
+  @Before
+  public void before() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    repository = new BaseMemoryRepository().getRepository();
+    Session adminSession = repository.loginAdministrative();
+    adminSession.getAuthorizableManager().createUser("ieb", "Ian Boston", "test",
+        ImmutableMap.of("x", (Object) "y"));
+    adminSession.logout();
+    session = repository.loginAdministrative("ieb");
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
+    when(jcrSession.getUserManager()).thenReturn(sparseMapUserManager);
+    when(sparseMapUserManager.getSession()).thenReturn(session);
+    final AtomicInteger ids = new AtomicInteger();
+    when(clusterTrackingService.getClusterUniqueId()).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) throws Throwable {
+        return "upload" + ids.incrementAndGet();
+      }
+    });
+
+    servlet = new ChunkedUploadContentPoolServlet();
+    servlet.clusterTrackingService = clusterTrackingService;
+    servlet.sparseRepository = repository;
+    servlet.eventAdmin = eventAdmin;
+  }
+
+  @Test
+  public void testUploadInChunks() throws Exception {
+    byte[] file = new byte[3000];
+    for (int i = 0; i < file.length; i++) {
+      file[i] = (byte) i;
+    }
+
+    String poolId = start(file.length);
+    ContentManager contentManager = session.getContentManager();
+    // not pooled content until it is committed
+    Assert.assertEquals(FilesConstants.POOLED_CONTENT_UPLOAD_RT, contentManager.get(poolId)
+        .getProperty("sling:resourceType"));
+
+    // the chunks arrive out of order
+    put(poolId, file, 2000, 1000);
+    put(poolId, file, 0, 1000);
+
+    // the commit is refused while a chunk is missing
+    SlingHttpServletRequest request = request(poolId);
+    SlingHttpServletResponse response = response(new StringWriter());
+    servlet.doPost(request, response);
+    Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_BAD_REQUEST),
+        Mockito.anyString());
+
+    // and the status shows what is there
+    StringWriter out = new StringWriter();
+    servlet.doGet(request(poolId), response(out));
+    JSONObject status = new JSONObject(out.toString());
+    Assert.assertEquals(2000, status.getLong("received"));
+    Assert.assertEquals(2, status.getJSONArray("chunks").length());
+
+    put(poolId, file, 1000, 1000);
+
+    request = request(poolId);
+    when(request.getParameter("digest")).thenReturn(sha1(file));
+    out = new StringWriter();
+    servlet.doPost(request, response(out));
+    Assert.assertEquals(poolId, new JSONObject(out.toString()).getString("lecture.mp4"));
+
+    Assert.assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(file),
+        contentManager.getInputStream(poolId)));
+    Content content = contentManager.get(poolId);
+    Assert.assertEquals(FilesConstants.POOLED_CONTENT_RT,
+        content.getProperty("sling:resourceType"));
+    Assert.assertEquals("true", content.getProperty(FilesConstants.POOLED_NEEDS_PROCESSING));
+    Assert.assertEquals("false",
+        content.getProperty(FilesConstants.POOLED_CONTENT_UPLOAD_PENDING));
+    Assert.assertFalse(contentManager.exists(poolId + "/"
+        + ChunkedUploadContentPoolServlet.CHUNKS));
+    Mockito.verify(eventAdmin).postEvent(Mockito.any(Event.class));
+  }
+
+  @Test
+  public void testOverlappingAndResentChunks() throws Exception {
+    byte[] file = new byte[3000];
+    for (int i = 0; i < file.length; i++) {
+      file[i] = (byte) (i * 7);
+    }
+    byte[] corrupt = new byte[file.length];
+    String poolId = start(file.length);
+
+    put(poolId, corrupt, 0, 1500);
+    put(poolId, file, 1000, 2000);
+    put(poolId, file, 1200, 300);
+
+    StringWriter out = new StringWriter();
+    servlet.doGet(request(poolId), response(out));
+    Assert.assertEquals(3000, new JSONObject(out.toString()).getLong("received"));
+
+    // a bad digest leaves the upload open, and the file is not published
+    SlingHttpServletRequest request = request(poolId);
+    when(request.getParameter("digest")).thenReturn(sha1(file));
+    SlingHttpServletResponse response = response(new StringWriter());
+    servlet.doPost(request, response);
+    Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_BAD_REQUEST),
+        Mockito.anyString());
+    ContentManager contentManager = session.getContentManager();
+    Assert.assertEquals(FilesConstants.POOLED_CONTENT_UPLOAD_RT, contentManager.get(poolId)
+        .getProperty("sling:resourceType"));
+    Mockito.verify(eventAdmin, Mockito.never()).postEvent(Mockito.any(Event.class));
+
+    // the chunk sent again is used in place of the bad one
+    Thread.sleep(5);
+    put(poolId, file, 0, 1500);
+    request = request(poolId);
+    when(request.getParameter("digest")).thenReturn(sha1(file));
+    out = new StringWriter();
+    servlet.doPost(request, response(out));
+    Assert.assertEquals(poolId, new JSONObject(out.toString()).getString("lecture.mp4"));
+    Assert.assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(file),
+        contentManager.getInputStream(poolId)));
+  }
+
+  @Test
+  public void testResentChunkReplacesALongerOne() throws Exception {
+    byte[] file = new byte[3000];
+    for (int i = 0; i < file.length; i++) {
+      file[i] = (byte) (i * 3);
+    }
+    String poolId = start(file.length);
+
+    put(poolId, new byte[file.length], 0, 3000);
+    // sent again at the same offset, shorter than the first copy
+    Thread.sleep(5);
+    put(poolId, file, 0, 2000);
+    put(poolId, file, 2000, 1000);
+
+    SlingHttpServletRequest request = request(poolId);
+    when(request.getParameter("digest")).thenReturn(sha1(file));
+    StringWriter out = new StringWriter();
+    servlet.doPost(request, response(out));
+    Assert.assertEquals(poolId, new JSONObject(out.toString()).getString("lecture.mp4"));
+    Assert.assertTrue(IOUtils.contentEquals(new ByteArrayInputStream(file),
+        session.getContentManager().getInputStream(poolId)));
+  }
+
+  @Test
+  public void testChunkMustFitTheUpload() throws Exception {
+    byte[] file = new byte[3000];
+    String poolId = start(2000);
+
+    // the Content-Range total does not match the upload
+    SlingHttpServletResponse response = send(poolId, file, 0, 1000, file.length);
+    Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_BAD_REQUEST),
+        Mockito.anyString());
+    // nor does the chunk fit in the total it gives
+    response = send(poolId, file, 1500, 1000, 2000);
+    Mockito.verify(response).sendError(Mockito.eq(HttpServletResponse.SC_BAD_REQUEST),
+        Mockito.anyString());
+
+    StringWriter out = new StringWriter();
+    servlet.doGet(request(poolId), response(out));
+    Assert.assertEquals(0, new JSONObject(out.toString()).getJSONArray("chunks").length());
+  }
+
+  private String start(int length) throws Exception {
+    SlingHttpServletRequest request = request(null);
+    when(request.getParameter("filename")).thenReturn("lecture.mp4");
+    when(request.getParameter("mimeType")).thenReturn("video/mp4");
+    when(request.getParameter("length")).thenReturn(String.valueOf(length));
+    StringWriter out = new StringWriter();
+    servlet.doPost(request, response(out));
+    return new JSONObject(out.toString()).getString("lecture.mp4");
+  }
+
+  private void put(String poolId, byte[] file, int offset, int length) throws Exception {
+    SlingHttpServletResponse response = send(poolId, file, offset, length, file.length);
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_CREATED);
+  }
+
+  private SlingHttpServletResponse send(String poolId, byte[] file, int offset,
+      int length, int total) throws Exception {
+    SlingHttpServletRequest request = request(poolId);
+    when(request.getHeader("Content-Range")).thenReturn(
+        "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+    final InputStream in = new ByteArrayInputStream(file, offset, length);
+    when(request.getInputStream()).thenReturn(new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return in.read();
+      }
+    });
+    SlingHttpServletResponse response = response(new StringWriter());
+    servlet.doPut(request, response);
+    return response;
+  }
+
+  private SlingHttpServletRequest request(String poolId) {
+    SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
+    RequestPathInfo requestPathInfo = Mockito.mock(RequestPathInfo.class);
+    when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+    when(requestPathInfo.getExtension()).thenReturn(poolId);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(request.getRemoteUser()).thenReturn("ieb");
+    return request;
+  }
+
+  private SlingHttpServletResponse response(StringWriter out) throws IOException {
+    SlingHttpServletResponse response = Mockito.mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(out, true));
+    return response;
+  }
+
+  private String sha1(byte[] file) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : MessageDigest.getInstance("SHA-1").digest(file)) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+}
@@ -44,6 +44,8 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -123,6 +125,8 @@ public class CreateContentPoolServletTest {
   private ResourceResolver resourceResolver;
   @Mock
   private SparseMapUserManager sparseMapUserManager;
+  @Mock
+  private EventAdmin eventAdmin;
   private RepositoryImpl repository;
 
   public CreateContentPoolServletTest() throws ClientPoolException, StorageClientException, AccessDeniedException, ClassNotFoundException {
@@ -245,6 +249,7 @@ public class CreateContentPoolServletTest {
     CreateContentPoolServlet cp = new CreateContentPoolServlet();
     cp.clusterTrackingService = clusterTrackingService;
     cp.sparseRepository = repository;
+    cp.eventAdmin = eventAdmin;
 
     cp.doPost(request, response);
 
@@ -254,6 +259,8 @@ public class CreateContentPoolServletTest {
     Assert.assertNotNull(jsonObject.getString("testfilename.pdf"));
     Assert.assertNotNull(jsonObject.getString("index.html"));
     Assert.assertEquals(2, jsonObject.length());
+    // one created event per file.
+    Mockito.verify(eventAdmin, Mockito.times(2)).postEvent(Mockito.any(Event.class));
 
   }
 }
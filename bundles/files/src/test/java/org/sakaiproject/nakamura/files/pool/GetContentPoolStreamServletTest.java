@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+public class GetContentPoolStreamServletTest {
+
+  private static final byte[] BODY = "0123456789".getBytes();
+
+  private GetContentPoolStreamServlet servlet;
+  private SlingHttpServletRequest request;
+  private RequestPathInfo requestPathInfo;
+  private SlingHttpServletResponse response;
+  private ByteArrayOutputStream out;
+
+  @Before
+  public void setUp() throws Exception {
+    Content content = new Content("poolId", ImmutableMap.of(Content.LENGTH_FIELD,
+        (Object) Long.valueOf(BODY.length), Content.MIMETYPE_FIELD, "text/plain"));
+    ContentManager contentManager = Mockito.mock(ContentManager.class);
+    when(contentManager.getInputStream("poolId")).thenReturn(
+        new ByteArrayInputStream(BODY));
+    Resource resource = Mockito.mock(Resource.class);
+    when(resource.adaptTo(Content.class)).thenReturn(content);
+    when(resource.adaptTo(ContentManager.class)).thenReturn(contentManager);
+
+    request = Mockito.mock(SlingHttpServletRequest.class);
+    requestPathInfo = Mockito.mock(RequestPathInfo.class);
+    when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
+    when(request.getResource()).thenReturn(resource);
+    when(request.getDateHeader(Mockito.anyString())).thenReturn(-1L);
+
+    out = new ByteArrayOutputStream();
+    response = Mockito.mock(SlingHttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+    });
+    servlet = new GetContentPoolStreamServlet();
+  }
+
+  @Test
+  public void testAcceptsOnlyThePlainBody() {
+    Assert.assertTrue(servlet.accepts(request));
+    when(requestPathInfo.getExtension()).thenReturn("json");
+    Assert.assertFalse(servlet.accepts(request));
+    when(requestPathInfo.getExtension()).thenReturn(null);
+    when(requestPathInfo.getSelectors()).thenReturn(new String[] { "preview" });
+    Assert.assertFalse(servlet.accepts(request));
+  }
+
+  @Test
+  public void testWholeBody() throws Exception {
+    servlet.doGet(request, response);
+    Mockito.verify(response).setHeader("Accept-Ranges", "bytes");
+    Mockito.verify(response).setContentLength(BODY.length);
+    Assert.assertEquals("0123456789", out.toString());
+  }
+
+  @Test
+  public void testRangeOfTheBody() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=2-4");
+    servlet.doGet(request, response);
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader("Content-Range", "bytes 2-4/10");
+    Mockito.verify(response).setContentLength(3);
+    Assert.assertEquals("234", out.toString());
+  }
+}
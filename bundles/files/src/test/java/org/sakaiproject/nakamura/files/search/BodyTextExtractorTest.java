@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BodyTextExtractorTest {
+
+  private File dir;
+  private BodyTextExtractor extractor;
+  private ContentManager contentManager;
+
+  @Before
+  public void before() throws Exception {
+    dir = File.createTempFile("bodytext", "");
+    dir.delete();
+    extractor = new BodyTextExtractor();
+    extractor.activate(dir, 1024L, 20, 1, 10);
+    contentManager = mock(ContentManager.class);
+  }
+
+  @After
+  public void after() {
+    extractor.deactivate(null);
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private Content body(String path, String text, long lastModified) throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(Content.LENGTH_FIELD, (long) text.length());
+    properties.put(Content.MIMETYPE_FIELD, "text/plain");
+    properties.put(BodyTextExtractor.BODY_LAST_MODIFIED, lastModified);
+    Content content = new Content(path, properties);
+    when(contentManager.getInputStream(path)).thenReturn(
+        new ByteArrayInputStream(text.getBytes("UTF-8")));
+    return content;
+  }
+
+  @Test
+  public void testCachedUntilBodyChanges() throws Exception {
+    Content content = body("p1", "hello world", 1L);
+    assertEquals("hello world", extractor.getText(contentManager, content).trim());
+    // only the properties changed, so the body is not read again.
+    content.setProperty("sakai:tags", new String[] { "a" });
+    assertEquals("hello world", extractor.getText(contentManager, content).trim());
+    verify(contentManager, times(1)).getInputStream("p1");
+
+    content = body("p1", "goodbye", 2L);
+    assertEquals("goodbye", extractor.getText(contentManager, content).trim());
+    assertEquals(2, extractor.getCachedCount());
+  }
+
+  @Test
+  public void testMaxLength() throws Exception {
+    Content content = body("p1", "0123456789012345678901234567890123456789", 1L);
+    assertEquals(20, extractor.getText(contentManager, content).length());
+  }
+
+  @Test
+  public void testNoBody() throws Exception {
+    assertNull(extractor.getText(contentManager, new Content("p1",
+        new HashMap<String, Object>())));
+  }
+
+  @Test
+  public void testCacheSize() throws Exception {
+    // each text is 20 characters, so the cache holds 51 of them.
+    for (int i = 0; i < 60; i++) {
+      extractor.getText(contentManager, body("p" + i,
+          "01234567890123456789", 1L));
+    }
+    assertEquals(51, extractor.getCachedCount());
+    // the cache is found again when the component restarts.
+    extractor.deactivate(null);
+    extractor.activate(dir, 1024L, 20, 1, 10);
+    assertEquals(51, extractor.getCachedCount());
+  }
+}
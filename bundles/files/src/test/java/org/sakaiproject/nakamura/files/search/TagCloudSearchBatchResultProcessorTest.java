@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.jackrabbit.server.index.TermCounter;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.files.TagCounts;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.search.RowIteratorImpl;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.GuestCredentials;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+public class TagCloudSearchBatchResultProcessorTest {
+
+  private TagCloudSearchBatchResultProcessor processor;
+  private SlingRepository slingRepository;
+  private Session userSession;
+  private Session anonSession;
+  private List<Row> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    userSession = mock(Session.class);
+    when(userSession.getUserID()).thenReturn("ieb");
+    anonSession = mock(Session.class);
+    when(anonSession.getUserID()).thenReturn(UserConstants.ANON_USERID);
+    slingRepository = mock(SlingRepository.class);
+    when(slingRepository.login(isA(GuestCredentials.class))).thenReturn(anonSession);
+
+    rows = new ArrayList<Row>();
+    rows.add(createRow("/a", "public", "private"));
+    rows.add(createRow("/b", "public"));
+    when(anonSession.nodeExists("/b")).thenReturn(true);
+
+    Node tag = createTag("foo");
+    when(userSession.getNodeByIdentifier("public")).thenReturn(tag);
+    when(anonSession.getNodeByIdentifier("public")).thenReturn(tag);
+    when(userSession.getNodeByIdentifier("private")).thenReturn(createTag("bar"));
+    when(anonSession.getNodeByIdentifier("private")).thenThrow(
+        new ItemNotFoundException());
+
+    processor = new TagCloudSearchBatchResultProcessor();
+    processor.slingRepository = slingRepository;
+    processor.activate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testUserCountsTheRowsAndSeedsThePublicCounts() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(TagCloudSearchBatchResultProcessor.MAX_AGE, -1);
+    processor.activate(properties);
+
+    // the user sees the tags of everything they can read.
+    JSONArray tags = write(userSession, new RowIteratorImpl(rows)).getJSONArray("tags");
+    assertEquals(2, tags.length());
+    assertEquals("foo", tags.getJSONObject(0).getString("name"));
+    assertEquals(2, tags.getJSONObject(0).getInt("count"));
+    assertEquals("bar", tags.getJSONObject(1).getString("name"));
+    assertEquals(1, tags.getJSONObject(1).getInt("count"));
+    verify(anonSession).logout();
+
+    // only /b is public.
+    TermCounter publicTags = TagCounts.get(Long.MAX_VALUE);
+    assertEquals(1, publicTags.getCount("public"));
+    assertEquals(0, publicTags.getCount("private"));
+  }
+
+  @Test
+  public void testAnonymousIsServedThePublicCounts() throws Exception {
+    TermCounter publicTags = new TermCounter(10);
+    publicTags.add("public", 5);
+    TagCounts.seed(publicTags);
+
+    RowIterator iterator = mock(RowIterator.class);
+    JSONArray tags = write(anonSession, iterator).getJSONArray("tags");
+    assertEquals(1, tags.length());
+    assertEquals("foo", tags.getJSONObject(0).getString("name"));
+    assertEquals(5, tags.getJSONObject(0).getInt("count"));
+    // nothing is read.
+    verify(iterator, never()).hasNext();
+  }
+
+  @Test
+  public void testAnonymousSeedsFromTheRows() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(TagCloudSearchBatchResultProcessor.MAX_AGE, -1);
+    processor.activate(properties);
+
+    List<Row> publicRows = new ArrayList<Row>();
+    publicRows.add(createRow("/b", "public"));
+    JSONArray tags = write(anonSession, new RowIteratorImpl(publicRows)).getJSONArray(
+        "tags");
+    assertEquals(1, tags.length());
+    assertEquals(1, TagCounts.get(Long.MAX_VALUE).getCount("public"));
+    verify(slingRepository, never()).login(isA(GuestCredentials.class));
+  }
+
+  private JSONObject write(Session session, RowIterator iterator) throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+    StringWriter w = new StringWriter();
+    processor.writeNodes(request, new JSONWriter(w), null, iterator);
+    return new JSONObject(w.toString());
+  }
+
+  private Node createTag(String name) throws Exception {
+    Node tag = mock(Node.class);
+    Property tagName = mock(Property.class);
+    when(tagName.getString()).thenReturn(name);
+    when(tag.hasProperty(FilesConstants.SAKAI_TAG_NAME)).thenReturn(true);
+    when(tag.getProperty(FilesConstants.SAKAI_TAG_NAME)).thenReturn(tagName);
+    return tag;
+  }
+
+  private Row createRow(String path, String... tagUuids) throws Exception {
+    Row row = mock(Row.class);
+    Value pathValue = mock(Value.class);
+    when(pathValue.getString()).thenReturn(path);
+    when(row.getValue("jcr:path")).thenReturn(pathValue);
+
+    Node node = mock(Node.class);
+    when(node.getPath()).thenReturn(path);
+    Property property = mock(Property.class);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    when(definition.isMultiple()).thenReturn(true);
+    when(property.getDefinition()).thenReturn(definition);
+    Value[] values = new Value[tagUuids.length];
+    for (int i = 0; i < tagUuids.length; i++) {
+      values[i] = mock(Value.class);
+      when(values[i].getString()).thenReturn(tagUuids[i]);
+    }
+    when(property.getValues()).thenReturn(values);
+    when(node.hasProperty(FilesConstants.SAKAI_TAG_UUIDS)).thenReturn(true);
+    when(node.getProperty(FilesConstants.SAKAI_TAG_UUIDS)).thenReturn(property);
+    when(userSession.getItem(path)).thenReturn(node);
+    when(anonSession.getItem(path)).thenReturn(node);
+    return row;
+  }
+}
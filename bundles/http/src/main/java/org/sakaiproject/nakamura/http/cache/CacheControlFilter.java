@@ -184,8 +184,12 @@ public class CacheControlFilter implements Filter {
     return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
   }
 
-
-  private Map<String, String> getHeaders(String path) {
+  /**
+   * @param path
+   *          the request path.
+   * @return the headers configured for the path, or null if none are.
+   */
+  Map<String, String> getHeaders(String path) {
 
     // get the Path and then the first 2 elements (2 so that we can tell if this is root
     // or not
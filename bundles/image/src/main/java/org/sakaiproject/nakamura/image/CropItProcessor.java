@@ -25,7 +25,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -41,15 +40,27 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -60,6 +71,21 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * The property on a derived image that records which source and crop it was made from.
+   */
+  static final String CROP_SOURCE = "sakai:crop-source";
+
+  /**
+   * Bytes per pixel of a decoded image.
+   */
+  private static final int PIXEL_BYTES = 4;
+
+  /**
+   * The largest image that will be read into memory for a format ImageIO can't stream.
+   */
+  private static final long MAX_BUFFERED = 100L * 1024L * 1024L;
+
   /**
    *
    * @param session
@@ -88,11 +114,30 @@ public class CropItProcessor {
    */
   public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
       List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+    return crop(resourceResolver, x, y, width, height, dimensions, img, save, null);
+  }
+
+  /**
+   * Crop and scale an image as {@link #crop(ResourceResolver, int, int, int, int, List, String, String)},
+   * holding the decoded image within a memory budget.
+   * <p>
+   * Only the crop region is decoded, subsampled to no more than twice the largest size
+   * asked for. Sizes are made largest first, each from the one before it. Derived images
+   * record the source body and crop they were made from, a repeat request for the same
+   * crop of the same body is answered from them without decoding anything.
+   *
+   * @param budget
+   *          The memory budget to decode within, or null for no limit.
+   * @see #crop(ResourceResolver, int, int, int, int, List, String, String)
+   */
+  public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img, String save, ImageMemoryBudget budget) throws ImageException, StorageClientException, AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
     ContentManager contentManager = session.getContentManager();
 
     InputStream in = null;
+    Decoded decoded = null;
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -100,6 +145,7 @@ public class CropItProcessor {
     try {
       String mimeType = "unknown";
       String imgName = "";
+      String sourceId = null;
       Resource imgResource = resourceResolver.getResource(img);
       if (imgResource instanceof SparseContentResource) {
       Content imgContent = imgResource.adaptTo(Content.class);
@@ -113,6 +159,9 @@ public class CropItProcessor {
         if (!imgContent.hasProperty("_bodyLocation")) {
           throw new ImageException(500, "Invalid image");
         }
+        // every write of a body goes to a new location, so this identifies the bytes.
+        sourceId = imgPath + ":" + imgContent.getProperty("_bodyLocation") + ":"
+            + imgContent.getProperty(Content.LENGTH_FIELD);
         in = contentManager.getInputStream(imgPath);
       } else {
         Node imgNode = imgResource.adaptTo(Node.class);
@@ -121,61 +170,75 @@ public class CropItProcessor {
         }
         imgName = imgNode.getName();
         Node imgDataNode = imgNode.getNode(JCRConstants.JCR_CONTENT);
+        if (imgDataNode.hasProperty(JCRConstants.JCR_LASTMODIFIED)) {
+          sourceId = imgNode.getPath() + ":"
+              + imgDataNode.getProperty(JCRConstants.JCR_LASTMODIFIED).getString();
+        }
         Binary content = imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary();
         in = content.getStream();
 
+      }
+      if (in == null) {
+        throw new ImageException(500, "Invalid image");
       }
 
-        if ( in.available() > 100L*1024L*1024L ) {
-          throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
+        String cropKey = getCropKey(sourceId, x, y, width, height);
+        if (cropKey != null
+            && findDerived(contentManager, cropKey, dimensions, save, imgName, arrFiles)) {
+          LOGGER.debug("Crop of {} is up to date in {} ", img, save);
+          return arrFiles;
         }
-        try {
-
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
 
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
+        try {
+          ImageInputStream iis = ImageIO.createImageInputStream(in);
+          if (iis == null) {
+            throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
           }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
+          try {
+            decoded = decodeRegion(iis, x, y, width, height, dimensions, budget);
+          } finally {
+            iis.close();
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
-
-            Dimension d = dimensions.get(i);
+          // Largest first, so that each size can be scaled down from the one before it
+          // rather than from the whole crop.
+          Integer[] order = new Integer[dimensions.size()];
+          for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+          }
+          final List<Dimension> targets = resolveDimensions(dimensions,
+              decoded.sourceWidth, decoded.sourceHeight);
+          Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+              long areaA = (long) targets.get(a).width * targets.get(a).height;
+              long areaB = (long) targets.get(b).width * targets.get(b).height;
+              return areaA > areaB ? -1 : (areaA == areaB ? 0 : 1);
+            }
+          });
 
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
+          BufferedImage previous = null;
+          for (int i : order) {
+            int iWidth = targets.get(i).width;
+            int iHeight = targets.get(i).height;
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+            BufferedImage source = decoded.image;
+            if (previous != null && previous.getWidth() >= iWidth
+                && previous.getHeight() >= iHeight) {
+              source = previous;
+            }
+            BufferedImage scaled = getScaledInstance(source, iWidth, iHeight);
 
             // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+            byte[] image = writeToByteArray(scaled, decoded);
 
             if ( image != null ) {
 
               String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
               // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+              saveImageToContentStore(sPath, decoded.mimeType, image, cropKey, session);
 
               arrFiles[i] = sPath;
+              previous = scaled;
             } else {
               LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
               arrFiles[i] = img;
@@ -186,10 +249,10 @@ public class CropItProcessor {
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
+        } catch (IIOException e) {
+          LOGGER.error("Can't decode this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
+          throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
         }
 
     } catch (IOException e) {
@@ -205,6 +268,9 @@ public class CropItProcessor {
       LOGGER.error("Unable to read image in order to crop it.", e);
       throw new ImageException(500, "Unable to read image in order to crop it.");
     } finally {
+      if (decoded != null && budget != null) {
+        budget.release(decoded.reserved);
+      }
       // close the streams
       if (in != null) {
         try {
@@ -217,6 +283,237 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  /**
+   * Decode the crop region of an image. Formats ImageIO can read are decoded straight from
+   * the stream, only the region is decoded and it is subsampled to no more than twice the
+   * largest target. Other formats are buffered and decoded whole by Sanselan.
+   *
+   * @return the decoded region, holding a reservation against the budget.
+   * @throws ImageException
+   * @throws IOException
+   * @throws ImageReadException
+   */
+  private static Decoded decodeRegion(ImageInputStream iis, int x, int y, int width,
+      int height, List<Dimension> dimensions, ImageMemoryBudget budget)
+      throws ImageException, IOException, ImageReadException {
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+    if (!readers.hasNext()) {
+      return decodeBuffered(iis, x, y, width, height, dimensions, budget);
+    }
+    ImageReader reader = readers.next();
+    try {
+      reader.setInput(iis, true, true);
+      int sourceWidth = reader.getWidth(0);
+      int sourceHeight = reader.getHeight(0);
+      Rectangle region = getRegion(x, y, width, height, sourceWidth, sourceHeight);
+      List<Dimension> targets = resolveDimensions(dimensions, sourceWidth, sourceHeight);
+      int largestWidth = 1;
+      int largestHeight = 1;
+      for (Dimension d : targets) {
+        largestWidth = Math.max(largestWidth, d.width);
+        largestHeight = Math.max(largestHeight, d.height);
+      }
+      int subsampling = Math.max(1, Math.min(region.width / (largestWidth * 2),
+          region.height / (largestHeight * 2)));
+      long bytes = (long) (region.width / subsampling) * (region.height / subsampling)
+          * PIXEL_BYTES + getTargetBytes(targets);
+      int reserved = budget == null ? 0 : budget.acquire(bytes);
+      try {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        if (subsampling > 1) {
+          param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        BufferedImage image = toScalableImage(reader.read(0, param));
+        String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+        String mimeType = (mimeTypes != null && mimeTypes.length > 0) ? mimeTypes[0]
+            : "image/png";
+        String formatName = reader.getFormatName();
+        if (!ImageIO.getImageWritersByFormatName(formatName).hasNext()) {
+          // eg gif on older JREs, which can read but not write it.
+          formatName = "png";
+          mimeType = "image/png";
+        }
+        return new Decoded(image, sourceWidth, sourceHeight, formatName, mimeType, null,
+            reserved);
+      } catch (IOException e) {
+        if (budget != null) {
+          budget.release(reserved);
+        }
+        throw e;
+      } catch (RuntimeException e) {
+        if (budget != null) {
+          budget.release(reserved);
+        }
+        throw e;
+      }
+    } finally {
+      reader.dispose();
+    }
+  }
+
+  /**
+   * Decode a format only Sanselan understands, this needs the whole encoded image in
+   * memory.
+   */
+  private static Decoded decodeBuffered(ImageInputStream iis, int x, int y, int width,
+      int height, List<Dimension> dimensions, ImageMemoryBudget budget)
+      throws ImageException, IOException, ImageReadException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = iis.read(buffer)) != -1) {
+      baos.write(buffer, 0, n);
+      if (baos.size() > MAX_BUFFERED) {
+        throw new ImageException(406, "Image too large to crop > 100MB");
+      }
+    }
+    byte[] bytes = baos.toByteArray();
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    Rectangle region = getRegion(x, y, width, height, info.getWidth(), info.getHeight());
+    long needed = bytes.length + (long) info.getWidth() * info.getHeight() * PIXEL_BYTES
+        + getTargetBytes(resolveDimensions(dimensions, info.getWidth(), info.getHeight()));
+    int reserved = budget == null ? 0 : budget.acquire(needed);
+    try {
+      BufferedImage imgBuf = getBufferedImage(bytes, info);
+      BufferedImage subImage = imgBuf.getSubimage(region.x, region.y, region.width,
+          region.height);
+      return new Decoded(toScalableImage(subImage), info.getWidth(), info.getHeight(),
+          null, info.getMimeType(), info, reserved);
+    } catch (ImageException e) {
+      if (budget != null) {
+        budget.release(reserved);
+      }
+      throw e;
+    } catch (IOException e) {
+      if (budget != null) {
+        budget.release(reserved);
+      }
+      throw e;
+    } catch (ImageReadException e) {
+      if (budget != null) {
+        budget.release(reserved);
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      if (budget != null) {
+        budget.release(reserved);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Clip the requested crop to the image, a width or height <= 0 means the whole image.
+   */
+  private static Rectangle getRegion(int x, int y, int width, int height,
+      int sourceWidth, int sourceHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? sourceWidth : width;
+    height = (height <= 0) ? sourceHeight : height;
+
+    if (x + width > sourceWidth) {
+      width = sourceWidth - x;
+    }
+    if (y + height > sourceHeight) {
+      height = sourceHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The crop region is outside of the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  /**
+   * Replace sizes <= 0 with the size of the source image.
+   */
+  private static List<Dimension> resolveDimensions(List<Dimension> dimensions,
+      int sourceWidth, int sourceHeight) {
+    List<Dimension> resolved = new ArrayList<Dimension>(dimensions.size());
+    for (Dimension d : dimensions) {
+      resolved.add(new Dimension((d.width <= 0) ? sourceWidth : d.width,
+          (d.height <= 0) ? sourceHeight : d.height));
+    }
+    return resolved;
+  }
+
+  private static long getTargetBytes(List<Dimension> targets) {
+    long bytes = 0;
+    for (Dimension d : targets) {
+      bytes += (long) d.width * d.height * PIXEL_BYTES;
+    }
+    return bytes;
+  }
+
+  /**
+   * {@link #getScaledInstance(BufferedImage, int, int)} creates images of the same type
+   * as its input, which is not possible for custom and indexed images.
+   */
+  private static BufferedImage toScalableImage(BufferedImage img) {
+    int type = img.getType();
+    if (type != BufferedImage.TYPE_CUSTOM && type != BufferedImage.TYPE_BYTE_INDEXED
+        && type != BufferedImage.TYPE_BYTE_BINARY) {
+      return img;
+    }
+    BufferedImage converted = new BufferedImage(img.getWidth(), img.getHeight(), img
+        .getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+        : BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = converted.createGraphics();
+    g2.drawImage(img, 0, 0, null);
+    g2.dispose();
+    return converted;
+  }
+
+  /**
+   * @return a key for a crop of a particular source body, or null if the source can't be
+   *         identified.
+   */
+  private static String getCropKey(String sourceId, int x, int y, int width, int height) {
+    if (sourceId == null) {
+      return null;
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest((sourceId + "|" + x + "," + y + "," + width + "," + height)
+          .getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Look for sizes already made from the same crop of the same source.
+   *
+   * @return true if every size exists and was made from this crop, in which case arrFiles
+   *         is filled in.
+   */
+  private static boolean findDerived(ContentManager contentManager, String cropKey,
+      List<Dimension> dimensions, String save, String imgName, String[] arrFiles)
+      throws StorageClientException, AccessDeniedException {
+    for (int i = 0; i < dimensions.size(); i++) {
+      Dimension d = dimensions.get(i);
+      if (d.width <= 0 || d.height <= 0) {
+        // the size depends on the source, so it has to be decoded.
+        return false;
+      }
+      String sPath = save + "/" + d.width + "x" + d.height + "_" + imgName;
+      Content derived = contentManager.get(sPath);
+      if (derived == null || !cropKey.equals(derived.getProperty(CROP_SOURCE))) {
+        return false;
+      }
+      arrFiles[i] = sPath;
+    }
+    return true;
+  }
+
   /**
    * @param bytes
    * @param info
@@ -248,6 +545,50 @@ public class CropItProcessor {
     return imgBuf;
   }
 
+  /**
+   * Decodes an image straight from a stream, without buffering the encoded image in
+   * memory. The image is subsampled while it is decoded, so that it is no more than about
+   * twice the size needed for the largest target, which is enough for
+   * {@link #getScaledInstance(BufferedImage, int, int)} to scale it down cleanly.
+   *
+   * @param in
+   *          The stream with the encoded image.
+   * @param minWidth
+   *          The smallest width the decoded image is allowed to have.
+   * @param minHeight
+   *          The smallest height the decoded image is allowed to have.
+   * @return The decoded image, or null if the format is not understood.
+   * @throws IOException
+   */
+  protected static BufferedImage readImage(InputStream in, int minWidth, int minHeight)
+      throws IOException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    if (iis == null) {
+      return null;
+    }
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(iis, true, true);
+        int subsampling = Math.min(reader.getWidth(0) / Math.max(1, minWidth * 2),
+            reader.getHeight(0) / Math.max(1, minHeight * 2));
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (subsampling > 1) {
+          param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      iis.close();
+    }
+  }
+
   /**
    * Will save a stream of an image to the JCR.
    *
@@ -257,25 +598,36 @@ public class CropItProcessor {
    *          The Mime type of the node that will be saved.
    * @param out
    *          The stream you wish to save.
+   * @param cropKey
+   *          The source and crop the image was made from, may be null.
    * @throws ImageException
    * @throws StorageClientException
    */
   protected static void saveImageToContentStore(String path, String mimetype,
-      byte[] image, Session session) throws ImageException, StorageClientException {
+      byte[] image, String cropKey, Session session) throws ImageException, StorageClientException {
     ContentManager contentManager = session.getContentManager();
 
     ByteArrayInputStream bais = null;
     try {
+      Content node;
       if (contentManager.exists(path)) {
-        Content node = contentManager.get(path);
+        node = contentManager.get(path);
         node.setProperty("mimeType", mimetype);
-        contentManager.update(node);
       } else {
-        contentManager.update(new Content(path, ImmutableMap.of("mimeType", (Object)mimetype)));
+        node = new Content(path, ImmutableMap.of("mimeType", (Object)mimetype));
       }
+      // only recorded once the body is written, so a failed write is not mistaken for a
+      // good copy.
+      node.setProperty(CROP_SOURCE, "");
+      contentManager.update(node);
       // convert stream to inputstream
       bais = new ByteArrayInputStream(image);
       contentManager.writeBody(path, bais);
+      if (cropKey != null) {
+        node = contentManager.get(path);
+        node.setProperty(CROP_SOURCE, cropKey);
+        contentManager.update(node);
+      }
 
     } catch (Exception e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
@@ -314,20 +666,28 @@ public class CropItProcessor {
   protected static byte[] scaleAndWriteToByteArray(int width, int height,
       BufferedImage img, String imgName, ImageInfo info) throws IOException,
       ImageWriteException {
-    try {
-      // Get a scaled image.
-      BufferedImage imgScaled = getScaledInstance(img, width, height);
+    // Get a scaled image.
+    BufferedImage imgScaled = getScaledInstance(img, width, height);
+    return writeToByteArray(imgScaled, info);
+  }
 
+  /**
+   * Encode an image in the format described by info.
+   *
+   * @return the encoded image, or null if it could not be encoded.
+   */
+  private static byte[] writeToByteArray(BufferedImage img, ImageInfo info) {
+    try {
       // Convert image to a stream
       ByteArrayOutputStream out = new ByteArrayOutputStream();
 
       // Write to stream.
       if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
+        ImageIO.write(img, "jpg", out);
       } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
+        ImageIO.write(img, "png", out);
       } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
+        Sanselan.writeImage(img, out, info.getFormat(), null);
       }
       out.close();
       return out.toByteArray();
@@ -337,6 +697,27 @@ public class CropItProcessor {
     return null;
   }
 
+  /**
+   * Encode an image in the format it was decoded from.
+   *
+   * @return the encoded image, or null if it could not be encoded.
+   */
+  private static byte[] writeToByteArray(BufferedImage img, Decoded decoded) {
+    if (decoded.info != null) {
+      return writeToByteArray(img, decoded.info);
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (!ImageIO.write(img, decoded.formatName, out)) {
+        return null;
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      LOGGER.error("Failed to process image "+e.getMessage(), e);
+    }
+    return null;
+  }
+
 
   /**
    * Image scaling routine as prescribed by
@@ -388,4 +769,37 @@ public class CropItProcessor {
 
     return ret;
   }
+
+  /**
+   * A decoded crop region and what is needed to encode it again.
+   */
+  private static class Decoded {
+    final BufferedImage image;
+    final int sourceWidth;
+    final int sourceHeight;
+    /**
+     * The ImageIO format name, null when decoded by Sanselan.
+     */
+    final String formatName;
+    final String mimeType;
+    /**
+     * The Sanselan info, null when decoded by ImageIO.
+     */
+    final ImageInfo info;
+    /**
+     * The memory reserved for this image.
+     */
+    final int reserved;
+
+    Decoded(BufferedImage image, int sourceWidth, int sourceHeight, String formatName,
+        String mimeType, ImageInfo info, int reserved) {
+      this.image = image;
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+      this.formatName = formatName;
+      this.mimeType = mimeType;
+      this.info = info;
+      this.reserved = reserved;
+    }
+  }
 }
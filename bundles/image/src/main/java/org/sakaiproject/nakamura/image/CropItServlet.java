@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
@@ -27,6 +28,8 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -46,6 +49,7 @@ import org.slf4j.LoggerFactory;
 import java.awt.Dimension;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.List;
 
 import javax.servlet.ServletException;
@@ -76,6 +80,21 @@ public class CropItServlet extends SlingAllMethodsServlet {
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  @Property(intValue = 256, label = "Memory budget", description = "The heap in MB that images being cropped may use at the same time.")
+  static final String MEMORY_BUDGET = "image.memory.budget";
+
+  @Property(longValue = 30000, label = "Memory wait", description = "How long in ms a crop waits for memory before it is refused.")
+  static final String MEMORY_WAIT = "image.memory.wait";
+
+  private ImageMemoryBudget budget;
+
+  @Activate
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    budget = new ImageMemoryBudget(OsgiUtil.toInteger(props.get(MEMORY_BUDGET), 256),
+        OsgiUtil.toLong(props.get(MEMORY_WAIT), 30000L));
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -148,7 +167,7 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
       String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
-          save);
+          save, budget);
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the heap used by images being decoded at the same time. Each image reserves the
+ * memory its decoded pixels will need before it is decoded, and waits if the budget is
+ * used up, so that a burst of large images queues rather than exhausting the heap.
+ */
+public class ImageMemoryBudget {
+
+  private static final long MB = 1024L * 1024L;
+
+  private final Semaphore permits;
+  private final int total;
+  private final long wait;
+
+  /**
+   * @param megabytes
+   *          the heap that may be used by decoded images at any one time.
+   * @param wait
+   *          how long in ms to wait for memory before giving up.
+   */
+  public ImageMemoryBudget(int megabytes, long wait) {
+    this.total = Math.max(1, megabytes);
+    this.wait = wait;
+    // fair, so that a large image is not starved by a stream of small ones.
+    this.permits = new Semaphore(total, true);
+  }
+
+  /**
+   * Reserve memory for an image.
+   *
+   * @param bytes
+   *          the number of bytes needed.
+   * @return the reservation, to be passed to {@link #release(int)}.
+   * @throws ImageException
+   *           if the memory did not become free in time.
+   */
+  public int acquire(long bytes) throws ImageException {
+    // an image bigger than the whole budget waits until it can run alone.
+    int needed = (int) Math.min(total, Math.max(1, (bytes + MB - 1) / MB));
+    try {
+      if (permits.tryAcquire(needed, wait, TimeUnit.MILLISECONDS)) {
+        return needed;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    throw new ImageException(503, "Too many images are being processed, try again later.");
+  }
+
+  /**
+   * @param reserved
+   *          the value returned by {@link #acquire(long)}.
+   */
+  public void release(int reserved) {
+    if (reserved > 0) {
+      permits.release(reserved);
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_NEEDS_PROCESSING;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Generates the preview of images uploaded to the content pool inside the server, rather
+ * than waiting for the external generate_preview.rb script to poll for them.
+ * <p>
+ * New pool items are queued by the created event, the queue is kept on disk so that work
+ * is not lost over a restart and a burst of uploads does not hold every id in memory. A
+ * small pool of workers drains the queue and writes the preview in the same form as the
+ * script, as the preview alternative stream with sakai:needsprocessing set to false.
+ * Anything that is not an image, and any image that can't be decoded here (CMYK jpegs for
+ * example), is left for the script. An item that fails for any other reason, such as the
+ * store being unavailable, is put back on the queue and tried again a few times.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = EventHandler.class)
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Generates previews of pooled images."),
+    @Property(name = EventConstants.EVENT_TOPIC, value = FilesConstants.TOPIC_FILES_POOLED_CONTENT_CREATED) })
+public class PreviewGenerator implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PreviewGenerator.class);
+
+  private static final String PREVIEW_STREAM = "preview";
+
+  @Property(intValue = 2)
+  static final String WORKERS = "preview.workers";
+
+  @Property(intValue = 100)
+  static final String QUEUE_SIZE = "preview.queue.size";
+
+  @Property(intValue = 640)
+  static final String PREVIEW_SIZE = "preview.size";
+
+  @Property(intValue = 5)
+  static final String MAX_RETRIES = "preview.retry.max";
+
+  @Property(intValue = 5000)
+  static final String RETRY_DELAY = "preview.retry.delay";
+
+  @Reference
+  protected Repository sparseRepository;
+
+  private PreviewQueue queue;
+  private int previewSize;
+  private int maxRetries;
+  private long retryDelay;
+  private List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running;
+
+  @Activate
+  protected void activate(ComponentContext componentContext) throws IOException {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    previewSize = OsgiUtil.toInteger(props.get(PREVIEW_SIZE), 640);
+    int workerCount = OsgiUtil.toInteger(props.get(WORKERS), 2);
+    int queueSize = OsgiUtil.toInteger(props.get(QUEUE_SIZE), 100);
+    maxRetries = OsgiUtil.toInteger(props.get(MAX_RETRIES), 5);
+    retryDelay = OsgiUtil.toInteger(props.get(RETRY_DELAY), 5000);
+
+    BundleContext bundleContext = componentContext.getBundleContext();
+    File spool = bundleContext.getDataFile("preview-queue");
+    if (spool == null) {
+      // no persistent storage for the bundle, fall back to sling home.
+      spool = new File(bundleContext.getProperty("sling.home"), "preview-queue");
+    }
+    queue = new PreviewQueue(spool, queueSize);
+
+    running = true;
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          work();
+        }
+      }, "preview-generator-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+    LOGGER.info("Generating previews with {} workers, {} items waiting ", workerCount,
+        queue.size());
+  }
+
+  @Deactivate
+  protected void deactivate(ComponentContext componentContext) {
+    running = false;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    workers.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String poolId = (String) event.getProperty("path");
+    String mimeType = (String) event.getProperty(Content.MIMETYPE_FIELD);
+    if (poolId == null || mimeType == null || !mimeType.startsWith("image/")) {
+      return;
+    }
+    try {
+      queue.add(poolId);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to queue {} for a preview: {} ", poolId, e.getMessage());
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn(e.getMessage());
+    }
+  }
+
+  private void work() {
+    while (running) {
+      try {
+        processNext(1000);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Deal with the next id on the queue, if one arrives within the timeout. The id is only
+   * taken off the queue once it has been dealt with, or has failed too many times.
+   *
+   * @param timeout
+   * @throws InterruptedException
+   */
+  void processNext(long timeout) throws InterruptedException {
+    String poolId = queue.take(timeout);
+    if (poolId == null) {
+      return;
+    }
+    try {
+      process(poolId);
+    } catch (Exception e) {
+      // keep the worker alive whatever happens to one item.
+      retry(poolId, e);
+      return;
+    }
+    queue.done(poolId);
+  }
+
+  private void retry(String poolId, Exception e) {
+    int attempts = queue.retries(poolId) + 1;
+    if (attempts > maxRetries) {
+      // still flagged as needing processing, so the script will have a go at it.
+      LOGGER.error("Giving up on the preview of " + poolId + " after " + attempts
+          + " attempts: " + e.getMessage(), e);
+      queue.done(poolId);
+      return;
+    }
+    LOGGER.warn("Preview of {} failed, it will be tried again: {} ", poolId, e.getMessage());
+    // most failures are the store being unavailable, give it time to come back. The item
+    // waits on the queue, so the worker moves on to other items meanwhile.
+    queue.retry(poolId, retryDelay * attempts);
+  }
+
+  /**
+   * Create the preview for one pool item.
+   *
+   * @param poolId
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   *           if the item could not be read or the preview could not be stored, this is
+   *           worth trying again.
+   */
+  protected void process(String poolId) throws StorageClientException,
+      AccessDeniedException, IOException {
+    Session session = sparseRepository.loginAdministrative();
+    try {
+      ContentManager contentManager = session.getContentManager();
+      Content content = contentManager.get(poolId);
+      if (content == null
+          || !"true".equals(content.getProperty(POOLED_NEEDS_PROCESSING))) {
+        // gone, or already dealt with by someone else.
+        return;
+      }
+      InputStream in = contentManager.getInputStream(poolId);
+      if (in == null) {
+        LOGGER.info("{} has no body, leaving it for the preview script ", poolId);
+        return;
+      }
+      byte[] preview;
+      try {
+        preview = createPreview(in, previewSize);
+      } catch (IIOException e) {
+        // the image is there but can't be decoded here.
+        preview = null;
+        LOGGER.info("Unable to decode {}: {} ", poolId, e.getMessage());
+      } finally {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.debug(e.getMessage());
+        }
+      }
+      if (preview == null) {
+        // not a failure, the script has more decoders than the JDK.
+        LOGGER.info("Leaving {} for the preview script ", poolId);
+        return;
+      }
+      contentManager.writeBody(poolId, new ByteArrayInputStream(preview), PREVIEW_STREAM);
+      content = contentManager.get(poolId);
+      content.setProperty(
+          StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, PREVIEW_STREAM),
+          "image/jpeg");
+      content.setProperty(POOLED_NEEDS_PROCESSING, "false");
+      contentManager.update(content);
+    } finally {
+      try {
+        session.logout();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Make a square jpeg preview, filling the square from the centre of the image as the
+   * script did with resize_to_fill.
+   *
+   * @param in
+   *          the encoded image.
+   * @param size
+   *          the width and height of the preview.
+   * @return the jpeg bytes, or null if the image could not be read.
+   * @throws IOException
+   */
+  protected static byte[] createPreview(InputStream in, int size) throws IOException {
+    BufferedImage img = CropItProcessor.readImage(in, size, size);
+    if (img == null) {
+      return null;
+    }
+    int side = Math.min(img.getWidth(), img.getHeight());
+    // jpeg has no alpha, so draw the centre square onto an opaque image.
+    BufferedImage square = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = square.createGraphics();
+    g.drawImage(img, -(img.getWidth() - side) / 2, -(img.getHeight() - side) / 2, null);
+    g.dispose();
+    BufferedImage scaled = CropItProcessor.getScaledInstance(square, size, size);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (!ImageIO.write(scaled, "jpg", out)) {
+      return null;
+    }
+    return out.toByteArray();
+  }
+}
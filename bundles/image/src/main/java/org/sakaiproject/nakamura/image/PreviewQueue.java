@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A queue of pool ids waiting for a preview, that survives restarts.
+ * <p>
+ * Every id is recorded as an empty file in a spool directory (one file per item, as the
+ * old generate_preview.rb script did) until it is marked as done. Only a bounded number
+ * of ids are held in memory; during an upload burst the rest wait on disk and are read
+ * back in when the in memory queue runs dry.
+ * <p>
+ * An id put back for another try waits until it is due before it can be taken again, so
+ * a worker never sleeps while holding a failed item.
+ */
+public class PreviewQueue {
+
+  /**
+   * Pool ids are url safe, anything else could escape the spool directory.
+   */
+  private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_\\-]+");
+
+  private final File spool;
+  private final BlockingQueue<String> pending;
+  /**
+   * The ids that are either in pending or being processed.
+   */
+  private final Set<String> inMemory = new HashSet<String>();
+  /**
+   * The number of times each id has been put back, guarded by inMemory.
+   */
+  private final Map<String, Integer> retries = new HashMap<String, Integer>();
+  /**
+   * The time each id put back may be taken again, guarded by inMemory. These ids are in
+   * inMemory but not in pending.
+   */
+  private final Map<String, Long> delayed = new HashMap<String, Long>();
+
+  /**
+   * @param spool
+   *          the directory to record queued ids in.
+   * @param capacity
+   *          the number of ids to hold in memory.
+   * @throws IOException
+   *           if the spool directory can't be created.
+   */
+  public PreviewQueue(File spool, int capacity) throws IOException {
+    if (!spool.isDirectory() && !spool.mkdirs()) {
+      throw new IOException("Unable to create preview spool directory " + spool);
+    }
+    this.spool = spool;
+    this.pending = new ArrayBlockingQueue<String>(capacity);
+  }
+
+  /**
+   * Add an id to the queue. The id is on disk when this returns, even if the in memory
+   * queue is full.
+   *
+   * @param poolId
+   * @throws IOException
+   */
+  public void add(String poolId) throws IOException {
+    if (poolId == null || !VALID_ID.matcher(poolId).matches()) {
+      throw new IllegalArgumentException("Invalid pool id " + poolId);
+    }
+    File marker = new File(spool, poolId);
+    if (!marker.exists() && !marker.createNewFile() && !marker.exists()) {
+      throw new IOException("Unable to record " + poolId + " in " + spool);
+    }
+    offer(poolId);
+  }
+
+  /**
+   * Take the next id, waiting for up to timeout ms.
+   *
+   * @param timeout
+   * @return the next id or null if there was none within the timeout.
+   * @throws InterruptedException
+   */
+  public String take(long timeout) throws InterruptedException {
+    long until = System.currentTimeMillis() + timeout;
+    releaseDue();
+    String poolId = pending.poll();
+    if (poolId == null) {
+      refill();
+      // wake up in time for the next retry that falls due.
+      long wait;
+      while (poolId == null && (wait = until - System.currentTimeMillis()) > 0) {
+        poolId = pending.poll(Math.min(wait, untilNextDue()), TimeUnit.MILLISECONDS);
+        if (poolId == null) {
+          releaseDue();
+          poolId = pending.poll();
+        }
+      }
+    }
+    return poolId;
+  }
+
+  /**
+   * Remove an id from the queue once it has been dealt with.
+   *
+   * @param poolId
+   */
+  public void done(String poolId) {
+    new File(spool, poolId).delete();
+    synchronized (inMemory) {
+      inMemory.remove(poolId);
+      retries.remove(poolId);
+      delayed.remove(poolId);
+    }
+  }
+
+  /**
+   * @param poolId
+   * @return the number of times the id has been put back on the queue.
+   */
+  public int retries(String poolId) {
+    synchronized (inMemory) {
+      Integer retried = retries.get(poolId);
+      return retried == null ? 0 : retried;
+    }
+  }
+
+  /**
+   * Put an id that could not be dealt with back on the queue, to be tried again once the
+   * delay has passed. It stays on disk throughout, so if the in memory queue is full when
+   * it falls due it is read back in later.
+   *
+   * @param poolId
+   * @param delay
+   *          the time in ms before the id may be taken again.
+   * @return the number of times the id has been put back, including this time.
+   */
+  public int retry(String poolId, long delay) {
+    synchronized (inMemory) {
+      Integer previous = retries.get(poolId);
+      int attempts = previous == null ? 1 : previous + 1;
+      retries.put(poolId, attempts);
+      // stays in inMemory, so a refill does not pick it up early.
+      inMemory.add(poolId);
+      delayed.put(poolId, System.currentTimeMillis() + delay);
+      return attempts;
+    }
+  }
+
+  /**
+   * @return the number of ids waiting or in progress, including those only on disk.
+   */
+  public int size() {
+    String[] queued = spool.list();
+    return queued == null ? 0 : queued.length;
+  }
+
+  private boolean offer(String poolId) {
+    synchronized (inMemory) {
+      if (inMemory.contains(poolId)) {
+        return true;
+      }
+      if (pending.offer(poolId)) {
+        inMemory.add(poolId);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Move the ids whose retry is due onto the in memory queue. If it is full they are left
+   * to be read back from disk.
+   */
+  private void releaseDue() {
+    long now = System.currentTimeMillis();
+    synchronized (inMemory) {
+      for (Iterator<Entry<String, Long>> i = delayed.entrySet().iterator(); i.hasNext();) {
+        Entry<String, Long> e = i.next();
+        if (e.getValue() <= now) {
+          i.remove();
+          if (!pending.offer(e.getKey())) {
+            inMemory.remove(e.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the time in ms until the next retry falls due, or a long time if none.
+   */
+  private long untilNextDue() {
+    long next = Long.MAX_VALUE;
+    synchronized (inMemory) {
+      for (Long due : delayed.values()) {
+        next = Math.min(next, due);
+      }
+    }
+    return next == Long.MAX_VALUE ? next : Math.max(1L, next - System.currentTimeMillis());
+  }
+
+  /**
+   * Read ids that only exist on disk back into memory, this picks up work left over
+   * from before a restart and work that did not fit in memory.
+   */
+  private synchronized void refill() {
+    String[] queued = spool.list();
+    if (queued != null) {
+      for (String poolId : queued) {
+        if (VALID_ID.matcher(poolId).matches() && !offer(poolId)) {
+          break;
+        }
+      }
+    }
+  }
+}
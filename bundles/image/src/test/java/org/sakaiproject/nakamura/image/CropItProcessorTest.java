@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.image;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
@@ -37,6 +38,7 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
@@ -133,6 +135,46 @@ public class CropItProcessorTest {
     }
   }
 
+  @Test
+  public void testCropRegionToSeveralSizes() throws Exception {
+    ContentManager contentManager = session.getContentManager();
+    contentManager.writeBody(img, getClass().getResourceAsStream("people.png"));
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    SparseContentResource someResource = mock(SparseContentResource.class);
+    when(someResource.adaptTo(Content.class)).thenReturn(contentManager.get(img));
+    JackrabbitSession jrSession = mock(JackrabbitSession.class);
+    SparseMapUserManager userManager = mock(SparseMapUserManager.class);
+    when(userManager.getSession()).thenReturn(session);
+    when(jrSession.getUserManager()).thenReturn(userManager);
+    when(resourceResolver.adaptTo(javax.jcr.Session.class)).thenReturn(jrSession);
+    when(resourceResolver.getResource(anyString())).thenReturn(someResource);
+
+    dimensions.add(0, new Dimension(20, 10));
+    dimensions.add(new Dimension(80, 80));
+    ImageMemoryBudget budget = new ImageMemoryBudget(16, 1000);
+    String saveTo = "/save/sizes";
+    String[] files = CropItProcessor.crop(resourceResolver, x, y, width, height,
+        dimensions, img, saveTo, budget);
+    assertEquals(3, files.length);
+    for (int i = 0; i < files.length; i++) {
+      BufferedImage scaled = ImageIO.read(contentManager.getInputStream(files[i]));
+      assertEquals(dimensions.get(i).width, scaled.getWidth());
+      assertEquals(dimensions.get(i).height, scaled.getHeight());
+    }
+    // the budget is handed back.
+    budget.acquire(16L * 1024L * 1024L);
+
+    // a second crop of the same image is answered from the stored sizes.
+    Content derived = contentManager.get(files[0]);
+    String cropSource = (String) derived.getProperty(CropItProcessor.CROP_SOURCE);
+    assertTrue(cropSource.length() > 0);
+    String[] again = CropItProcessor.crop(resourceResolver, x, y, width, height,
+        dimensions, img, saveTo);
+    assertEquals(files[0], again[0]);
+    assertEquals(cropSource,
+        contentManager.get(files[0]).getProperty(CropItProcessor.CROP_SOURCE));
+  }
+
   @Test
   public void testscaleAndWriteToStream() throws IOException, ImageWriteException,
       ImageReadException {
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ *
+ */
+public class PreviewGeneratorTest {
+
+  private File spool;
+  private ContentManager contentManager;
+  private PreviewGenerator generator;
+
+  @Before
+  public void before() throws Exception {
+    spool = new File("target/preview-generator-" + System.currentTimeMillis());
+    contentManager = mock(ContentManager.class);
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    // no worker threads, the test takes each item itself.
+    props.put(PreviewGenerator.WORKERS, 0);
+    props.put(PreviewGenerator.MAX_RETRIES, 2);
+    props.put(PreviewGenerator.RETRY_DELAY, 0);
+    BundleContext bundleContext = mock(BundleContext.class);
+    when(bundleContext.getDataFile("preview-queue")).thenReturn(spool);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(props);
+    when(componentContext.getBundleContext()).thenReturn(bundleContext);
+
+    generator = new PreviewGenerator();
+    generator.sparseRepository = repository;
+    generator.activate(componentContext);
+  }
+
+  @After
+  public void after() {
+    File[] files = spool.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    spool.delete();
+  }
+
+  @Test
+  public void testTransientFailureIsRetried() throws Exception {
+    when(contentManager.get("abc")).thenThrow(new StorageClientException("unavailable"))
+        .thenReturn(needsProcessing()).thenReturn(needsProcessing());
+    when(contentManager.getInputStream("abc")).thenReturn(png());
+    queue("abc");
+
+    generator.processNext(10);
+    // still queued after the failure
+    verify(contentManager, never()).update(any(Content.class));
+    assertEquals(1, queuedFiles());
+
+    generator.processNext(10);
+    verify(contentManager).writeBody(eq("abc"), any(InputStream.class), eq("preview"));
+    ArgumentCaptor<Content> updated = ArgumentCaptor.forClass(Content.class);
+    verify(contentManager).update(updated.capture());
+    assertEquals("false",
+        updated.getValue().getProperty(FilesConstants.POOLED_NEEDS_PROCESSING));
+    assertEquals(0, queuedFiles());
+  }
+
+  @Test
+  public void testGivesUpAfterRetries() throws Exception {
+    when(contentManager.get("abc")).thenThrow(new StorageClientException("unavailable"));
+    queue("abc");
+
+    for (int i = 0; i < 3; i++) {
+      generator.processNext(10);
+    }
+    assertEquals(0, queuedFiles());
+    verify(contentManager, never()).update(any(Content.class));
+  }
+
+  @Test
+  public void testUndecodableImageIsLeftForTheScript() throws Exception {
+    when(contentManager.get("abc")).thenReturn(needsProcessing());
+    when(contentManager.getInputStream("abc")).thenReturn(
+        new ByteArrayInputStream("not really an image".getBytes("UTF-8")));
+    queue("abc");
+
+    generator.processNext(10);
+    // not marked as failed, so the script still picks it up.
+    verify(contentManager, never()).update(any(Content.class));
+    assertEquals(0, queuedFiles());
+  }
+
+  private void queue(String poolId) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", poolId);
+    properties.put(Content.MIMETYPE_FIELD, "image/png");
+    generator.handleEvent(new Event(FilesConstants.TOPIC_FILES_POOLED_CONTENT_CREATED,
+        properties));
+  }
+
+  private int queuedFiles() {
+    return spool.list().length;
+  }
+
+  private Content needsProcessing() {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(FilesConstants.POOLED_NEEDS_PROCESSING, "true");
+    return new Content("abc", properties);
+  }
+
+  private InputStream png() throws Exception {
+    BufferedImage image = new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *
+ */
+public class PreviewQueueTest {
+
+  private File spool;
+
+  @Before
+  public void before() {
+    spool = new File("target/preview-queue-" + System.currentTimeMillis());
+  }
+
+  @After
+  public void after() {
+    File[] files = spool.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    spool.delete();
+  }
+
+  @Test
+  public void testAddTakeDone() throws Exception {
+    PreviewQueue queue = new PreviewQueue(spool, 10);
+    queue.add("abc");
+    assertEquals(1, queue.size());
+    assertEquals("abc", queue.take(10));
+    // still recorded until it is done.
+    assertEquals(1, queue.size());
+    queue.done("abc");
+    assertEquals(0, queue.size());
+    assertNull(queue.take(10));
+  }
+
+  @Test
+  public void testSurvivesRestart() throws Exception {
+    PreviewQueue queue = new PreviewQueue(spool, 10);
+    queue.add("abc");
+    queue.add("def");
+    assertEquals("abc", queue.take(10));
+
+    // nothing was marked done, so a new queue on the same spool sees both.
+    queue = new PreviewQueue(spool, 10);
+    Set<String> ids = new HashSet<String>();
+    ids.add(queue.take(10));
+    ids.add(queue.take(10));
+    assertTrue(ids.contains("abc"));
+    assertTrue(ids.contains("def"));
+  }
+
+  @Test
+  public void testOverflowWaitsOnDisk() throws Exception {
+    PreviewQueue queue = new PreviewQueue(spool, 1);
+    queue.add("a");
+    queue.add("b");
+    queue.add("c");
+    assertEquals(3, queue.size());
+    Set<String> ids = new HashSet<String>();
+    for (int i = 0; i < 3; i++) {
+      String id = queue.take(10);
+      ids.add(id);
+      queue.done(id);
+    }
+    assertEquals(3, ids.size());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testRetryWaitsUntilDue() throws Exception {
+    PreviewQueue queue = new PreviewQueue(spool, 10);
+    queue.add("a");
+    queue.add("b");
+    assertEquals("a", queue.take(10));
+    assertEquals(1, queue.retry("a", 300));
+
+    // the other item is not held up, and the retry is not due yet.
+    assertEquals("b", queue.take(10));
+    queue.done("b");
+    assertNull(queue.take(10));
+
+    assertEquals("a", queue.take(5000));
+    assertEquals(1, queue.retries("a"));
+    queue.done("a");
+    assertEquals(0, queue.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsPaths() throws Exception {
+    new PreviewQueue(spool, 1).add("../etc");
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.jetty.internal;
+
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.thread.ThreadPool;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread pool for request paths that spend most of their time blocked on storage,
+ * LDAP, Solr or proxied HTTP. Threads are created on demand up to a high ceiling with a
+ * small stack, and retire once idle, so a burst of blocked requests does not starve the
+ * connectors. The number of requests doing work at once is still limited by the QoS
+ * filter, not by the size of this pool.
+ * <p>
+ * Once every thread is busy, jobs wait in a bounded queue, and once that is full the
+ * connector blocks in {@link #dispatch(Runnable)} until there is room. A failed dispatch
+ * makes the connector close the connection, so it only fails when the pool is stopping.
+ */
+public final class ElasticThreadPool
+    extends AbstractLifeCycle
+    implements ThreadPool
+{
+    private final int minThreads;
+    private final int maxThreads;
+    private final long stackSize;
+    private final long maxIdleMs;
+    private final int maxQueued;
+    private final AtomicInteger active = new AtomicInteger();
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param minThreads threads kept even when idle.
+     * @param maxThreads the most threads the pool will create.
+     * @param stackSize the stack size of each thread in bytes, 0 for the JVM default.
+     * @param maxIdleMs how long a thread above minThreads may be idle before it retires.
+     * @param maxQueued the most jobs that may wait for a thread once all are busy.
+     */
+    public ElasticThreadPool(int minThreads, int maxThreads, long stackSize, long maxIdleMs,
+        int maxQueued)
+    {
+        this.minThreads = minThreads;
+        this.maxThreads = Math.max(minThreads, maxThreads);
+        this.stackSize = stackSize;
+        this.maxIdleMs = maxIdleMs;
+        this.maxQueued = Math.max(1, maxQueued);
+    }
+
+    protected void doStart()
+        throws Exception
+    {
+        final AtomicInteger count = new AtomicInteger();
+        final OverflowQueue queue = new OverflowQueue(this.maxQueued);
+        this.executor = new ThreadPoolExecutor(this.minThreads, this.maxThreads, this.maxIdleMs,
+            TimeUnit.MILLISECONDS, queue, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    return new Thread(null, r, "jetty-elastic-" + count.incrementAndGet(),
+                        stackSize);
+                }
+            }, new RejectedExecutionHandler()
+            {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+                {
+                    // every thread is busy, wait for room in the queue.
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("The pool is stopped");
+                    }
+                    try {
+                        queue.put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                }
+            });
+        queue.executor = this.executor;
+    }
+
+    protected void doStop()
+        throws Exception
+    {
+        this.executor.shutdown();
+        if (!this.executor.awaitTermination(this.maxIdleMs, TimeUnit.MILLISECONDS)) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    public boolean dispatch(final Runnable job)
+    {
+        try {
+            this.executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    active.incrementAndGet();
+                    try {
+                        job.run();
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // stopping, or interrupted while waiting for room.
+            return false;
+        }
+    }
+
+    public void join()
+        throws InterruptedException
+    {
+        this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public int getThreads()
+    {
+        return this.executor.getPoolSize();
+    }
+
+    public int getIdleThreads()
+    {
+        return Math.max(0, this.executor.getPoolSize() - this.active.get());
+    }
+
+    public boolean isLowOnThreads()
+    {
+        return this.active.get() >= this.maxThreads;
+    }
+
+    /**
+     * A queue that refuses jobs while the pool can still start a thread, so that the
+     * executor grows to maxThreads before anything waits.
+     */
+    private static final class OverflowQueue
+        extends LinkedBlockingQueue<Runnable>
+    {
+        private static final long serialVersionUID = 1L;
+        private transient volatile ThreadPoolExecutor executor;
+
+        OverflowQueue(int capacity)
+        {
+            super(capacity);
+        }
+
+        public boolean offer(Runnable r)
+        {
+            ThreadPoolExecutor executor = this.executor;
+            if (executor != null && executor.getPoolSize() < executor.getMaximumPoolSize()) {
+                return false;
+            }
+            return super.offer(r);
+        }
+    }
+}
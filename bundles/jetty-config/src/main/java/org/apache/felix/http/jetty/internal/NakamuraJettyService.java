@@ -24,6 +24,7 @@ import org.mortbay.jetty.Server;
 import org.mortbay.jetty.security.HashUserRealm;
 import org.mortbay.jetty.servlet.Context;
 import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
 import org.mortbay.xml.XmlConfiguration;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -40,6 +41,26 @@ public final class NakamuraJettyService
     /** PID for configuration of the HTTP service. */
     private static final String PID = "org.apache.felix.http";
 
+    /**
+     * How requests are executed, <code>queued</code> for the pool in jetty.xml or
+     * <code>elastic</code> for a large pool of small threads suited to requests that
+     * block on storage, LDAP, Solr or proxied HTTP. With <code>elastic</code> the
+     * concurrency limit is the one set on the QoS filter.
+     */
+    static final String EXECUTION_MODE = "org.sakaiproject.nakamura.jetty.execution";
+    static final String MODE_QUEUED = "queued";
+    static final String MODE_ELASTIC = "elastic";
+    /** Threads kept by the pool when idle. */
+    static final String MIN_THREADS = "org.sakaiproject.nakamura.jetty.minThreads";
+    /** The most threads the pool will create. */
+    static final String MAX_THREADS = "org.sakaiproject.nakamura.jetty.maxThreads";
+    /** Stack size of elastic threads in KB, 0 for the JVM default. */
+    static final String THREAD_STACK_SIZE = "org.sakaiproject.nakamura.jetty.threadStackSize";
+    /** Time in ms an elastic thread may be idle before it retires. */
+    static final String THREAD_MAX_IDLE = "org.sakaiproject.nakamura.jetty.threadMaxIdle";
+    /** Requests that may wait for an elastic thread once all are busy. */
+    static final String MAX_QUEUED = "org.sakaiproject.nakamura.jetty.maxQueued";
+
     private final BundleContext context;
     private boolean running;
     private Thread thread;
@@ -48,6 +69,8 @@ public final class NakamuraJettyService
     private DispatcherServlet dispatcher;
     private EventDispatcher eventDispatcher;
     private final HttpServiceController controller;
+    @SuppressWarnings("rawtypes")
+    private volatile Dictionary config;
 
     public NakamuraJettyService(BundleContext context, DispatcherServlet dispatcher, EventDispatcher eventDispatcher,
         HttpServiceController controller)
@@ -98,6 +121,7 @@ public final class NakamuraJettyService
     @SuppressWarnings("rawtypes")
     public void updated(Dictionary props)
     {
+        this.config = props;
         if (this.running && (this.thread != null)) {
             this.thread.interrupt();
         }
@@ -139,7 +163,8 @@ public final class NakamuraJettyService
         XmlConfiguration configuration = new XmlConfiguration(configStream); 
         configuration.configure(server);
         configStream.close();
-        
+        configureThreadPool();
+
 
         Context context = new Context(this.server, "/", Context.SESSIONS);
         context.addEventListener(eventDispatcher);
@@ -152,6 +177,53 @@ public final class NakamuraJettyService
     }
 
 
+    private void configureThreadPool()
+    {
+        String mode = getProperty(EXECUTION_MODE, MODE_QUEUED);
+        if (MODE_ELASTIC.equals(mode)) {
+            ElasticThreadPool threadPool = new ElasticThreadPool(getIntProperty(MIN_THREADS, 5),
+                getIntProperty(MAX_THREADS, 1000), getIntProperty(THREAD_STACK_SIZE, 256) * 1024L,
+                getIntProperty(THREAD_MAX_IDLE, 60000), getIntProperty(MAX_QUEUED, 1000));
+            this.server.setThreadPool(threadPool);
+            SystemLogger.info("Jetty requests execute on an elastic thread pool");
+        } else {
+            if (!MODE_QUEUED.equals(mode)) {
+                SystemLogger.warning("Unknown execution mode " + mode + ", using " + MODE_QUEUED, null);
+            }
+            if (this.server.getThreadPool() instanceof QueuedThreadPool) {
+                QueuedThreadPool threadPool = (QueuedThreadPool) this.server.getThreadPool();
+                threadPool.setMinThreads(getIntProperty(MIN_THREADS, threadPool.getMinThreads()));
+                threadPool.setMaxThreads(getIntProperty(MAX_THREADS, threadPool.getMaxThreads()));
+            }
+        }
+    }
+
+    /**
+     * @return the configured value of the property, falling back to the framework and
+     *         system properties.
+     */
+    private String getProperty(String name, String defaultValue)
+    {
+        Object value = null;
+        if (this.config != null) {
+            value = this.config.get(name);
+        }
+        if (value == null) {
+            value = this.context.getProperty(name);
+        }
+        return value == null ? defaultValue : String.valueOf(value).trim();
+    }
+
+    private int getIntProperty(String name, int defaultValue)
+    {
+        try {
+            return Integer.parseInt(getProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            SystemLogger.warning("Invalid value for " + name + ", using " + defaultValue, e);
+            return defaultValue;
+        }
+    }
+
     public void run()
     {
         this.running = true;
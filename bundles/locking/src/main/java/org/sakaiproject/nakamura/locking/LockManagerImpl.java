@@ -226,6 +226,9 @@ public class LockManagerImpl implements LockManager {
     Cache<LockImpl> requestLocks = getRequestLocks();
     // clearing the requestLocks will invoke unbind which will unlock.
     requestLocks.clear();
+    // the next unit of work on this thread is a different owner, pooled threads are
+    // reused across requests.
+    threadId.remove();
   }
 
  
@@ -22,6 +22,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -97,4 +98,12 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testClearLocksStartsNewOwner() {
+    long owner = lockManager.getThreadId();
+    assertEquals(owner, lockManager.getThreadId());
+    lockManager.clearLocks();
+    assertTrue(owner != lockManager.getThreadId());
+  }
+
 }
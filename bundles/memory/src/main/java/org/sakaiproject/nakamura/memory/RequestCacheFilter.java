@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Unbinds the request scoped caches when a request completes. The request scope is held
+ * on the thread, and server threads are pooled, so without this request caches, request
+ * locks and request scoped entity managers would survive into the next request served by
+ * the same thread. Runs ahead of the transaction filter so that anything it commits is
+ * still bound while it does.
+ */
+@Service(value = Filter.class)
+@Component(immediate = true, metatype = false)
+@Properties(value = {
+    @Property(name = "service.description", value = "Request Cache Filter"),
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "filter.scope", value = "request", propertyPrivate = true),
+    @Property(name = "filter.order", intValue = { 5 }, propertyPrivate = true) })
+public class RequestCacheFilter implements Filter {
+
+  private static final ThreadLocal<Boolean> IN_REQUEST = new ThreadLocal<Boolean>();
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
+   */
+  public void init(FilterConfig config) throws ServletException {
+
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.servlet.Filter#destroy()
+   */
+  public void destroy() {
+
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest,
+   *      javax.servlet.ServletResponse, javax.servlet.FilterChain)
+   */
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    if (IN_REQUEST.get() != null) {
+      // an internal request, the caches belong to the outer request.
+      chain.doFilter(request, response);
+      return;
+    }
+    IN_REQUEST.set(Boolean.TRUE);
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      IN_REQUEST.remove();
+      cacheManagerService.unbind(CacheScope.REQUEST);
+    }
+  }
+}
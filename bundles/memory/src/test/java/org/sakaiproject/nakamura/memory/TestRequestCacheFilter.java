@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+public class TestRequestCacheFilter {
+
+  @Test
+  public void testRequestCachesUnboundAfterOuterRequest() throws Exception {
+    final CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    final RequestCacheFilter filter = new RequestCacheFilter();
+    filter.cacheManagerService = cacheManagerService;
+
+    filter.doFilter(null, null, new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        cache(cacheManagerService).put("key", "value");
+        // an internal request leaves the outer request's caches alone.
+        filter.doFilter(request, response, new FilterChain() {
+          public void doFilter(ServletRequest request, ServletResponse response) {
+          }
+        });
+        assertEquals("value", cache(cacheManagerService).get("key"));
+      }
+    });
+    assertNull(cache(cacheManagerService).get("key"));
+  }
+
+  private Cache<String> cache(CacheManagerServiceImpl cacheManagerService) {
+    return cacheManagerService.getCache("test", CacheScope.REQUEST);
+  }
+}
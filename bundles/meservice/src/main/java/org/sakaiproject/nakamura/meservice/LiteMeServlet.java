@@ -57,9 +57,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -198,6 +200,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       // au.memberOf will fetch ALL the groups this user is a member of, including
       // indirect ones.
       String[] principals = au.getPrincipals();
+      List<String> groupIds = new ArrayList<String>(principals.length);
       for(String principal : principals) {
         Authorizable group = authorizableManager.findAuthorizable(principal);
         if (group == null || !(group instanceof Group) || group.getId().equals(Group.EVERYONE)) {
@@ -210,8 +213,16 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
           if (group == null || !(group instanceof Group)) {
             continue;
           }
+          groupIds.add(group.getId());
+        } else {
+          groupIds.add(group.getId());
         }
-        ValueMap groupProfile = profileService.getCompactProfileMap(group, jcrSession);
+      }
+      // fetch all the group profiles in one go rather than one lookup per group.
+      Map<String, ValueMap> groupProfiles = profileService.getCompactProfileMaps(groupIds,
+          session);
+      for (String groupId : groupIds) {
+        ValueMap groupProfile = groupProfiles.get(groupId);
         if (groupProfile != null) {
           writer.valueMap(groupProfile);
         }
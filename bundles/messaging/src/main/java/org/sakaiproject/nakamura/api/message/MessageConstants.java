@@ -83,6 +83,18 @@ public interface MessageConstants {
    * This property will hold the number of times message delivery has been retried
    */
   public static final String PROP_SAKAI_RETRY_COUNT = "sakai:retrycount";
+  /**
+   * The number of recipients a message is being delivered to.
+   */
+  public static final String PROP_SAKAI_DELIVERY_TOTAL = "sakai:deliveryTotal";
+  /**
+   * The number of recipients a message has been delivered to so far.
+   */
+  public static final String PROP_SAKAI_DELIVERED = "sakai:delivered";
+  /**
+   * The number of recipients a message could not be delivered to.
+   */
+  public static final String PROP_SAKAI_DELIVERY_FAILED = "sakai:deliveryFailed";
   /**
    * Property of the message store container for a message. Used primarily in discussions.
    */
@@ -18,9 +18,9 @@
 
 package org.sakaiproject.nakamura.message.internal;
 
-import com.google.common.collect.ImmutableMap;
-
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -29,6 +29,7 @@ import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -41,8 +42,6 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.locking.LockManager;
-import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.LiteMessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.LiteMessageTransport;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
@@ -60,7 +59,22 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 
@@ -73,12 +87,27 @@ import javax.jcr.RepositoryException;
     @Service(value = LiteMessageProfileWriter.class) })
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
-    @Property(name = "service.description", value = "Handler for internally delivered messages.") })
+    @Property(name = "service.description", value = "Handler for internally delivered messages."),
+    @Property(name = LiteInternalMessageHandler.DELIVERY_THREADS, intValue = LiteInternalMessageHandler.DEFAULT_DELIVERY_THREADS),
+    @Property(name = LiteInternalMessageHandler.DELIVERY_BATCH_SIZE, intValue = LiteInternalMessageHandler.DEFAULT_DELIVERY_BATCH_SIZE) })
 public class LiteInternalMessageHandler implements LiteMessageTransport,
     LiteMessageProfileWriter {
   private static final Logger LOG = LoggerFactory.getLogger(InternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
 
+  /**
+   * The number of threads that deliver messages with many recipients.
+   */
+  static final String DELIVERY_THREADS = "message.delivery.threads";
+  static final int DEFAULT_DELIVERY_THREADS = 4;
+
+  /**
+   * Recipients are delivered to in batches of this size, each batch on one thread.
+   * Messages with fewer recipients are delivered in the sending thread.
+   */
+  static final String DELIVERY_BATCH_SIZE = "message.delivery.batch.size";
+  static final int DEFAULT_DELIVERY_BATCH_SIZE = 100;
+
   @Reference
   protected transient Repository slingRepository;
 
@@ -91,8 +120,9 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   protected transient ProfileService profileService;
 
-  @Reference
-  protected transient LockManager lockManager;
+  private volatile ExecutorService deliveryPool;
+
+  private int batchSize = DEFAULT_DELIVERY_BATCH_SIZE;
 
   /**
    * Default constructor
@@ -100,6 +130,42 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   public LiteInternalMessageHandler() {
   }
 
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = OsgiUtil.toInteger(props.get(DELIVERY_THREADS), DEFAULT_DELIVERY_THREADS);
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(DELIVERY_BATCH_SIZE),
+        DEFAULT_DELIVERY_BATCH_SIZE));
+    deliveryPool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Sakai Message Delivery "
+                + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    ExecutorService pool = deliveryPool;
+    deliveryPool = null;
+    if (pool != null) {
+      pool.shutdown();
+      try {
+        if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+          LOG.warn("Messages are still being delivered after 30s, interrupting");
+          pool.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        pool.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -112,27 +178,44 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
 
       session = slingRepository.loginAdministrative();
 
-      // recipients keeps track of who have already received the message, to avoid
-      // duplicate messages
-      List<String> recipients = new ArrayList<String>();
+      // recipients are the users that get the message, once each however many of the
+      // groups they are in it is sent to.
+      Set<String> recipients = new LinkedHashSet<String>();
+      Set<String> seen = new HashSet<String>();
       AuthorizableManager authorizableManager = session.getAuthorizableManager();
       for (MessageRoute route : routes) {
         if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
           LOG.info("Started handling a message.");
-          String recipient = route.getRcpt();
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
+          expand(route.getRcpt(), authorizableManager, recipients, seen);
         }
       }
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
+      if (recipients.isEmpty()) {
+        return;
+      }
+
+      Delivery delivery = new Delivery(originalMessage, recipients.size());
+      ExecutorService pool = deliveryPool;
+      if (pool == null || recipients.size() <= batchSize) {
+        delivery.deliver(session, recipients);
+        return;
+      }
+      List<String> batch = new ArrayList<String>(batchSize);
+      for (String recipient : recipients) {
+        batch.add(recipient);
+        if (batch.size() == batchSize) {
+          submit(pool, delivery, batch);
+          batch = new ArrayList<String>(batchSize);
+        }
+      }
+      if (!batch.isEmpty()) {
+        submit(pool, delivery, batch);
+      }
     } catch (ClientPoolException e) {
       LOG.error(e.getMessage(), e);
     } catch (StorageClientException e) {
       LOG.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOG.error(e.getMessage(), e);
     } finally {
       if (session != null) {
         try {
@@ -144,62 +227,174 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
-      AuthorizableManager authManager) {
+  /**
+   * Add the users a message to recipient goes to, following groups in groups.
+   */
+  private void expand(String recipient, AuthorizableManager authManager,
+      Set<String> recipients, Set<String> seen) {
+    LinkedList<String> pending = new LinkedList<String>();
+    pending.add(recipient);
+    while (!pending.isEmpty()) {
+      String id = pending.removeFirst();
+      if (!seen.add(id)) {
+        continue;
+      }
+      try {
+        Authorizable au = authManager.findAuthorizable(id);
+        if (au instanceof Group) {
+          // user must be in the group directly to send a message:
+          for (String memberName : ((Group) au).getMembers()) {
+            pending.add(memberName);
+          }
+        } else {
+          recipients.add(id);
+        }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Deliver a batch of recipients on the pool, each task with its own session.
+   */
+  private void submit(ExecutorService pool, final Delivery delivery,
+      final List<String> batch) {
     try {
-      ContentManager contentManager = session.getContentManager();
-      Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
-            recipients.add(memberName);
+      pool.execute(new Runnable() {
+        public void run() {
+          Session session = null;
+          try {
+            session = slingRepository.loginAdministrative();
+            delivery.deliver(session, batch);
+          } catch (ClientPoolException e) {
+            LOG.error(e.getMessage(), e);
+            delivery.failed(batch.size());
+          } catch (StorageClientException e) {
+            LOG.error(e.getMessage(), e);
+            delivery.failed(batch.size());
+          } catch (AccessDeniedException e) {
+            LOG.error(e.getMessage(), e);
+            delivery.failed(batch.size());
+          } finally {
+            if (session != null) {
+              try {
+                session.logout();
+              } catch (ClientPoolException e) {
+                LOG.warn("Failed to logout session.", e);
+              }
+            }
           }
         }
-      } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Message delivery pool is shut down, {} recipients of {} not delivered",
+          batch.size(), delivery.messageId);
+      delivery.failed(batch.size());
+    }
+  }
+
+  /**
+   * One message on its way to its recipients. The properties of each recipient's copy
+   * are worked out once, and the original message records how far delivery has got.
+   */
+  private class Delivery {
+    private final String messageId;
+    private final String sourcePath;
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+    private final boolean copyBody;
+    private final int total;
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
 
+    Delivery(Content originalMessage, int total) {
+      this.messageId = (String) originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID);
+      this.sourcePath = originalMessage.getPath();
+      this.total = total;
+      // a message with a body stream has to be copied, otherwise it is just properties.
+      this.copyBody = originalMessage.hasProperty(Content.LENGTH_FIELD);
+      for (Entry<String, Object> e : originalMessage.getProperties().entrySet()) {
+        // leave out the properties the content store keeps for itself.
+        if (!e.getKey().startsWith("_")) {
+          properties.put(e.getKey(), e.getValue());
+        }
+      }
+      properties.remove(MessageConstants.PROP_SAKAI_DELIVERY_TOTAL);
+      properties.remove(MessageConstants.PROP_SAKAI_DELIVERED);
+      properties.remove(MessageConstants.PROP_SAKAI_DELIVERY_FAILED);
+      properties.put(MessageConstants.PROP_SAKAI_READ, false);
+      properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+      properties.put(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+    }
+
+    void deliver(Session session, Collection<String> recipients)
+        throws StorageClientException, AccessDeniedException {
+      ContentManager contentManager = session.getContentManager();
+      for (String recipient : recipients) {
+        try {
+          // every recipient has their own path, so there is nothing to lock.
           String toPath = messagingService.getFullPathToMessage(recipient, messageId,
               session);
-
-          try {
-            lockManager.waitForLock(toPath);
-          } catch (LockTimeoutException e1) {
-            throw new MessagingException("Unable to lock destination message store");
+          String box = toPath.substring(0, toPath.lastIndexOf("/"));
+          if (!contentManager.exists(box)) {
+            contentManager.update(new Content(box, new HashMap<String, Object>()));
+          }
+          Content message;
+          if (copyBody) {
+            contentManager.copy(sourcePath, toPath, true);
+            message = contentManager.get(toPath);
+          } else {
+            message = new Content(toPath, null);
+          }
+          for (Entry<String, Object> e : properties.entrySet()) {
+            message.setProperty(e.getKey(), e.getValue());
           }
-          
-          ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-          // Copy the content into the user his folder.
-          contentManager.update(
-              new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                  .build()));
-          contentManager.copy(originalMessage.getPath(), toPath, true);
-          Content message = contentManager.get(toPath);
-
-          // Add some extra properties on the just created node.
-          message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-          message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-          message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
           contentManager.update(message);
-
-          recipients.add(recipient);
+          delivered.incrementAndGet();
+        } catch (MessagingException e) {
+          LOG.error(e.getMessage(), e);
+          failed.incrementAndGet();
+        } catch (IOException e) {
+          LOG.error(e.getMessage(), e);
+          failed.incrementAndGet();
+        } catch (StorageClientException e) {
+          LOG.error(e.getMessage(), e);
+          failed.incrementAndGet();
+        } catch (AccessDeniedException e) {
+          LOG.error(e.getMessage(), e);
+          failed.incrementAndGet();
         }
       }
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
-    } catch (StorageClientException e) {
-      LOG.error(e.getMessage(), e);
-    } catch (IOException e) {
-      LOG.error(e.getMessage(), e);
-    } finally {
-      lockManager.clearLocks();
+      report(contentManager);
+    }
+
+    void failed(int count) {
+      failed.addAndGet(count);
+    }
+
+    /**
+     * Record the progress on the original message.
+     */
+    private synchronized void report(ContentManager contentManager)
+        throws StorageClientException, AccessDeniedException {
+      int done = delivered.get();
+      int notDone = failed.get();
+      Content source = contentManager.get(sourcePath);
+      if (source != null) {
+        source.setProperty(MessageConstants.PROP_SAKAI_DELIVERY_TOTAL, total);
+        source.setProperty(MessageConstants.PROP_SAKAI_DELIVERED, done);
+        source.setProperty(MessageConstants.PROP_SAKAI_DELIVERY_FAILED, notDone);
+        contentManager.update(source);
+      }
+      if (done + notDone >= total) {
+        LOG.info("Message {} delivered to {} of {} recipients", new Object[] {
+            messageId, done, total });
+      } else {
+        LOG.debug("Message {} delivered to {} of {} recipients so far", new Object[] {
+            messageId, done, total });
+      }
     }
   }
 
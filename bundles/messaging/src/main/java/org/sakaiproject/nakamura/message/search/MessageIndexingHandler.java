@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.search.solr.IndexingMonitor;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
@@ -73,14 +74,22 @@ public class MessageIndexingHandler implements IndexingHandler {
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  private IndexingMonitor indexingMonitor;
+
+  private IndexingHandler handler = this;
+
   @Activate
   protected void activate(Map<?, ?> props) {
-    resourceIndexingService.addHandler(MessageConstants.SAKAI_MESSAGE_RT, this);
+    if (indexingMonitor != null) {
+      handler = indexingMonitor.monitor("message", this);
+    }
+    resourceIndexingService.addHandler(MessageConstants.SAKAI_MESSAGE_RT, handler);
   }
 
   @Deactivate
   protected void deactivate(Map<?, ?> props) {
-    resourceIndexingService.removeHandler(MessageConstants.SAKAI_MESSAGE_RT, this);
+    resourceIndexingService.removeHandler(MessageConstants.SAKAI_MESSAGE_RT, handler);
   }
 
   /**
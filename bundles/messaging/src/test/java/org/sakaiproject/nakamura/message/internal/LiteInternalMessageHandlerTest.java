@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.message.LiteMessagingServiceImpl;
+import org.sakaiproject.nakamura.message.listener.LiteMessageRoutesImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class LiteInternalMessageHandlerTest {
+
+  private static final int MEMBERS = 250;
+
+  private Repository repository;
+  private LiteMessagingService messagingService;
+  private LiteInternalMessageHandler handler;
+  private Session session;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    for (int i = 0; i < MEMBERS; i++) {
+      authorizableManager.createUser("user" + i, "user" + i, "test", null);
+    }
+    authorizableManager.createGroup("g-course", "g-course", null);
+    authorizableManager.createGroup("g-tutors", "g-tutors", null);
+    Group course = (Group) authorizableManager.findAuthorizable("g-course");
+    for (int i = 0; i < MEMBERS; i++) {
+      course.addMember("user" + i);
+    }
+    course.addMember("g-tutors");
+    authorizableManager.updateAuthorizable(course);
+    // groups in each other, and users in both, get the message once.
+    Group tutors = (Group) authorizableManager.findAuthorizable("g-tutors");
+    tutors.addMember("user0");
+    tutors.addMember("g-course");
+    authorizableManager.updateAuthorizable(tutors);
+
+    messagingService = new LiteMessagingServiceImpl();
+    handler = new LiteInternalMessageHandler();
+    handler.slingRepository = repository;
+    handler.messagingService = messagingService;
+  }
+
+  @Test
+  public void testGroupDelivery() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LiteInternalMessageHandler.DELIVERY_THREADS, 2);
+    props.put(LiteInternalMessageHandler.DELIVERY_BATCH_SIZE, 100);
+    handler.activate(props);
+
+    ContentManager contentManager = session.getContentManager();
+    String outbox = messagingService.getFullPathToStore("user0", session)
+        + MessageConstants.BOX_OUTBOX + "/msg1";
+    Content message = new Content(outbox, null);
+    message.setProperty(MessageConstants.PROP_SAKAI_ID, "msg1");
+    message.setProperty(MessageConstants.PROP_SAKAI_TO, "internal:g-course,internal:user1");
+    message.setProperty(MessageConstants.PROP_SAKAI_BODY, "Hello");
+    message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX);
+    contentManager.update(message);
+    message = contentManager.get(outbox);
+
+    handler.send(new LiteMessageRoutesImpl(message), null, message);
+    // waits for the batches to be delivered.
+    handler.deactivate(props);
+
+    for (int i = 0; i < MEMBERS; i++) {
+      Content delivered = contentManager.get(messagingService.getFullPathToMessage(
+          "user" + i, "msg1", session));
+      assertNotNull("user" + i, delivered);
+      assertEquals("Hello", delivered.getProperty(MessageConstants.PROP_SAKAI_BODY));
+      assertEquals(MessageConstants.BOX_INBOX, delivered
+          .getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX));
+      assertNull(delivered.getProperty(MessageConstants.PROP_SAKAI_DELIVERED));
+    }
+    assertNull(contentManager.get(messagingService.getFullPathToMessage("g-course",
+        "msg1", session)));
+
+    message = contentManager.get(outbox);
+    assertEquals(MEMBERS, ((Number) message
+        .getProperty(MessageConstants.PROP_SAKAI_DELIVERY_TOTAL)).intValue());
+    assertEquals(MEMBERS, ((Number) message
+        .getProperty(MessageConstants.PROP_SAKAI_DELIVERED)).intValue());
+    assertEquals(0, ((Number) message
+        .getProperty(MessageConstants.PROP_SAKAI_DELIVERY_FAILED)).intValue());
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityTransaction;
+import javax.transaction.NotSupportedException;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+/**
+ * The transaction of the request being processed by the current thread. The
+ * {@link TransactionManagerFilter} opens one for each request, but the transaction is
+ * only begun when something calls {@link #demand()}, which the entity manager and the
+ * data source do before they are used. Requests that never touch the database never
+ * begin a transaction.
+ * <p>
+ * The persistence unit is resource local, so the JTA transaction does not cover the
+ * entity manager. The entity manager's own transaction is begun with the request
+ * transaction through {@link #enlist(EntityTransaction)}, and committed or rolled back
+ * with it when the request ends.
+ */
+public final class RequestTransaction {
+
+  private static final ThreadLocal<RequestTransaction> CURRENT = new ThreadLocal<RequestTransaction>();
+
+  private final TransactionManager transactionManager;
+  private final List<EntityTransaction> enlisted = new ArrayList<EntityTransaction>();
+  private boolean begun;
+
+  private RequestTransaction(TransactionManager transactionManager) {
+    this.transactionManager = transactionManager;
+  }
+
+  /**
+   * Open the transaction of a request on the current thread, without beginning it.
+   *
+   * @param transactionManager
+   * @return the transaction, to be closed with {@link #close()} when the request ends.
+   */
+  static RequestTransaction open(TransactionManager transactionManager) {
+    RequestTransaction requestTransaction = new RequestTransaction(transactionManager);
+    CURRENT.set(requestTransaction);
+    return requestTransaction;
+  }
+
+  /**
+   * @return true if a request transaction is open on the current thread.
+   */
+  static boolean isOpen() {
+    return CURRENT.get() != null;
+  }
+
+  /**
+   * Begin the transaction of the current request if it has not been begun already. Does
+   * nothing outside of a request.
+   *
+   * @throws SystemException
+   *           if the transaction could not be begun.
+   */
+  public static void demand() throws SystemException {
+    RequestTransaction requestTransaction = CURRENT.get();
+    if (requestTransaction != null) {
+      requestTransaction.begin();
+    }
+  }
+
+  /**
+   * Begin the transaction of the current request, and a resource local transaction with
+   * it, so that both end together when the request does. Does nothing outside of a
+   * request.
+   *
+   * @param transaction
+   *          the transaction of an entity manager used by the request.
+   * @throws SystemException
+   *           if the request transaction could not be begun.
+   */
+  public static void enlist(EntityTransaction transaction) throws SystemException {
+    RequestTransaction requestTransaction = CURRENT.get();
+    if (requestTransaction != null) {
+      requestTransaction.begin();
+      if (!requestTransaction.enlisted.contains(transaction)) {
+        if (!transaction.isActive()) {
+          transaction.begin();
+        }
+        requestTransaction.enlisted.add(transaction);
+      }
+    }
+  }
+
+  private void begin() throws SystemException {
+    if (!begun) {
+      try {
+        transactionManager.begin();
+        begun = true;
+      } catch (NotSupportedException e) {
+        // a transaction is already running on this thread, so we are part of it.
+        SystemException se = new SystemException(e.getMessage());
+        se.initCause(e);
+        throw se;
+      }
+    }
+  }
+
+  /**
+   * @return true if a transaction was begun and has to be committed or rolled back.
+   */
+  boolean isBegun() {
+    return begun;
+  }
+
+  /**
+   * Commit the enlisted resource local transactions that are still active.
+   */
+  void commitEnlisted() {
+    for (EntityTransaction transaction : enlisted) {
+      if (transaction.isActive()) {
+        if (transaction.getRollbackOnly()) {
+          transaction.rollback();
+        } else {
+          transaction.commit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Roll back the enlisted resource local transactions that are still active.
+   */
+  void rollbackEnlisted() {
+    for (EntityTransaction transaction : enlisted) {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Detach the transaction from the thread.
+   */
+  void close() {
+    CURRENT.remove();
+  }
+}
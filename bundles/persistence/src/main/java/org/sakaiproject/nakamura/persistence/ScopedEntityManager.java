@@ -52,8 +52,10 @@ import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.FlushModeType;
 import javax.persistence.LockModeType;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 import javax.persistence.spi.PersistenceUnitTransactionType;
+import javax.transaction.SystemException;
 
 /**
  *
@@ -147,9 +149,18 @@ public class ScopedEntityManager implements EntityManager {
   }
 
   /**
-   * @return
+   * @return the entity manager, with its transaction enlisted in the request transaction.
    */
   private EntityManager getEntityManager() {
+    return getEntityManager(true);
+  }
+
+  /**
+   * @param enlist
+   *          false if the caller manages the entity manager's transaction itself.
+   * @return
+   */
+  private EntityManager getEntityManager(boolean enlist) {
     Cache<EntityManagerHolder> cache = cacheManagerService.getCache(JPA_CACHE, scope);
     EntityManagerHolder entityManagerHolder = cache.get(ENTITY_MANAGER);
     if (entityManagerHolder == null) {
@@ -171,7 +182,17 @@ public class ScopedEntityManager implements EntityManager {
       }
       LOGGER.info(sb.toString());
     }
-    return entityManagerHolder.getEntityManager();
+    EntityManager entityManager = entityManagerHolder.getEntityManager();
+    try {
+      if (enlist) {
+        RequestTransaction.enlist(entityManager.getTransaction());
+      } else {
+        RequestTransaction.demand();
+      }
+    } catch (SystemException e) {
+      throw new PersistenceException("Unable to begin the request transaction", e);
+    }
+    return entityManager;
   }
 
   /**
@@ -190,7 +211,7 @@ public class ScopedEntityManager implements EntityManager {
    * @see javax.persistence.EntityManager#close()
    */
   public void close() {
-    getEntityManager().close();
+    getEntityManager(false).close();
   }
 
   /**
@@ -301,7 +322,7 @@ public class ScopedEntityManager implements EntityManager {
    * @see javax.persistence.EntityManager#getTransaction()
    */
   public EntityTransaction getTransaction() {
-    return getEntityManager().getTransaction();
+    return getEntityManager(false).getTransaction();
   }
 
   /**
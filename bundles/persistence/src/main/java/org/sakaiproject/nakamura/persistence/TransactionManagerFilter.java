@@ -27,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -37,7 +38,6 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
-import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
@@ -46,6 +46,12 @@ import javax.transaction.TransactionManager;
 /**
  * The <code>SakaiRequestFilter</code> class is a request level filter, which manages the
  * Sakai Cache and Transaction services..
+ * <p>
+ * The transaction is not begun until the request uses the entity manager or the data
+ * source, see {@link RequestTransaction}, so requests for static files, widgets and
+ * search never touch the transaction manager. A request that uses the entity manager
+ * also has the entity manager's resource local transaction committed or rolled back
+ * here, whatever its method.
  */
 @Service(value=Filter.class)
 @Component(immediate=true, metatype=false)
@@ -59,9 +65,14 @@ public class TransactionManagerFilter implements Filter {
   private static final boolean debug = LOGGER.isDebugEnabled();
 
 
+  private static final long REPORT_INTERVAL = 60000L;
+
   @Reference
-  private TransactionManager transactionManager;
+  protected TransactionManager transactionManager;
 
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong transactions = new AtomicLong();
+  private volatile long nextReport = 0;
 
   /**
    * {@inheritDoc}
@@ -89,38 +100,77 @@ public class TransactionManagerFilter implements Filter {
    */
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
       throws IOException, ServletException {
+    if (RequestTransaction.isOpen()) {
+      // an internal request, the outer request owns the transaction.
+      chain.doFilter(request, response);
+      return;
+    }
     HttpServletResponse hresponse = (HttpServletResponse) response;
+    RequestTransaction requestTransaction = RequestTransaction.open(transactionManager);
     try {
-      begin();
       chain.doFilter(request, response);
-      commit();
+      if (requestTransaction.isBegun()) {
+        requestTransaction.commitEnlisted();
+        commit();
+      }
     } catch (SecurityException se) {
-      rollback();
+      rollback(requestTransaction);
       // catch any Security exceptions and send a 401
       hresponse.reset();
       hresponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, se.getMessage());
     } catch (RuntimeException e) {
-      rollback();
+      rollback(requestTransaction);
       throw e;
     } catch (IOException e) {
-      rollback();
+      rollback(requestTransaction);
       throw e;
     } catch (ServletException e) {
-      rollback();
+      rollback(requestTransaction);
       throw e;
     } catch (Throwable t) {
-      rollback();
+      rollback(requestTransaction);
       throw new ServletException(t.getMessage(), t);
+    } finally {
+      requestTransaction.close();
+      count(requestTransaction);
+    }
+  }
+
+  private void rollback(RequestTransaction requestTransaction) {
+    if (requestTransaction.isBegun()) {
+      try {
+        requestTransaction.rollbackEnlisted();
+      } catch (RuntimeException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+      rollback();
+    }
+  }
+
+  private void count(RequestTransaction requestTransaction) {
+    requests.incrementAndGet();
+    if (requestTransaction.isBegun()) {
+      transactions.incrementAndGet();
+    }
+    long now = System.currentTimeMillis();
+    if (nextReport < now) {
+      nextReport = now + REPORT_INTERVAL;
+      LOGGER.info("Requests {}, with a transaction {} ", requests.get(), transactions.get());
     }
   }
 
   /**
-   * @throws SystemException
-   * @throws NotSupportedException
-   * 
+   * @return the number of requests filtered.
+   */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * @return the number of requests that began a transaction.
    */
-  protected void begin() throws NotSupportedException, SystemException {
-    transactionManager.begin();
+  public long getTransactionCount() {
+    return transactions.get();
   }
 
   /**
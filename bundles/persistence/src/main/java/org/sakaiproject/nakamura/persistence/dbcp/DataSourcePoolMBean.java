@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence.dbcp;
+
+/**
+ * The state of the JDBC connection pool, as seen over JMX.
+ */
+public interface DataSourcePoolMBean {
+
+  /**
+   * @return the number of connections in use.
+   */
+  int getNumActive();
+
+  /**
+   * @return the number of connections idle in the pool.
+   */
+  int getNumIdle();
+
+  /**
+   * @return the number of threads waiting for a connection.
+   */
+  int getNumWaiters();
+
+  /**
+   * @return the largest number of connections the pool will open.
+   */
+  int getMaxActive();
+
+  /**
+   * @return the number of connections handed out since the pool started.
+   */
+  long getBorrowCount();
+
+  /**
+   * @return the number of times a connection could not be had, because the pool was
+   *         exhausted or the database could not be reached.
+   */
+  long getBorrowFailures();
+
+  /**
+   * @return the longest time in ms a thread has waited for a connection.
+   */
+  long getMaxBorrowMillis();
+
+  /**
+   * @return how long threads have waited for connections, one line per bucket, eg "&lt;=
+   *         10ms: 123".
+   */
+  String[] getBorrowLatencyHistogram();
+
+  /**
+   * @return the connections that have been out of the pool for longer than the leak
+   *         threshold, with where they were taken from.
+   */
+  String[] getLeakedConnections();
+}
@@ -21,7 +21,6 @@ package org.sakaiproject.nakamura.persistence.dbcp;
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
@@ -32,9 +31,16 @@ import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.configuration.ConfigurationService;
 import org.sakaiproject.nakamura.api.configuration.NakamuraConstants;
 import org.sakaiproject.nakamura.api.persistence.DataSourceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.sql.SQLException;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.sql.DataSource;
 
 /**
@@ -63,7 +69,13 @@ import javax.sql.DataSource;
  * You can optionally provide a {@link org.apache.commons.pool.KeyedObjectPoolFactory}
  * that will be used to create {@link org.apache.commons.pool.KeyedObjectPool}s for
  * pooling {@link java.sql.PreparedStatement}s for each {@link java.sql.Connection}.
- *
+ * <p>
+ * The size of the pool, how long to wait for a connection and how idle connections are
+ * checked and evicted come from the jdbc.pool properties of the
+ * {@link ConfigurationService}. The state of the pool, including how long threads wait
+ * for connections and any connections that have not been returned, is registered over
+ * JMX as {@value #MBEAN_NAME}.
+ * </p>
  *
  *
  *
@@ -73,7 +85,13 @@ import javax.sql.DataSource;
 @Service
 public class DataSourceServiceImpl implements DataSourceService {
 
-  private PoolingDataSource dataSource;
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceServiceImpl.class);
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura:type=DataSourcePool";
+
+  private InstrumentedDataSource dataSource;
+  private GenericObjectPool connectionPool;
+  private ObjectName objectName;
   @SuppressWarnings("unused")
   private PoolableConnectionFactory poolableConnectionFactory;
 
@@ -116,7 +134,21 @@ public class DataSourceServiceImpl implements DataSourceService {
         .getProperty(NakamuraConstants.JDBC_DEFAULT_PREPARED_STATEMENTS));
 
     Class.forName(driverClassName);
-    GenericObjectPool connectionPool = new GenericObjectPool(null);
+    connectionPool = new GenericObjectPool(null);
+    connectionPool.setMaxActive(getInt(NakamuraConstants.JDBC_POOL_MAX_ACTIVE, 20));
+    connectionPool.setMaxIdle(getInt(NakamuraConstants.JDBC_POOL_MAX_IDLE, 8));
+    connectionPool.setMinIdle(getInt(NakamuraConstants.JDBC_POOL_MIN_IDLE, 0));
+    // wait a bounded time for a connection, rather than forever.
+    connectionPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+    connectionPool.setMaxWait(getLong(NakamuraConstants.JDBC_POOL_MAX_WAIT, 10000L));
+    connectionPool.setTestOnBorrow(getBoolean(NakamuraConstants.JDBC_POOL_TEST_ON_BORROW,
+        false));
+    connectionPool.setTestWhileIdle(getBoolean(
+        NakamuraConstants.JDBC_POOL_TEST_WHILE_IDLE, true));
+    connectionPool.setTimeBetweenEvictionRunsMillis(getLong(
+        NakamuraConstants.JDBC_POOL_EVICTION_INTERVAL, 60000L));
+    connectionPool.setMinEvictableIdleTimeMillis(getLong(
+        NakamuraConstants.JDBC_POOL_MIN_EVICTABLE_IDLE, 300000L));
     ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(url,
         username, password);
 
@@ -135,10 +167,68 @@ public class DataSourceServiceImpl implements DataSourceService {
     poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory,
         connectionPool, statementPoolFactory, validationQuery, defaultReadOnly,
         defaultAutoCommit);
-    dataSource = new PoolingDataSource(connectionPool);
+    dataSource = new InstrumentedDataSource(connectionPool, getLong(
+        NakamuraConstants.JDBC_POOL_LEAK_THRESHOLD, 0L));
+    registerMBean();
   }
 
   protected void deactivate(ComponentContext componentContext) {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.warn("Unable to unregister the connection pool MBean {} ", e.getMessage());
+      }
+      objectName = null;
+    }
+    try {
+      connectionPool.close();
+    } catch (Exception e) {
+      LOGGER.warn("Unable to close the connection pool {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * Make the state of the pool visible over JMX.
+   */
+  private void registerMBean() {
+    try {
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(new StandardMBean(dataSource, DataSourcePoolMBean.class),
+          name);
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register the connection pool MBean {} ", e.getMessage());
+    }
+  }
+
+  private int getInt(String key, int defaultValue) {
+    return (int) getLong(key, defaultValue);
+  }
+
+  private long getLong(String key, long defaultValue) {
+    String value = confurationService.getProperty(key);
+    if (value != null && value.trim().length() > 0) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        LOGGER.warn("{} should be a number, not {}, using {} ", new Object[] { key, value,
+            defaultValue });
+      }
+    }
+    return defaultValue;
+  }
+
+  private boolean getBoolean(String key, boolean defaultValue) {
+    String value = confurationService.getProperty(key);
+    if (value != null && value.trim().length() > 0) {
+      return Boolean.valueOf(value.trim());
+    }
+    return defaultValue;
   }
 
   /**
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence.dbcp;
+
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.sakaiproject.nakamura.persistence.RequestTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.transaction.SystemException;
+
+/**
+ * A pooling data source that records how the pool is used. It counts the threads
+ * waiting for a connection and how long they wait, and, if a leak threshold is set,
+ * remembers where each connection was taken so that connections that are never given
+ * back can be found. Tracking wraps every connection and captures a stack on every
+ * borrow, so it is off unless a threshold is configured. Connections are only weakly
+ * held while tracked, one that is collected without being closed is reported and
+ * forgotten.
+ */
+public class InstrumentedDataSource extends PoolingDataSource implements
+    DataSourcePoolMBean {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(InstrumentedDataSource.class);
+
+  /**
+   * The upper bounds in ms of the borrow latency buckets, the last bucket holds the rest.
+   */
+  static final long[] BUCKETS = { 1, 5, 10, 50, 100, 500, 1000, 5000, 10000 };
+
+  private static final long MAX_LEAK_CHECK_INTERVAL = 60000L;
+
+  private final GenericObjectPool pool;
+  private final long leakThreshold;
+  private final AtomicLongArray latency = new AtomicLongArray(BUCKETS.length + 1);
+  private final AtomicLong borrows = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong maxBorrow = new AtomicLong();
+  private final AtomicInteger waiters = new AtomicInteger();
+  private final Map<Borrowed, Boolean> borrowed = new ConcurrentHashMap<Borrowed, Boolean>();
+  private final ReferenceQueue<Connection> collected = new ReferenceQueue<Connection>();
+  private volatile long nextLeakCheck;
+
+  /**
+   * @param pool
+   *          the connection pool.
+   * @param leakThreshold
+   *          how long in ms a connection may be out of the pool before it is reported as
+   *          leaked, 0 (the default) to not track connections.
+   */
+  public InstrumentedDataSource(GenericObjectPool pool, long leakThreshold) {
+    super(pool);
+    this.pool = pool;
+    this.leakThreshold = leakThreshold;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.commons.dbcp.PoolingDataSource#getConnection()
+   */
+  @Override
+  public Connection getConnection() throws SQLException {
+    demandTransaction();
+    long start = System.nanoTime();
+    // only a borrow that finds no idle connection will wait for one.
+    boolean waiting = pool.getNumIdle() == 0;
+    if (waiting) {
+      waiters.incrementAndGet();
+    }
+    Connection connection;
+    try {
+      connection = super.getConnection();
+    } catch (SQLException e) {
+      failures.incrementAndGet();
+      throw e;
+    } catch (RuntimeException e) {
+      failures.incrementAndGet();
+      throw e;
+    } finally {
+      if (waiting) {
+        waiters.decrementAndGet();
+      }
+    }
+    record((System.nanoTime() - start) / 1000000L);
+    return track(connection);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.commons.dbcp.PoolingDataSource#getConnection(java.lang.String,
+   *      java.lang.String)
+   */
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    // the pool only hands out connections for its own user, this throws.
+    return super.getConnection(username, password);
+  }
+
+  /**
+   * A connection is about to be used, so begin the request transaction if there is one.
+   */
+  private static void demandTransaction() throws SQLException {
+    try {
+      RequestTransaction.demand();
+    } catch (SystemException e) {
+      SQLException se = new SQLException("Unable to begin the request transaction");
+      se.initCause(e);
+      throw se;
+    }
+  }
+
+  private void record(long millis) {
+    borrows.incrementAndGet();
+    int bucket = 0;
+    while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+      bucket++;
+    }
+    latency.incrementAndGet(bucket);
+    long max = maxBorrow.get();
+    while (millis > max && !maxBorrow.compareAndSet(max, millis)) {
+      max = maxBorrow.get();
+    }
+  }
+
+  private Connection track(final Connection connection) {
+    if (leakThreshold <= 0) {
+      return connection;
+    }
+    checkForLeaks();
+    final Borrowed[] b = new Borrowed[1];
+    Connection proxied = (Connection) Proxy.newProxyInstance(InstrumentedDataSource.class
+        .getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("close".equals(name)) {
+          borrowed.remove(b[0]);
+        } else if ("equals".equals(name) && args != null && args.length == 1) {
+          return proxy == args[0];
+        } else if ("hashCode".equals(name) && args == null) {
+          return System.identityHashCode(proxy);
+        }
+        try {
+          return method.invoke(connection, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+    b[0] = new Borrowed(proxied, collected);
+    borrowed.put(b[0], Boolean.TRUE);
+    return proxied;
+  }
+
+  /**
+   * Forget connections that were garbage collected without being closed.
+   */
+  private void removeCollected() {
+    Borrowed b;
+    while ((b = (Borrowed) collected.poll()) != null) {
+      if (borrowed.remove(b) != null) {
+        LOGGER.warn("Connection taken by " + b.thread
+            + " was garbage collected without being closed", b.where);
+      }
+    }
+  }
+
+  /**
+   * Log connections that have been out for longer than the threshold, at most once per
+   * connection and not more often than the threshold.
+   */
+  private void checkForLeaks() {
+    removeCollected();
+    long now = System.currentTimeMillis();
+    if (now < nextLeakCheck) {
+      return;
+    }
+    nextLeakCheck = now + Math.min(leakThreshold, MAX_LEAK_CHECK_INTERVAL);
+    for (Borrowed b : borrowed.keySet()) {
+      if (!b.reported && now - b.time > leakThreshold) {
+        b.reported = true;
+        LOGGER.warn("Connection taken by " + b.thread + " has not been returned after "
+            + (now - b.time) + "ms", b.where);
+      }
+    }
+  }
+
+  public int getNumActive() {
+    return pool.getNumActive();
+  }
+
+  public int getNumIdle() {
+    return pool.getNumIdle();
+  }
+
+  public int getNumWaiters() {
+    return waiters.get();
+  }
+
+  public int getMaxActive() {
+    return pool.getMaxActive();
+  }
+
+  public long getBorrowCount() {
+    return borrows.get();
+  }
+
+  public long getBorrowFailures() {
+    return failures.get();
+  }
+
+  public long getMaxBorrowMillis() {
+    return maxBorrow.get();
+  }
+
+  public String[] getBorrowLatencyHistogram() {
+    String[] histogram = new String[BUCKETS.length + 1];
+    for (int i = 0; i < BUCKETS.length; i++) {
+      histogram[i] = "<= " + BUCKETS[i] + "ms: " + latency.get(i);
+    }
+    histogram[BUCKETS.length] = "> " + BUCKETS[BUCKETS.length - 1] + "ms: "
+        + latency.get(BUCKETS.length);
+    return histogram;
+  }
+
+  public String[] getLeakedConnections() {
+    removeCollected();
+    long now = System.currentTimeMillis();
+    List<String> leaked = new ArrayList<String>();
+    for (Borrowed b : borrowed.keySet()) {
+      if (now - b.time > leakThreshold) {
+        StringWriter stack = new StringWriter();
+        b.where.printStackTrace(new PrintWriter(stack));
+        leaked.add("Taken by " + b.thread + " " + (now - b.time) + "ms ago " + stack);
+      }
+    }
+    return leaked.toArray(new String[leaked.size()]);
+  }
+
+  /**
+   * A connection that is out of the pool, weakly held so that tracking does not keep an
+   * abandoned connection alive.
+   */
+  private static class Borrowed extends WeakReference<Connection> {
+    final long time = System.currentTimeMillis();
+    final String thread = Thread.currentThread().getName();
+    final Throwable where = new Throwable("Connection taken here");
+    volatile boolean reported;
+
+    Borrowed(Connection connection, ReferenceQueue<Connection> queue) {
+      super(connection, queue);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+
+import javax.persistence.EntityTransaction;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+public class TransactionManagerFilterTest {
+
+  private TransactionManager transactionManager;
+  private TransactionManagerFilter filter;
+
+  @Before
+  public void setUp() throws Exception {
+    transactionManager = mock(TransactionManager.class);
+    when(transactionManager.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+    filter = new TransactionManagerFilter();
+    filter.transactionManager = transactionManager;
+  }
+
+  @Test
+  public void testNoDatabaseNoTransaction() throws Exception {
+    filter.doFilter(request("POST"), mock(HttpServletResponse.class), chain(false));
+    verify(transactionManager, never()).begin();
+    verify(transactionManager, never()).commit();
+    assertEquals(1, filter.getRequestCount());
+    assertEquals(0, filter.getTransactionCount());
+  }
+
+  @Test
+  public void testDemandBeginsOnce() throws Exception {
+    filter.doFilter(request("POST"), mock(HttpServletResponse.class), chain(true));
+    verify(transactionManager).begin();
+    verify(transactionManager).commit();
+    assertEquals(1, filter.getTransactionCount());
+  }
+
+  @Test
+  public void testGetUsingDatabase() throws Exception {
+    filter.doFilter(request("GET"), mock(HttpServletResponse.class), chain(true));
+    verify(transactionManager).begin();
+    verify(transactionManager).commit();
+    assertEquals(1, filter.getTransactionCount());
+  }
+
+  @Test
+  public void testEnlistedTransactionCommitted() throws Exception {
+    final EntityTransaction entityTransaction = entityTransaction();
+    filter.doFilter(request("GET"), mock(HttpServletResponse.class), new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        try {
+          RequestTransaction.enlist(entityTransaction);
+          RequestTransaction.enlist(entityTransaction);
+        } catch (SystemException e) {
+          throw new ServletException(e);
+        }
+      }
+    });
+    verify(entityTransaction).begin();
+    verify(entityTransaction).commit();
+    verify(transactionManager).commit();
+  }
+
+  @Test
+  public void testEnlistedTransactionRolledBack() throws Exception {
+    final EntityTransaction entityTransaction = entityTransaction();
+    try {
+      filter.doFilter(request("POST"), mock(HttpServletResponse.class), new FilterChain() {
+        public void doFilter(ServletRequest request, ServletResponse response)
+            throws IOException, ServletException {
+          try {
+            RequestTransaction.enlist(entityTransaction);
+          } catch (SystemException e) {
+            throw new ServletException(e);
+          }
+          throw new ServletException("failed");
+        }
+      });
+      fail();
+    } catch (ServletException e) {
+      // expected
+    }
+    verify(entityTransaction).rollback();
+    verify(entityTransaction, never()).commit();
+    verify(transactionManager).rollback();
+  }
+
+  @Test
+  public void testRollbackOnFailure() throws Exception {
+    FilterChain chain = new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        try {
+          RequestTransaction.demand();
+        } catch (SystemException e) {
+          throw new ServletException(e);
+        }
+        throw new ServletException("failed");
+      }
+    };
+    try {
+      filter.doFilter(request("POST"), mock(HttpServletResponse.class), chain);
+      fail();
+    } catch (ServletException e) {
+      // expected
+    }
+    verify(transactionManager).rollback();
+    verify(transactionManager, never()).commit();
+  }
+
+  @Test
+  public void testOutsideRequest() throws Exception {
+    // nothing to begin when not in a request.
+    RequestTransaction.demand();
+    verify(transactionManager, never()).begin();
+  }
+
+  private EntityTransaction entityTransaction() {
+    final boolean[] active = new boolean[1];
+    EntityTransaction entityTransaction = mock(EntityTransaction.class);
+    when(entityTransaction.isActive()).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return active[0];
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        active[0] = true;
+        return null;
+      }
+    }).when(entityTransaction).begin();
+    return entityTransaction;
+  }
+
+  private HttpServletRequest request(String method) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn(method);
+    return request;
+  }
+
+  private FilterChain chain(final boolean useDatabase) {
+    return new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        if (useDatabase) {
+          try {
+            RequestTransaction.demand();
+            RequestTransaction.demand();
+          } catch (SystemException e) {
+            throw new ServletException(e);
+          }
+        }
+      }
+    };
+  }
+}
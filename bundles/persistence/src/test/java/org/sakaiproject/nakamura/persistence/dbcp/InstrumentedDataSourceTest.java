@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence.dbcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+public class InstrumentedDataSourceTest {
+
+  private GenericObjectPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+    when(connectionFactory.createConnection()).thenAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation) throws Throwable {
+        Connection connection = mock(Connection.class);
+        when(connection.getAutoCommit()).thenReturn(true);
+        return connection;
+      }
+    });
+    pool = new GenericObjectPool(null);
+    pool.setMaxActive(2);
+    pool.setMaxWait(10);
+    new PoolableConnectionFactory(connectionFactory, pool, null, null, false, true);
+  }
+
+  @Test
+  public void testCountsAndLeaks() throws Exception {
+    InstrumentedDataSource dataSource = new InstrumentedDataSource(pool, 1L);
+    Connection a = dataSource.getConnection();
+    Connection b = dataSource.getConnection();
+    assertEquals(2, dataSource.getNumActive());
+    assertEquals(2, dataSource.getBorrowCount());
+
+    // the pool is exhausted, so the next borrow waits and then fails.
+    try {
+      dataSource.getConnection();
+      fail();
+    } catch (SQLException e) {
+      assertEquals(1, dataSource.getBorrowFailures());
+    }
+    assertEquals(0, dataSource.getNumWaiters());
+
+    Thread.sleep(10);
+    assertEquals(2, dataSource.getLeakedConnections().length);
+    assertTrue(dataSource.getLeakedConnections()[0].contains("testCountsAndLeaks"));
+
+    a.close();
+    assertEquals(1, dataSource.getLeakedConnections().length);
+    assertEquals(1, dataSource.getNumActive());
+    assertEquals(1, dataSource.getNumIdle());
+    b.close();
+    assertEquals(0, dataSource.getLeakedConnections().length);
+
+    long borrowed = 0;
+    for (String bucket : dataSource.getBorrowLatencyHistogram()) {
+      borrowed += Long.parseLong(bucket.substring(bucket.indexOf(": ") + 2));
+    }
+    assertEquals(2, borrowed);
+  }
+
+  @Test
+  public void testWaitersAreThreadsBlockedOnAnExhaustedPool() throws Exception {
+    final InstrumentedDataSource dataSource = new InstrumentedDataSource(pool, 0L);
+    Connection a = dataSource.getConnection();
+    assertEquals(0, dataSource.getNumWaiters());
+    dataSource.getConnection();
+    pool.setMaxWait(5000);
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          dataSource.getConnection().close();
+        } catch (SQLException e) {
+          // checked below
+        }
+      }
+    };
+    waiter.start();
+    for (int i = 0; i < 100 && dataSource.getNumWaiters() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, dataSource.getNumWaiters());
+    a.close();
+    waiter.join(5000);
+    assertEquals(0, dataSource.getNumWaiters());
+    assertEquals(3, dataSource.getBorrowCount());
+  }
+
+  @Test
+  public void testCollectedConnectionsAreForgotten() throws Exception {
+    InstrumentedDataSource dataSource = new InstrumentedDataSource(pool, 1L);
+    dataSource.getConnection();
+    Thread.sleep(10);
+    assertEquals(1, dataSource.getLeakedConnections().length);
+    for (int i = 0; i < 20 && dataSource.getLeakedConnections().length > 0; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(0, dataSource.getLeakedConnections().length);
+  }
+
+  @Test
+  public void testUntracked() throws Exception {
+    InstrumentedDataSource dataSource = new InstrumentedDataSource(pool, 0L);
+    dataSource.getConnection();
+    Thread.sleep(5);
+    assertEquals(0, dataSource.getLeakedConnections().length);
+  }
+}
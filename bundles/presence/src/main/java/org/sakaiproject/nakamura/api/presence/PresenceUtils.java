@@ -81,4 +81,36 @@ public class PresenceUtils {
     }
   }
 
+  /**
+   * Output the presence of a single user from a status and location that have already
+   * been looked up, for when the same user appears many times in one response.
+   *
+   * @param output
+   *          the writer to output the JSON into
+   * @param userId
+   *          the user to output presence data for
+   * @param status
+   *          the status of the user, from {@link PresenceService#getStatus(String)}
+   * @param location
+   *          the location of the user, from {@link PresenceService#getLocation(String)}
+   * @param partialObject
+   *          if true the object is not opened and closed.
+   * @throws JSONException
+   */
+  public static void makePresenceJSON(JSONWriter output, String userId, String status,
+      String location, boolean partialObject) throws JSONException {
+    if (!partialObject) {
+      output.object();
+    }
+    output.key("user");
+    output.value(userId);
+    output.key(PresenceService.PRESENCE_STATUS_PROP);
+    output.value(status);
+    output.key(PresenceService.PRESENCE_LOCATION_PROP);
+    output.value(location);
+    if (!partialObject) {
+      output.endObject();
+    }
+  }
+
 }
@@ -25,6 +25,9 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.util.Collection;
+import java.util.Map;
+
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
@@ -74,6 +77,22 @@ public interface ProfileService {
   ValueMap getCompactProfileMap(org.apache.jackrabbit.api.security.user.Authorizable au,
       Session session) throws RepositoryException;
 
+  /**
+   * Gets the compact profiles for a number of authorizables in one call. Compact profiles
+   * are cached, so listings that render the same users and groups over and over again
+   * (group memberships, member listings, search results) avoid a storage lookup per row.
+   *
+   * @param authorizableIds
+   *          The ids of the authorizables to get the compact profile for.
+   * @param session
+   *          The session used to check read access on the authorizables.
+   * @return A map of authorizable id to compact profile, in the iteration order of
+   *         authorizableIds. Ids that do not exist or can not be read are left out.
+   * @throws StorageClientException
+   */
+  Map<String, ValueMap> getCompactProfileMaps(Collection<String> authorizableIds,
+      org.sakaiproject.nakamura.api.lite.Session session) throws StorageClientException;
+
   /**
    * Update the profile using a json tree to replace the existing tree.
    * @param session the current session
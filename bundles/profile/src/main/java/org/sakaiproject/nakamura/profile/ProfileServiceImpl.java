@@ -35,6 +35,8 @@ import com.google.common.collect.ImmutableMap.Builder;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
@@ -42,19 +44,32 @@ import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.ReferenceStrategy;
 import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
@@ -66,13 +81,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -81,9 +101,16 @@ import javax.jcr.Session;
  *
  */
 @Component(immediate = true, metatype=true, specVersion="1.1")
-@Service(value = ProfileService.class)
+@Service(value = { ProfileService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC,
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.DELETE_TOPIC }) })
 @References(value = { @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider") })
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
+
+  private static final String COMPACT_PROFILE_CACHE = "profile.compact";
+  private static final String PROVIDER_RESULT_CACHE = "profile.provider";
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
@@ -99,9 +126,123 @@ public class ProfileServiceImpl implements ProfileService {
 
   private String[] basicProfileElements;
 
+  /**
+   * Time (s) after which a cached provider result is refreshed in the background.
+   */
+  @Property(longValue = 300L)
+  public final static String PROVIDER_CACHE_TTL = "providerCacheTtl";
+
+  /**
+   * Default time (ms) to wait for a provider that has nothing cached.
+   */
+  @Property(longValue = 5000L)
+  public final static String PROVIDER_TIMEOUT = "providerTimeout";
+
+  /**
+   * Per provider wait times, as providerName=ms.
+   */
+  @Property(value = { "" }, cardinality = Integer.MAX_VALUE)
+  public final static String PROVIDER_TIMEOUTS = "providerTimeouts";
+
+  /**
+   * Number of threads that call providers.
+   */
+  @Property(intValue = 5)
+  public final static String PROVIDER_THREADS = "providerThreads";
+
+  /**
+   * Number of provider calls that can be queued before refreshes are dropped.
+   */
+  @Property(intValue = 100)
+  public final static String PROVIDER_QUEUE_SIZE = "providerQueueSize";
+
+  private ThreadPoolExecutor providerExecutor;
+
+  private ProviderResultCache providerResultCache;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected SlingRepository slingRepository;
+
+  /**
+   * Compact profiles keyed by authorizable id. Entries are dropped when the authorizable
+   * is updated or deleted.
+   */
+  private Cache<ValueMap> compactProfileCache;
+
   @Activate
   protected void activate(Map<String, Object> properties ) {
     basicProfileElements = OsgiUtil.toStringArray(properties.get(BASIC_PROFILE_ELEMENTS), DEFAULT_BASIC_PROFILE_ELEMENTS);
+    compactProfileCache = cacheManagerService.getCache(COMPACT_PROFILE_CACHE,
+        CacheScope.CLUSTERINVALIDATED);
+
+    // providers can be slow (eg LDAP), so they run on a small bounded pool and their
+    // answers are cached per node.
+    int threads = OsgiUtil.toInteger(properties.get(PROVIDER_THREADS), 5);
+    int queueSize = OsgiUtil.toInteger(properties.get(PROVIDER_QUEUE_SIZE), 100);
+    providerExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "profile-provider-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    Map<String, Long> timeouts = new HashMap<String, Long>();
+    for (String timeout : OsgiUtil.toStringArray(properties.get(PROVIDER_TIMEOUTS),
+        new String[0])) {
+      // provider.name=milliseconds
+      int i = timeout.lastIndexOf('=');
+      if (i > 0) {
+        try {
+          timeouts.put(timeout.substring(0, i).trim(),
+              Long.parseLong(timeout.substring(i + 1).trim()));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring invalid provider timeout {} ", timeout);
+        }
+      }
+    }
+    Cache<ProviderResultCache.CachedResult> providerCache = cacheManagerService.getCache(
+        PROVIDER_RESULT_CACHE, CacheScope.INSTANCE);
+    providerResultCache = new ProviderResultCache(providerCache, providerExecutor,
+        OsgiUtil.toLong(properties.get(PROVIDER_CACHE_TTL), 300L) * 1000L,
+        OsgiUtil.toLong(properties.get(PROVIDER_TIMEOUT), 5000L), timeouts,
+        sparseRepository, slingRepository);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (providerExecutor != null) {
+      providerExecutor.shutdownNow();
+      providerExecutor = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the cached compact profile of an authorizable that was updated or deleted.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String authorizableId = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (authorizableId != null) {
+      invalidateCompactProfile(authorizableId);
+    }
+  }
+
+  private void invalidateCompactProfile(String authorizableId) {
+    if (compactProfileCache != null) {
+      compactProfileCache.remove(authorizableId);
+    }
   }
 
   /**
@@ -144,23 +285,18 @@ public class ProfileServiceImpl implements ProfileService {
   public ValueMap getProfileMap(Content profileContent, Session jcrSession) throws RepositoryException {
     // Get the data from our external providers.
     Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, jcrSession);
-    Map<Content, Future<Map<String, Object>>> providedNodeData = new HashMap<Content, Future<Map<String, Object>>>();
+    Map<String, Map<String, Object>> providedNodeData = new HashMap<String, Map<String, Object>>();
     for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
       ProfileProvider pp = providers.get(e.getKey());
       if (pp != null) {
-        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
+        providedNodeData.putAll(providerResultCache.getProvidedMaps(e.getKey(), pp,
+            e.getValue()));
       }
     }
-    try {
-      // Return it as a ValueMap.
-      ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
-      handleNode(profileContent, providedNodeData, map);
-      return map;
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e);
-    }
+    // Return it as a ValueMap.
+    ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
+    handleNode(profileContent, providedNodeData, map);
+    return map;
   }
 
   /**
@@ -170,21 +306,18 @@ public class ProfileServiceImpl implements ProfileService {
    *          The node that should be merged with the external info. The entire nodetree
    *          will be checked.
    * @param baseMap
-   *          The map that contains the external information.
+   *          The map that contains the external information, keyed by node path.
    * @param map
    *          The map that should be filled.
    * @throws RepositoryException
-   * @throws InterruptedException
-   * @throws ExecutionException
    */
-  protected void handleNode(Content profileContent, Map<Content, Future<Map<String, Object>>> baseMap,
-      Map<String, Object> map) throws RepositoryException, InterruptedException,
-      ExecutionException {
+  protected void handleNode(Content profileContent, Map<String, Map<String, Object>> baseMap,
+      Map<String, Object> map) throws RepositoryException {
     // If our map contains this node, that means one of the provides had some information
     // for it.
     // We will use the provider.
     if (baseMap.containsKey(profileContent.getPath())) {
-      map.putAll(baseMap.get(profileContent.getPath()).get());
+      map.putAll(baseMap.get(profileContent.getPath()));
     } else {
 
       // The node wasn't found in the baseMap.
@@ -221,7 +354,10 @@ public class ProfileServiceImpl implements ProfileService {
     if (User.ANON_USER.equals(authorizable.getId())) {
       return anonymousProfile();
     }
-    
+    return compactProfileForAuthorizable(authorizable);
+  }
+
+  private ValueMap compactProfileForAuthorizable(Authorizable authorizable) {
     ValueMap compactProfile = new ValueMapDecorator(new HashMap<String, Object>());
     compactProfile.put(USER_BASIC, basicProfileMapForAuthorizable(authorizable));
 
@@ -233,6 +369,72 @@ public class ProfileServiceImpl implements ProfileService {
     return compactProfile;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileService#getCompactProfileMaps(java.util.Collection,
+   *      org.sakaiproject.nakamura.api.lite.Session)
+   */
+  public Map<String, ValueMap> getCompactProfileMaps(Collection<String> authorizableIds,
+      org.sakaiproject.nakamura.api.lite.Session session) throws StorageClientException {
+    Map<String, ValueMap> profiles = new LinkedHashMap<String, ValueMap>();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    for (String authorizableId : authorizableIds) {
+      if (authorizableId == null || profiles.containsKey(authorizableId)) {
+        continue;
+      }
+      if (User.ANON_USER.equals(authorizableId)) {
+        profiles.put(authorizableId, anonymousProfile());
+        continue;
+      }
+      try {
+        ValueMap compactProfile = null;
+        if (compactProfileCache != null) {
+          compactProfile = compactProfileCache.get(authorizableId);
+        }
+        if (compactProfile != null) {
+          // the cache is shared between users, so a hit still has to be readable.
+          accessControlManager.check(Security.ZONE_AUTHORIZABLES, authorizableId,
+              Permissions.CAN_READ);
+        } else {
+          Authorizable authorizable = authorizableManager.findAuthorizable(authorizableId);
+          if (authorizable == null) {
+            continue;
+          }
+          compactProfile = compactProfileForAuthorizable(authorizable);
+          if (compactProfileCache != null) {
+            compactProfileCache.put(authorizableId, compactProfile);
+          }
+        }
+        // hand out a copy so callers can decorate it without touching the cache.
+        profiles.put(authorizableId, copyProfile(compactProfile));
+      } catch (AccessDeniedException e) {
+        LOG.debug("Not allowed to read the profile of {} ", authorizableId);
+      }
+    }
+    return profiles;
+  }
+
+  /**
+   * Copy a cached profile, including the maps and arrays nested in it, so that a caller
+   * that changes the copy does not change the profile cached for everyone else.
+   */
+  @SuppressWarnings("unchecked")
+  private static ValueMap copyProfile(Map<String, Object> profile) {
+    Map<String, Object> copy = new HashMap<String, Object>(profile.size());
+    for (Entry<String, Object> e : profile.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof Map<?, ?>) {
+        value = copyProfile((Map<String, Object>) value);
+      } else if (value instanceof Object[]) {
+        value = ((Object[]) value).clone();
+      }
+      copy.put(e.getKey(), value);
+    }
+    return new ValueMapDecorator(copy);
+  }
+
   private void addUserProperties(Authorizable user, ValueMap profileMap) {
     // Backward compatible reasons.
     profileMap.put("rep:userId", user.getId());
@@ -400,6 +602,7 @@ public class ProfileServiceImpl implements ProfileService {
               a.setProperty("access", basic.get("access"));
             }
             authorizableManager.updateAuthorizable(a);
+            invalidateCompactProfile(authorizableId);
           }
         }
       }
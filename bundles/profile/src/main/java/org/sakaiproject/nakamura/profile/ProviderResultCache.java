@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.profile.ProfileProvider;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the maps returned by {@link ProfileProvider}s, keyed by provider name and the
+ * path of the profile node the provider was asked about.
+ * <p>
+ * Fresh results are served straight from the cache. Results older than the TTL are still
+ * served, while a refresh is queued on the executor. Results that are not in the cache are
+ * fetched on the executor and waited for up to the timeout of the provider; a provider
+ * that does not answer in time leaves the node out, and the late answer is cached for the
+ * next request.
+ * <p>
+ * The settings handed in hold content and nodes read through the sessions of the request,
+ * which are not thread safe and may be logged out before a provider call on the executor
+ * finishes. Calls on the executor read the settings again in their own administrative
+ * sessions.
+ */
+public class ProviderResultCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProviderResultCache.class);
+
+  private final Cache<CachedResult> cache;
+  private final ExecutorService executor;
+  private final long ttl;
+  private final long defaultTimeout;
+  private final Map<String, Long> timeouts;
+  private final Repository repository;
+  private final SlingRepository slingRepository;
+
+  /**
+   * @param cache
+   *          the cache to hold provider results.
+   * @param executor
+   *          a bounded executor to run the providers on.
+   * @param ttl
+   *          the time in ms after which a result is refreshed.
+   * @param defaultTimeout
+   *          the time in ms to wait for a provider that has no timeout of its own.
+   * @param timeouts
+   *          timeouts in ms keyed by provider name.
+   * @param repository
+   *          the sparse repository calls on the executor read profile content from.
+   * @param slingRepository
+   *          the JCR repository calls on the executor read provider settings from.
+   */
+  public ProviderResultCache(Cache<CachedResult> cache, ExecutorService executor,
+      long ttl, long defaultTimeout, Map<String, Long> timeouts, Repository repository,
+      SlingRepository slingRepository) {
+    this.cache = cache;
+    this.executor = executor;
+    this.ttl = ttl;
+    this.defaultTimeout = defaultTimeout;
+    this.timeouts = timeouts;
+    this.repository = repository;
+    this.slingRepository = slingRepository;
+  }
+
+  /**
+   * Get the provided maps for a list of provider settings.
+   *
+   * @param providerName
+   *          the name the provider is registered under.
+   * @param provider
+   *          the provider.
+   * @param settings
+   *          the settings of the nodes the provider should fill in.
+   * @return the provided maps keyed by node path. Nodes the provider could not answer for
+   *         in time are not in the map.
+   */
+  public Map<String, Map<String, Object>> getProvidedMaps(String providerName,
+      ProfileProvider provider, List<ProviderSettings> settings) {
+    Map<String, Map<String, Object>> result = new HashMap<String, Map<String, Object>>();
+    List<ProviderSettings> missing = new ArrayList<ProviderSettings>();
+    List<ProviderSettings> stale = new ArrayList<ProviderSettings>();
+    long now = System.currentTimeMillis();
+    for (ProviderSettings s : settings) {
+      String path = s.getNode().getPath();
+      CachedResult cached = cache.get(getKey(providerName, path));
+      if (cached == null) {
+        missing.add(s);
+      } else {
+        result.put(path, cached.getValue());
+        if (now - cached.getFetched() > ttl && cached.startRefresh()) {
+          stale.add(s);
+        }
+      }
+    }
+    if (stale.size() > 0) {
+      refresh(providerName, provider, stale);
+    }
+    if (missing.size() > 0) {
+      result.putAll(fetch(providerName, provider, missing));
+    }
+    return result;
+  }
+
+  /**
+   * Queue a refresh of stale results, the stale results stay in the cache until the
+   * refresh completes.
+   */
+  private void refresh(String providerName, ProfileProvider provider,
+      List<ProviderSettings> stale) {
+    try {
+      executor.submit(new ProviderCall(providerName, provider, stale, true));
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Refresh queue full, serving stale results for provider {} ",
+          providerName);
+      endRefresh(providerName, getPaths(stale));
+    }
+  }
+
+  /**
+   * Fetch results that are not in the cache, waiting at most for the timeout of the
+   * provider.
+   */
+  private Map<String, Map<String, Object>> fetch(String providerName,
+      ProfileProvider provider, List<ProviderSettings> missing) {
+    Future<Map<String, Map<String, Object>>> future;
+    try {
+      future = executor.submit(new ProviderCall(providerName, provider, missing, true));
+    } catch (RejectedExecutionException e) {
+      // the pool is saturated, do the work on this thread rather than drop the data.
+      return new ProviderCall(providerName, provider, missing, false).call();
+    }
+    try {
+      return future.get(getTimeout(providerName), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      LOGGER.warn("Profile provider {} did not respond in time for {} nodes ",
+          providerName, missing.size());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOGGER.warn("Profile provider " + providerName + " failed: " + e.getMessage(), e);
+    }
+    return new HashMap<String, Map<String, Object>>();
+  }
+
+  private long getTimeout(String providerName) {
+    Long timeout = timeouts.get(providerName);
+    if (timeout == null) {
+      return defaultTimeout;
+    }
+    return timeout;
+  }
+
+  private void endRefresh(String providerName, List<String> paths) {
+    for (String path : paths) {
+      CachedResult cached = cache.get(getKey(providerName, path));
+      if (cached != null) {
+        cached.endRefresh();
+      }
+    }
+  }
+
+  private String getKey(String providerName, String path) {
+    return providerName + ":" + path;
+  }
+
+  private static List<String> getPaths(List<ProviderSettings> settings) {
+    List<String> paths = new ArrayList<String>(settings.size());
+    for (ProviderSettings s : settings) {
+      paths.add(s.getNode().getPath());
+    }
+    return paths;
+  }
+
+  /**
+   * Calls a provider and stores everything it returns in the cache.
+   */
+  private class ProviderCall implements Callable<Map<String, Map<String, Object>>> {
+
+    private final String providerName;
+    private final ProfileProvider provider;
+    private final List<ProviderSettings> settings;
+    private final List<String> paths;
+    private final boolean reload;
+
+    /**
+     * @param reload
+     *          true if the call runs on the executor and has to read the settings again
+     *          in its own sessions.
+     */
+    ProviderCall(String providerName, ProfileProvider provider,
+        List<ProviderSettings> settings, boolean reload) {
+      this.providerName = providerName;
+      this.provider = provider;
+      this.settings = settings;
+      this.paths = getPaths(settings);
+      this.reload = reload;
+    }
+
+    public Map<String, Map<String, Object>> call() {
+      try {
+        if (!reload) {
+          return callProvider(settings);
+        }
+        Session session = null;
+        javax.jcr.Session jcrSession = null;
+        try {
+          session = repository.loginAdministrative();
+          jcrSession = slingRepository.loginAdministrative(null);
+          List<ProviderSettings> reloaded = new ArrayList<ProviderSettings>(settings.size());
+          for (ProviderSettings s : settings) {
+            if (s instanceof ProviderSettingsImpl) {
+              s = ((ProviderSettingsImpl) s).reload(session.getContentManager(), jcrSession);
+            }
+            if (s != null) {
+              reloaded.add(s);
+            }
+          }
+          return callProvider(reloaded);
+        } catch (Exception e) {
+          LOGGER.warn("Unable to read the settings of profile provider " + providerName
+              + ": " + e.getMessage(), e);
+          return new HashMap<String, Map<String, Object>>();
+        } finally {
+          if (jcrSession != null) {
+            jcrSession.logout();
+          }
+          if (session != null) {
+            try {
+              session.logout();
+            } catch (Exception e) {
+              LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+            }
+          }
+        }
+      } finally {
+        endRefresh(providerName, paths);
+      }
+    }
+
+    private Map<String, Map<String, Object>> callProvider(List<ProviderSettings> settings) {
+      Map<String, Map<String, Object>> result = new HashMap<String, Map<String, Object>>();
+      if (settings.isEmpty()) {
+        return result;
+      }
+      long deadline = System.currentTimeMillis() + getTimeout(providerName);
+      try {
+        Map<Content, ? extends Future<Map<String, Object>>> provided = provider
+            .getProvidedMap(settings);
+        for (Entry<Content, ? extends Future<Map<String, Object>>> e : provided.entrySet()) {
+          String path = e.getKey().getPath();
+          try {
+            Map<String, Object> value = e.getValue().get(
+                Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            cache.put(getKey(providerName, path), new CachedResult(value));
+            result.put(path, value);
+          } catch (ExecutionException ex) {
+            LOGGER.warn("Profile provider " + providerName + " failed for " + path + ": "
+                + ex.getMessage(), ex);
+          } catch (TimeoutException ex) {
+            LOGGER.warn("Profile provider {} did not respond in time for {} ",
+                providerName, path);
+            e.getValue().cancel(true);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return result;
+    }
+  }
+
+  /**
+   * A provided map and the time it was fetched.
+   */
+  public static class CachedResult {
+
+    private final Map<String, Object> value;
+    private final long fetched;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    public CachedResult(Map<String, Object> value) {
+      this.value = value;
+      this.fetched = System.currentTimeMillis();
+    }
+
+    public Map<String, Object> getValue() {
+      return value;
+    }
+
+    public long getFetched() {
+      return fetched;
+    }
+
+    /**
+     * @return true if the caller should refresh this result, false if a refresh is
+     *         already running.
+     */
+    boolean startRefresh() {
+      return refreshing.compareAndSet(false, true);
+    }
+
+    void endRefresh() {
+      refreshing.set(false);
+    }
+  }
+}
@@ -17,7 +17,10 @@
  */
 package org.sakaiproject.nakamura.profile;
 
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.util.JcrUtils;
 
@@ -36,6 +39,7 @@ public class ProviderSettingsImpl implements ProviderSettings {
   private String provider;
   private Content profileNode;
   private Node settingsNode;
+  private String settingsPath;
   private Node providerNode;
 
   /**
@@ -49,6 +53,7 @@ public class ProviderSettingsImpl implements ProviderSettings {
       throws RepositoryException {
     this.profileNode = profileContent;
     this.settingsNode = settingsNode;
+    this.settingsPath = settingsNode.getPath();
     if (settingsNode.hasProperty(ProviderSettings.PROFILE_PROVIDER)) {
       provider = settingsNode.getProperty(ProviderSettings.PROFILE_PROVIDER).getString();
     }
@@ -111,4 +116,26 @@ public class ProviderSettingsImpl implements ProviderSettings {
     return profileNode;
   }
 
+  /**
+   * Read these settings again through other sessions, so they can be used on a thread
+   * that does not own the sessions they were first read with.
+   *
+   * @param contentManager
+   *          the content manager to read the profile node with.
+   * @param session
+   *          the JCR session to read the settings nodes with.
+   * @return the settings, or null if the profile node or the settings have gone.
+   * @throws RepositoryException
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public ProviderSettingsImpl reload(ContentManager contentManager, Session session)
+      throws RepositoryException, StorageClientException, AccessDeniedException {
+    Content content = contentManager.get(profileNode.getPath());
+    if (content == null || !session.nodeExists(settingsPath)) {
+      return null;
+    }
+    return new ProviderSettingsImpl(content, session.getNode(settingsPath));
+  }
+
 }
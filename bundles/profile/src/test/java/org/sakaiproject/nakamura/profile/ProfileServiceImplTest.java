@@ -19,8 +19,12 @@ package org.sakaiproject.nakamura.profile;
 
 import junit.framework.Assert;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Test;
@@ -29,6 +33,16 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
@@ -37,6 +51,8 @@ import org.sakaiproject.nakamura.util.PersonalUtils;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Hashtable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -125,6 +141,59 @@ public class ProfileServiceImplTest {
     */
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCompactProfileMaps() throws Exception {
+    Cache<ValueMap> cache = Mockito.mock(Cache.class);
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(
+        cacheManagerService.<ValueMap> getCache(Mockito.anyString(),
+            Mockito.any(CacheScope.class))).thenReturn(cache);
+    ProfileServiceImpl ps = new ProfileServiceImpl();
+    ps.cacheManagerService = cacheManagerService;
+    ps.activate(new HashMap<String, Object>());
+
+    org.sakaiproject.nakamura.api.lite.Session sparseSession = Mockito
+        .mock(org.sakaiproject.nakamura.api.lite.Session.class);
+    AuthorizableManager authorizableManager = Mockito.mock(AuthorizableManager.class);
+    AccessControlManager accessControlManager = Mockito.mock(AccessControlManager.class);
+    Mockito.when(sparseSession.getAuthorizableManager()).thenReturn(authorizableManager);
+    Mockito.when(sparseSession.getAccessControlManager()).thenReturn(accessControlManager);
+
+    Authorizable alice = Mockito.mock(Authorizable.class);
+    Mockito.when(alice.getId()).thenReturn("alice");
+    Mockito.when(alice.isGroup()).thenReturn(false);
+    Mockito.when(authorizableManager.findAuthorizable("alice")).thenReturn(alice);
+    ValueMap bobProfile = new ValueMapDecorator(new HashMap<String, Object>(
+        ImmutableMap.of("userid", (Object) "bob")));
+    Mockito.when(cache.get("bob")).thenReturn(bobProfile);
+
+    Map<String, ValueMap> profiles = ps.getCompactProfileMaps(
+        ImmutableList.of("alice", "missing", "bob"), sparseSession);
+
+    Assert.assertEquals(ImmutableList.of("alice", "bob"),
+        new ArrayList<String>(profiles.keySet()));
+    Assert.assertEquals("alice", profiles.get("alice").get("userid"));
+    Assert.assertEquals("bob", profiles.get("bob").get("userid"));
+    Mockito.verify(cache).put(Mockito.eq("alice"), Mockito.any(ValueMap.class));
+    Mockito.verify(authorizableManager, Mockito.never()).findAuthorizable("bob");
+    Mockito.verify(accessControlManager).check(Security.ZONE_AUTHORIZABLES, "bob",
+        Permissions.CAN_READ);
+
+    // changing what was handed out does not change the cache.
+    ValueMap cachedBasic = new ValueMapDecorator(new HashMap<String, Object>());
+    bobProfile.put("basic", cachedBasic);
+    ((Map<String, Object>) ps.getCompactProfileMaps(ImmutableList.of("bob"), sparseSession)
+        .get("bob").get("basic")).put("access", "everybody");
+    Assert.assertTrue(cachedBasic.isEmpty());
+
+    Hashtable<String, Object> eventProperties = new Hashtable<String, Object>();
+    eventProperties.put("path", "bob");
+    ps.handleEvent(new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, eventProperties));
+    Mockito.verify(cache).remove("bob");
+  }
+
   /**
    * @return
    */
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.profile.ProfileProvider;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.sakaiproject.nakamura.profile.ProviderResultCache.CachedResult;
+import org.sakaiproject.nakamura.util.ImmediateFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class ProviderResultCacheTest {
+
+  private static final String PATH = "a:ieb/public/authprofile/ldap";
+
+  private ExecutorService executor;
+  private Map<String, CachedResult> store;
+  private Cache<CachedResult> cache;
+  private ProviderSettings settings;
+  private Content content;
+  private Repository repository;
+  private SlingRepository slingRepository;
+  private Session adminSession;
+  private javax.jcr.Session adminJcrSession;
+
+  @Before
+  public void before() {
+    executor = Executors.newFixedThreadPool(2);
+    store = new HashMap<String, CachedResult>();
+    cache = new MapBackedCache(store);
+    content = Mockito.mock(Content.class);
+    Mockito.when(content.getPath()).thenReturn(PATH);
+    settings = Mockito.mock(ProviderSettings.class);
+    Mockito.when(settings.getNode()).thenReturn(content);
+    repository = Mockito.mock(Repository.class);
+    adminSession = Mockito.mock(Session.class);
+    Mockito.when(repository.loginAdministrative()).thenReturn(adminSession);
+    slingRepository = Mockito.mock(SlingRepository.class);
+    adminJcrSession = Mockito.mock(javax.jcr.Session.class);
+    Mockito.when(slingRepository.loginAdministrative(null)).thenReturn(adminJcrSession);
+  }
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testMissIsFetchedAndCached() {
+    ProfileProvider provider = immediateProvider("directory");
+    ProviderResultCache resultCache = new ProviderResultCache(cache, executor, 60000L,
+        1000L, new HashMap<String, Long>(), repository, slingRepository);
+
+    Map<String, Map<String, Object>> result = resultCache.getProvidedMaps("ldap",
+        provider, ImmutableList.of(settings));
+    Assert.assertEquals("directory", result.get(PATH).get("source"));
+    Assert.assertTrue(store.containsKey("ldap:" + PATH));
+
+    // the second call must not go to the provider.
+    result = resultCache.getProvidedMaps("ldap", provider, ImmutableList.of(settings));
+    Assert.assertEquals("directory", result.get(PATH).get("source"));
+    Mockito.verify(provider, Mockito.times(1)).getProvidedMap(
+        Mockito.anyListOf(ProviderSettings.class));
+  }
+
+  @Test
+  public void testSlowProviderTimesOut() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    ProfileProvider provider = new ProfileProvider() {
+      public Map<Content, ? extends Future<Map<String, Object>>> getProvidedMap(
+          List<ProviderSettings> list) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return ImmutableMap.of(content, new ImmediateFuture<Map<String, Object>>(
+            ImmutableMap.of("source", (Object) "late")));
+      }
+    };
+    ProviderResultCache resultCache = new ProviderResultCache(cache, executor, 60000L,
+        1000L, ImmutableMap.of("ldap", 50L), repository, slingRepository);
+
+    Map<String, Map<String, Object>> result = resultCache.getProvidedMaps("ldap",
+        provider, ImmutableList.of(settings));
+    Assert.assertFalse(result.containsKey(PATH));
+
+    // the late answer ends up in the cache for the next request.
+    release.countDown();
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+    Assert.assertEquals("late", store.get("ldap:" + PATH).getValue().get("source"));
+  }
+
+  @Test
+  public void testStaleIsServedAndRefreshed() throws Exception {
+    store.put("ldap:" + PATH, new CachedResult(ImmutableMap.of("source", (Object) "stale")));
+    ProfileProvider provider = immediateProvider("fresh");
+    ProviderResultCache resultCache = new ProviderResultCache(cache, executor, -1L, 1000L,
+        new HashMap<String, Long>(), repository, slingRepository);
+
+    Map<String, Map<String, Object>> result = resultCache.getProvidedMaps("ldap",
+        provider, ImmutableList.of(settings));
+    Assert.assertEquals("stale", result.get(PATH).get("source"));
+
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+    Assert.assertEquals("fresh", store.get("ldap:" + PATH).getValue().get("source"));
+  }
+
+  @Test
+  public void testRefreshReadsSettingsInItsOwnSessions() throws Exception {
+    store.put("ldap:" + PATH, new CachedResult(ImmutableMap.of("source", (Object) "stale")));
+    ContentManager contentManager = Mockito.mock(ContentManager.class);
+    Mockito.when(adminSession.getContentManager()).thenReturn(contentManager);
+    ProviderSettingsImpl requestSettings = Mockito.mock(ProviderSettingsImpl.class);
+    Mockito.when(requestSettings.getNode()).thenReturn(content);
+    final ProviderSettingsImpl adminSettings = Mockito.mock(ProviderSettingsImpl.class);
+    Mockito.when(requestSettings.reload(contentManager, adminJcrSession)).thenReturn(
+        adminSettings);
+    final List<ProviderSettings> seen = new ArrayList<ProviderSettings>();
+    ProfileProvider provider = new ProfileProvider() {
+      public Map<Content, ? extends Future<Map<String, Object>>> getProvidedMap(
+          List<ProviderSettings> list) {
+        seen.addAll(list);
+        return ImmutableMap.of(content, new ImmediateFuture<Map<String, Object>>(
+            ImmutableMap.of("source", (Object) "fresh")));
+      }
+    };
+    ProviderResultCache resultCache = new ProviderResultCache(cache, executor, -1L, 1000L,
+        new HashMap<String, Long>(), repository, slingRepository);
+
+    resultCache.getProvidedMaps("ldap", provider,
+        ImmutableList.<ProviderSettings> of(requestSettings));
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+
+    Assert.assertEquals(ImmutableList.of(adminSettings), seen);
+    Assert.assertEquals("fresh", store.get("ldap:" + PATH).getValue().get("source"));
+    Mockito.verify(adminSession).logout();
+    Mockito.verify(adminJcrSession).logout();
+  }
+
+  @Test
+  public void testProvidedFutureIsBoundedByTheTimeout() throws Exception {
+    final Future<Map<String, Object>> never = new FutureTask<Map<String, Object>>(
+        new Callable<Map<String, Object>>() {
+          public Map<String, Object> call() {
+            return null;
+          }
+        });
+    ProfileProvider provider = new ProfileProvider() {
+      public Map<Content, ? extends Future<Map<String, Object>>> getProvidedMap(
+          List<ProviderSettings> list) {
+        return ImmutableMap.of(content, never);
+      }
+    };
+    ProviderResultCache resultCache = new ProviderResultCache(cache, executor, 60000L,
+        1000L, ImmutableMap.of("ldap", 50L), repository, slingRepository);
+
+    resultCache.getProvidedMaps("ldap", provider, ImmutableList.of(settings));
+    executor.shutdown();
+    // the call gives up on the future rather than holding a provider thread forever.
+    Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    Assert.assertTrue(never.isCancelled());
+    Assert.assertFalse(store.containsKey("ldap:" + PATH));
+  }
+
+  private ProfileProvider immediateProvider(String source) {
+    ProfileProvider provider = Mockito.mock(ProfileProvider.class);
+    Map<Content, Future<Map<String, Object>>> provided = new HashMap<Content, Future<Map<String, Object>>>();
+    provided.put(content,
+        new ImmediateFuture<Map<String, Object>>(ImmutableMap.of("source", (Object) source)));
+    Mockito.doReturn(provided).when(provider)
+        .getProvidedMap(Mockito.anyListOf(ProviderSettings.class));
+    return provider;
+  }
+
+  private static class MapBackedCache implements Cache<CachedResult> {
+    private final Map<String, CachedResult> map;
+
+    MapBackedCache(Map<String, CachedResult> map) {
+      this.map = map;
+    }
+
+    public synchronized CachedResult put(String key, CachedResult payload) {
+      return map.put(key, payload);
+    }
+
+    public synchronized boolean containsKey(String key) {
+      return map.containsKey(key);
+    }
+
+    public synchronized CachedResult get(String key) {
+      return map.get(key);
+    }
+
+    public synchronized void clear() {
+      map.clear();
+    }
+
+    public synchronized void remove(String key) {
+      map.remove(key);
+    }
+
+    public synchronized void removeChildren(String key) {
+      map.remove(key);
+    }
+
+    public synchronized List<CachedResult> list() {
+      return new ArrayList<CachedResult>(map.values());
+    }
+  }
+}
@@ -534,7 +534,7 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    *
    */
   private void unbindNode() {
-    boundNode.set(null);
+    boundNode.remove();
   }
 
   /**
@@ -11,64 +11,624 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+/**
+ * Imports a tree of JSON into sparse content, one content item for each object.
+ * <p>
+ * The JSON can be read as a stream, so that the whole tree is never held in memory. Once
+ * an object is found not to exist, nothing below it is read back from storage before it
+ * is written. Writes are queued and made in batches, and progress is logged every
+ * {@value #PROGRESS_INTERVAL} items.
+ * <p>
+ * A stream is read through once before the import, so that text that is not JSON is found
+ * before anything is deleted or written. It is held in memory while it is small, and in a
+ * temporary file after that.
+ */
 public class LiteJsonImporter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteJsonImporter.class);
-  
+
+  /**
+   * The number of content items written at a time, unless another is given.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  private static final int PROGRESS_INTERVAL = 1000;
+
+  private final int batchSize;
+
+  public LiteJsonImporter() {
+    this(DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param batchSize
+   *          the number of content items to queue before they are written.
+   */
+  public LiteJsonImporter(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
   public void importContent(ContentManager contentManager, JSONObject json,
       String path, boolean removeTree, boolean replaceProperties) throws JSONException, StorageClientException, AccessDeniedException  {
+    removeTree(contentManager, path, removeTree);
+    Import imp = new Import(contentManager, replaceProperties);
+    Content existing = imp.get(path);
+    imp.importObject(json, path, existing, removeTree || existing == null);
+    imp.finish(path);
+  }
+
+  /**
+   * Imports JSON read from a stream, without holding the whole tree in memory. Nothing is
+   * deleted or written unless all of the JSON can be read.
+   *
+   * @param contentManager
+   * @param reader
+   *          the JSON, an object.
+   * @param path
+   *          the path to import the object to.
+   * @param removeTree
+   *          true to delete everything below the path first.
+   * @param replaceProperties
+   *          true to replace properties of content that exists, false to only add
+   *          properties it does not have.
+   * @throws IOException
+   * @throws JSONException
+   *           if the text is not JSON, in which case nothing has been changed.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public void importContent(ContentManager contentManager, Reader reader, String path,
+      boolean removeTree, boolean replaceProperties) throws IOException, JSONException,
+      StorageClientException, AccessDeniedException {
+    Spool spool = new Spool(reader);
+    try {
+      // read it all once without writing, a stream cannot be checked as it is imported.
+      Reader check = spool.open();
+      try {
+        new Import(null, false).importObject(open(check), path, null, true);
+      } finally {
+        check.close();
+      }
+
+      Reader in = spool.open();
+      try {
+        Tokenizer tokenizer = open(in);
+        removeTree(contentManager, path, removeTree);
+        Import imp = new Import(contentManager, replaceProperties);
+        Content existing = imp.get(path);
+        imp.importObject(tokenizer, path, existing, removeTree || existing == null);
+        imp.finish(path);
+      } finally {
+        in.close();
+      }
+    } finally {
+      spool.delete();
+    }
+  }
+
+  /**
+   * @return a tokenizer that has read the opening brace of the object.
+   */
+  private Tokenizer open(Reader reader) throws IOException, JSONException {
+    Tokenizer tokenizer = new Tokenizer(reader);
+    if (tokenizer.nextClean() != '{') {
+      throw tokenizer.syntaxError("A JSONObject text must begin with '{'");
+    }
+    return tokenizer;
+  }
+
+  public void internalImportContent(ContentManager contentManager, JSONObject json,
+      String path, boolean replaceProperties) throws JSONException, StorageClientException, AccessDeniedException {
+    Import imp = new Import(contentManager, replaceProperties);
+    Content existing = imp.get(path);
+    imp.importObject(json, path, existing, existing == null);
+    imp.finish(path);
+  }
+
+  private void removeTree(ContentManager contentManager, String path, boolean removeTree)
+      throws StorageClientException, AccessDeniedException {
     if ( removeTree ) {
       for ( Iterator<String> i = contentManager.listChildPaths(path); i.hasNext(); ) {
         String childPath = i.next();
-        LOGGER.info("Deleting {} ",childPath);
+        LOGGER.debug("Deleting {} ",childPath);
         StorageClientUtils.deleteTree(contentManager, childPath);
-        LOGGER.info("Done Deleting {} ",childPath);
       }
     }
-    internalImportContent(contentManager, json, path, replaceProperties);
   }
-  public void internalImportContent(ContentManager contentManager, JSONObject json,
-      String path, boolean replaceProperties) throws JSONException, StorageClientException, AccessDeniedException {
-    Iterator<String> keys = json.keys();
-    Map<String, Object> properties = new HashMap<String, Object>();
-    while (keys.hasNext()) {
-
-      String key = keys.next();
-      if (!key.startsWith("jcr:")) {
-        Object obj = json.get(key);
-
-        if (obj instanceof JSONObject) {
-          internalImportContent(contentManager, (JSONObject) obj, path + "/" + key, replaceProperties);
-        } else if (obj instanceof JSONArray) {
-          // This represents a multivalued property
-          JSONArray arr = (JSONArray) obj;
-          String[] values = new String[arr.length()];
-          for (int i = 0; i < arr.length(); i++) {
-            values[i] = arr.getString(i);
+
+  /**
+   * One import, with the writes that have not been made yet. Without a content manager
+   * the JSON is only read, nothing is read from or written to storage.
+   */
+  private final class Import {
+
+    private final ContentManager contentManager;
+    private final boolean replaceProperties;
+    private final List<Content> pending = new ArrayList<Content>(batchSize);
+    private final long started = System.currentTimeMillis();
+    private long items;
+    private long reads;
+
+    Import(ContentManager contentManager, boolean replaceProperties) {
+      this.contentManager = contentManager;
+      this.replaceProperties = replaceProperties;
+    }
+
+    Content get(String path) throws StorageClientException, AccessDeniedException {
+      reads++;
+      return contentManager.get(path);
+    }
+
+    /**
+     * @param existing
+     *          the content at the path, null if there is none.
+     * @param newTree
+     *          true if nothing exists below the path.
+     */
+    void importObject(JSONObject json, String path, Content existing, boolean newTree)
+        throws JSONException, StorageClientException, AccessDeniedException {
+      Iterator<String> keys = json.keys();
+      Map<String, Object> properties = new HashMap<String, Object>();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        if (!key.startsWith("jcr:")) {
+          Object obj = json.get(key);
+
+          if (obj instanceof JSONObject) {
+            String childPath = path + "/" + key;
+            Content child = newTree ? null : get(childPath);
+            importObject((JSONObject) obj, childPath, child, newTree || child == null);
+          } else if (obj instanceof JSONArray) {
+            // This represents a multivalued property
+            JSONArray arr = (JSONArray) obj;
+            String[] values = new String[arr.length()];
+            for (int i = 0; i < arr.length(); i++) {
+              values[i] = arr.getString(i);
+            }
+            properties.put(key, values);
+          } else {
+            properties.put(key, obj);
           }
-          properties.put(key, values);
+        }
+      }
+      write(path, existing, properties);
+    }
+
+    /**
+     * Reads an object from the stream, its opening brace has been read. Objects inside it
+     * are imported as they are read.
+     */
+    void importObject(Tokenizer tokenizer, String path, Content existing, boolean newTree)
+        throws IOException, JSONException, StorageClientException, AccessDeniedException {
+      Map<String, Object> properties = new HashMap<String, Object>();
+      char c = tokenizer.nextClean();
+      if (c != '}') {
+        tokenizer.back();
+        for (;;) {
+          String key = tokenizer.nextKey();
+          boolean skip = key.startsWith("jcr:");
+          c = tokenizer.nextClean();
+          if (c == '{') {
+            if (skip) {
+              tokenizer.nextRaw(c, null);
+            } else {
+              String childPath = path + "/" + key;
+              Content child = newTree ? null : get(childPath);
+              importObject(tokenizer, childPath, child, newTree || child == null);
+            }
+          } else if (c == '[') {
+            // This represents a multivalued property
+            String[] values = tokenizer.nextArray();
+            if (!skip) {
+              properties.put(key, values);
+            }
+          } else {
+            tokenizer.back();
+            Object value = tokenizer.nextScalar();
+            if (!skip) {
+              properties.put(key, value);
+            }
+          }
+          c = tokenizer.nextClean();
+          if (c == ',' || c == ';') {
+            if (tokenizer.nextClean() == '}') {
+              break;
+            }
+            tokenizer.back();
+          } else if (c == '}') {
+            break;
+          } else {
+            throw tokenizer.syntaxError("Expected a ',' or '}'");
+          }
+        }
+      }
+      write(path, existing, properties);
+    }
+
+    private void write(String path, Content content, Map<String, Object> properties)
+        throws StorageClientException, AccessDeniedException {
+      if (contentManager == null) {
+        return;
+      }
+      if (content == null) {
+        pending.add(new Content(path, properties));
+        LOGGER.debug("Created Node {} {}", path, properties);
+      } else {
+        for (Entry<String, Object> e : properties.entrySet()) {
+          if (replaceProperties || !content.hasProperty(e.getKey())) {
+            LOGGER.debug("Updated Node {} {} {} ", new Object[] { path, e.getKey(),
+                e.getValue() });
+            content.setProperty(e.getKey(), e.getValue());
+          }
+        }
+        pending.add(content);
+      }
+      items++;
+      if (pending.size() >= batchSize) {
+        flush();
+      }
+      if (items % PROGRESS_INTERVAL == 0) {
+        LOGGER.info("Imported {} items, {} items/s ", items, rate());
+      }
+    }
+
+    private void flush() throws StorageClientException, AccessDeniedException {
+      for (Content content : pending) {
+        contentManager.update(content);
+      }
+      pending.clear();
+    }
+
+    private long rate() {
+      return items * 1000L / Math.max(1L, System.currentTimeMillis() - started);
+    }
+
+    void finish(String path) throws StorageClientException, AccessDeniedException {
+      flush();
+      LOGGER.info("Imported {} items to {} in {}ms, {} items/s, {} read first ",
+          new Object[] { items, path, System.currentTimeMillis() - started, rate(), reads });
+    }
+  }
+
+  /**
+   * Reads JSON a token at a time. It accepts what {@link JSONObject} accepts, so that
+   * text that could be imported before still can be.
+   */
+  private static final class Tokenizer {
+
+    private final Reader reader;
+    private int previous;
+    private boolean usePrevious;
+    private long index;
+
+    Tokenizer(Reader reader) {
+      this.reader = reader.markSupported() ? reader : new BufferedReader(reader);
+    }
+
+    char next() throws IOException, JSONException {
+      int c;
+      if (usePrevious) {
+        usePrevious = false;
+        c = previous;
+      } else {
+        c = reader.read();
+        if (c < 0) {
+          throw syntaxError("Unexpected end of text");
+        }
+        previous = c;
+      }
+      index++;
+      return (char) c;
+    }
+
+    void back() {
+      usePrevious = true;
+      index--;
+    }
+
+    /**
+     * @return the next character that is not white space or in a comment.
+     */
+    char nextClean() throws IOException, JSONException {
+      for (;;) {
+        char c = next();
+        if (c == '/') {
+          char n = next();
+          if (n == '/') {
+            skipLine();
+          } else if (n == '*') {
+            skipComment();
+          } else {
+            back();
+            return c;
+          }
+        } else if (c == '#') {
+          skipLine();
+        } else if (c > ' ') {
+          return c;
+        }
+      }
+    }
+
+    private void skipLine() throws IOException, JSONException {
+      char c;
+      do {
+        c = next();
+      } while (c != '\n' && c != '\r');
+    }
+
+    private void skipComment() throws IOException, JSONException {
+      for (;;) {
+        if (next() == '*') {
+          if (next() == '/') {
+            return;
+          }
+          back();
+        }
+      }
+    }
+
+    String nextString(char quote) throws IOException, JSONException {
+      StringBuilder sb = new StringBuilder();
+      for (;;) {
+        char c = next();
+        switch (c) {
+        case '\n':
+        case '\r':
+          throw syntaxError("Unterminated string");
+        case '\\':
+          c = next();
+          switch (c) {
+          case 'b':
+            sb.append('\b');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 'u':
+            char[] hex = { next(), next(), next(), next() };
+            try {
+              sb.append((char) Integer.parseInt(new String(hex), 16));
+            } catch (NumberFormatException e) {
+              throw syntaxError("Illegal escape");
+            }
+            break;
+          default:
+            sb.append(c);
+          }
+          break;
+        default:
+          if (c == quote) {
+            return sb.toString();
+          }
+          sb.append(c);
+        }
+      }
+    }
+
+    String nextKey() throws IOException, JSONException {
+      char c = nextClean();
+      String key;
+      if (c == '"' || c == '\'') {
+        key = nextString(c);
+      } else if (c == '{' || c == '[' || c == '}') {
+        throw syntaxError("A JSONObject key must be a string");
+      } else {
+        back();
+        key = nextUnquoted();
+      }
+      c = nextClean();
+      if (c == '=') {
+        if (next() != '>') {
+          back();
+        }
+      } else if (c != ':') {
+        throw syntaxError("Expected a ':' after a key");
+      }
+      return key;
+    }
+
+    private String nextUnquoted() throws IOException, JSONException {
+      StringBuilder sb = new StringBuilder();
+      char c = next();
+      while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+        sb.append(c);
+        c = next();
+      }
+      back();
+      String s = sb.toString().trim();
+      if (s.length() == 0) {
+        throw syntaxError("Missing value");
+      }
+      return s;
+    }
+
+    /**
+     * @return a string, boolean, number or {@link JSONObject#NULL}.
+     */
+    Object nextScalar() throws IOException, JSONException {
+      char c = nextClean();
+      if (c == '"' || c == '\'') {
+        return nextString(c);
+      }
+      back();
+      String s = nextUnquoted();
+      if (s.equalsIgnoreCase("true")) {
+        return Boolean.TRUE;
+      } else if (s.equalsIgnoreCase("false")) {
+        return Boolean.FALSE;
+      } else if (s.equalsIgnoreCase("null")) {
+        return JSONObject.NULL;
+      }
+      char first = s.charAt(0);
+      if ((first >= '0' && first <= '9') || first == '-' || first == '.' || first == '+') {
+        try {
+          if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+            long l = Long.parseLong(s);
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+              return Integer.valueOf((int) l);
+            }
+            return Long.valueOf(l);
+          }
+          return Double.valueOf(s);
+        } catch (NumberFormatException e) {
+          // not a number, so it is a string.
+        }
+      }
+      return s;
+    }
+
+    /**
+     * Reads an array, its opening bracket has been read.
+     *
+     * @return the values in the array as strings.
+     */
+    String[] nextArray() throws IOException, JSONException {
+      List<String> values = new ArrayList<String>();
+      char c = nextClean();
+      if (c == ']') {
+        return new String[0];
+      }
+      back();
+      for (;;) {
+        c = nextClean();
+        if (c == '{' || c == '[') {
+          StringBuilder raw = new StringBuilder();
+          nextRaw(c, raw);
+          values.add(raw.toString());
+        } else {
+          back();
+          values.add(String.valueOf(nextScalar()));
+        }
+        c = nextClean();
+        if (c == ',' || c == ';') {
+          if (nextClean() == ']') {
+            break;
+          }
+          back();
+        } else if (c == ']') {
+          break;
         } else {
-          properties.put(key, obj);
+          throw syntaxError("Expected a ',' or ']'");
+        }
+      }
+      return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Reads the rest of an object or array, its opening character has been read.
+     *
+     * @param raw
+     *          to append the text of the object or array to, null to skip it.
+     */
+    void nextRaw(char open, StringBuilder raw) throws IOException, JSONException {
+      if (raw != null) {
+        raw.append(open);
+      }
+      int depth = 1;
+      char quote = 0;
+      while (depth > 0) {
+        char c = next();
+        if (raw != null) {
+          raw.append(c);
+        }
+        if (quote != 0) {
+          if (c == '\\') {
+            c = next();
+            if (raw != null) {
+              raw.append(c);
+            }
+          } else if (c == quote) {
+            quote = 0;
+          }
+        } else if (c == '"' || c == '\'') {
+          quote = c;
+        } else if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
         }
       }
     }
-    Content content = contentManager.get(path);
-    if (content == null) {
-      contentManager.update(new Content(path, properties));
-      LOGGER.info("Created Node {} {}",path,properties);
-    } else {
-      for (Entry<String, Object> e : properties.entrySet()) {
-        if ( replaceProperties || !content.hasProperty(e.getKey())) {
-          LOGGER.info("Updated Node {} {} {} ",new Object[]{path,e.getKey(), e.getValue()});
-          content.setProperty(e.getKey(), e.getValue());
+
+    JSONException syntaxError(String message) {
+      return new JSONException(message + " at character " + index);
+    }
+  }
+
+  /**
+   * A copy of a stream, so that it can be read more than once.
+   */
+  private static final class Spool {
+
+    private static final int MAX_IN_MEMORY = 64 * 1024;
+
+    private char[] chars;
+    private File file;
+
+    Spool(Reader reader) throws IOException {
+      CharArrayWriter memory = new CharArrayWriter();
+      Writer out = memory;
+      char[] buffer = new char[4096];
+      try {
+        for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+          out.write(buffer, 0, n);
+          if (file == null && memory.size() > MAX_IN_MEMORY) {
+            file = File.createTempFile("import", ".json");
+            out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            memory.writeTo(out);
+            memory.reset();
+          }
         }
+      } catch (IOException e) {
+        out.close();
+        delete();
+        throw e;
+      }
+      out.close();
+      if (file == null) {
+        chars = memory.toCharArray();
+      }
+    }
+
+    Reader open() throws IOException {
+      if (file == null) {
+        return new CharArrayReader(chars);
+      }
+      return new InputStreamReader(new FileInputStream(file), "UTF-8");
+    }
+
+    void delete() {
+      if (file != null && !file.delete()) {
+        file.deleteOnExit();
       }
-      contentManager.update(content);
     }
   }
 
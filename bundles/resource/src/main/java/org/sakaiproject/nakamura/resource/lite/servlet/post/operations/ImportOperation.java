@@ -6,7 +6,6 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.HtmlResponse;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.NodeNameGenerator;
 import org.apache.sling.servlets.post.SlingPostConstants;
@@ -22,6 +21,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
@@ -80,30 +82,30 @@ public class ImportOperation extends AbstractSparseCreateOperation {
 
     response.setCreateRequest(true);
 
+    InputStream contentStream = null;
     try {
-      InputStream contentStream = null;
+      Reader reader = null;
       String content = request.getParameter(SlingPostConstants.RP_CONTENT);
-      if (content == null) {
+      if (content != null) {
+        reader = new StringReader(content);
+      } else {
         RequestParameter contentFile = request
             .getRequestParameter(SlingPostConstants.RP_CONTENT_FILE);
         if (contentFile != null) {
+          // read the file as it is imported, rather than all of it first.
           contentStream = contentFile.getInputStream();
-          content = IOUtils.toString(contentStream, "UTF-8");
+          reader = new InputStreamReader(contentStream, "UTF-8");
         }
       }
 
-      if (content == null) {
+      if (reader == null) {
         response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED,
             "Missing content for import");
         return;
       } else {
-        
-        JSONObject json = new JSONObject(content);
-        if ( LOGGER.isDebugEnabled() ) {
-          LOGGER.debug("to {} importing {} ",basePath,json.toString(3));
-        }
+        LOGGER.debug("Importing to {} ", basePath);
         LiteJsonImporter simpleJsonImporter = new LiteJsonImporter();
-        simpleJsonImporter.importContent(contentManager, json, basePath, replace, replaceProperties);
+        simpleJsonImporter.importContent(contentManager, reader, basePath, replace, replaceProperties);
           response.setLocation(externalizePath(request, basePath));
           response.setPath(basePath);
           int lastSlashIndex = basePath.lastIndexOf('/');
@@ -119,6 +121,8 @@ public class ImportOperation extends AbstractSparseCreateOperation {
     } catch (JSONException e) {
       LOGGER.error(e.getMessage(),e);
       throw new StorageClientException(e.getMessage(),e);
+    } finally {
+      IOUtils.closeQuietly(contentStream);
     }
   }
 
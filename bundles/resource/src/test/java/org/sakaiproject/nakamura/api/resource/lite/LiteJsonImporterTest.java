@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LiteJsonImporterTest {
+
+  private ContentManager contentManager;
+  private Map<String, Content> written;
+
+  @Before
+  public void setUp() throws Exception {
+    written = new HashMap<String, Content>();
+    contentManager = mock(ContentManager.class);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Content content = (Content) invocation.getArguments()[0];
+        written.put(content.getPath(), content);
+        return null;
+      }
+    }).when(contentManager).update(any(Content.class));
+  }
+
+  @Test
+  public void testLenientSyntax() throws Exception {
+    importJson("{ // a comment\n"
+        + " /* another\n comment */ unquoted : 'single',\n"
+        + " # a line comment\n"
+        + " \"arrow\" => \"value\"; 'equals' = \"x\",\n"
+        + " child : { a : 1, }, }", false);
+
+    Content root = written.get("/test");
+    assertEquals("single", root.getProperty("unquoted"));
+    assertEquals("value", root.getProperty("arrow"));
+    assertEquals("x", root.getProperty("equals"));
+    assertEquals(1, written.get("/test/child").getProperty("a"));
+  }
+
+  @Test
+  public void testScalars() throws Exception {
+    importJson("{ \"int\" : 42, \"negative\" : -7, \"long\" : 12345678901,"
+        + " \"double\" : 1.5, \"exponent\" : 2e3, \"notANumber\" : 1.2.3,"
+        + " \"yes\" : true, \"no\" : FALSE, \"nothing\" : null,"
+        + " \"escaped\" : \"a\\n\\u0041\\\"\" }", false);
+
+    Content root = written.get("/test");
+    assertEquals(Integer.valueOf(42), root.getProperty("int"));
+    assertEquals(Integer.valueOf(-7), root.getProperty("negative"));
+    assertEquals(Long.valueOf(12345678901L), root.getProperty("long"));
+    assertEquals(Double.valueOf(1.5), root.getProperty("double"));
+    assertEquals(Double.valueOf(2000), root.getProperty("exponent"));
+    assertEquals("1.2.3", root.getProperty("notANumber"));
+    assertEquals(Boolean.TRUE, root.getProperty("yes"));
+    assertEquals(Boolean.FALSE, root.getProperty("no"));
+    assertEquals(JSONObject.NULL, root.getProperty("nothing"));
+    assertEquals("a\nA\"", root.getProperty("escaped"));
+  }
+
+  @Test
+  public void testArrays() throws Exception {
+    importJson("{ \"empty\" : [], \"values\" : [ \"a\", 1, true, ],"
+        + " \"nested\" : [ { \"b\" : \"]}\" }, [ 1, 2 ] ] }", false);
+
+    Content root = written.get("/test");
+    assertArrayEquals(new String[0], (String[]) root.getProperty("empty"));
+    assertArrayEquals(new String[] { "a", "1", "true" },
+        (String[]) root.getProperty("values"));
+    assertArrayEquals(new String[] { "{ \"b\" : \"]}\" }", "[ 1, 2 ]" },
+        (String[]) root.getProperty("nested"));
+    assertEquals(1, written.size());
+  }
+
+  @Test
+  public void testJcrObjectsAreSkipped() throws Exception {
+    importJson("{ \"jcr:content\" : { \"a\" : \"{\\\"'\", \"b\" : [ { } ] },"
+        + " \"jcr:primaryType\" : \"nt:file\", \"after\" : \"here\" }", false);
+
+    Content root = written.get("/test");
+    assertEquals("here", root.getProperty("after"));
+    assertNull(root.getProperty("jcr:primaryType"));
+    assertFalse(written.containsKey("/test/jcr:content"));
+  }
+
+  @Test
+  public void testExistingContentIsMerged() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("kept", "old");
+    when(contentManager.get("/test")).thenReturn(new Content("/test", properties));
+
+    importJson("{ \"kept\" : \"new\", \"added\" : \"new\" }", false);
+
+    Content root = written.get("/test");
+    assertEquals("old", root.getProperty("kept"));
+    assertEquals("new", root.getProperty("added"));
+  }
+
+  @Test
+  public void testLargeImportIsBatched() throws Exception {
+    // big enough to be held in a file, with more items than a batch.
+    StringBuilder json = new StringBuilder("{");
+    for (int i = 0; i < 5000; i++) {
+      json.append("\"node").append(i).append("\" : { \"index\" : ").append(i).append(" },");
+    }
+    json.append("}");
+    new LiteJsonImporter(7).importContent(contentManager,
+        new StringReader(json.toString()), "/test", false, true);
+
+    assertEquals(5001, written.size());
+    assertEquals(4999, written.get("/test/node4999").getProperty("index"));
+    // nothing below a new node is read back.
+    verify(contentManager, never()).get("/test/node0");
+  }
+
+  @Test
+  public void testMalformedJsonChangesNothing() throws Exception {
+    List<String> children = new ArrayList<String>();
+    children.add("/test/existing");
+    when(contentManager.listChildPaths("/test")).thenReturn(children.iterator());
+
+    String[] malformed = { "", "[ 1 ]", "{ \"a\" : 1 ", "{ \"a\" 1 }",
+        "{ \"a\" : \"unterminated\n\" }", "{ \"a\" : { \"b\" : 1 } \"c\" : 2 }",
+        "{ \"a\" : [ 1, 2 }", "{ \"a\" : \"\\uZZZZ\" }", "{ { } }" };
+    for (String json : malformed) {
+      try {
+        importJson(json, true);
+        fail("Should not import " + json);
+      } catch (JSONException e) {
+        // expected
+      }
+    }
+    assertTrue(written.isEmpty());
+    verify(contentManager, never()).listChildPaths(anyString());
+    verify(contentManager, never()).delete(anyString());
+  }
+
+  private void importJson(String json, boolean removeTree) throws Exception {
+    new LiteJsonImporter().importContent(contentManager, new StringReader(json), "/test",
+        removeTree, false);
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+
+/**
+ * Watches the handlers that build documents for the indexer. It counts the events,
+ * documents and deletes each handler deals with, how long the documents take to build and
+ * how far behind the changes they are, and skips events whose change is already in a
+ * document built since.
+ */
+public interface IndexingMonitor {
+
+  /**
+   * @param name
+   *          the name to report the handler's statistics under.
+   * @param handler
+   *          the handler that builds the documents.
+   * @return a handler to register with the indexer in place of the given handler.
+   */
+  IndexingHandler monitor(String name, IndexingHandler handler);
+
+}
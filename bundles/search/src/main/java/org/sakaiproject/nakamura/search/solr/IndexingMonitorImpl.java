@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.search.solr.IndexingMonitor;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Monitors indexing handlers, and makes their statistics visible over JMX.
+ * <p>
+ * Sparse does not put the time of a change on its events, so the monitor listens for
+ * them itself and notes when each one arrived. The change was made before that, so the
+ * arrival time is a safe stand in for the time of the change when deciding whether a
+ * document built since covers it. An event the monitor has not seen is never skipped.
+ */
+@Component(immediate = true, metatype = true)
+@Service
+@Properties(value = {
+    @Property(name = EventConstants.EVENT_TOPIC, value = StoreListener.TOPIC_BASE + "*", propertyPrivate = true) })
+public class IndexingMonitorImpl implements IndexingMonitor, IndexingMonitorMBean,
+    EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexingMonitorImpl.class);
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura:type=IndexingMonitor";
+
+  @Property(boolValue = true, label = "Skip covered events", description = "Skip events whose change is already in a document built since.")
+  static final String COALESCE = "indexing.coalesce";
+
+  @Property(intValue = 10000, label = "Paths", description = "The most paths to remember the last document of, for each handler.")
+  static final String MAX_PATHS = "indexing.max.paths";
+
+  private final Map<String, MonitoredIndexingHandler> handlers = new ConcurrentHashMap<String, MonitoredIndexingHandler>();
+
+  /**
+   * When recent events arrived, oldest first. Events that are equal share an entry, which
+   * holds the latest arrival, so it is never earlier than the change of any of them.
+   */
+  private final Map<Event, Long> arrivals = new LinkedHashMap<Event, Long>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Event, Long> eldest) {
+      return size() > maxPaths;
+    }
+  };
+
+  private volatile boolean coalescing = true;
+  private volatile int maxPaths = 10000;
+  private long started = System.currentTimeMillis();
+  private ObjectName objectName;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    coalescing = OsgiUtil.toBoolean(properties.get(COALESCE), true);
+    maxPaths = Math.max(1, OsgiUtil.toInteger(properties.get(MAX_PATHS), 10000));
+    if (objectName == null) {
+      started = System.currentTimeMillis();
+      registerMBean();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.warn("Unable to unregister the indexing monitor MBean {} ", e.getMessage());
+      }
+      objectName = null;
+    }
+  }
+
+  private void registerMBean() {
+    try {
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(new StandardMBean(this, IndexingMonitorMBean.class), name);
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register the indexing monitor MBean {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.IndexingMonitor#monitor(java.lang.String,
+   *      org.sakaiproject.nakamura.api.solr.IndexingHandler)
+   */
+  public IndexingHandler monitor(String name, IndexingHandler handler) {
+    MonitoredIndexingHandler monitored = new MonitoredIndexingHandler(name, handler, this);
+    handlers.put(name, monitored);
+    return monitored;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    if (coalescing) {
+      synchronized (arrivals) {
+        // put at the end again, as the newest.
+        arrivals.remove(event);
+        arrivals.put(event, System.currentTimeMillis());
+      }
+    }
+  }
+
+  /**
+   * @param event
+   * @return the latest time the change the event is for can have been made, or null if
+   *         it is not known.
+   */
+  Long getChanged(Event event) {
+    Object timestamp = event.getProperty(EventConstants.TIMESTAMP);
+    if (timestamp instanceof Long) {
+      return (Long) timestamp;
+    }
+    synchronized (arrivals) {
+      return arrivals.get(event);
+    }
+  }
+
+  boolean isCoalescing() {
+    return coalescing;
+  }
+
+  int getMaxPaths() {
+    return maxPaths;
+  }
+
+  static void max(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getEventCount() {
+    long count = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      count += handler.events.get();
+    }
+    return count;
+  }
+
+  public long getDocumentCount() {
+    long count = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      count += handler.documents.get();
+    }
+    return count;
+  }
+
+  public long getDeleteCount() {
+    long count = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      count += handler.deletes.get();
+    }
+    return count;
+  }
+
+  public long getSkippedCount() {
+    long count = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      count += handler.skipped.get();
+    }
+    return count;
+  }
+
+  public long getFailedCount() {
+    long count = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      count += handler.failed.get();
+    }
+    return count;
+  }
+
+  public double getDocumentsPerSecond() {
+    long millis = Math.max(1000L, System.currentTimeMillis() - started);
+    return getDocumentCount() * 1000.0 / millis;
+  }
+
+  public long getMeanBuildMicros() {
+    long nanos = 0;
+    long count = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      nanos += handler.buildNanos.get();
+      count += handler.events.get() - handler.skipped.get();
+    }
+    return count == 0 ? 0 : nanos / count / 1000;
+  }
+
+  public long getMaxBuildMicros() {
+    long max = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      max = Math.max(max, handler.maxBuildNanos.get());
+    }
+    return max / 1000;
+  }
+
+  public long getMeanLagMillis() {
+    long millis = 0;
+    long count = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      millis += handler.lagMillis.get();
+      count += handler.lagged.get();
+    }
+    return count == 0 ? 0 : millis / count;
+  }
+
+  public long getMaxLagMillis() {
+    long max = 0;
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      max = Math.max(max, handler.maxLagMillis.get());
+    }
+    return max;
+  }
+
+  public String[] getHandlerStatistics() {
+    List<String> statistics = new ArrayList<String>();
+    for (MonitoredIndexingHandler handler : handlers.values()) {
+      statistics.add(handler.toString());
+    }
+    return statistics.toArray(new String[statistics.size()]);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+public interface IndexingMonitorMBean {
+
+  /**
+   * @return the number of events handed to the monitored handlers.
+   */
+  long getEventCount();
+
+  /**
+   * @return the number of documents built.
+   */
+  long getDocumentCount();
+
+  /**
+   * @return the number of delete queries made.
+   */
+  long getDeleteCount();
+
+  /**
+   * @return the number of events skipped because a later document covered them.
+   */
+  long getSkippedCount();
+
+  /**
+   * @return the number of events a handler failed on.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the mean number of documents built a second since the monitor started.
+   */
+  double getDocumentsPerSecond();
+
+  /**
+   * @return the mean time in microseconds taken to build the documents for an event.
+   */
+  long getMeanBuildMicros();
+
+  /**
+   * @return the longest time in microseconds taken to build the documents for an event.
+   */
+  long getMaxBuildMicros();
+
+  /**
+   * @return the mean time in ms from a change to its documents being built, for events
+   *         that carry the time of the change.
+   */
+  long getMeanLagMillis();
+
+  /**
+   * @return the longest time in ms from a change to its documents being built.
+   */
+  long getMaxLagMillis();
+
+  /**
+   * @return the statistics of each monitored handler, one line each.
+   */
+  String[] getHandlerStatistics();
+}
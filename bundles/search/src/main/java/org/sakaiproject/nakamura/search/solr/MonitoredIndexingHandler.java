@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link IndexingHandler} that keeps statistics for the handler it wraps and skips
+ * events that are already covered.
+ * <p>
+ * A burst of changes to one item queues an event for each change, and each event would
+ * read the item and build its document again. Once a document has been built, any event
+ * for the same path whose change was made before the document was started is covered by
+ * it, and is skipped. Only events whose change time is known, from
+ * {@link EventConstants#TIMESTAMP} or from when the monitor saw them arrive, can be
+ * skipped, deletes never are, and the outcome for an event is remembered so that its
+ * documents and its delete queries agree.
+ */
+final class MonitoredIndexingHandler implements IndexingHandler {
+
+  private static final int MAX_OUTCOMES = 1000;
+
+  private final String name;
+  private final IndexingHandler handler;
+  private final IndexingMonitorImpl monitor;
+
+  /**
+   * When the last document was started for each path, least recently used first.
+   */
+  private final Map<String, Long> built;
+
+  /**
+   * Whether recent events were skipped, and the change time that was decided on.
+   */
+  private final Map<Event, Outcome> outcomes = new LinkedHashMap<Event, Outcome>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Event, Outcome> eldest) {
+      return size() > MAX_OUTCOMES;
+    }
+  };
+
+  final AtomicLong events = new AtomicLong();
+  final AtomicLong documents = new AtomicLong();
+  final AtomicLong deletes = new AtomicLong();
+  final AtomicLong skipped = new AtomicLong();
+  final AtomicLong failed = new AtomicLong();
+  final AtomicLong buildNanos = new AtomicLong();
+  final AtomicLong maxBuildNanos = new AtomicLong();
+  final AtomicLong lagMillis = new AtomicLong();
+  final AtomicLong lagged = new AtomicLong();
+  final AtomicLong maxLagMillis = new AtomicLong();
+
+  MonitoredIndexingHandler(String name, IndexingHandler handler,
+      IndexingMonitorImpl monitor) {
+    this.name = name;
+    this.handler = handler;
+    this.monitor = monitor;
+    this.built = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > MonitoredIndexingHandler.this.monitor.getMaxPaths();
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   *      org.osgi.service.event.Event)
+   */
+  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
+      Event event) {
+    events.incrementAndGet();
+    if (isCovered(event)) {
+      skipped.incrementAndGet();
+      return Collections.emptyList();
+    }
+    long started = System.currentTimeMillis();
+    long start = System.nanoTime();
+    Collection<SolrInputDocument> docs;
+    try {
+      docs = handler.getDocuments(repositorySession, event);
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      throw e;
+    }
+    long nanos = System.nanoTime() - start;
+    buildNanos.addAndGet(nanos);
+    IndexingMonitorImpl.max(maxBuildNanos, nanos);
+    Long changed = monitor.getChanged(event);
+    if (changed != null) {
+      long lag = System.currentTimeMillis() - changed;
+      lagMillis.addAndGet(lag);
+      lagged.incrementAndGet();
+      IndexingMonitorImpl.max(maxLagMillis, lag);
+    }
+    String path = getPath(event);
+    if (docs != null && docs.size() > 0) {
+      documents.addAndGet(docs.size());
+      if (path != null && !isDelete(event)) {
+        synchronized (built) {
+          Long last = built.get(path);
+          if (last == null || last < started) {
+            built.put(path, started);
+          }
+        }
+      }
+    }
+    return docs;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   *      org.osgi.service.event.Event)
+   */
+  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
+      Event event) {
+    if (isCovered(event)) {
+      return Collections.emptyList();
+    }
+    if (isDelete(event)) {
+      String path = getPath(event);
+      if (path != null) {
+        synchronized (built) {
+          built.remove(path);
+        }
+      }
+    }
+    Collection<String> queries;
+    try {
+      queries = handler.getDeleteQueries(repositorySession, event);
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      throw e;
+    }
+    if (queries != null) {
+      deletes.addAndGet(queries.size());
+    }
+    return queries;
+  }
+
+  /**
+   * @param event
+   * @return true if the change the event is for is in a document started after it.
+   */
+  private boolean isCovered(Event event) {
+    if (!monitor.isCoalescing() || isDelete(event)) {
+      return false;
+    }
+    Long changed = monitor.getChanged(event);
+    synchronized (outcomes) {
+      Outcome outcome = outcomes.get(event);
+      // an equal event that arrived since is decided afresh.
+      if (outcome != null && equal(outcome.changed, changed)) {
+        return outcome.covered;
+      }
+    }
+    boolean covered = false;
+    String path = getPath(event);
+    if (changed != null && path != null) {
+      synchronized (built) {
+        Long started = built.get(path);
+        covered = started != null && started > changed;
+      }
+    }
+    synchronized (outcomes) {
+      outcomes.put(event, new Outcome(changed, covered));
+    }
+    return covered;
+  }
+
+  private static boolean equal(Long a, Long b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private static boolean isDelete(Event event) {
+    return event.getTopic().endsWith(StoreListener.DELETE_TOPIC);
+  }
+
+  private static String getPath(Event event) {
+    Object path = event.getProperty(FIELD_PATH);
+    return path instanceof String ? (String) path : null;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getTrackedPaths() {
+    synchronized (built) {
+      return built.size();
+    }
+  }
+
+  private static final class Outcome {
+    private final Long changed;
+    private final boolean covered;
+
+    Outcome(Long changed, boolean covered) {
+      this.changed = changed;
+      this.covered = covered;
+    }
+  }
+
+  @Override
+  public String toString() {
+    long count = Math.max(1, events.get() - skipped.get());
+    return name + ": events=" + events + " documents=" + documents + " deletes="
+        + deletes + " skipped=" + skipped + " failed=" + failed + " meanBuildMicros="
+        + (buildNanos.get() / count / 1000) + " maxBuildMicros="
+        + (maxBuildNanos.get() / 1000) + " meanLagMillis="
+        + (lagMillis.get() / Math.max(1, lagged.get())) + " paths=" + getTrackedPaths();
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+public class IndexingMonitorImplTest {
+
+  private IndexingMonitorImpl monitor;
+  private CountingHandler counting;
+  private IndexingHandler handler;
+
+  @Before
+  public void before() {
+    monitor = new IndexingMonitorImpl();
+    monitor.activate(new HashMap<String, Object>());
+    counting = new CountingHandler();
+    handler = monitor.monitor("test", counting);
+  }
+
+  @After
+  public void after() {
+    monitor.deactivate(new HashMap<String, Object>());
+  }
+
+  private Event event(String topic, String path, Long timestamp) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, path);
+    if (timestamp != null) {
+      properties.put(EventConstants.TIMESTAMP, timestamp);
+    }
+    return new Event(StoreListener.TOPIC_BASE + "content/" + topic, properties);
+  }
+
+  @Test
+  public void testSkipsCoveredEvents() {
+    long before = System.currentTimeMillis() - 10000L;
+    Event first = event(StoreListener.UPDATED_TOPIC, "/a", before);
+    Event second = event(StoreListener.UPDATED_TOPIC, "/a", before + 1);
+    assertEquals(1, handler.getDocuments(null, first).size());
+    // the second change was made before the first document was started.
+    assertEquals(0, handler.getDeleteQueries(null, second).size());
+    assertEquals(0, handler.getDocuments(null, second).size());
+    assertEquals(1, counting.documents);
+    assertEquals(1, monitor.getSkippedCount());
+
+    // later changes, other paths and events without a time are not covered.
+    assertEquals(1, handler.getDocuments(null,
+        event(StoreListener.UPDATED_TOPIC, "/a", System.currentTimeMillis() + 10000L))
+        .size());
+    assertEquals(1, handler.getDocuments(null,
+        event(StoreListener.UPDATED_TOPIC, "/b", before)).size());
+    assertEquals(1, handler.getDocuments(null,
+        event(StoreListener.UPDATED_TOPIC, "/a", null)).size());
+    assertEquals(4, counting.documents);
+  }
+
+  @Test
+  public void testSkipsEventsSeenBeforeTheDocument() throws Exception {
+    // sparse events carry no time, the monitor notes when they arrive.
+    Event first = event(StoreListener.UPDATED_TOPIC, "/a", null);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, "/a");
+    properties.put("userid", "ieb");
+    Event second = new Event(StoreListener.TOPIC_BASE + "content/"
+        + StoreListener.UPDATED_TOPIC, properties);
+    monitor.handleEvent(first);
+    monitor.handleEvent(second);
+    Thread.sleep(5);
+    assertEquals(1, handler.getDocuments(null, second).size());
+    assertEquals(0, handler.getDocuments(null, first).size());
+
+    // the same change made again after the document is not covered by it.
+    Thread.sleep(5);
+    monitor.handleEvent(event(StoreListener.UPDATED_TOPIC, "/a", null));
+    assertEquals(1, handler.getDocuments(null, first).size());
+    // nor is an event the monitor never saw.
+    assertEquals(1, handler.getDocuments(null,
+        event(StoreListener.UPDATED_TOPIC, "/b", null)).size());
+    assertEquals(3, counting.documents);
+  }
+
+  @Test
+  public void testNeverSkipsDeletes() {
+    long before = System.currentTimeMillis() - 10000L;
+    handler.getDocuments(null, event(StoreListener.UPDATED_TOPIC, "/a", before));
+    assertEquals(1, handler.getDeleteQueries(null,
+        event(StoreListener.DELETE_TOPIC, "/a", before)).size());
+    // once deleted, an item added again is indexed.
+    assertEquals(1, handler.getDocuments(null,
+        event(StoreListener.ADDED_TOPIC, "/a", before)).size());
+  }
+
+  @Test
+  public void testOutcomeKept() {
+    long before = System.currentTimeMillis() - 10000L;
+    Event first = event(StoreListener.UPDATED_TOPIC, "/a", before);
+    // deletes asked for first are not taken back once the document is built.
+    assertEquals(1, handler.getDeleteQueries(null, first).size());
+    assertEquals(1, handler.getDocuments(null, first).size());
+    assertEquals(0, monitor.getSkippedCount());
+  }
+
+  @Test
+  public void testNoCoalescing() {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(IndexingMonitorImpl.COALESCE, false);
+    monitor.activate(properties);
+    long before = System.currentTimeMillis() - 10000L;
+    handler.getDocuments(null, event(StoreListener.UPDATED_TOPIC, "/a", before));
+    handler.getDocuments(null, event(StoreListener.UPDATED_TOPIC, "/a", before + 1));
+    assertEquals(2, counting.documents);
+  }
+
+  @Test
+  public void testStatistics() {
+    long before = System.currentTimeMillis() - 10000L;
+    handler.getDocuments(null, event(StoreListener.UPDATED_TOPIC, "/a", before));
+    handler.getDeleteQueries(null, event(StoreListener.DELETE_TOPIC, "/b", before));
+    assertEquals(1, monitor.getEventCount());
+    assertEquals(1, monitor.getDocumentCount());
+    assertEquals(1, monitor.getDeleteCount());
+    assertTrue(monitor.getMaxLagMillis() >= 10000L);
+    assertEquals(1, monitor.getHandlerStatistics().length);
+    assertTrue(monitor.getHandlerStatistics()[0].startsWith("test: events=1 documents=1"));
+  }
+
+  private static class CountingHandler implements IndexingHandler {
+    private int documents;
+
+    public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
+        Event event) {
+      documents++;
+      return Collections.singletonList(new SolrInputDocument());
+    }
+
+    public Collection<String> getDeleteQueries(RepositorySession repositorySession,
+        Event event) {
+      return Collections.singletonList("id:" + event.getProperty(FIELD_PATH));
+    }
+  }
+}
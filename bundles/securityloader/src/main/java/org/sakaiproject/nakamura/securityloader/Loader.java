@@ -40,6 +40,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -130,6 +132,21 @@ public class Loader implements SecurityLoader {
    */
   public void registerBundle(Session session, Bundle bundle, boolean isUpdate)
       throws JSONException, IOException {
+    // nothing to do if this is the security content that was last loaded.
+    final String hash = digest(bundle);
+    if (hash != null) {
+      try {
+        if (hash.equals(jcrContentHelper.getSecurityHash(session, bundle))) {
+          LOGGER.debug("Security content of bundle {} is unchanged.", bundle
+              .getSymbolicName());
+          return;
+        }
+      } catch (RepositoryException re) {
+        LOGGER.warn("Unable to check the security content of bundle {}, loading it: {}",
+            bundle.getSymbolicName(), re.getMessage());
+      }
+    }
+
     // if this is an update, we have to uninstall the old content first
     if (isUpdate) {
       this.unregisterBundle(session, bundle);
@@ -182,6 +199,7 @@ public class Loader implements SecurityLoader {
       LOGGER.debug("Bundle {} has no security setup", bundle.getSymbolicName());
       return true;
     }
+    final String hash = digest(bundle);
 
     try {
 
@@ -200,8 +218,12 @@ public class Loader implements SecurityLoader {
 
         final boolean contentAlreadyLoaded = ((Boolean) bundleContentInfo
             .get(SecurityLoaderService.PROPERTY_SECURITY_LOADED)).booleanValue();
+        // content that was loaded from a different copy of the bundle has its overwrite
+        // entries loaded again.
+        final boolean contentChanged = hash != null
+            && !hash.equals(bundleContentInfo.get(SecurityLoaderService.PROPERTY_SECURITY_HASH));
 
-        if (!isUpdate && contentAlreadyLoaded) {
+        if (!isUpdate && contentAlreadyLoaded && !contentChanged) {
 
           LOGGER.debug("Content of security bundle already loaded {}.", bundle.getSymbolicName());
 
@@ -223,7 +245,8 @@ public class Loader implements SecurityLoader {
         return true;
 
       } finally {
-        jcrContentHelper.unlockBundleContentInfo(session, bundle, success, createdNodes);
+        jcrContentHelper.unlockBundleContentInfo(session, bundle, success, createdNodes,
+            hash);
       }
 
     } catch (RepositoryException re) {
@@ -240,6 +263,51 @@ public class Loader implements SecurityLoader {
     return false;
   }
 
+  /**
+   * A digest of the security header of a bundle and of the files it names, so that
+   * security content that has already been loaded can be recognised without loading it.
+   *
+   * @param bundle
+   * @return the hex SHA-1 of the security content, or null if there is none.
+   * @throws IOException
+   */
+  static String digest(Bundle bundle) throws IOException {
+    final String header = (String) bundle.getHeaders().get(PathEntry.SECURITY_HEADER);
+    final Iterator<PathEntry> pathIter = PathEntry.getContentPaths(bundle);
+    if (header == null || pathIter == null) {
+      return null;
+    }
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    md.update(header.getBytes("UTF-8"));
+    byte[] buffer = new byte[4096];
+    while (pathIter.hasNext()) {
+      URL file = bundle.getEntry(pathIter.next().getPath());
+      if (file == null) {
+        continue;
+      }
+      InputStream in = file.openStream();
+      try {
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+          md.update(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    byte[] hash = md.digest();
+    StringBuilder sb = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+          Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
   /**
    * {@inheritDoc}
    *
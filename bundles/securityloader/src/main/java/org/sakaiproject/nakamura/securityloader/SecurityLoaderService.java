@@ -20,8 +20,11 @@ package org.sakaiproject.nakamura.securityloader;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.util.Text;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.engine.SlingSettingsService;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.servlets.post.Modification;
@@ -37,17 +40,27 @@ import org.sakaiproject.nakamura.api.user.AuthorizablePostProcessService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -60,7 +73,8 @@ import javax.jcr.lock.LockManager;
  * Load Security related items. Much of this code is based on the ContentLoader in sling,
  * no point in creating something different just for the sake of it.
  */
-@Component(metatype = true)
+@Component(metatype = true, immediate = true)
+@Service(value = SecurityLoaderService.class)
 public class SecurityLoaderService implements SynchronousBundleListener {
 
   private static final Logger LOGGER = LoggerFactory
@@ -78,6 +92,13 @@ public class SecurityLoaderService implements SynchronousBundleListener {
   private static final String PROPERTY_SECURITY_UNLOADED_AT = "security-unload-time";
   private static final String PROPERTY_SECURITY_UNLOADED_BY = "security-unloaded-by";
   public static final String PROPERTY_SECURITY_PATHS = "uninstall-paths";
+  public static final String PROPERTY_SECURITY_HASH = "security-hash";
+
+  /**
+   * The topic of the event posted once the security content of the bundles that were
+   * present at activation has been loaded.
+   */
+  public static final String TOPIC_READY = "org/sakaiproject/nakamura/securityloader/READY";
 
   public static final String BUNDLE_SECURITY_NODE = "/var/sling/bundle-security";
 
@@ -90,6 +111,19 @@ public class SecurityLoaderService implements SynchronousBundleListener {
   @Property(value = DEFAULT_PASSWORD_DIGEST_ALGORITHM)
   private static final String PROP_PASSWORD_DIGEST_ALGORITHM = "password.digest.algorithm";
 
+  /**
+   * Loading in the background frees the bundle event thread, but a bundle's components
+   * and requests may then run before its ACEs and principals exist, so it is only for
+   * deployments that wait on {@link #awaitReady(long, TimeUnit)} or {@link #TOPIC_READY}.
+   */
+  @Property(boolValue = false, label = "Load in the background", description = "Load security content on a background thread rather than in the OSGi bundle event thread. Bundles may then start before their ACLs and principals exist.")
+  static final String PROP_ASYNC = "security.loader.async";
+
+  /**
+   * How long deactivation waits for security content that is being loaded.
+   */
+  private static final long SHUTDOWN_WAIT = 60000L;
+
   @Reference
   protected SlingSettingsService settingsService;
 
@@ -106,7 +140,8 @@ public class SecurityLoaderService implements SynchronousBundleListener {
   /**
    * List of currently updated bundles.
    */
-  private final Set<String> updatedBundles = new HashSet<String>();
+  private final Set<String> updatedBundles = Collections
+      .synchronizedSet(new HashSet<String>());
 
   /**
    * The initial security loader which is called to load initial security up into the
@@ -121,64 +156,112 @@ public class SecurityLoaderService implements SynchronousBundleListener {
 
   private String passwordDigestAlgoritm;
 
+  /**
+   * Loads security content one bundle at a time, in the order the bundle events arrived.
+   */
+  private ExecutorService executor;
+
+  private CountDownLatch ready = new CountDownLatch(1);
+
+  /**
+   * How long in ms the last load of each bundle took.
+   */
+  private final Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
+
   /**
    * {@inheritDoc}
    *
    * @see org.osgi.framework.BundleListener#bundleChanged(org.osgi.framework.BundleEvent)
    */
-  public void bundleChanged(BundleEvent event) {
+  public void bundleChanged(final BundleEvent event) {
     //
     // NOTE:
     // This is synchronous - take care to not block the system !!
     //
 
-    Session session = null;
+    final Bundle bundle = event.getBundle();
     switch (event.getType()) {
     case BundleEvent.STARTING:
       // register content when the bundle content is available
       // as node types are registered when the bundle is installed
       // we can safely add the content at this point.
-      try {
-        session = this.getSession();
-        final boolean isUpdate = this.updatedBundles.remove(event.getBundle()
-            .getSymbolicName());
-        initialSecurityLoader.registerBundle(session, event.getBundle(), isUpdate);
-      } catch (Throwable t) {
-        LOGGER.error("bundleChanged: Problem loading initial security content of bundle "
-            + event.getBundle().getSymbolicName() + " ("
-            + event.getBundle().getBundleId() + ")", t);
-      } finally {
-        this.ungetSession(session);
-      }
+      final boolean isUpdate = this.updatedBundles.remove(bundle.getSymbolicName());
+      execute(new Runnable() {
+        public void run() {
+          Session session = null;
+          try {
+            session = getSession();
+            registerBundle(session, bundle, isUpdate);
+          } catch (Throwable t) {
+            LOGGER.error("bundleChanged: Problem loading initial security content of bundle "
+                + bundle.getSymbolicName() + " (" + bundle.getBundleId() + ")", t);
+          } finally {
+            ungetSession(session);
+          }
+        }
+      });
       break;
     case BundleEvent.UPDATED:
       // we just add the symbolic name to the list of updated bundles
       // we will use this info when the new start event is triggered
-      this.updatedBundles.add(event.getBundle().getSymbolicName());
+      this.updatedBundles.add(bundle.getSymbolicName());
       break;
     case BundleEvent.UNINSTALLED:
+      execute(new Runnable() {
+        public void run() {
+          Session session = null;
+          try {
+            session = getSession();
+            initialSecurityLoader.unregisterBundle(session, bundle);
+          } catch (Throwable t) {
+            LOGGER.error("bundleChanged: Problem unloading initial content of bundle "
+                + bundle.getSymbolicName() + " (" + bundle.getBundleId() + ")", t);
+          } finally {
+            ungetSession(session);
+          }
+        }
+      });
+      break;
+    }
+  }
+
+  /**
+   * Run a task on the loader thread, or in the calling thread if loading is not done in
+   * the background.
+   */
+  private void execute(Runnable task) {
+    if (executor == null) {
+      task.run();
+    } else {
       try {
-        session = this.getSession();
-        initialSecurityLoader.unregisterBundle(session, event.getBundle());
-      } catch (Throwable t) {
-        LOGGER.error("bundleChanged: Problem unloading initial content of bundle "
-            + event.getBundle().getSymbolicName() + " ("
-            + event.getBundle().getBundleId() + ")", t);
-      } finally {
-        this.ungetSession(session);
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        LOGGER.warn("Security loader is shutting down, not processing bundle event");
       }
-      break;
     }
   }
 
+  /**
+   * Load the security content of a bundle, recording how long it took.
+   */
+  private void registerBundle(Session session, Bundle bundle, boolean isUpdate)
+      throws JSONException, IOException {
+    long start = System.currentTimeMillis();
+    initialSecurityLoader.registerBundle(session, bundle, isUpdate);
+    long time = System.currentTimeMillis() - start;
+    loadTimes.put(bundle.getSymbolicName(), time);
+    LOGGER.debug("Security content of bundle {} processed in {} ms", bundle
+        .getSymbolicName(), time);
+  }
+
   /** Activates this component, called by SCR before registering as a service */
   protected void activate(ComponentContext componentContext) {
 
 
     this.slingId = this.settingsService.getSlingId();
     this.initialSecurityLoader = new Loader(this);
+    this.ready = new CountDownLatch(1);
 
-    componentContext.getBundleContext().addBundleListener(this);
     Dictionary<?, ?> props = componentContext.getProperties();
 
     Object propValue = props.get(PROP_PASSWORD_DIGEST_ALGORITHM);
@@ -187,22 +270,57 @@ public class SecurityLoaderService implements SynchronousBundleListener {
     } else {
       passwordDigestAlgoritm = DEFAULT_PASSWORD_DIGEST_ALGORITHM;
     }
+    if (OsgiUtil.toBoolean(props.get(PROP_ASYNC), false)) {
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Sakai Security Loader");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    } else {
+      executor = null;
+    }
+
+    componentContext.getBundleContext().addBundleListener(this);
 
     Session session = null;
     try {
       session = this.getSession();
       this.createRepositoryPath(session, BUNDLE_SECURITY_NODE);
+    } catch (Throwable t) {
+      LOGGER.error("activate: Problem creating " + BUNDLE_SECURITY_NODE, t);
+    } finally {
+      this.ungetSession(session);
+    }
+
+    final Bundle[] bundles = componentContext.getBundleContext().getBundles();
+    execute(new Runnable() {
+      public void run() {
+        loadAll(bundles);
+      }
+    });
+  }
+
+  /**
+   * Load the security content of the bundles that were there when this component was
+   * activated, and then open the gate.
+   */
+  private void loadAll(Bundle[] bundles) {
+    long start = System.currentTimeMillis();
+    Session session = null;
+    try {
+      session = this.getSession();
       LOGGER.debug("Activated - attempting to load content from all "
           + "bundles which are neither INSTALLED nor UNINSTALLED");
 
       int ignored = 0;
-      Bundle[] bundles = componentContext.getBundleContext().getBundles();
       for (Bundle bundle : bundles) {
         if ((bundle.getState() & (Bundle.INSTALLED | Bundle.UNINSTALLED)) == 0) {
           // load content for bundles which are neither INSTALLED nor
           // UNINSTALLED
           try {
-            initialSecurityLoader.registerBundle(session, bundle, false);
+            registerBundle(session, bundle, false);
           } catch (Throwable t) {
             LOGGER.error("Problem loading initial content of bundle "
                 + bundle.getSymbolicName() + " (" + bundle.getBundleId() + ")", t);
@@ -223,13 +341,79 @@ public class SecurityLoaderService implements SynchronousBundleListener {
           + " registering mappings for existing bundles", t);
     } finally {
       this.ungetSession(session);
+      ready.countDown();
+    }
+    long time = System.currentTimeMillis() - start;
+    LOGGER.info("Security content of {} bundles processed in {} ms, slowest {}",
+        new Object[] { bundles.length, time, getSlowestBundle() });
+    try {
+      Dictionary<String, Object> d = new Hashtable<String, Object>();
+      d.put("time", time);
+      eventAdmin.postEvent(new Event(TOPIC_READY, d));
+    } catch (Throwable t) {
+      LOGGER.warn("Failed to fire event", t);
+    }
+  }
+
+  private String getSlowestBundle() {
+    String slowest = null;
+    long max = -1;
+    for (Entry<String, Long> e : loadTimes.entrySet()) {
+      if (e.getValue() > max) {
+        max = e.getValue();
+        slowest = e.getKey() + " (" + max + " ms)";
+      }
     }
+    return slowest;
+  }
+
+  /**
+   * @return true once the security content of the bundles present at activation has
+   *         been loaded.
+   */
+  public boolean isReady() {
+    return ready.getCount() == 0;
+  }
+
+  /**
+   * Wait for the security content of the bundles present at activation to be loaded.
+   *
+   * @param timeout
+   * @param unit
+   * @return true if it has been loaded, false if the wait timed out.
+   * @throws InterruptedException
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    return ready.await(timeout, unit);
+  }
+
+  /**
+   * @return how long in ms the last load of the security content of each bundle took,
+   *         by symbolic name.
+   */
+  public Map<String, Long> getLoadTimes() {
+    return new HashMap<String, Long>(loadTimes);
   }
 
   /** Deativates this component, called by SCR to take out of service */
   protected void deactivate(ComponentContext componentContext) {
     componentContext.getBundleContext().removeBundleListener(this);
 
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS)) {
+          LOGGER.warn("Security content still loading after {} ms, interrupting",
+              SHUTDOWN_WAIT);
+          executor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
+    }
+
     if (this.initialSecurityLoader != null) {
       this.initialSecurityLoader.dispose();
       this.initialSecurityLoader = null;
@@ -313,12 +497,47 @@ public class SecurityLoaderService implements SynchronousBundleListener {
       }
       info.put(PROPERTY_SECURITY_PATHS, s);
     }
+    if (bcNode.hasProperty(PROPERTY_SECURITY_HASH)) {
+      info.put(PROPERTY_SECURITY_HASH, bcNode.getProperty(PROPERTY_SECURITY_HASH)
+          .getString());
+    }
     return info;
   }
 
+  /**
+   * Read, without taking the lock, the digest of the security content that was last
+   * loaded from a bundle.
+   *
+   * @param session
+   * @param bundle
+   * @return the digest, or null if the content is not loaded.
+   * @throws RepositoryException
+   */
+  public String getSecurityHash(final Session session, final Bundle bundle)
+      throws RepositoryException {
+    final Node parentNode = (Node) session.getItem(BUNDLE_SECURITY_NODE);
+    final String nodeName = bundle.getSymbolicName();
+    if (!parentNode.hasNode(nodeName)) {
+      return null;
+    }
+    final Node bcNode = parentNode.getNode(nodeName);
+    if (bcNode.hasProperty(PROPERTY_SECURITY_LOADED)
+        && bcNode.getProperty(PROPERTY_SECURITY_LOADED).getBoolean()
+        && bcNode.hasProperty(PROPERTY_SECURITY_HASH)) {
+      return bcNode.getProperty(PROPERTY_SECURITY_HASH).getString();
+    }
+    return null;
+  }
+
   public void unlockBundleContentInfo(final Session session, final Bundle bundle,
       final boolean contentLoaded, final List<String> createdNodes)
       throws RepositoryException {
+    unlockBundleContentInfo(session, bundle, contentLoaded, createdNodes, null);
+  }
+
+  public void unlockBundleContentInfo(final Session session, final Bundle bundle,
+      final boolean contentLoaded, final List<String> createdNodes, final String hash)
+      throws RepositoryException {
     final String nodeName = bundle.getSymbolicName();
     final Node parentNode = (Node) session.getItem(BUNDLE_SECURITY_NODE);
     final Node bcNode = parentNode.getNode(nodeName);
@@ -328,6 +547,7 @@ public class SecurityLoaderService implements SynchronousBundleListener {
       bcNode.setProperty(PROPERTY_SECURITY_LOADED_BY, this.slingId);
       bcNode.setProperty(PROPERTY_SECURITY_UNLOADED_AT, (String) null);
       bcNode.setProperty(PROPERTY_SECURITY_UNLOADED_BY, (String) null);
+      bcNode.setProperty(PROPERTY_SECURITY_HASH, hash);
       if (createdNodes != null && createdNodes.size() > 0) {
         bcNode.setProperty(PROPERTY_SECURITY_PATHS, createdNodes
             .toArray(new String[createdNodes.size()]));
@@ -347,6 +567,7 @@ public class SecurityLoaderService implements SynchronousBundleListener {
         bcNode.setProperty(PROPERTY_SECURITY_LOADED, false);
         bcNode.setProperty(PROPERTY_SECURITY_UNLOADED_AT, Calendar.getInstance());
         bcNode.setProperty(PROPERTY_SECURITY_UNLOADED_BY, this.slingId);
+        bcNode.setProperty(PROPERTY_SECURITY_HASH, (String) null);
         session.save();
       }
     } catch (RepositoryException re) {
@@ -21,6 +21,7 @@ import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.sling.engine.SlingSettingsService;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -34,6 +35,7 @@ import org.osgi.service.event.EventAdmin;
 
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -140,4 +142,25 @@ public class SecurityLoaderServiceTest {
     
   }
 
+  @Test
+  public void testReady() throws Exception {
+    Assert.assertTrue(securityLoaderService.awaitReady(10, TimeUnit.SECONDS));
+    Assert.assertTrue(securityLoaderService.isReady());
+  }
+
+  @Test
+  public void testDigest() throws Exception {
+    String hash = Loader.digest(bundle1);
+    Assert.assertNotNull(hash);
+    Assert.assertEquals(hash, Loader.digest(bundle2));
+
+    Dictionary<String, String> headers = new Hashtable<String, String>();
+    headers.put(PathEntry.SECURITY_HEADER, "SLING-INF/acl/personal-acl.json;path:=/a");
+    Mockito.when(bundle2.getHeaders()).thenReturn(headers);
+    Assert.assertFalse(hash.equals(Loader.digest(bundle2)));
+
+    Mockito.when(bundle2.getHeaders()).thenReturn(new Hashtable<String, String>());
+    Assert.assertNull(Loader.digest(bundle2));
+  }
+
 }
@@ -18,41 +18,32 @@
 package org.apache.sling.jcr.jackrabbit.server.impl.index;
 
 import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
+import org.apache.sling.jcr.jackrabbit.server.index.TermCounter;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * A term cloud is a store of {@link Term}s which accepts the addition of new
  * terms and provides an iterator to list {@link Term}s in order of occurrence.
  * The term cloud is constructed with a maximum size, and if there are more
  * terms in the cloud than this size, the least significant terms will be
- * evicted. Callers should ensure that the size of the cloud allows frequent but
- * low counted terms to influence the cloud by making the max size greater than
- * the number of terms required, ie 1.5 times the number of requried terms in
- * the cloud.
+ * evicted, as described in {@link TermCounter}. Callers should ensure that the
+ * size of the cloud allows frequent but low counted terms to influence the
+ * cloud by making the max size greater than the number of terms required, ie
+ * 1.5 times the number of requried terms in the cloud.
  */
 public class TermCloud {
 
-    /**
-     * 
-     */
-    private static final long serialVersionUID = 3363155684386506288L;
     /**
      * Internal store of terms.
      */
-    private List<CloudTermImpl> termList;
-    private int maxSize;
-    private boolean sorted = false;
+    private final TermCounter counter;
 
     /**
      * Create a TermCloud
      */
     public TermCloud(int maxSize) {
-        termList = new ArrayList<CloudTermImpl>(maxSize + 1);
-        this.maxSize = maxSize;
+        counter = new TermCounter(maxSize);
     }
 
     /**
@@ -62,52 +53,27 @@ public class TermCloud {
      * @param term
      *            the terms to add or merge.
      */
-    public synchronized void add(CloudTermImpl term) {
-        for (CloudTermImpl t : termList) {
-            if (term.isSameTerm(t)) {
-                t.merge(term);
-                sorted = false;
-                return;
-            }
-        }
-        sorted = false;
-        termList.add(term);
-        if (termList.size() > maxSize) {
-            Collections.sort(termList);
-            termList.remove(termList.size() - 1);
-            sorted = true;
-        }
+    public void add(CloudTermImpl term) {
+        counter.add(term.getName(), term.getCount());
     }
 
     /**
-     * A list of terms, limited by the number of
+     * A list of terms, limited by the number of occurrences.
      * 
      * @param limit
+     *            the least count of a term in the list.
      * @return
      */
-    public synchronized Iterator<CloudTerm> iterator(final int limit) {
-        if (!sorted) {
-            Collections.sort(termList);
-            sorted = true;
-        }
-        final Iterator<CloudTermImpl> iTermList = termList.iterator();
+    public Iterator<CloudTerm> iterator(final int limit) {
+        final Iterator<CloudTerm> terms = counter.getTop(Integer.MAX_VALUE, limit).iterator();
         return new Iterator<CloudTerm>() {
 
-            private CloudTermImpl current;
-
             public boolean hasNext() {
-                if (iTermList.hasNext()) {
-                    current = iTermList.next();
-                    if (current.getCount() >= limit) {
-                        return true;
-                    }
-                }
-                current = null;
-                return false;
+                return terms.hasNext();
             }
 
             public CloudTerm next() {
-                return current;
+                return terms.next();
             }
 
             public void remove() {
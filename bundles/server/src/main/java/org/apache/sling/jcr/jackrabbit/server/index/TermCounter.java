@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Counts how often terms occur and lists the most frequent, in memory bounded by a
+ * capacity. Terms are counted in a hash map, and kept in order of count so that the least
+ * frequent term can be found without a scan.
+ * <p>
+ * While there are fewer terms than the capacity the counts are exact. After that a new
+ * term takes the place of the least frequent term and starts from its count (the
+ * Space-Saving algorithm), so a term's count may be over, but never under, the true count
+ * by at most the count of the term it replaced. Any term that occurs more often than
+ * 1/capacity of all occurrences is kept.
+ */
+public class TermCounter {
+
+  private final int capacity;
+  private final Map<String, Counter> counters = new HashMap<String, Counter>();
+  private final TreeSet<Counter> byCount = new TreeSet<Counter>();
+
+  /**
+   * @param capacity
+   *          the most terms to hold.
+   */
+  public TermCounter(int capacity) {
+    this.capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Add occurrences of a term.
+   *
+   * @param term
+   * @param count
+   *          the number of times the term occurred.
+   */
+  public synchronized void add(String term, int count) {
+    if (count < 0) {
+      return;
+    }
+    Counter counter = counters.get(term);
+    if (counter == null) {
+      if (counters.size() < capacity) {
+        counter = new Counter(term, 0);
+      } else {
+        Counter least = byCount.last();
+        byCount.remove(least);
+        counters.remove(least.name);
+        counter = new Counter(term, least.count);
+      }
+      counters.put(term, counter);
+    } else {
+      byCount.remove(counter);
+    }
+    counter.count += count;
+    byCount.add(counter);
+  }
+
+  /**
+   * Take away occurrences of a term, a term with no occurrences left is dropped.
+   *
+   * @param term
+   * @param count
+   *          the number of occurrences that have gone.
+   */
+  public synchronized void remove(String term, int count) {
+    Counter counter = counters.get(term);
+    if (counter == null || count <= 0) {
+      return;
+    }
+    byCount.remove(counter);
+    counter.count -= count;
+    if (counter.count > 0) {
+      byCount.add(counter);
+    } else {
+      counters.remove(term);
+    }
+  }
+
+  /**
+   * @param term
+   * @return the count of the term, 0 if it is not held.
+   */
+  public synchronized int getCount(String term) {
+    Counter counter = counters.get(term);
+    return counter == null ? 0 : counter.count;
+  }
+
+  /**
+   * @return the number of terms held.
+   */
+  public synchronized int size() {
+    return counters.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @param limit
+   *          the most terms to list.
+   * @param minCount
+   *          the least count a listed term may have.
+   * @return the terms in order of count, most frequent first, and then by name. The list
+   *         is a copy and will not change.
+   */
+  public synchronized List<CloudTerm> getTop(int limit, int minCount) {
+    List<CloudTerm> top = new ArrayList<CloudTerm>(Math.min(limit, counters.size()));
+    for (Iterator<Counter> i = byCount.iterator(); i.hasNext() && top.size() < limit;) {
+      Counter counter = i.next();
+      if (counter.count < minCount) {
+        break;
+      }
+      top.add(new Term(counter.name, counter.count));
+    }
+    return Collections.unmodifiableList(top);
+  }
+
+  /**
+   * A term as it is counted, ordered by count, highest first, and then by name.
+   */
+  private static final class Counter implements Comparable<Counter> {
+    private final String name;
+    private int count;
+
+    Counter(String name, int count) {
+      this.name = name;
+      this.count = count;
+    }
+
+    public int compareTo(Counter o) {
+      if (count != o.count) {
+        return count > o.count ? -1 : 1;
+      }
+      return name.compareTo(o.name);
+    }
+  }
+
+  /**
+   * A term and its count at the time it was listed.
+   */
+  private static final class Term implements CloudTerm {
+    private final String name;
+    private final int count;
+
+    Term(String name, int count) {
+      this.name = name;
+      this.count = count;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    @Override
+    public String toString() {
+      return name + ":" + count;
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Wraps a sparse session so that, for as long as the session is open, lookups of content
+ * and authorizables are not repeated against storage. It is only used for the sessions of
+ * user requests, which are short lived, and each cache holds at most
+ * {@link #MAX_ENTRIES} entries. Anything that writes through the session drops what it
+ * may have changed from the cache, and the number of hits and misses is logged when the
+ * session is logged out.
+ *
+ * Content is memoized per session, as a JCR session keeps one item per path: every
+ * lookup of a path gets the same Content until it is updated, deleted or moved through
+ * the session, so an unsaved change is seen by the rest of the request just as transient
+ * JCR changes are. Paths that do not exist are remembered too. An authorizable that was
+ * found is kept, and each lookup gets a copy of it, since sparse hands out a new one each
+ * time and callers may rely on that.
+ */
+final class RequestCachingSession implements InvocationHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(RequestCachingSession.class);
+
+  /**
+   * The most content paths and authorizables each session remembers.
+   */
+  static final int MAX_ENTRIES = 1000;
+
+  private static final String[] READ_PREFIXES = { "get", "list", "find", "exists",
+      "has", "count", "is" };
+
+  private final Session session;
+  /**
+   * Holds the Content at a path, or whether there is any when that is all that is known.
+   */
+  private final Map<String, Object> contentCache = new BoundedMap<Object>();
+  private final Map<String, Authorizable> authorizableCache = new BoundedMap<Authorizable>();
+  private ContentManager contentManager;
+  private AuthorizableManager authorizableManager;
+  private AccessControlManager accessControlManager;
+  private int hits;
+  private int misses;
+
+  private RequestCachingSession(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * @param session
+   *          the session to wrap.
+   * @return a session that caches content and authorizable lookups.
+   */
+  static Session wrap(Session session) {
+    return (Session) proxy(Session.class, new RequestCachingSession(session));
+  }
+
+  private static Object proxy(Class<?> type, InvocationHandler handler) {
+    return Proxy.newProxyInstance(RequestCachingSession.class.getClassLoader(),
+        new Class<?>[] { type }, handler);
+  }
+
+  private static Object call(Object target, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static boolean isRead(Method method) {
+    if (method.getDeclaringClass() == Object.class) {
+      return true;
+    }
+    String name = method.getName();
+    for (String prefix : READ_PREFIXES) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isSingleString(Object[] args) {
+    return args != null && args.length == 1 && args[0] instanceof String;
+  }
+
+  public synchronized Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable {
+    String name = method.getName();
+    if ("getContentManager".equals(name) && args == null) {
+      if (contentManager == null) {
+        contentManager = (ContentManager) proxy(ContentManager.class,
+            new ContentManagerHandler((ContentManager) call(session, method, args)));
+      }
+      return contentManager;
+    } else if ("getAuthorizableManager".equals(name) && args == null) {
+      if (authorizableManager == null) {
+        authorizableManager = (AuthorizableManager) proxy(AuthorizableManager.class,
+            new AuthorizableManagerHandler((AuthorizableManager) call(session, method,
+                args)));
+      }
+      return authorizableManager;
+    } else if ("getAccessControlManager".equals(name) && args == null) {
+      if (accessControlManager == null) {
+        accessControlManager = (AccessControlManager) proxy(AccessControlManager.class,
+            new AccessControlManagerHandler((AccessControlManager) call(session, method,
+                args)));
+      }
+      return accessControlManager;
+    } else if ("logout".equals(name)) {
+      LOGGER.debug("Request cache for {} {} hits {} misses", new Object[] {
+          session.getUserId(), hits, misses });
+      contentCache.clear();
+      authorizableCache.clear();
+    }
+    return call(session, method, args);
+  }
+
+  /**
+   * Memoizes {@link ContentManager#get(String)}, and remembers which paths
+   * {@link ContentManager#exists(String)} found and which it did not.
+   */
+  private class ContentManagerHandler implements InvocationHandler {
+
+    private final ContentManager contentManager;
+
+    ContentManagerHandler(ContentManager contentManager) {
+      this.contentManager = contentManager;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      synchronized (RequestCachingSession.this) {
+        if ("get".equals(name) && isSingleString(args)) {
+          Object cached = contentCache.get(args[0]);
+          if (cached instanceof Content || Boolean.FALSE.equals(cached)) {
+            hits++;
+            return cached instanceof Content ? cached : null;
+          }
+          misses++;
+          Content content = (Content) call(contentManager, method, args);
+          contentCache.put((String) args[0], content == null ? Boolean.FALSE : content);
+          return content;
+        } else if ("exists".equals(name) && isSingleString(args)) {
+          Object cached = contentCache.get(args[0]);
+          if (cached != null) {
+            hits++;
+            return cached instanceof Content || Boolean.TRUE.equals(cached);
+          }
+          misses++;
+          Boolean exists = (Boolean) call(contentManager, method, args);
+          contentCache.put((String) args[0], exists);
+          return exists;
+        } else if ("update".equals(name) && args != null && args.length == 1
+            && args[0] instanceof Content) {
+          // the parents of new content are created with it.
+          removeParents(((Content) args[0]).getPath());
+        } else if ("delete".equals(name) && isSingleString(args)) {
+          removeTree((String) args[0]);
+        } else if ("move".equals(name) && args != null && args.length == 2
+            && args[0] instanceof String && args[1] instanceof String) {
+          removeTree((String) args[0]);
+          removeTree((String) args[1]);
+          removeParents((String) args[1]);
+        } else if (!isRead(method)) {
+          contentCache.clear();
+        }
+      }
+      return call(contentManager, method, args);
+    }
+
+    private void removeParents(String path) {
+      for (Iterator<String> i = contentCache.keySet().iterator(); i.hasNext();) {
+        String cached = i.next();
+        if (cached.equals(path) || path.startsWith(cached.endsWith("/") ? cached : cached
+            + "/")) {
+          i.remove();
+        }
+      }
+    }
+
+    private void removeTree(String path) {
+      String prefix = path.endsWith("/") ? path : path + "/";
+      for (Iterator<String> i = contentCache.keySet().iterator(); i.hasNext();) {
+        String cached = i.next();
+        if (cached.equals(path) || cached.startsWith(prefix)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Caches {@link AuthorizableManager#findAuthorizable(String)}.
+   */
+  private class AuthorizableManagerHandler implements InvocationHandler {
+
+    private final AuthorizableManager authorizableManager;
+
+    AuthorizableManagerHandler(AuthorizableManager authorizableManager) {
+      this.authorizableManager = authorizableManager;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      synchronized (RequestCachingSession.this) {
+        if ("findAuthorizable".equals(name) && isSingleString(args)) {
+          Authorizable authorizable = authorizableCache.get(args[0]);
+          if (authorizable != null) {
+            hits++;
+            return copy(authorizable);
+          }
+          misses++;
+          authorizable = (Authorizable) call(authorizableManager, method, args);
+          if (authorizable != null) {
+            // the copy that is kept is never handed out.
+            authorizableCache.put((String) args[0], copy(authorizable));
+          }
+          return authorizable;
+        } else if ("updateAuthorizable".equals(name) && args != null
+            && args.length == 1 && args[0] instanceof User) {
+          authorizableCache.remove(((Authorizable) args[0]).getId());
+        } else if (!isRead(method)) {
+          // updating or deleting a group rewrites the principals of its members.
+          authorizableCache.clear();
+        }
+      }
+      return call(authorizableManager, method, args);
+    }
+  }
+
+  /**
+   * @return a new authorizable with the properties of the one given. The safe properties
+   *         leave out the id, and the members and principals are taken from the
+   *         authorizable itself, so nothing that sparse loaded is lost.
+   */
+  private static Authorizable copy(Authorizable authorizable) {
+    Map<String, Object> properties = new HashMap<String, Object>(authorizable
+        .getSafeProperties());
+    properties.put(Authorizable.ID_FIELD, authorizable.getId());
+    properties.put(Authorizable.PRINCIPALS_FIELD, StringUtils.join(authorizable
+        .getPrincipals(), ';'));
+    if (authorizable instanceof Group) {
+      properties.put(Group.MEMBERS_FIELD, StringUtils.join(((Group) authorizable)
+          .getMembers(), ';'));
+      return new Group(properties);
+    }
+    return new User(properties);
+  }
+
+  /**
+   * A map that forgets its least recently used entry once it holds {@link #MAX_ENTRIES}.
+   */
+  private static final class BoundedMap<V> extends LinkedHashMap<String, V> {
+    private static final long serialVersionUID = 1L;
+
+    BoundedMap() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, V> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  }
+
+  /**
+   * Drops everything once permissions change, since they decide what can be read.
+   */
+  private class AccessControlManagerHandler implements InvocationHandler {
+
+    private final AccessControlManager accessControlManager;
+
+    AccessControlManagerHandler(AccessControlManager accessControlManager) {
+      this.accessControlManager = accessControlManager;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (!isRead(method)) {
+        synchronized (RequestCachingSession.this) {
+          contentCache.clear();
+          authorizableCache.clear();
+        }
+      }
+      return call(accessControlManager, method, args);
+    }
+  }
+}
@@ -52,6 +52,11 @@ public class SparseMapUserManager implements UserManager, SessionListener {
   static final String AUTHORIZABLES_PATH = SECURITY_ROOT_PATH + "/rep:authorizables";
   static final String USERS_PATH = AUTHORIZABLES_PATH + "/rep:users";
   static final String GROUPS_PATH = AUTHORIZABLES_PATH + "/rep:groups";
+  /**
+   * UserManager parameter, set to false to not cache content and authorizables for the
+   * life of the sessions of user requests.
+   */
+  static final String REQUEST_CACHE = "requestCache";
   private Session session;
   private AuthorizableManager authorizableManager;
   private ValueFactory valueFactory;
@@ -65,6 +70,10 @@ public class SparseMapUserManager implements UserManager, SessionListener {
       throws ClientPoolException, StorageClientException, AccessDeniedException {
     sparseRepository = SparseRepositoryHolder.getSparseRepositoryInstance();
     session = sparseRepository.loginAdministrative(jcrSession.getUserID());
+    if (isRequestSession(jcrSession)
+        && (config == null || !"false".equals(config.getProperty(REQUEST_CACHE)))) {
+      session = RequestCachingSession.wrap(session);
+    }
 
     authorizableManager = session.getAuthorizableManager();
     accessControlManager = session.getAccessControlManager();
@@ -83,6 +92,17 @@ public class SparseMapUserManager implements UserManager, SessionListener {
 
   }
 
+  /**
+   * @return true if the session is likely to be the short lived session of a user request,
+   *         rather than a system or administrative session that services keep open.
+   */
+  static boolean isRequestSession(javax.jcr.Session jcrSession) {
+    return !"org.apache.jackrabbit.core.SystemSession".equals(jcrSession.getClass()
+        .getName())
+        && !org.sakaiproject.nakamura.api.lite.authorizable.User.ADMIN_USER
+            .equals(jcrSession.getUserID());
+  }
+
   public Authorizable getAuthorizable(String id) throws RepositoryException {
     try {
       org.sakaiproject.nakamura.api.lite.authorizable.Authorizable auth = session
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ */
+public class TermCounterTest {
+
+    @Test
+    public void testExact() {
+        TermCounter counter = new TermCounter(10);
+        counter.add("a", 1);
+        counter.add("b", 3);
+        counter.add("a", 1);
+        counter.add("c", 2);
+        assertEquals(2, counter.getCount("a"));
+        List<CloudTerm> top = counter.getTop(2, 0);
+        assertEquals(2, top.size());
+        assertEquals("b", top.get(0).getName());
+        // ties are in order of name.
+        assertEquals("a", top.get(1).getName());
+        assertEquals(1, counter.getTop(10, 3).size());
+
+        counter.remove("b", 2);
+        assertEquals(1, counter.getCount("b"));
+        counter.remove("b", 1);
+        assertEquals(0, counter.getCount("b"));
+        assertEquals(2, counter.size());
+    }
+
+    @Test
+    public void testHeavyHittersAreKept() {
+        TermCounter counter = new TermCounter(20);
+        Random random = new Random(42);
+        // three frequent terms in a long tail of rare ones.
+        for (int i = 0; i < 10000; i++) {
+            int r = random.nextInt(10);
+            if (r < 3) {
+                counter.add("hot", 1);
+            } else if (r < 5) {
+                counter.add("warm", 1);
+            } else if (r < 6) {
+                counter.add("mild", 1);
+            } else {
+                counter.add("rare" + random.nextInt(5000), 1);
+            }
+        }
+        assertEquals(20, counter.size());
+        List<CloudTerm> top = counter.getTop(3, 0);
+        assertEquals("hot", top.get(0).getName());
+        assertEquals("warm", top.get(1).getName());
+        assertEquals("mild", top.get(2).getName());
+        // counts are never under the true count.
+        assertTrue(top.get(0).getCount() >= 2900);
+    }
+}
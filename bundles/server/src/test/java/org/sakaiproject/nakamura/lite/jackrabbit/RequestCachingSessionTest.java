@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class RequestCachingSessionTest {
+
+  private ContentManager contentManager;
+  private AuthorizableManager authorizableManager;
+  private Session session;
+
+  @Before
+  public void setUp() throws Exception {
+    contentManager = mock(ContentManager.class);
+    authorizableManager = mock(AuthorizableManager.class);
+    Session sparseSession = mock(Session.class);
+    when(sparseSession.getContentManager()).thenReturn(contentManager);
+    when(sparseSession.getAuthorizableManager()).thenReturn(authorizableManager);
+    session = RequestCachingSession.wrap(sparseSession);
+  }
+
+  @Test
+  public void testContentIsCachedUntilWritten() throws Exception {
+    Content content = new Content("/a/b", new HashMap<String, Object>());
+    when(contentManager.get("/a/b")).thenReturn(content);
+
+    ContentManager cm = session.getContentManager();
+    assertSame(cm, session.getContentManager());
+    assertSame(content, cm.get("/a/b"));
+    assertSame(content, cm.get("/a/b"));
+    verify(contentManager, times(1)).get("/a/b");
+    assertTrue(cm.exists("/a/b"));
+    verify(contentManager, never()).exists("/a/b");
+
+    cm.update(content);
+    cm.get("/a/b");
+    verify(contentManager, times(2)).get("/a/b");
+
+    cm.delete("/a");
+    cm.exists("/a/b");
+    verify(contentManager, times(1)).exists("/a/b");
+  }
+
+  @Test
+  public void testMoveDropsBothPaths() throws Exception {
+    when(contentManager.get("/from/child")).thenReturn(
+        new Content("/from/child", new HashMap<String, Object>()));
+    ContentManager cm = session.getContentManager();
+    cm.get("/from/child");
+    assertNull(cm.get("/to/child"));
+
+    cm.move("/from", "/to");
+    cm.get("/from/child");
+    cm.get("/to/child");
+    verify(contentManager, times(2)).get("/from/child");
+    verify(contentManager, times(2)).get("/to/child");
+  }
+
+  @Test
+  public void testMissesAreCachedUntilCreated() throws Exception {
+    ContentManager cm = session.getContentManager();
+    assertNull(cm.get("/missing"));
+    assertNull(cm.get("/missing"));
+    assertFalse(cm.exists("/missing"));
+    verify(contentManager, times(1)).get("/missing");
+
+    // creating content below a path creates the path too.
+    cm.update(new Content("/missing/child", new HashMap<String, Object>()));
+    cm.get("/missing");
+    verify(contentManager, times(2)).get("/missing");
+  }
+
+  @Test
+  public void testAuthorizablesAreCopied() throws Exception {
+    User user = new User(userProperties("ieb"));
+    when(authorizableManager.findAuthorizable("ieb")).thenReturn(user);
+
+    AuthorizableManager am = session.getAuthorizableManager();
+    assertSame(user, am.findAuthorizable("ieb"));
+    Authorizable first = am.findAuthorizable("ieb");
+    Authorizable second = am.findAuthorizable("ieb");
+    verify(authorizableManager, times(1)).findAuthorizable("ieb");
+    assertNotSame(first, second);
+    assertTrue(first instanceof User);
+    assertEquals("ieb", first.getId());
+    assertTrue(Arrays.asList(first.getPrincipals()).contains("g"));
+
+    // an unsaved change is not seen by anyone else.
+    first.setProperty("email", "ieb@example.com");
+    assertNull(am.findAuthorizable("ieb").getProperty("email"));
+
+    am.updateAuthorizable(first);
+    am.findAuthorizable("ieb");
+    verify(authorizableManager, times(2)).findAuthorizable("ieb");
+  }
+
+  @Test
+  public void testGroupUpdateDropsMembers() throws Exception {
+    when(authorizableManager.findAuthorizable("ieb")).thenReturn(
+        new User(userProperties("ieb")));
+    Map<String, Object> groupProperties = userProperties("g");
+    groupProperties.put(Group.MEMBERS_FIELD, "ieb;nico");
+    Group group = new Group(groupProperties);
+    when(authorizableManager.findAuthorizable("g")).thenReturn(group);
+
+    AuthorizableManager am = session.getAuthorizableManager();
+    am.findAuthorizable("ieb");
+    am.findAuthorizable("g");
+    Authorizable copy = am.findAuthorizable("g");
+    verify(authorizableManager, times(1)).findAuthorizable("g");
+    assertTrue(copy instanceof Group);
+    assertEquals("g", copy.getId());
+    assertEquals(new HashSet<String>(Arrays.asList("ieb", "nico")), new HashSet<String>(
+        Arrays.asList(((Group) copy).getMembers())));
+    // the principals of the members change with the group.
+    am.updateAuthorizable(group);
+    am.findAuthorizable("ieb");
+    verify(authorizableManager, times(2)).findAuthorizable("ieb");
+  }
+
+  private Map<String, Object> userProperties(String id) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(Authorizable.ID_FIELD, id);
+    properties.put(Authorizable.PRINCIPALS_FIELD, "g");
+    return properties;
+  }
+}
@@ -0,0 +1,79 @@
+package org.sakaiproject.nakamura.smtp;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Holds the body of an incoming message while its parts are written, so that the parts
+ * can be read straight from the spool rather than each being copied into memory. Small
+ * bodies are held in memory, larger ones in a temporary file that is deleted when the
+ * spool is closed.
+ */
+class MessageSpool {
+
+  private final InputStream in;
+  private final File file;
+
+  /**
+   * @param data
+   *          the body, read to the end.
+   * @param threshold
+   *          the most bytes to hold in memory.
+   * @throws IOException
+   */
+  MessageSpool(InputStream data, int threshold) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] b = new byte[8192];
+    int n = 0;
+    while (buffer.size() <= threshold && (n = data.read(b)) >= 0) {
+      buffer.write(b, 0, n);
+    }
+    if (n < 0) {
+      file = null;
+      in = new SharedByteArrayInputStream(buffer.toByteArray());
+      return;
+    }
+    file = File.createTempFile("smtp", ".spool");
+    OutputStream out = new FileOutputStream(file);
+    try {
+      buffer.writeTo(out);
+      IOUtils.copy(data, out);
+    } catch (IOException e) {
+      IOUtils.closeQuietly(out);
+      file.delete();
+      throw e;
+    }
+    out.close();
+    in = new SharedFileInputStream(file);
+  }
+
+  /**
+   * @return the body, a stream that parts can be read from in place.
+   */
+  InputStream getInputStream() {
+    return in;
+  }
+
+  /**
+   * @return true if the body was spooled to a file.
+   */
+  boolean isOnDisk() {
+    return file != null;
+  }
+
+  void close() {
+    IOUtils.closeQuietly(in);
+    if (file != null && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+}
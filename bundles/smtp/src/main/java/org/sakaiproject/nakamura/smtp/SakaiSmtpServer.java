@@ -18,18 +18,23 @@ import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SimpleMessageListener;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.server.SMTPServer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,7 +46,7 @@ import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMultipart;
 
 @Component(immediate = true, metatype = true)
-public class SakaiSmtpServer implements SimpleMessageListener {
+public class SakaiSmtpServer implements SimpleMessageListener, MessageHandlerFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
   private static final int MAX_PROPERTY_SIZE = 32 * 1024;
@@ -61,18 +66,31 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   @Property(intValue=8025)
   private static String SMTP_SERVER_PORT = "smtp.port";
 
+  @Property(intValue = 1048576)
+  private static String SPOOL_THRESHOLD = "smtp.spool.threshold";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
   private Set<String> domains = new HashSet<String>();
 
+  /**
+   * The largest multipart body, in bytes, held in memory while its parts are written;
+   * larger bodies are spooled to a temporary file.
+   */
+  private int spoolThreshold = 1048576;
+
   public void activate(ComponentContext context) throws Exception {
     Integer port = (Integer) context.getProperties().get(SMTP_SERVER_PORT);
     if ( port == null ) {
       port = 8025;
     }
     LOGGER.info("Starting SMTP server on port {}", port);
-    server = new SMTPServer(new SimpleMessageListenerAdapter(this));
+    Integer threshold = (Integer) context.getProperties().get(SPOOL_THRESHOLD);
+    if (threshold != null) {
+      spoolThreshold = threshold;
+    }
+    server = new SMTPServer(this);
     server.setPort(port);
     server.start();
     String localDomains = (String) context.getProperties().get(LOCAL_DOMAINS);
@@ -90,6 +108,18 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     server.stop();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Each SMTP transaction gets a handler that resolves its recipients as they arrive and
+   * delivers the message to all of them in one pass, rather than once per recipient.
+   *
+   * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
+   */
+  public MessageHandler create(MessageContext ctx) {
+    return new TransactionHandler();
+  }
+
   /**
    *
    * {@inheritDoc}
@@ -143,33 +173,65 @@ public class SakaiSmtpServer implements SimpleMessageListener {
 
   public void deliver(String from, String recipient, InputStream data)
       throws TooMuchDataException, IOException {
-    LOGGER.info("Got message FROM: " + from + " TO: " + recipient);
+    deliver(from, Collections.singletonList(recipient), data);
+  }
+
+  /**
+   * Delivers one message to every local mailbox of the recipients. The message is parsed
+   * once, written to the first mailbox and copied to the others.
+   *
+   * @param from
+   * @param recipients
+   *          fully qualified email addresses.
+   * @param data
+   * @throws IOException
+   */
+  public void deliver(String from, List<String> recipients, InputStream data)
+      throws IOException {
     Session session = null;
     try {
       session = contentRepository.loginAdministrative();
+      Set<String> paths = new LinkedHashSet<String>();
+      for (String recipient : recipients) {
+        paths.addAll(getLocalPath(session, recipient));
+      }
+      deliver(session, from, recipients, paths, data);
+    } catch (ClientPoolException e) {
+      LOGGER.error("Unable to write message", e);
+    } catch (StorageClientException e) {
+      LOGGER.error("Unable to write message", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Unable to write message", e);
+    } finally {
+      logout(session);
+    }
+  }
 
-      List<String> paths = getLocalPath(session, recipient);
-      if (paths.size() > 0) {
-        Map<String, Object> mapProperties = new HashMap<String, Object>();
-        mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-            MessageConstants.SAKAI_MESSAGE_RT);
-        mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
-        mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
-        mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-            MessageConstants.BOX_INBOX);
-        Content createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
-        if (createdMessage != null) {
-          String messagePath = createdMessage.getPath();
-          String messageId = (String) createdMessage.getProperty("message-id");
-          LOGGER.info("Created message {} at: {} ", messageId, messagePath);
-
-          // we might want alias expansion
-          for (int i = 1; i < paths.size(); i++) {
-            String targetPath = paths.get(i);
-            messagingService.copyMessageNode(createdMessage, targetPath, session);
-          }
-        }
+  private void deliver(Session session, String from, Collection<String> recipients,
+      Collection<String> paths, InputStream data) throws IOException {
+    LOGGER.info("Got message FROM: " + from + " TO: " + recipients);
+    if (paths.size() == 0) {
+      return;
+    }
+    try {
+      Map<String, Object> mapProperties = new HashMap<String, Object>();
+      mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          MessageConstants.SAKAI_MESSAGE_RT);
+      mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
+      mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
+      mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+          MessageConstants.BOX_INBOX);
+      List<String> targets = new ArrayList<String>(paths);
+      Content createdMessage = writeMessage(session, mapProperties, data, targets.get(0));
+      if (createdMessage != null) {
+        String messagePath = createdMessage.getPath();
+        String messageId = (String) createdMessage.getProperty("message-id");
+        LOGGER.info("Created message {} at: {} ", messageId, messagePath);
 
+        // we might want alias expansion
+        for (int i = 1; i < targets.size(); i++) {
+          messagingService.copyMessageNode(createdMessage, targets.get(i), session);
+        }
       }
     } catch (MessagingException e) {
       LOGGER.error("Unable to write message", e);
@@ -178,14 +240,16 @@ public class SakaiSmtpServer implements SimpleMessageListener {
       LOGGER.error("Unable to write message", e);
     } catch (AccessDeniedException e) {
       LOGGER.error("Unable to write message", e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.error(e.getLocalizedMessage(), e);
-          throw new RuntimeException("Failed to logout session.", e);
-        }
+    }
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error(e.getLocalizedMessage(), e);
+        throw new RuntimeException("Failed to logout session.", e);
       }
     }
   }
@@ -210,12 +274,18 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     String[] contentType = internetHeaders.getHeader("content-type");
     if (contentType != null && contentType.length > 0
         && contentType[0].contains("boundary") && contentType[0].contains("multipart/")) {
+      // parts are read in place from the spool rather than copied out of the body
+      MessageSpool spool = new MessageSpool(data, spoolThreshold);
+      try {
         MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
-            data));
+            spool.getInputStream()));
         Content message = messagingService.create(session, mapProperties,
             (String) mapProperties.get("sakai:message-id"), storePath);
         writeMultipartToNode(session, message, multipart);
         return message;
+      } finally {
+        spool.close();
+      }
     } else {
       Content node = messagingService.create(session, mapProperties);
       // set up to stream the body.
@@ -309,4 +379,48 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     }
   }
 
+  /**
+   * Handles a single SMTP transaction, holding one admin session from the first recipient
+   * until the transaction is done.
+   */
+  class TransactionHandler implements MessageHandler {
+
+    private String from;
+    private List<String> recipients = new ArrayList<String>();
+    private Set<String> paths = new LinkedHashSet<String>();
+    private Session session;
+
+    public void from(String from) throws RejectException {
+      this.from = from;
+    }
+
+    public void recipient(String recipient) throws RejectException {
+      List<String> localPaths = null;
+      try {
+        if (session == null) {
+          session = contentRepository.loginAdministrative();
+        }
+        localPaths = getLocalPath(session, recipient);
+      } catch (Exception e) {
+        LOGGER.error("Failed to resolve recipient " + recipient, e);
+      }
+      if (localPaths == null || localPaths.size() == 0) {
+        throw new RejectException(553, "<" + recipient + "> Recipient not accepted");
+      }
+      recipients.add(recipient);
+      paths.addAll(localPaths);
+    }
+
+    public void data(InputStream data) throws RejectException, TooMuchDataException,
+        IOException {
+      deliver(session, from, recipients, paths, data);
+    }
+
+    public void done() {
+      Session s = session;
+      session = null;
+      logout(s);
+    }
+  }
+
 }
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
@@ -46,6 +47,8 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -369,4 +372,97 @@ public class SakaiSmtpServerTest {
     sakaiSmtpServer.deactivate(componentContext);
   }
 
+  @Test
+  public void testDeliverToManyRecipientsOnce() throws Exception {
+    List<String> carol = new ArrayList<String>();
+    carol.add("carol");
+    when(messagingService.expandAliases("carol")).thenReturn(carol);
+    when(messagingService.getFullPathToStore(eq("carol"), any(Session.class)))
+        .thenReturn("a:carol/message");
+    InputStream dataStream = new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8"));
+    when(messagingService.create(any(Session.class), any(Map.class))).thenReturn(
+        myMessageNode);
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    MessageHandler handler = sakaiSmtpServer.create(null);
+    handler.from("bob@localhost");
+    handler.recipient("alice@localhost");
+    handler.recipient("carol@localhost");
+    handler.recipient("alice@localhost");
+    handler.data(dataStream);
+    handler.done();
+
+    // one login, one parse and write, one copy for the second mailbox
+    verify(slingRepository).loginAdministrative();
+    verify(messagingService).create(any(Session.class), any(Map.class));
+    verify(contentManager).writeBody(eq("a:bob/message/messagenode"), eq(dataStream));
+    verify(messagingService).copyMessageNode(myMessageNode, "a:carol/message",
+        adminSession);
+    verify(messagingService, times(0)).copyMessageNode(myMessageNode,
+        "a:alice/message", adminSession);
+    verify(adminSession).logout();
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @Test
+  public void testRejectUnknownRecipient() throws Exception {
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    MessageHandler handler = sakaiSmtpServer.create(null);
+    handler.from("bob@localhost");
+    try {
+      handler.recipient("nobody@localhost");
+      fail("Unknown recipient should be rejected");
+    } catch (RejectException e) {
+      assertEquals(553, e.getCode());
+    }
+    try {
+      handler.recipient("alice@example.com");
+      fail("Recipient outside the local domains should be rejected");
+    } catch (RejectException e) {
+      assertEquals(553, e.getCode());
+    }
+    handler.done();
+    verify(adminSession).logout();
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @Test
+  public void testSpoolMultipartMessage() throws Exception {
+    componentContext.getProperties().put("smtp.spool.threshold", 0);
+    InputStream dataStream = this.getClass().getResourceAsStream("testmultipartgood.txt");
+    assertNotNull(dataStream);
+
+    when(
+        messagingService.create(any(Session.class), any(Map.class), any(String.class),
+            any(String.class))).thenReturn(myMessageNode);
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+
+    verify(messagingService).create(eq(adminSession), mapProperties.capture(),
+        any(String.class), eq("a:alice/message"));
+    verify(contentManager).writeBody(eq("a:bob/message/messagenode/part000"),
+        any(InputStream.class));
+    assertEquals(MULTIPART_SUBJECT_TEST, mapProperties.getValue().get("sakai:subject"));
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
 }
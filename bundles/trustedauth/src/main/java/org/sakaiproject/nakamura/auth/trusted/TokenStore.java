@@ -38,6 +38,9 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -68,6 +71,26 @@ public class TokenStore {
 
   }
 
+  /**
+   * A cookie that has been verified, and who it was for.
+   */
+  private static final class VerifiedCookie {
+    final String userId;
+    final long expires;
+    final String serverId;
+    final int secretKeyId;
+    final String value;
+
+    VerifiedCookie(String userId, long expires, String serverId, int secretKeyId,
+        String value) {
+      this.userId = userId;
+      this.expires = expires;
+      this.serverId = serverId;
+      this.secretKeyId = secretKeyId;
+      this.value = value;
+    }
+  }
+
   /**
    * A secure cookie, with encoding and decoding methods.
    */
@@ -118,13 +141,13 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ");
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
+      Mac m = getMac();
+      m.init(expiringSecretKey.getSecretKey());
       m.update(cookiePayload.getBytes(UTF_8));
       String cookieValue = encodeField(m.doFinal());
       return cookieValue + "@" + cookiePayload;
@@ -136,6 +159,12 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String decode(String value) throws SecureCookieException {
+      VerifiedCookie verified = getVerifiedCookie(value);
+      if (verified != null) {
+        this.secretKeyId = verified.secretKeyId;
+        this.serverId = verified.serverId;
+        return verified.userId;
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 4) {        
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -157,7 +186,9 @@ public class TokenStore {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
             String hmac = encode(cookieTime, userId);
-            if (value.equals(hmac)) {
+            if (constantTimeEquals(value, hmac)) {
+              putVerifiedCookie(value, new VerifiedCookie(userId, cookieTime, serverId,
+                  secretKeyId, value));
               return userId;
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -202,6 +233,25 @@ public class TokenStore {
   private static final String UTF_8 = "UTF-8";
 
   private static final String DEFAULT_TOKEN_FILE = "sling/cookie-tokens.bin";
+
+  /**
+   * The most cookies remembered as verified.
+   */
+  static final int MAX_VERIFIED_COOKIES = 10000;
+
+  /**
+   * A Mac for each thread, getting a Mac is far more expensive than initialising one.
+   */
+  private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance(HMAC_SHA1);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+    }
+  };
   /**
    * The ttl of the cookie before it becomes invalid (in ms)
    */
@@ -210,15 +260,23 @@ public class TokenStore {
   /**
    * The time when a new token should be created.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile long nextUpdate = System.currentTimeMillis();
   /**
    * The location of the current token.
    */
-  private int secretKeyId = 0;
+  private volatile int secretKeyId = 0;
   /**
    * A ring of tokens used to encypt.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private volatile AtomicReferenceArray<ExpiringSecretKey> secretKeyRingBuffer;
+  /**
+   * Held while the ring is loaded or a new key is added, readers never wait for it.
+   */
+  private final ReentrantLock rotationLock = new ReentrantLock();
+  /**
+   * Cookies that have already been verified, keyed by their HMAC.
+   */
+  private final ConcurrentHashMap<String, VerifiedCookie> verifiedCookies = new ConcurrentHashMap<String, VerifiedCookie>();
   /**
    * A secure random used for generating new tokens.
    */
@@ -297,16 +355,43 @@ public class TokenStore {
   }
 
   /**
-   * Maintain a circular buffer to tokens, and return the current one.
+   * Maintain a circular buffer to tokens, and return the current one. The current token
+   * is returned without locking, only the thread that finds the token due for
+   * replacement replaces it. While it does, other threads carry on with the current
+   * token, which stays valid for twice the ttl. Threads only wait when there is no valid
+   * token at all.
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
+  SecureCookie getActiveToken() {
+    if (secretKeyRingBuffer == null || needsRotation()) {
+      if (secretKeyRingBuffer == null || hasExpired(secretKeyRingBuffer.get(secretKeyId))) {
+        rotationLock.lock();
+      } else if (!rotationLock.tryLock()) {
+        return new SecureCookie(serverId, secretKeyId);
+      }
+      try {
+        rotate();
+      } finally {
+        rotationLock.unlock();
+      }
+    }
+    return new SecureCookie(serverId, secretKeyId);
+  }
+
+  private boolean needsRotation() {
+    return System.currentTimeMillis() > nextUpdate
+        || hasExpired(secretKeyRingBuffer.get(secretKeyId));
+  }
+
+  /**
+   * Add a new key to the ring, if it is still needed. Must hold the rotation lock.
+   */
+  private void rotate() {
     if (secretKeyRingBuffer == null) {
       loadLocalSecretKeys();
     }
-    if (System.currentTimeMillis() > nextUpdate
-        || hasExpired(secretKeyRingBuffer[secretKeyId]) ) {
+    if (needsRotation()) {
       // cycle so that during a typical ttl the tokens get completely refreshed.
       nextUpdate = System.currentTimeMillis() + ttl / 2;
       byte[] b = new byte[20];
@@ -319,26 +404,28 @@ public class TokenStore {
           .currentTimeMillis()
           + (ttl * 2), serverId);
       int nextToken = secretKeyId + 1;
-      if (nextToken == secretKeyRingBuffer.length) {
+      if (nextToken == secretKeyRingBuffer.length()) {
         nextToken = 0;
       }
-      secretKeyRingBuffer[nextToken] = expiringSecretKey;
+      secretKeyRingBuffer.set(nextToken, expiringSecretKey);
       LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
       if ( debugCookies ) {
         dumpSecretKeyRingBuffer(secretKeyRingBuffer);
       }
       getServerKeyCache().put(getCacheKey(serverId, nextToken),
           expiringSecretKey.getSecretKeyData());
+      // the replaced key may have signed cookies that are remembered, forget them all
+      // rather than track which key signed each.
+      verifiedCookies.clear();
       secretKeyId = nextToken;
       saveLocalSecretKeys();
     }
-    return new SecureCookie(serverId, secretKeyId);
   }
 
-  private void dumpSecretKeyRingBuffer(ExpiringSecretKey[] secretKeyRingBuffer) {
+  private void dumpSecretKeyRingBuffer(AtomicReferenceArray<ExpiringSecretKey> secretKeyRingBuffer) {
     StringBuilder sb  = new StringBuilder();
-    int i = 0;
-    for ( ExpiringSecretKey e : secretKeyRingBuffer ) {
+    for (int i = 0; i < secretKeyRingBuffer.length(); i++) {
+      ExpiringSecretKey e = secretKeyRingBuffer.get(i);
       if ( e == null ) {
         sb.append(i).append(", Expires in:").append(-1).append(", Key:").append("empty").append("\n");        
       } else {
@@ -384,14 +471,15 @@ public class TokenStore {
       keyOutputStream = new DataOutputStream(fout);
       keyOutputStream.writeInt(secretKeyId);
       keyOutputStream.writeLong(nextUpdate);
-      for (int i = 0; i < secretKeyRingBuffer.length; i++) {
-        if (secretKeyRingBuffer[i] == null) {
+      for (int i = 0; i < secretKeyRingBuffer.length(); i++) {
+        ExpiringSecretKey key = secretKeyRingBuffer.get(i);
+        if (key == null) {
           keyOutputStream.writeInt(0);
         } else {
           keyOutputStream.writeInt(1);
-          keyOutputStream.writeLong(secretKeyRingBuffer[i].getExpires());
-          keyOutputStream.writeUTF(secretKeyRingBuffer[i].getServerId());
-          byte[] b = secretKeyRingBuffer[i].getSecretKey().getEncoded();
+          keyOutputStream.writeLong(key.getExpires());
+          keyOutputStream.writeUTF(key.getServerId());
+          byte[] b = key.getSecretKey().getEncoded();
           keyOutputStream.writeInt(b.length);
           keyOutputStream.write(b);
         }
@@ -426,8 +514,8 @@ public class TokenStore {
       keyInputStream = new DataInputStream(fin);
       int newCurrentToken = keyInputStream.readInt();
       long newNextUpdate = keyInputStream.readLong();
-      ExpiringSecretKey[] newKeys = new ExpiringSecretKey[5];
-      for (int i = 0; i < newKeys.length; i++) {
+      AtomicReferenceArray<ExpiringSecretKey> newKeys = new AtomicReferenceArray<ExpiringSecretKey>(5);
+      for (int i = 0; i < newKeys.length(); i++) {
         int isNull = keyInputStream.readInt();
         if (isNull == 1) {
           long expires = keyInputStream.readLong();
@@ -437,12 +525,12 @@ public class TokenStore {
           if ( keyInputStream.read(b) != l ) {
             throw new IOException("Failed to read Key no "+i+" from Secret Keys, end of file reached ");
           }
-          newKeys[i] = new ExpiringSecretKey(b, HMAC_SHA1, expires, keyServerId);
+          newKeys.set(i, new ExpiringSecretKey(b, HMAC_SHA1, expires, keyServerId));
           getServerKeyCache()
-              .put(getCacheKey(keyServerId, i), newKeys[i].getSecretKeyData());
+              .put(getCacheKey(keyServerId, i), newKeys.get(i).getSecretKeyData());
           LOG.info("Loaded Key {} from Local Store into {} ",getCacheKey(keyServerId, i), getServerKeyCache());
         } else {
-          newKeys[i] = null;
+          newKeys.set(i, null);
         }
       }
       keyInputStream.close();
@@ -463,7 +551,7 @@ public class TokenStore {
       }
     }
     if (secretKeyRingBuffer == null) {
-      secretKeyRingBuffer = new ExpiringSecretKey[5];
+      secretKeyRingBuffer = new AtomicReferenceArray<ExpiringSecretKey>(5);
       nextUpdate = System.currentTimeMillis();
       secretKeyId = 0;
     }
@@ -494,9 +582,10 @@ public class TokenStore {
    */
   private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
-    if ( secretKeyRingBuffer[keyNumber] != null ) {
-      if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
-        return secretKeyRingBuffer[keyNumber];
+    ExpiringSecretKey localKey = secretKeyRingBuffer.get(keyNumber);
+    if ( localKey != null ) {
+      if ( serverId.equals(localKey.getServerId())) {
+        return localKey;
       }
     }
     String cacheKey = getCacheKey(serverId, keyNumber);
@@ -514,6 +603,68 @@ public class TokenStore {
     return null;
   }
 
+  /**
+   * @return a Mac for the current thread, to be initialised before use.
+   */
+  private static Mac getMac() {
+    return MAC.get();
+  }
+
+  /**
+   * @return the cookie if it has been verified before and has not expired since, or
+   *         null.
+   */
+  private VerifiedCookie getVerifiedCookie(String value) {
+    int i = value.indexOf('@');
+    if (i < 0) {
+      return null;
+    }
+    VerifiedCookie verified = verifiedCookies.get(value.substring(0, i));
+    if (verified == null) {
+      return null;
+    }
+    if (verified.expires <= System.currentTimeMillis()) {
+      verifiedCookies.remove(value.substring(0, i));
+      return null;
+    }
+    // the HMAC matched, the payload must match too.
+    if (!verified.value.equals(value)) {
+      return null;
+    }
+    return verified;
+  }
+
+  private void putVerifiedCookie(String value, VerifiedCookie verified) {
+    if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+      long now = System.currentTimeMillis();
+      for (java.util.Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i
+          .hasNext();) {
+        if (i.next().expires <= now) {
+          i.remove();
+        }
+      }
+      if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+        verifiedCookies.clear();
+      }
+    }
+    verifiedCookies.put(value.substring(0, value.indexOf('@')), verified);
+  }
+
+  /**
+   * Compare two strings in a time that depends only on their length, so that the time
+   * taken does not tell an attacker how much of a forged HMAC was right.
+   */
+  static boolean constantTimeEquals(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    int result = 0;
+    for (int i = 0; i < a.length(); i++) {
+      result |= a.charAt(i) ^ b.charAt(i);
+    }
+    return result == 0;
+  }
+
   /**
    * @return
    */
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.codec.binary.Base64;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookieException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ */
+public class TokenStoreTest {
+
+  private TokenStore tokenStore;
+
+  @Before
+  public void before() throws Exception {
+    CacheManagerService cacheManagerService = EasyMock
+        .createMock(CacheManagerService.class);
+    Cache<Object> cache = new LocalCache<Object>();
+    EasyMock.expect(
+        cacheManagerService.getCache(TokenStore.class.getName(),
+            CacheScope.CLUSTERREPLICATED)).andReturn(cache).anyTimes();
+    EasyMock.replay(cacheManagerService);
+    tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, "target/test-cookie-tokens-"
+        + System.currentTimeMillis() + ".bin", "serverID", 60000L);
+  }
+
+  @Test
+  public void testDecodeTwice() throws Exception {
+    String cookie = tokenStore.getActiveToken().encode(
+        System.currentTimeMillis() + 60000L, "ieb");
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    // the second time the cookie has been seen before.
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+  }
+
+  @Test
+  public void testTamperedCookie() throws Exception {
+    String cookie = tokenStore.getActiveToken().encode(
+        System.currentTimeMillis() + 60000L, "ieb");
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    // same HMAC, different user.
+    String[] parts = cookie.split("@");
+    String forged = parts[0] + "@" + parts[1] + "@"
+        + new Base64(0, new byte[0], true).encodeToString("mallory".getBytes("UTF-8"))
+        + "@" + parts[3];
+    try {
+      tokenStore.getSecureCookie().decode(forged);
+      fail();
+    } catch (SecureCookieException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testExpiredCookie() throws Exception {
+    String cookie = tokenStore.getActiveToken().encode(System.currentTimeMillis() + 50L,
+        "ieb");
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    Thread.sleep(100);
+    try {
+      tokenStore.getSecureCookie().decode(cookie);
+      fail();
+    } catch (SecureCookieException e) {
+      // expected, even though it was verified before.
+    }
+  }
+
+  @Test
+  public void testConstantTimeEquals() {
+    assertTrue(TokenStore.constantTimeEquals("abc", "abc"));
+    assertFalse(TokenStore.constantTimeEquals("abc", "abd"));
+    assertFalse(TokenStore.constantTimeEquals("abc", "abcd"));
+  }
+
+  @Test
+  public void testConcurrentDecode() throws Exception {
+    final String cookie = tokenStore.getActiveToken().encode(
+        System.currentTimeMillis() + 60000L, "ieb");
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    final CountDownLatch done = new CountDownLatch(4);
+    for (int t = 0; t < 4; t++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int i = 0; i < 500; i++) {
+              if (!"ieb".equals(tokenStore.getSecureCookie().decode(cookie))) {
+                throw new AssertionError("wrong user");
+              }
+              tokenStore.getActiveToken().encode(System.currentTimeMillis() + 60000L,
+                  "user" + i);
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    done.await();
+    assertEquals(failures.toString(), 0, failures.size());
+  }
+}
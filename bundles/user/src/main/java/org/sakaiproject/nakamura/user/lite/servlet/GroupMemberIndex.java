@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the direct members of groups sorted by id and by name, so that a page of
+ * members can be listed without loading every member of the group.
+ * <p>
+ * The first listing of a group loads each member once to find the name it sorts on.
+ * After that, when the group is updated only the members that were added are loaded,
+ * and when a member is updated or deleted only that member is loaded again. Changes
+ * made on another server in a cluster are only seen when a list reaches its maximum age
+ * and is built again.
+ * <p>
+ * The lists are shared by everyone, so they are always read as the administrator, and
+ * what has changed is only forgotten once a list has been brought up to date.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { GroupMemberIndex.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Keeps sorted lists of the members of groups."),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC,
+        StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.DELETE_TOPIC }) })
+public class GroupMemberIndex implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberIndex.class);
+
+  @Property(intValue = 500, label = "Maximum groups", description = "The number of groups to keep member lists for.")
+  static final String MAX_GROUPS = "member.index.max.groups";
+
+  @Property(intValue = 3600, label = "Maximum age", description = "The number of seconds after which a member list is built again from scratch.")
+  static final String MAX_AGE = "member.index.max.age";
+
+  private static final String MANAGED_GROUP = "sakai:managed-group";
+
+  @Reference
+  protected transient Repository repository;
+
+  private Map<String, MemberList> lists = newLists(500);
+
+  private long maxAge = 3600000L;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    maxAge = OsgiUtil.toInteger(properties.get(MAX_AGE), 3600) * 1000L;
+    lists = newLists(OsgiUtil.toInteger(properties.get(MAX_GROUPS), 500));
+  }
+
+  private static Map<String, MemberList> newLists(final int maxGroups) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, MemberList>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, MemberList> eldest) {
+        return size() > maxGroups;
+      }
+    });
+  }
+
+  /**
+   * @param groupId
+   *          the id of the group.
+   * @return the direct members of the group, without the group that manages it. Null if
+   *         the group does not exist.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Members getMembers(String groupId) throws AccessDeniedException,
+      StorageClientException {
+    MemberList list = lists.get(groupId);
+    if (list == null
+        || System.currentTimeMillis() - list.created > maxAge) {
+      list = new MemberList(groupId);
+      lists.put(groupId, list);
+    }
+    if (!list.isChanged()) {
+      return list.members;
+    }
+    Session session = repository.loginAdministrative();
+    try {
+      return list.refresh(session.getAuthorizableManager());
+    } finally {
+      session.logout();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Marks the lists of the changed group, and the lists that have the changed
+   * authorizable as a member, to be brought up to date the next time they are read.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (id == null) {
+      id = (String) event.getProperty(UserConstants.EVENT_PROP_USERID);
+    }
+    if (id == null) {
+      return;
+    }
+    if (event.getTopic().endsWith(StoreListener.DELETE_TOPIC)) {
+      lists.remove(id);
+    } else {
+      MemberList list = lists.get(id);
+      if (list != null) {
+        list.membershipChanged.set(true);
+      }
+    }
+    // the name a member sorts on may have changed.
+    synchronized (lists) {
+      for (MemberList list : lists.values()) {
+        if (list.contains(id)) {
+          list.changedMembers.put(id, Boolean.TRUE);
+        }
+      }
+    }
+  }
+
+  /**
+   * The members of a group as they were when the list was last brought up to date.
+   */
+  public static final class Members {
+
+    private final String[] byId;
+    private final String[] byName;
+
+    private Members(String[] byId, String[] byName) {
+      this.byId = byId;
+      this.byName = byName;
+    }
+
+    /**
+     * @return the number of members.
+     */
+    public int size() {
+      return byId.length;
+    }
+
+    /**
+     * @param sortOnName
+     *          true to sort on the name of the members, false to sort on their ids.
+     * @param descending
+     *          true to list the members in reverse order.
+     * @param items
+     *          the number of members on a page.
+     * @param page
+     *          the page, starting at 0.
+     * @return the ids of the members on the page.
+     */
+    public List<String> getPage(boolean sortOnName, boolean descending, long items,
+        long page) {
+      String[] sorted = sortOnName ? byName : byId;
+      long first = items * page;
+      if (items <= 0 || first >= sorted.length) {
+        return Collections.emptyList();
+      }
+      int n = (int) Math.min(items, sorted.length - first);
+      List<String> ids = new ArrayList<String>(n);
+      for (int i = 0; i < n; i++) {
+        int j = (int) first + i;
+        ids.add(sorted[descending ? sorted.length - 1 - j : j]);
+      }
+      return ids;
+    }
+  }
+
+  /**
+   * The sorted members of one group, and what has changed since they were sorted.
+   */
+  private static final class MemberList {
+
+    private final String groupId;
+    private final long created = System.currentTimeMillis();
+    private final AtomicBoolean membershipChanged = new AtomicBoolean(true);
+    private final Map<String, Boolean> changedMembers = new ConcurrentHashMap<String, Boolean>();
+    private volatile Map<String, String> names = Collections.emptyMap();
+    private volatile Members members;
+
+    MemberList(String groupId) {
+      this.groupId = groupId;
+    }
+
+    boolean contains(String id) {
+      return names.containsKey(id);
+    }
+
+    boolean isChanged() {
+      return membershipChanged.get() || !changedMembers.isEmpty();
+    }
+
+    /**
+     * Bring the list up to date. What has changed is taken before the list is read, so
+     * that changes made while it is read are not lost, and is put back if it could not be
+     * read.
+     */
+    synchronized Members refresh(AuthorizableManager authorizableManager)
+        throws AccessDeniedException, StorageClientException {
+      boolean reread = membershipChanged.getAndSet(false);
+      Set<String> changed = new HashSet<String>(changedMembers.keySet());
+      if (!reread && changed.isEmpty()) {
+        return members;
+      }
+      changedMembers.keySet().removeAll(changed);
+      try {
+        return refresh(authorizableManager, reread, changed);
+      } catch (AccessDeniedException e) {
+        restore(reread, changed);
+        throw e;
+      } catch (StorageClientException e) {
+        restore(reread, changed);
+        throw e;
+      } catch (RuntimeException e) {
+        restore(reread, changed);
+        throw e;
+      }
+    }
+
+    private void restore(boolean reread, Set<String> changed) {
+      if (reread) {
+        membershipChanged.set(true);
+      }
+      for (String id : changed) {
+        changedMembers.put(id, Boolean.TRUE);
+      }
+    }
+
+    private Members refresh(AuthorizableManager authorizableManager, boolean reread,
+        Set<String> changed) throws AccessDeniedException, StorageClientException {
+      Map<String, String> updated = new HashMap<String, String>(names);
+      updated.keySet().removeAll(changed);
+      Set<String> ids = names.keySet();
+      if (reread || members == null) {
+        Authorizable group = authorizableManager.findAuthorizable(groupId);
+        if (!(group instanceof Group)) {
+          membershipChanged.set(true);
+          return null;
+        }
+        ids = new HashSet<String>(Arrays.asList(((Group) group).getMembers()));
+        updated.keySet().retainAll(ids);
+      }
+      int loaded = 0;
+      for (String id : ids) {
+        if (!updated.containsKey(id)) {
+          Authorizable member = authorizableManager.findAuthorizable(id);
+          loaded++;
+          if (member != null && !isManagerGroup(member)) {
+            updated.put(id, getName(member));
+          }
+        }
+      }
+      LOGGER.debug("Loaded {} of {} members of {} ", new Object[] { loaded,
+          updated.size(), groupId });
+      names = updated;
+      members = sort(updated);
+      return members;
+    }
+
+    /**
+     * The group that manages a group is technically a member of it, but it is not listed.
+     */
+    private boolean isManagerGroup(Authorizable member) {
+      return member.hasProperty(MANAGED_GROUP)
+          && groupId.equals(member.getProperty(MANAGED_GROUP));
+    }
+
+    private static Members sort(final Map<String, String> names) {
+      String[] byId = names.keySet().toArray(new String[names.size()]);
+      Arrays.sort(byId);
+      String[] byName = byId.clone();
+      Arrays.sort(byName, new Comparator<String>() {
+        public int compare(String o1, String o2) {
+          return names.get(o1).compareTo(names.get(o2));
+        }
+      });
+      return new Members(byId, byName);
+    }
+  }
+
+  /**
+   * Gets the name for an authorizable on what the list should be sorted.
+   * sakai:group-title for Groups, lastName for Users. The id is added to keep the names
+   * unique.
+   *
+   * @param member
+   *          The authorizable to get a name for.
+   * @return The name.
+   */
+  static String getName(Authorizable member) {
+    String name;
+    if (member instanceof Group) {
+      name = (String) member.getProperty("sakai:group-title");
+    } else {
+      name = (String) member.getProperty("lastName");
+    }
+    return name + member.getId();
+  }
+}
@@ -34,7 +34,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -50,11 +49,8 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
@@ -106,8 +102,12 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient ProfileService profileService;
 
+  @Reference
+  protected transient GroupMemberIndex groupMemberIndex;
+
   static final String ITEMS = "items";
   static final String PAGE = "page";
+  static final String SORT_ON = "sortOn";
 
   /**
    * {@inheritDoc}
@@ -135,25 +135,24 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
     ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
     writer.setTidy(selectors.contains("tidy"));
 
-    // Get the sorting order, default is ascending or the natural sorting order (which is
-    // null for a TreeMap.)
-    Comparator<String> comparator = null;
-    String order = "ascending";
+    // Get the sorting order, default is ascending on the name of the members.
+    boolean descending = false;
     if (request.getRequestParameter("sortOrder") != null) {
-      order = request.getRequestParameter("sortOrder").getString();
-      if (order.equals("descending")) {
-        comparator = Collections.reverseOrder();
-      }
+      descending = "descending".equals(request.getRequestParameter("sortOrder").getString());
     }
+    boolean sortOnName = !"id".equals(request.getParameter(SORT_ON));
 
     try {
       response.setContentType("application/json");
-      TreeMap<String, Authorizable> map = null;
+      javax.jcr.Session session = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
+      AuthorizableManager authorizableManager = StorageClientUtils.adaptToSession(session)
+          .getAuthorizableManager();
+      GroupMemberIndex.Members members = null;
       if (selectors.contains("managers")) {
-        map = getManagers(request, group, comparator);
+        members = getManagers(group);
       } else {
         // Members is the default.
-        map = getMembers(request, group, comparator);
+        members = getMembers(group);
       }
 
       // Do some paging.
@@ -167,28 +166,37 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       if (items < 0) {
         items = 25;
       }
-      Iterator<Entry<String, Authorizable>> iterator = getInPlaceIterator(request, map,
-          items, page);
+      // only the members on the page are loaded.
+      List<String> pageIds = Collections.emptyList();
+      if (members != null) {
+        pageIds = members.getPage(sortOnName, descending, items, page);
+      }
 
       // Write the whole lot out.
-      javax.jcr.Session session = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
       writer.array();
-      int i = 0;
-      while (iterator.hasNext() && i < items) {
-        Entry<String, Authorizable> entry = iterator.next();
-        Authorizable au = entry.getValue();
-        ValueMap profile;
-        if(selectors.contains("detailed")){
-          profile = profileService.getProfileMap(au, session);
-        }else{
-          profile = profileService.getCompactProfileMap(au, session);
+      if (selectors.contains("detailed")) {
+        for (String id : pageIds) {
+          Authorizable au = authorizableManager.findAuthorizable(id);
+          ValueMap profile = au == null ? null : profileService.getProfileMap(au, session);
+          if (profile != null) {
+            writer.valueMap(profile);
+          } else {
+            // profile wasn't found.  safe to ignore and not include the group
+            logger.info("Profile not found for " + id);
+          }
         }
-        if (profile != null) {
-          writer.valueMap(profile);
-          i++;
-        } else {
-          // profile wasn't found.  safe to ignore and not include the group
-          logger.info("Profile not found for " + au.getId());
+      } else {
+        // fetch the compact profiles for the whole page in one go.
+        Map<String, ValueMap> profiles = profileService.getCompactProfileMaps(pageIds,
+            StorageClientUtils.adaptToSession(session));
+        for (String id : pageIds) {
+          ValueMap profile = profiles.get(id);
+          if (profile != null) {
+            writer.valueMap(profile);
+          } else {
+            // profile wasn't found.  safe to ignore and not include the group
+            logger.info("Profile not found for " + id);
+          }
         }
       }
       writer.endArray();
@@ -218,55 +226,16 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
   }
 
   /**
-   * @param request
-   * @param map
-   * @return
-   */
-  private Iterator<Entry<String, Authorizable>> getInPlaceIterator(
-      SlingHttpServletRequest request, TreeMap<String, Authorizable> map,
-      long items, long page) {
-    Iterator<Entry<String, Authorizable>> iterator = map.entrySet().iterator();
-    long skipNum = items * page;
-
-    while (skipNum > 0) {
-      iterator.next();
-      skipNum--;
-    }
-
-    return iterator;
-  }
-
-  /**
-   * @param request
    * @param group
-   * @param writer
-   * @throws RepositoryException
-   * @throws JSONException
+   * @return the direct members of the group, sorted.
    * @throws StorageClientException
    * @throws AccessDeniedException
    */
-  protected TreeMap<String, Authorizable> getMembers(SlingHttpServletRequest request,
-      Group group, Comparator<String> comparator) throws
-      JSONException, AccessDeniedException, StorageClientException {
-    TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
-
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-    AuthorizableManager authorizableManager = session.getAuthorizableManager();
-
-    // Only the direct members are required.
-    // If we would do group.getMembers() that would also retrieve all the indirect ones.
-    String[] members = group.getMembers();
-    for ( String membername : members) {
-      Authorizable member = authorizableManager.findAuthorizable(membername);
-      if (member.hasProperty("sakai:managed-group") && group.getId().equals(member.getProperty("sakai:managed-group"))) {
-        // for purposes of returning a list of members, we disregard the group's managers' group,
-        // which is technically a member, but we don't want to see it here.
-        continue;
-      }
-      String name = getName(member);
-      map.put(name, member);
-    }
-    return map;
+  protected GroupMemberIndex.Members getMembers(Group group)
+      throws AccessDeniedException, StorageClientException {
+    // Only the direct members are required, without the group's managers' group, which
+    // is technically a member, but we don't want to see it here.
+    return groupMemberIndex.getMembers(group.getId());
   }
 
   /**
@@ -277,58 +246,21 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
    * <del>Get the managers for a group. These should be stored in the
    * {@link UserConstants#PROP_GROUP_MANAGERS}.</del>
    *
-   * @param request
    * @param group
-   * @param writer
-   * @throws RepositoryException
-   * @throws JSONException
+   * @return the members of the managers group, sorted, or null if there is none.
    * @throws StorageClientException
    * @throws AccessDeniedException
    */
-  protected TreeMap<String, Authorizable> getManagers(SlingHttpServletRequest request,
-      Group group, Comparator<String> comparator) throws
-      JSONException, StorageClientException, AccessDeniedException {
-    TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
-
+  protected GroupMemberIndex.Members getManagers(Group group)
+      throws StorageClientException, AccessDeniedException {
     // KERN-949 will probably change this.
     // note above was made before this was changed to retrieving members of the managers
     // group and may not apply.
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-    AuthorizableManager authorizableManager = session.getAuthorizableManager();
     String managersGroup = (String) group.getProperty(UserConstants.PROP_MANAGERS_GROUP);
-    if (managersGroup != null ) {
-
-      Group mgrGroup = (Group) authorizableManager.findAuthorizable(managersGroup);
-
-      String[] members = mgrGroup.getMembers();
-      for  (String memberName : members) {
-        Authorizable mau = authorizableManager.findAuthorizable(memberName);
-        String name = getName(mau);
-        map.put(name, mau);
-      }
-    }
-    return map;
-
-  }
-
-  /**
-   * Get's the name for an authorizable on what the list should be sorted.
-   * sakai:group-title for Groups, lastName for Users.
-   *
-   * @param member
-   *          The authorizable to get a name for.
-   * @return The name.
-   * @throws RepositoryException
-   */
-  private String getName(Authorizable member)  {
-    String name = member.getId();
-    if (member instanceof Group) {
-      name = (String) member.getProperty("sakai:group-title");
-    } else {
-      name = (String) member.getProperty("lastName");
+    if (managersGroup == null) {
+      return null;
     }
-    // We need to add the ID to keep the keys unique. (ieb, ???? name depends on member, so this does not keep the name unique)
-    return name + member.getId();
+    return groupMemberIndex.getMembers(managersGroup);
   }
 
 }
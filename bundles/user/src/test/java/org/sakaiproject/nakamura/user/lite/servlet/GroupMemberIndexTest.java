@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+
+public class GroupMemberIndexTest {
+
+  private Repository repository;
+  private AuthorizableManager authorizableManager;
+  private GroupMemberIndex index;
+
+  @Before
+  public void before() throws Exception {
+    repository = RepositoryHelper.getRepository(new String[] { "alice",
+        "bob", "carol", "dave" }, new String[] { "g-course101", "g-course101-managers" });
+    Session session = repository.loginAdministrative();
+    authorizableManager = session.getAuthorizableManager();
+    setLastName("alice", "Zeta");
+    setLastName("bob", "Alpha");
+    setLastName("carol", "Mu");
+    setLastName("dave", "Beta");
+    Authorizable managers = authorizableManager.findAuthorizable("g-course101-managers");
+    managers.setProperty("sakai:managed-group", "g-course101");
+    authorizableManager.updateAuthorizable(managers);
+    Group group = (Group) authorizableManager.findAuthorizable("g-course101");
+    group.addMember("alice");
+    group.addMember("bob");
+    group.addMember("carol");
+    group.addMember("g-course101-managers");
+    authorizableManager.updateAuthorizable(group);
+
+    index = new GroupMemberIndex();
+    index.repository = repository;
+    index.activate(new HashMap<String, Object>());
+  }
+
+  private void setLastName(String id, String lastName) throws Exception {
+    Authorizable user = authorizableManager.findAuthorizable(id);
+    user.setProperty("lastName", lastName);
+    authorizableManager.updateAuthorizable(user);
+  }
+
+  private void updated(String id) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, id);
+    index.handleEvent(new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, properties));
+  }
+
+  @Test
+  public void testPages() throws Exception {
+    GroupMemberIndex.Members members = index.getMembers("g-course101");
+    // the managers group is not listed.
+    assertEquals(3, members.size());
+    assertEquals(Arrays.asList("bob", "carol"), members.getPage(true, false, 2, 0));
+    assertEquals(Arrays.asList("alice"), members.getPage(true, false, 2, 1));
+    assertEquals(Arrays.asList("alice", "carol"), members.getPage(true, true, 2, 0));
+    assertEquals(Arrays.asList("alice", "bob", "carol"), members.getPage(false, false,
+        25, 0));
+    assertEquals(0, members.getPage(false, false, 25, 1).size());
+    assertNull(index.getMembers("g-missing"));
+  }
+
+  @Test
+  public void testChanges() throws Exception {
+    GroupMemberIndex.Members members = index.getMembers("g-course101");
+    // nothing changed, so the same list is used.
+    assertEquals(members, index.getMembers("g-course101"));
+
+    Group group = (Group) authorizableManager.findAuthorizable("g-course101");
+    group.addMember("dave");
+    group.removeMember("alice");
+    authorizableManager.updateAuthorizable(group);
+    updated("g-course101");
+    members = index.getMembers("g-course101");
+    assertEquals(Arrays.asList("bob", "dave", "carol"), members.getPage(true, false, 25,
+        0));
+
+    setLastName("bob", "Omega");
+    updated("bob");
+    members = index.getMembers("g-course101");
+    assertEquals(Arrays.asList("dave", "carol", "bob"), members.getPage(true, false, 25,
+        0));
+  }
+
+  @Test
+  public void testChangesAreKeptWhenRefreshFails() throws Exception {
+    index.getMembers("g-course101");
+    Group group = (Group) authorizableManager.findAuthorizable("g-course101");
+    group.addMember("dave");
+    authorizableManager.updateAuthorizable(group);
+    updated("g-course101");
+
+    AuthorizableManager failing = mock(AuthorizableManager.class);
+    when(failing.findAuthorizable("g-course101")).thenThrow(
+        new StorageClientException("unavailable"));
+    Session failingSession = mock(Session.class);
+    when(failingSession.getAuthorizableManager()).thenReturn(failing);
+    Repository failingRepository = mock(Repository.class);
+    when(failingRepository.loginAdministrative()).thenReturn(failingSession);
+    index.repository = failingRepository;
+    try {
+      index.getMembers("g-course101");
+      fail();
+    } catch (StorageClientException e) {
+      verify(failingSession).logout();
+    }
+
+    index.repository = repository;
+    assertEquals(4, index.getMembers("g-course101").size());
+  }
+}
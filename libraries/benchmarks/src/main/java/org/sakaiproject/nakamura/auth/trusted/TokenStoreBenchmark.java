@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookieException;
+import org.sakaiproject.nakamura.benchmarks.BenchmarkData;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decoding the trusted authentication cookie, done on every authenticated request. One
+ * token store is shared by all threads, as it is in the server, and each thread keeps its
+ * own place in the cookies. In the same package as {@link TokenStore} to reach the active
+ * token.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenStoreBenchmark {
+
+  private TokenStore tokenStore;
+  private File tokenFile;
+  private String[] cookies;
+  private long expires;
+  private String[] userIds;
+
+  @Setup
+  public void setUp() throws Exception {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(TokenStore.class.getName(), CacheScope.CLUSTERREPLICATED))
+        .thenReturn(new MapCacheImpl<Object>());
+    tokenFile = File.createTempFile("benchmark-cookie-tokens", ".bin");
+    tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, tokenFile.getAbsolutePath(), "serverID", 3600000L);
+    expires = System.currentTimeMillis() + 3000000L;
+    userIds = BenchmarkData.userIds(BenchmarkData.random(), 256);
+    cookies = new String[userIds.length];
+    for (int i = 0; i < cookies.length; i++) {
+      cookies[i] = tokenStore.getActiveToken().encode(expires, userIds[i]);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    tokenFile.delete();
+  }
+
+  /**
+   * Where one thread is in the cookies.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    int next;
+    long expires;
+
+    @Setup
+    public void setUp(TokenStoreBenchmark benchmark) {
+      int thread = THREADS.getAndIncrement();
+      next = thread * 31;
+      // each thread has its own run of expiry times, so no thread makes a cookie that
+      // another has already seen.
+      expires = benchmark.expires + thread * 100000000L;
+    }
+  }
+
+  /**
+   * A cookie seen before, the usual case for a user making a series of requests.
+   */
+  @Benchmark
+  public String decodeSeen(Cursor cursor) throws SecureCookieException {
+    cursor.next = (cursor.next + 1) & (cookies.length - 1);
+    return tokenStore.getSecureCookie().decode(cookies[cursor.next]);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String decodeSeenThreads4(Cursor cursor) throws SecureCookieException {
+    return decodeSeen(cursor);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String decodeSeenThreads16(Cursor cursor) throws SecureCookieException {
+    return decodeSeen(cursor);
+  }
+
+  /**
+   * A cookie never seen before, which has to have its HMAC checked.
+   */
+  @Benchmark
+  public String decodeUnseen(Cursor cursor) throws Exception {
+    cursor.next = (cursor.next + 1) & (userIds.length - 1);
+    String cookie = tokenStore.getActiveToken().encode(++cursor.expires,
+        userIds[cursor.next]);
+    return tokenStore.getSecureCookie().decode(cookie);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String decodeUnseenThreads4(Cursor cursor) throws Exception {
+    return decodeUnseen(cursor);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String decodeUnseenThreads16(Cursor cursor) throws Exception {
+    return decodeUnseen(cursor);
+  }
+}
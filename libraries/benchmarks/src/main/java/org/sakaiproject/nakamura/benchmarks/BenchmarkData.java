@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.benchmarks;
+
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * The fixed data set every benchmark runs against. Everything is generated from a single
+ * seed, so results from different releases are measured on the same inputs and can be
+ * compared. Changing the seed or the shape of the data makes earlier results
+ * incomparable.
+ */
+public final class BenchmarkData {
+
+  /**
+   * The seed of the data set.
+   */
+  public static final long SEED = 20110309L;
+
+  private static final String ID_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+  private static final long BASE_TIME = 1299628800000L;
+
+  private BenchmarkData() {
+  }
+
+  /**
+   * @return a random number generator at the start of the data set.
+   */
+  public static Random random() {
+    return new Random(SEED);
+  }
+
+  /**
+   * @return n user ids of 3 to 12 characters.
+   */
+  public static String[] userIds(Random random, int n) {
+    String[] ids = new String[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = randomString(random, 3 + random.nextInt(10));
+    }
+    return ids;
+  }
+
+  /**
+   * @return n paths of the shapes seen in requests and content, with and without leading
+   *         and trailing slashes, doubled slashes and user and group prefixes.
+   */
+  public static String[] paths(Random random, int n) {
+    String[] userIds = userIds(random, n);
+    String[] paths = new String[n];
+    for (int i = 0; i < n; i++) {
+      String id = userIds[i];
+      switch (i % 6) {
+      case 0:
+        paths[i] = "/_user/" + id + "/public/authprofile";
+        break;
+      case 1:
+        paths[i] = "p/" + randomString(random, 10) + "//files/doc" + i + ".pdf/";
+        break;
+      case 2:
+        paths[i] = "/var/search/pool/all.json";
+        break;
+      case 3:
+        paths[i] = "a:" + id + "/message/inbox/" + randomString(random, 20);
+        break;
+      case 4:
+        paths[i] = "/_group/" + id + "/joinrequests/";
+        break;
+      default:
+        paths[i] = "/dev/lib/" + randomString(random, 8) + "/" + randomString(random, 6)
+            + ".js";
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * @return a map of n properties mixing strings, user paths, numbers, booleans, arrays
+   *         and dates, as found on content and profiles.
+   */
+  public static Map<String, Object> properties(Random random, int n) {
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    properties.put("path", "/_user/" + randomString(random, 8) + "/public/authprofile");
+    for (int i = 1; i < n; i++) {
+      String key = "sakai:prop" + i;
+      switch (i % 5) {
+      case 0:
+        properties.put(key, randomString(random, 5 + random.nextInt(60)));
+        break;
+      case 1:
+        properties.put(key, random.nextLong());
+        break;
+      case 2:
+        properties.put(key, random.nextBoolean());
+        break;
+      case 3:
+        properties.put(key, new String[] { randomString(random, 8),
+            randomString(random, 8), randomString(random, 8) });
+        break;
+      default:
+        properties.put(key, date(random));
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * @return a content tree below path, depth levels deep with breadth children at each
+   *         level and n properties on every item.
+   */
+  public static Content contentTree(Random random, String path, int depth, int breadth,
+      int n) {
+    TreeContent content = new TreeContent(path, properties(random, n));
+    if (depth > 0) {
+      for (int i = 0; i < breadth; i++) {
+        content.children.add(contentTree(random, path + "/child" + i, depth - 1, breadth, n));
+      }
+    }
+    return content;
+  }
+
+  private static Calendar date(Random random) {
+    Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    calendar.setTimeInMillis(BASE_TIME + random.nextInt(Integer.MAX_VALUE));
+    return calendar;
+  }
+
+  private static String randomString(Random random, int length) {
+    char[] c = new char[length];
+    for (int i = 0; i < length; i++) {
+      c[i] = ID_CHARS.charAt(random.nextInt(ID_CHARS.length()));
+    }
+    return new String(c);
+  }
+
+  /**
+   * Content that holds its own children, so trees can be written without a repository.
+   */
+  private static final class TreeContent extends Content {
+
+    private final List<Content> children = new ArrayList<Content>();
+
+    TreeContent(String path, Map<String, Object> properties) {
+      super(path, properties);
+    }
+
+    @Override
+    public Iterable<Content> listChildren() {
+      return children;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.benchmarks;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ExtendedJSONWriter}, which writes the JSON of most GET responses, on a profile
+ * sized map of properties and on a content tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtendedJSONWriterBenchmark {
+
+  private Map<String, Object> valueMap;
+  private Content contentTree;
+
+  @Setup
+  public void setUp() {
+    Random random = BenchmarkData.random();
+    valueMap = BenchmarkData.properties(random, 40);
+    // 1 + 5 + 25 items of 20 properties
+    contentTree = BenchmarkData.contentTree(random, "p/benchmark", 2, 5, 20);
+  }
+
+  @Benchmark
+  public int writeValueMap() throws JSONException {
+    StringWriter writer = new StringWriter(4096);
+    ExtendedJSONWriter.writeValueMap(new JSONWriter(writer), valueMap);
+    return writer.getBuffer().length();
+  }
+
+  @Benchmark
+  public int writeContentTreeToWriter() throws JSONException {
+    StringWriter writer = new StringWriter(65536);
+    ExtendedJSONWriter.writeContentTreeToWriter(new ExtendedJSONWriter(writer), contentTree,
+        -1);
+    return writer.getBuffer().length();
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks, writing the results as JSON to jmh-result.json unless another
+ * result format or file is given. Takes the same arguments as the JMH runner, eg
+ * <code>java -jar target/benchmarks.jar PathUtils -rff results/0.10.json</code>.
+ */
+public class Main {
+
+  public static void main(String[] args) throws Exception {
+    List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+    if (!arguments.contains("-rf")) {
+      arguments.add("-rf");
+      arguments.add("json");
+    }
+    if (!arguments.contains("-rff")) {
+      arguments.add("-rff");
+      arguments.add("jmh-result.json");
+    }
+    org.openjdk.jmh.Main.main(arguments.toArray(new String[arguments.size()]));
+  }
+}
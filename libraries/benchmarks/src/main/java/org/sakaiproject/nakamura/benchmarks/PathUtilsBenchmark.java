@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.util.PathUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PathUtils#normalizePath(String)} and {@link PathUtils#getShardPath(String, int)},
+ * applied to resource and storage paths on most requests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PathUtilsBenchmark {
+
+  private String[] paths;
+  private String[] userIds;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    paths = BenchmarkData.paths(BenchmarkData.random(), 1024);
+    userIds = BenchmarkData.userIds(BenchmarkData.random(), 1024);
+  }
+
+  @Benchmark
+  public String normalizePath() {
+    next = (next + 1) & (paths.length - 1);
+    return PathUtils.normalizePath(paths[next]);
+  }
+
+  @Benchmark
+  public String getShardPath() {
+    next = (next + 1) & (userIds.length - 1);
+    return PathUtils.getShardPath(userIds[next], 4);
+  }
+}
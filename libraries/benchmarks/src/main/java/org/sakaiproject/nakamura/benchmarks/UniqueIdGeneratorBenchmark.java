@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.cluster.UniqueIdGenerator;
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.math.BigInteger;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UniqueIdGenerator}, which issues the id of every new message and pooled content
+ * item, alone and with threads contending for the same generator. The baseline methods
+ * run the generator as it was before it was made lock free, on the same thread counts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UniqueIdGeneratorBenchmark {
+
+  private UniqueIdGenerator generator;
+
+  @Setup
+  public void setUp() {
+    generator = new UniqueIdGenerator(42);
+  }
+
+  @Benchmark
+  public String nextId() {
+    return generator.nextId();
+  }
+
+  @Benchmark
+  public long nextIdLong() {
+    return generator.nextIdLong();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String nextIdThreads4() {
+    return generator.nextId();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String nextIdThreads16() {
+    return generator.nextId();
+  }
+
+  @Benchmark
+  public String baselineNextId(Baseline baseline) {
+    return baseline.nextId();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String baselineNextIdThreads4(Baseline baseline) {
+    return baseline.nextId();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public String baselineNextIdThreads16(Baseline baseline) {
+    return baseline.nextId();
+  }
+
+  /**
+   * The generator before it was made lock free: one lock around the state, and the id
+   * built with BigInteger.
+   */
+  @State(Scope.Benchmark)
+  public static class Baseline {
+
+    private Object lockObject = new Object();
+    private long next = 0;
+    private long epoch;
+    private long last = 0;
+    private long micro = 0;
+    private int serverId = 42;
+    private int rollover;
+
+    @Setup
+    public void setUp() {
+      epoch = new GregorianCalendar(2010, 8, 6).getTimeInMillis();
+    }
+
+    public String nextId() {
+      return StringUtils.encode(nextIdNum().toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    }
+
+    public BigInteger nextIdNum() {
+      synchronized (lockObject) {
+        next = System.currentTimeMillis() - epoch;
+        if (next == last) { // 2 in the same ms
+          micro++;
+        } else if (next < last) { // roll over happend in this ms
+          next = last;
+          micro++;
+        } else { // new ms
+          micro = 0;
+          last = next;
+        }
+        // catch any rollover in micro.
+        if (micro > 999) {
+          rollover++;
+          next++;
+          micro = 0;
+          last = next;
+        }
+      }
+      BigInteger idNum = BigInteger.valueOf(next * 1000 + micro);
+      idNum = idNum.multiply(BigInteger.valueOf(10000));
+      idNum = idNum.add(BigInteger.valueOf(serverId));
+      return idNum;
+    }
+  }
+}
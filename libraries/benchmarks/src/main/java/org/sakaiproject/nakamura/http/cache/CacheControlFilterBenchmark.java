@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.felix.http.api.ExtHttpService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.component.ComponentContext;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CacheControlFilter#getHeaders(String)}, which matches every GET against the
+ * cache configuration. In the same package as the filter to reach the lookup. The
+ * configuration is fixed and has root, path and pattern matches as well as misses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheControlFilterBenchmark {
+
+  private static final String[] PATHS = new String[] { "/dev/index.html",
+      "/dev/lib/jquery/jquery.js", "/devwidgets/chat/chat.html", "/index.html",
+      "/favicon.ico", "/p/a1b2c3d4e5/document.pdf", "/var/search/pool/all.json",
+      "/_user/a/al/alice/public/authprofile.json" };
+
+  private CacheControlFilter cacheControlFilter;
+  private int next;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() throws Exception {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(CacheControlFilter.SAKAI_CACHE_PATTERNS, new String[] {
+        "root;.*(js|css)$;.expires:3456000;Cache-Control: max-age=432000 public;Vary: Accept-Encoding",
+        "root;.*html$;.expires:3456000;Cache-Control: max-age=432000 public;Vary: Accept-Encoding",
+        "var;^/var/search/public/.*$;.expires:3600;.requestCache:3600;Cache-Control: max-age=3600 public;Vary: Accept-Encoding",
+        "var;^/var/widgets.json$;.expires:3600;.requestCache:3600;Cache-Control: max-age=3600 public;Vary: Accept-Encoding",
+        "system;^/system/me;Cache-Control: no-cache" });
+    properties.put(CacheControlFilter.SAKAI_CACHE_PATHS, new String[] {
+        "dev;.lastmodified:unset;.requestCache:3600;.expires:3456000;Cache-Control: max-age=432000 public;Vary: Accept-Encoding",
+        "devwidgets;.lastmodified:unset;.requestCache:3600;.expires:3456000;Cache-Control: max-age=432000 public;Vary: Accept-Encoding",
+        "p;Cache-Control: no-cache" });
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(properties);
+    cacheControlFilter = new CacheControlFilter();
+    cacheControlFilter.extHttpService = mock(ExtHttpService.class);
+    cacheControlFilter.activate(componentContext);
+  }
+
+  @Benchmark
+  public Map<String, String> getHeaders() {
+    next = (next + 1) & (PATHS.length - 1);
+    return cacheControlFilter.getHeaders(PATHS[next]);
+  }
+}
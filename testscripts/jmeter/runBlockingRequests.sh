@@ -0,0 +1,26 @@
+#!/bin/sh
+# Runs the blocking request test plan against a server started in one Jetty execution
+# mode, eg -Dorg.sakaiproject.nakamura.jetty.execution=elastic, and writes the results
+# for that mode so the modes can be compared.
+MODE=${1:-queued}
+RESULTSFILENAME=blocking-requests-${MODE}.jtl
+
+if [ ! -d jakarta-jmeter-2.4 ]
+then
+  echo 'Pulling down jakarta jmeter version 2.4'
+  curl http://apache.mirror.rbftpnetworks.com//jakarta/jmeter/binaries/jakarta-jmeter-2.4.tgz > jakarta-jmeter-2.4.tgz
+  tar xvzf jakarta-jmeter-2.4.tgz
+fi
+
+if [ ! -d results ]
+then
+  mkdir results
+fi
+
+if [ -f results/${RESULTSFILENAME} ]
+then
+  echo 'Results will be appended to existing' ${RESULTSFILENAME}
+fi
+
+[ $# -gt 0 ] && shift
+jakarta-jmeter-2.4/bin/jmeter -n -l results/${RESULTSFILENAME} -t blocking-requests/blocking_requests.jmx "$@"